@@ -0,0 +1,78 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionControl;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionEndpoint;
+import jp.mijs.winter2019.security.webauthn.admission.TokenBucketTable;
+
+/**
+ * 受付制御(AdmissionFilter)の判定1回あたりの処理時間のベンチマーク。
+ * 16スレッドから同時に判定する。
+ * manyClients はクライアント毎のバケットに分散する場合(受け付ける経路)、
+ * singleClient は全スレッドが同じバケットを取得する場合(CASが競合し、ほとんどが429となる経路)。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class AdmissionBenchmark {
+  private static final int CLIENTS = 10_000;
+
+  private AdmissionControl manyClients;
+  private AdmissionControl singleClient;
+  private String[] addresses;
+
+  @Setup
+  public void setUp() {
+    //受け付ける経路を計測するため、制限に達しない設定とする
+    manyClients = new AdmissionControl(Map.of(AdmissionEndpoint.ASSERTION_OPTIONS,
+        new TokenBucketTable(1_000_000, 1_000_000, CLIENTS * 2, 60_000, Clock.systemUTC())),
+        Map.of(), new SimpleMeterRegistry());
+    singleClient = new AdmissionControl(Map.of(AdmissionEndpoint.ASSERTION_OPTIONS,
+        new TokenBucketTable(20, 50, CLIENTS * 2, 60_000, Clock.systemUTC())),
+        Map.of(), new SimpleMeterRegistry());
+    addresses = new String[CLIENTS];
+    for (int i = 0; i < CLIENTS; i++) {
+      addresses[i] = "10.0." + (i / 256) + "." + (i % 256);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    manyClients.destroy();
+    singleClient.destroy();
+  }
+
+  @Benchmark
+  public boolean manyClients() {
+    var address = addresses[ThreadLocalRandom.current().nextInt(CLIENTS)];
+    return manyClients.admitClient(AdmissionEndpoint.of("/assertion/options"), address);
+  }
+
+  @Benchmark
+  public boolean singleClient() {
+    return singleClient.admitClient(AdmissionEndpoint.of("/assertion/options"), "10.0.0.1");
+  }
+}
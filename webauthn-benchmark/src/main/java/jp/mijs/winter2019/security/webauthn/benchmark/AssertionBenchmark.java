@@ -0,0 +1,79 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.webauthn4j.data.client.challenge.Challenge;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.AssertionResponse;
+
+/**
+ * 認証(assertionFinish)のベンチマーク。
+ * 公開鍵クレデンシャルの取得から署名の検証、署名カウンタの更新までを計測する。
+ * 署名カウンタを使用しない認証器(カウンタが常に0)で生成した1件の認証データを、繰り返し検証する。
+ * cacheMaxSize を0にすると、毎回DBから公開鍵クレデンシャルを取得する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssertionBenchmark {
+  @Param({ "ES256", "RS256" })
+  public Algorithm algorithm;
+
+  /** デシリアライズ済み公開鍵クレデンシャルのキャッシュの件数 */
+  @Param({ "10000", "0" })
+  public int cacheMaxSize;
+
+  private ConfigurableApplicationContext context;
+  private WebAuthnAuthenticationService authenticationService;
+  private ServerPropertyTemplate serverPropertyTemplate;
+  private Challenge challenge;
+  private AssertionResponse assertion;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    context = BenchmarkApplication.start("webauthn.cache.authenticator.max-size=" + cacheMaxSize);
+    authenticationService = context.getBean(WebAuthnAuthenticationService.class);
+    serverPropertyTemplate = BenchmarkApplication.serverPropertyTemplate(context);
+
+    var authenticator = new SoftwareAuthenticator(algorithm, 1, false);
+    BenchmarkApplication.register(context, "assertion@example.com", authenticator);
+
+    challenge = new DefaultChallenge();
+    assertion = authenticator.get(BenchmarkApplication.rpId(context), BenchmarkApplication.origin(context),
+        challenge.getValue());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public void assertionFinish() {
+    authenticationService.assertionFinish(serverPropertyTemplate, challenge, assertion.getCredentialId(),
+        assertion.getClientDataJSON(), assertion.getAuthenticatorData(), assertion.getSignature());
+  }
+}
@@ -0,0 +1,101 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import jp.mijs.winter2019.security.webauthn.WebauthnApplication;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+
+/**
+ * ベンチマークで使用するアプリケーションの起動と、テストデータの登録を行うクラス。
+ * HTTPサーバは起動せず、サービスとリポジトリを直接呼び出す。データベースはインメモリのH2を使用する。
+ */
+final class BenchmarkApplication {
+  private BenchmarkApplication() {
+  }
+
+  /**
+   * アプリケーションを起動する。
+   * @param properties 追加で設定するプロパティ - key=value 形式
+   * @return アプリケーションコンテキスト
+   */
+  static ConfigurableApplicationContext start(String... properties) {
+    var defaults = new ArrayList<>(List.of(
+        "spring.jmx.enabled=false",
+        "spring.h2.console.enabled=false",
+        //JMHのウォームアップを使用する - 計測中に別のスレッドで実行させない
+        "webauthn.warmup.enabled=false",
+        "logging.level.root=WARN"));
+    defaults.addAll(List.of(properties));
+    return new SpringApplicationBuilder(WebauthnApplication.class)
+        .web(WebApplicationType.NONE)
+        .bannerMode(Banner.Mode.OFF)
+        .logStartupInfo(false)
+        .properties(defaults.toArray(new String[0]))
+        .run();
+  }
+
+  /**
+   * ベンチマークで使用するテナントを取得する。
+   * @param context アプリケーションコンテキスト
+   * @return 既定のテナント
+   */
+  static Tenant tenant(ConfigurableApplicationContext context) {
+    return context.getBean(TenantRegistry.class).getDefaultTenant();
+  }
+
+  /**
+   * 検証用サーバ情報の雛形を取得する。
+   * @param context アプリケーションコンテキスト
+   * @return 既定のテナントの先頭のOriginの雛形
+   */
+  static ServerPropertyTemplate serverPropertyTemplate(ConfigurableApplicationContext context) {
+    return tenant(context).getDefaultServerPropertyTemplate();
+  }
+
+  /**
+   * RPのOriginを取得する。
+   * @param context アプリケーションコンテキスト
+   * @return RPのOrigin
+   */
+  static String origin(ConfigurableApplicationContext context) {
+    return serverPropertyTemplate(context).getOrigin().toString();
+  }
+
+  /**
+   * RPのIDを取得する。
+   * @param context アプリケーションコンテキスト
+   * @return RPのID
+   */
+  static String rpId(ConfigurableApplicationContext context) {
+    return tenant(context).getRpId();
+  }
+
+  /**
+   * ソフトウェア認証器をユーザに登録する。
+   * @param context アプリケーションコンテキスト
+   * @param email ユーザのメールアドレス
+   * @param authenticator 登録する認証器
+   * @return 登録したユーザ
+   */
+  static User register(ConfigurableApplicationContext context, String email, SoftwareAuthenticator authenticator) {
+    var registrationService = context.getBean(WebAuthnRegistrationService.class);
+    var user = registrationService.findOrElseCreate(tenant(context), email, email).getUser();
+    var challenge = context.getBean(ChallengeGenerator.class).challenge();
+    var response = authenticator.create(rpId(context), origin(context), challenge.getValue());
+    registrationService.creationFinish(serverPropertyTemplate(context), user, challenge,
+        response.getClientDataJSON(), response.getAttestationObject());
+    return user;
+  }
+}
@@ -0,0 +1,72 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.webauthn4j.data.client.challenge.Challenge;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+
+/**
+ * challenge・ユーザIDの生成方法による比較のベンチマーク。
+ * 64スレッドから同時に生成する。
+ * defaultChallenge・newSecureRandom は以前の実装(new DefaultChallenge()・ユーザ毎の new SecureRandom())、
+ * generatorChallenge・generatorUserId は現在の実装(ChallengeGenerator)。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class ChallengeGeneratorBenchmark {
+  private ChallengeGenerator generator;
+
+  @Setup
+  public void setUp() {
+    generator = new ChallengeGenerator(new SimpleMeterRegistry(), 0, 4096, 60_000);
+  }
+
+  @TearDown
+  public void tearDown() {
+    generator.destroy();
+  }
+
+  @Benchmark
+  public Challenge defaultChallenge() {
+    return new DefaultChallenge();
+  }
+
+  @Benchmark
+  public byte[] newSecureRandom() {
+    var userId = new byte[ChallengeGenerator.USER_ID_LENGTH];
+    new SecureRandom().nextBytes(userId);
+    return userId;
+  }
+
+  @Benchmark
+  public Challenge generatorChallenge() {
+    return generator.challenge();
+  }
+
+  @Benchmark
+  public byte[] generatorUserId() {
+    return generator.userId();
+  }
+}
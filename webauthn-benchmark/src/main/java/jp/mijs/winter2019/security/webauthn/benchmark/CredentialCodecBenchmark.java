@@ -0,0 +1,86 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.webauthn4j.converter.AttestationObjectConverter;
+import com.webauthn4j.converter.util.CborConverter;
+import com.webauthn4j.converter.util.JsonConverter;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.service.CredentialCodec;
+import jp.mijs.winter2019.security.webauthn.service.OriginalAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * 公開鍵クレデンシャル(OriginalAuthenticator)のCBOR変換のベンチマーク。
+ * legacy はバージョン1の保存形式(公開鍵クレデンシャル全体)、それ以外はバージョン2の保存形式を対象とする。
+ * ソフトウェア認証器は none アテステーションのみのため、証明書チェーンを含むフォーマットより小さいデータとなる。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialCodecBenchmark {
+  @Param({ "ES256", "RS256" })
+  public Algorithm algorithm;
+
+  private CborConverter cborConverter;
+  private CredentialCodec credentialCodec;
+  private OriginalAuthenticator authenticator;
+  private byte[] userId;
+  private byte[] legacyBytes;
+  private Credential credential;
+
+  @Setup
+  public void setUp() {
+    cborConverter = new JsonConverter().getCborConverter();
+    credentialCodec = new CredentialCodec(cborConverter);
+
+    var response = new SoftwareAuthenticator(algorithm, 1)
+        .create("localhost", "https://localhost", new byte[32]);
+    var attestationObject = new AttestationObjectConverter(cborConverter).convert(response.getAttestationObject());
+    authenticator = new OriginalAuthenticator(
+        attestationObject.getAuthenticatorData().getAttestedCredentialData(),
+        attestationObject.getAttestationStatement(),
+        attestationObject.getAuthenticatorData().getSignCount());
+
+    userId = new byte[32];
+    legacyBytes = cborConverter.writeValueAsBytes(authenticator);
+    credential = credentialCodec.encode(userId, authenticator);
+  }
+
+  @Benchmark
+  public byte[] encodeLegacy() {
+    return cborConverter.writeValueAsBytes(authenticator);
+  }
+
+  @Benchmark
+  public OriginalAuthenticator decodeLegacy() {
+    return credentialCodec.decodeLegacy(legacyBytes);
+  }
+
+  @Benchmark
+  public Credential encode() {
+    return credentialCodec.encode(userId, authenticator);
+  }
+
+  @Benchmark
+  public OriginalAuthenticator decode() {
+    return credentialCodec.decode(credential, () -> null);
+  }
+}
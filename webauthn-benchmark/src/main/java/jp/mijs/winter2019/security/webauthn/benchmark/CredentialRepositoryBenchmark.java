@@ -0,0 +1,147 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * 公開鍵クレデンシャル情報・ユーザ情報の取得のベンチマーク。
+ * 指定した件数のユーザに、それぞれ指定した件数のクレデンシャルを登録してから計測する。
+ * *Reflectiveは、以前の実装(SELECT * とBeanPropertyRowMapper)で同じ検索を行う比較用の計測。
+ * -prof gc で1回あたりのメモリ割り当て量(gc.alloc.rate.norm)を比較する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialRepositoryBenchmark {
+  @Param("1000")
+  public int users;
+
+  @Param("2")
+  public int credentialsPerUser;
+
+  private ConfigurableApplicationContext context;
+  private CredentialRepository credentialRepository;
+  private UserRepository userRepository;
+  private NamedParameterJdbcOperations jdbc;
+  private final List<byte[]> userIds = new ArrayList<>();
+  private final List<String> emails = new ArrayList<>();
+  private final List<byte[]> credentialIds = new ArrayList<>();
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    context = BenchmarkApplication.start();
+    credentialRepository = context.getBean(CredentialRepository.class);
+    userRepository = context.getBean(UserRepository.class);
+    jdbc = context.getBean(NamedParameterJdbcOperations.class);
+
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 1);
+    for (int i = 0; i < users; i++) {
+      for (int j = 0; j < credentialsPerUser; j++) {
+        var credential = authenticator.nextCredential();
+        var user = BenchmarkApplication.register(context, "repository-" + i + "@example.com", credential);
+        if (j == 0) {
+          userIds.add(user.getId());
+          emails.add(user.getEmail());
+        }
+        credentialIds.add(credential.getCredentialId());
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public Optional<Credential> findById() {
+    next = (next + 1) % credentialIds.size();
+    return credentialRepository.findById(credentialIds.get(next));
+  }
+
+  @Benchmark
+  public List<Credential> findByUserId() {
+    next = (next + 1) % userIds.size();
+    return credentialRepository.findByUserId(userIds.get(next));
+  }
+
+  @Benchmark
+  public List<byte[]> findCredentialIdsByUserId() {
+    next = (next + 1) % userIds.size();
+    return credentialRepository.findCredentialIdsByUserId(userIds.get(next));
+  }
+
+  @Benchmark
+  public Optional<User> findByEmail() {
+    next = (next + 1) % emails.size();
+    return userRepository.findByEmail(Tenant.DEFAULT_ID, emails.get(next));
+  }
+
+  @Benchmark
+  public Optional<Credential> findByIdReflective() {
+    next = (next + 1) % credentialIds.size();
+    var sql = "SELECT * FROM credential WHERE credential_id = :credentialId";
+    try {
+      return Optional.of(jdbc.queryForObject(sql,
+          new MapSqlParameterSource().addValue("credentialId", credentialIds.get(next)),
+          new BeanPropertyRowMapper<>(Credential.class)));
+    } catch (EmptyResultDataAccessException ignore) {
+      return Optional.empty();
+    }
+  }
+
+  @Benchmark
+  public List<Credential> findByUserIdReflective() {
+    next = (next + 1) % userIds.size();
+    var sql = "SELECT * FROM credential WHERE user_id = :userId";
+    return jdbc.query(sql,
+        new MapSqlParameterSource().addValue("userId", userIds.get(next)),
+        new BeanPropertyRowMapper<>(Credential.class));
+  }
+
+  @Benchmark
+  public Optional<User> findByEmailReflective() {
+    next = (next + 1) % emails.size();
+    var sql = "SELECT * FROM user WHERE email=:email";
+    try {
+      return Optional.of(jdbc.queryForObject(sql,
+          new MapSqlParameterSource().addValue("email", emails.get(next)),
+          new BeanPropertyRowMapper<>(User.class)));
+    } catch (EmptyResultDataAccessException ignore) {
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webauthn4j.data.PublicKeyCredentialCreationOptions;
+import com.webauthn4j.data.PublicKeyCredentialRequestOptions;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplate;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * options(PublicKeyCredentialCreationOptions, PublicKeyCredentialRequestOptions)のJSON変換のベンチマーク。
+ * レスポンスの出力と同じく、SpringBootが生成したObjectMapperを使用する。
+ * allowCredentialsに2件のクレデンシャルを含むユーザを対象とする。
+ * *Templateは、レスポンスの出力で使用するJSON変換済みの雛形にchallengeを差し込む場合。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OptionsSerializationBenchmark {
+  private ConfigurableApplicationContext context;
+  private ObjectMapper objectMapper;
+  private PublicKeyCredentialCreationOptions creationOptions;
+  private PublicKeyCredentialRequestOptions requestOptions;
+  private OptionsTemplate creationOptionsTemplate;
+  private OptionsTemplate requestOptionsTemplate;
+  // JSON変換の比較のため、challengeの生成は計測に含めない
+  private final DefaultChallenge challenge = new DefaultChallenge();
+
+  @Setup(Level.Trial)
+  public void setUp() throws JsonProcessingException {
+    context = BenchmarkApplication.start();
+    objectMapper = context.getBean(ObjectMapper.class);
+
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 1);
+    BenchmarkApplication.register(context, "options@example.com", authenticator);
+    BenchmarkApplication.register(context, "options@example.com", authenticator.nextCredential());
+
+    var registrationService = context.getBean(WebAuthnRegistrationService.class);
+    var authenticationService = context.getBean(WebAuthnAuthenticationService.class);
+    var tenant = BenchmarkApplication.tenant(context);
+    creationOptions = registrationService.creationOptions(tenant,
+        registrationService.findOrElseCreate(tenant, "options@example.com", "options@example.com"));
+    requestOptions = authenticationService.requestOptions(tenant,
+        authenticationService.find(tenant, "options@example.com").orElseThrow());
+    creationOptionsTemplate = registrationService.creationOptionsTemplate(tenant, "options@example.com",
+        "options@example.com");
+    requestOptionsTemplate = authenticationService.requestOptionsTemplate(tenant, "options@example.com");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public byte[] creationOptions() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(creationOptions);
+  }
+
+  @Benchmark
+  public byte[] requestOptions() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(requestOptions);
+  }
+
+  @Benchmark
+  public byte[] creationOptionsTemplate() {
+    return creationOptionsTemplate.render(challenge);
+  }
+
+  @Benchmark
+  public byte[] requestOptionsTemplate() {
+    return requestOptionsTemplate.render(challenge);
+  }
+}
@@ -0,0 +1,123 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.webauthn4j.data.client.challenge.Challenge;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.AttestationResponse;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * 登録(creationFinish)のベンチマーク。
+ * 検証からユーザ・公開鍵クレデンシャルのDB登録までを計測する。
+ * クレデンシャルIDとユーザは登録毎に異なる必要があるため、計測の前に1イテレーション分の登録データを生成しておく。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationBenchmark {
+  @Param({ "ES256", "RS256" })
+  public Algorithm algorithm;
+
+  /** 1イテレーション分として生成する登録データの件数 - 不足した場合は計測中に生成する */
+  @Param("20000")
+  public int poolSize;
+
+  private ConfigurableApplicationContext context;
+  private WebAuthnRegistrationService registrationService;
+  private Tenant tenant;
+  private ServerPropertyTemplate serverPropertyTemplate;
+  private SoftwareAuthenticator authenticator;
+  private String rpId;
+  private String origin;
+  private final ArrayDeque<Registration> registrations = new ArrayDeque<>();
+  private int sequence;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    context = BenchmarkApplication.start();
+    registrationService = context.getBean(WebAuthnRegistrationService.class);
+    tenant = BenchmarkApplication.tenant(context);
+    serverPropertyTemplate = BenchmarkApplication.serverPropertyTemplate(context);
+    rpId = BenchmarkApplication.rpId(context);
+    origin = BenchmarkApplication.origin(context);
+    authenticator = new SoftwareAuthenticator(algorithm, 1);
+  }
+
+  @Setup(Level.Iteration)
+  public void prepare() {
+    registrations.clear();
+    for (int i = 0; i < poolSize; i++) {
+      registrations.add(newRegistration());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public void creationFinish() {
+    var registration = registrations.poll();
+    if (registration == null) {
+      registration = newRegistration();
+    }
+    registrationService.creationFinish(serverPropertyTemplate, registration.user, registration.challenge,
+        registration.response.getClientDataJSON(), registration.response.getAttestationObject());
+  }
+
+  // 鍵ペアは共有し、クレデンシャルIDとユーザのみ新しくした登録データを生成する
+  private Registration newRegistration() {
+    var userId = new byte[32];
+    ThreadLocalRandom.current().nextBytes(userId);
+    var user = new User();
+    user.setTenantId(tenant.getId());
+    user.setId(userId);
+    user.setEmail("registration-" + sequence++ + "@example.com");
+    user.setDisplayName("registration");
+
+    var challenge = new DefaultChallenge();
+    var response = authenticator.nextCredential().create(rpId, origin, challenge.getValue());
+    return new Registration(user, challenge, response);
+  }
+
+  // 1回分の登録データ
+  private static class Registration {
+    private final User user;
+    private final Challenge challenge;
+    private final AttestationResponse response;
+
+    Registration(User user, Challenge challenge, AttestationResponse response) {
+      this.user = user;
+      this.challenge = challenge;
+      this.response = response;
+    }
+  }
+}
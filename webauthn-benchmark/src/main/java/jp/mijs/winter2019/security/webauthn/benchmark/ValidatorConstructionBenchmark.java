@@ -0,0 +1,85 @@
+package jp.mijs.winter2019.security.webauthn.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.webauthn4j.data.WebAuthnRegistrationContext;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+import com.webauthn4j.validator.WebAuthnRegistrationContextValidationResponse;
+import com.webauthn4j.validator.WebAuthnRegistrationContextValidator;
+import com.webauthn4j.validator.attestation.statement.androidkey.AndroidKeyAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.androidsafetynet.AndroidSafetyNetAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.none.NoneAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.packed.PackedAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.tpm.TPMAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.u2f.FIDOU2FAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.certpath.NullCertPathTrustworthinessValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.ecdaa.NullECDAATrustworthinessValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.self.DefaultSelfAttestationTrustworthinessValidator;
+
+import jp.mijs.winter2019.security.webauthn.config.WebAuthnConfig;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantIndex;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * 登録時のValidatorの生成方法による比較のベンチマーク。
+ * perRequest はリクエスト毎にValidator(と内部のJSON/CBORコンバータ)を生成していた以前の実装、
+ * shared は起動時に生成したValidatorを共有する現在の実装(WebAuthnConfig)で、同じ登録データを検証する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidatorConstructionBenchmark {
+  private WebAuthnRegistrationContextValidator sharedValidator;
+  private WebAuthnRegistrationContext registrationContext;
+
+  @Setup
+  public void setUp() {
+    var config = new WebAuthnConfig();
+    var jsonConverter = config.jsonConverter();
+    sharedValidator = config.registrationContextValidator(jsonConverter, config.cborConverter(jsonConverter),
+        new NullCertPathTrustworthinessValidator());
+
+    var serverPropertyTemplate = TenantIndex.defaults().getDefaultTenant().getDefaultServerPropertyTemplate();
+    var challenge = new DefaultChallenge();
+    var response = new SoftwareAuthenticator(Algorithm.ES256, 1).create(serverPropertyTemplate.getRpId(),
+        serverPropertyTemplate.getOrigin().toString(), challenge.getValue());
+    registrationContext = new WebAuthnRegistrationContext(response.getClientDataJSON(),
+        response.getAttestationObject(), serverPropertyTemplate.create(challenge), false);
+  }
+
+  @Benchmark
+  public WebAuthnRegistrationContextValidationResponse perRequest() {
+    var validator = new WebAuthnRegistrationContextValidator(
+        List.of(
+            new PackedAttestationStatementValidator(),
+            new TPMAttestationStatementValidator(),
+            new AndroidKeyAttestationStatementValidator(),
+            new AndroidSafetyNetAttestationStatementValidator(),
+            new FIDOU2FAttestationStatementValidator(),
+            new NoneAttestationStatementValidator()),
+        new NullCertPathTrustworthinessValidator(), new NullECDAATrustworthinessValidator(),
+        new DefaultSelfAttestationTrustworthinessValidator());
+    return validator.validate(registrationContext);
+  }
+
+  @Benchmark
+  public WebAuthnRegistrationContextValidationResponse shared() {
+    return sharedValidator.validate(registrationContext);
+  }
+}
@@ -0,0 +1,176 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+
+/**
+ * 仮想ユーザの登録・認証のセレモニーをHTTPSで実行するクライアント。
+ * ブラウザ(webauthn.js)と同じ順序・形式(resultはJSONまたはCBOR)でエンドポイントを呼び出し、エンドポイント毎の応答時間と失敗を記録する。
+ */
+final class CeremonyClient {
+  static final String ATTESTATION_OPTIONS = "/attestation/options";
+  static final String ATTESTATION_RESULT = "/attestation/result";
+  static final String ASSERTION_OPTIONS = "/assertion/options";
+  static final String ASSERTION_RESULT = "/assertion/result";
+  static final String REGISTRATION = "registration";
+  static final String LOGIN = "login";
+
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+  private final HttpClient http;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+  private final LoadOptions options;
+  private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+
+  /**
+   * コンストラクタ。
+   * @param http 全ての仮想ユーザで共有するHTTPクライアント - Cookieは仮想ユーザ毎に管理する
+   * @param options 負荷生成の設定
+   */
+  CeremonyClient(HttpClient http, LoadOptions options) {
+    this.http = http;
+    this.options = options;
+    for (var name : List.of(ATTESTATION_OPTIONS, ATTESTATION_RESULT, ASSERTION_OPTIONS, ASSERTION_RESULT,
+        REGISTRATION, LOGIN)) {
+      stats.put(name, new EndpointStats(name));
+    }
+  }
+
+  /**
+   * 仮想ユーザの認証器を登録する。
+   * /attestation/options → 認証器でアテステーションを生成 → /attestation/result の順に実行する。
+   * @param user 仮想ユーザ
+   * @return 登録に成功した場合はtrue
+   * @throws InterruptedException 負荷生成を停止した場合はこの例外をスローする
+   */
+  boolean register(VirtualUser user) throws InterruptedException {
+    var ceremony = stats.get(REGISTRATION);
+    var start = System.nanoTime();
+
+    var optionsParams = Map.of("email", user.getEmail(), "displayName", user.getEmail());
+    var optionsResponse = post(user, ATTESTATION_OPTIONS, optionsParams, false);
+    if (optionsResponse == null) {
+      ceremony.failure(start, ATTESTATION_OPTIONS);
+      return false;
+    }
+    var ceremonyId = optionsResponse.headers().firstValue(ChallengeStore.CEREMONY_ID_HEADER).orElse(null);
+    var challenge = challenge(optionsResponse);
+    if (ceremonyId == null || challenge == null) {
+      ceremony.failure(start, "InvalidOptions");
+      return false;
+    }
+
+    var attestation = user.getAuthenticator().create(options.rpId, options.origin, challenge);
+    var resultParams = new LinkedHashMap<String, Object>();
+    resultParams.put("ceremonyId", ceremonyId);
+    resultParams.put("clientDataJSON", attestation.getClientDataJSON());
+    resultParams.put("attestationObject", attestation.getAttestationObject());
+    if (post(user, ATTESTATION_RESULT, resultParams, options.cborResult) == null) {
+      ceremony.failure(start, ATTESTATION_RESULT);
+      return false;
+    }
+    ceremony.success(start);
+    return true;
+  }
+
+  /**
+   * 登録済みの仮想ユーザで認証する。
+   * /assertion/options → 認証器でアサーションを生成 → /assertion/result の順に実行する。
+   * @param user 仮想ユーザ
+   * @return 認証に成功した場合はtrue
+   * @throws InterruptedException 負荷生成を停止した場合はこの例外をスローする
+   */
+  boolean login(VirtualUser user) throws InterruptedException {
+    var ceremony = stats.get(LOGIN);
+    var start = System.nanoTime();
+
+    var optionsResponse = post(user, ASSERTION_OPTIONS, Map.of("email", user.getEmail()), false);
+    if (optionsResponse == null) {
+      ceremony.failure(start, ASSERTION_OPTIONS);
+      return false;
+    }
+    var ceremonyId = optionsResponse.headers().firstValue(ChallengeStore.CEREMONY_ID_HEADER).orElse(null);
+    var challenge = challenge(optionsResponse);
+    if (ceremonyId == null || challenge == null) {
+      ceremony.failure(start, "InvalidOptions");
+      return false;
+    }
+
+    var assertion = user.getAuthenticator().get(options.rpId, options.origin, challenge);
+    var resultParams = new LinkedHashMap<String, Object>();
+    resultParams.put("ceremonyId", ceremonyId);
+    resultParams.put("credentialId", assertion.getCredentialId());
+    resultParams.put("clientDataJSON", assertion.getClientDataJSON());
+    resultParams.put("authenticatorData", assertion.getAuthenticatorData());
+    resultParams.put("signature", assertion.getSignature());
+    if (post(user, ASSERTION_RESULT, resultParams, options.cborResult) == null) {
+      ceremony.failure(start, ASSERTION_RESULT);
+      return false;
+    }
+    ceremony.success(start);
+    return true;
+  }
+
+  /**
+   * エンドポイント毎の集計を取得する。
+   * @return エンドポイント毎の集計 - エンドポイントの後に、セレモニー全体の集計(registration, login)が続く
+   */
+  Map<String, EndpointStats> getStats() {
+    return stats;
+  }
+
+  // JSONまたはCBORをPOSTし、応答時間を記録する - 失敗した場合はnullを返す
+  //  CBORではバイト列をBase64に変換せずに送信する
+  private HttpResponse<byte[]> post(VirtualUser user, String path, Object params, boolean cbor)
+      throws InterruptedException {
+    var endpoint = stats.get(path);
+    var start = System.nanoTime();
+    try {
+      var uri = options.target.resolve(path);
+      var request = HttpRequest.newBuilder(uri)
+          .timeout(REQUEST_TIMEOUT)
+          .header("Content-Type", cbor ? "application/cbor" : "application/json")
+          .POST(HttpRequest.BodyPublishers.ofByteArray(
+              (cbor ? cborMapper : objectMapper).writeValueAsBytes(params)));
+      // Cookieは仮想ユーザ毎に保持する
+      user.getCookies().get(uri, Map.of())
+          .forEach((name, values) -> values.forEach(value -> request.header(name, value)));
+
+      var response = http.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+      user.getCookies().put(uri, response.headers().map());
+      if (response.statusCode() / 100 != 2) {
+        endpoint.failure(start, "HTTP " + response.statusCode());
+        return null;
+      }
+      endpoint.success(start);
+      return response;
+    } catch (IOException | RuntimeException e) {
+      endpoint.failure(start, e.getClass().getSimpleName());
+      return null;
+    }
+  }
+
+  // optionsのchallengeを取り出す - {"challenge":{"value":"Base64"}}
+  private byte[] challenge(HttpResponse<byte[]> response) {
+    try {
+      JsonNode value = objectMapper.readTree(response.body()).path("challenge").path("value");
+      return value.isTextual() ? Base64.getDecoder().decode(value.asText()) : null;
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * エンドポイント毎の集計。
+ * 応答時間はHdrHistogramにマイクロ秒単位で記録し、失敗はHTTPステータスまたは例外の種類毎に数える。
+ * 複数の仮想ユーザから同時に記録できる。集計結果の取得は、途中経過を出力する1スレッドのみから行う。
+ */
+final class EndpointStats {
+  // 記録できる最大の応答時間 - これを超える値は最大値として記録する
+  private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+  private final String name;
+  private final Recorder recorder = new Recorder(MAX_MICROS, 3);
+  private final Histogram total = new Histogram(MAX_MICROS, 3);
+  private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+  EndpointStats(String name) {
+    this.name = name;
+  }
+
+  /**
+   * 成功した要求を記録する。
+   * @param startNanos 要求を開始した時刻(System.nanoTime)
+   */
+  void success(long startNanos) {
+    record(startNanos);
+  }
+
+  /**
+   * 失敗した要求を記録する。
+   * @param startNanos 要求を開始した時刻(System.nanoTime)
+   * @param error 失敗の種類 - HTTPステータスまたは例外のクラス名
+   */
+  void failure(long startNanos, String error) {
+    record(startNanos);
+    errors.computeIfAbsent(error, key -> new LongAdder()).increment();
+  }
+
+  private void record(long startNanos) {
+    var micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    recorder.recordValue(Math.min(Math.max(micros, 0), MAX_MICROS));
+  }
+
+  /**
+   * ウォームアップ中の記録を破棄する。
+   */
+  void reset() {
+    recorder.reset();
+    total.reset();
+    errors.clear();
+  }
+
+  /**
+   * 前回の呼び出しから現在までの応答時間を取得する。
+   * 取得した応答時間は計測期間全体の集計にも加算する。
+   * @return 応答時間のヒストグラム
+   */
+  Histogram interval() {
+    var interval = recorder.getIntervalHistogram();
+    total.add(interval);
+    return interval;
+  }
+
+  /**
+   * 計測期間全体の応答時間を取得する。
+   * @return 応答時間のヒストグラム
+   */
+  Histogram total() {
+    return total;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getErrorCount() {
+    return errors.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  Map<String, Long> getErrors() {
+    var result = new TreeMap<String, Long>();
+    errors.forEach((key, count) -> result.put(key, count.sum()));
+    return result;
+  }
+}
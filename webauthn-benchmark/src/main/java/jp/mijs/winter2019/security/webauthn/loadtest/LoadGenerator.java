@@ -0,0 +1,271 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.http.HttpClient;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.HdrHistogram.Histogram;
+
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * 起動中のwebauthn-demoに、登録・認証のセレモニーをHTTPSで送信する負荷生成ツール。
+ * 仮想ユーザ毎にソフトウェア認証器(ES256/RS256の鍵ペアと署名カウンタ)を持ち、
+ * ブラウザや物理的な認証器を使わずに、/attestation/*・/assertion/* の実際の処理を計測する。
+ * 終了時にエンドポイント毎のスループット・応答時間(p50/p99/p99.9)・失敗の内訳を出力する。
+ */
+public final class LoadGenerator {
+  // HttpClientのホスト名検証を無効にするシステムプロパティ - HttpClientの初期化前に設定する必要がある
+  private static final String DISABLE_HOSTNAME_VERIFICATION = "jdk.internal.httpclient.disableHostnameVerification";
+
+  private final LoadOptions options;
+  private final CeremonyClient client;
+  private final PrintStream out;
+  private final ConcurrentLinkedQueue<VirtualUser> registeredUsers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger userSequence = new AtomicInteger();
+  // 実行毎に異なるメールアドレスとするための識別子 - 同じサーバに繰り返し実行できるようにする
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+  private volatile boolean running = true;
+
+  LoadGenerator(LoadOptions options, HttpClient http, PrintStream out) {
+    this.options = options;
+    this.client = new CeremonyClient(http, options);
+    this.out = out;
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadOptions options;
+    try {
+      options = LoadOptions.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(LoadOptions.USAGE);
+      System.exit(2);
+      return;
+    }
+
+    // 同梱の自己署名証明書はSubject Alternative Nameを持たないため、ホスト名の検証は行わない
+    //  信頼する証明書はtruststoreの証明書のみに限定する
+    System.setProperty(DISABLE_HOSTNAME_VERIFICATION, "true");
+    var http = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .sslContext(sslContext(options))
+        .build();
+
+    new LoadGenerator(options, http, System.out).run();
+  }
+
+  /**
+   * 負荷生成を実行し、結果を出力する。
+   * @throws InterruptedException 中断された場合はこの例外をスローする
+   */
+  void run() throws InterruptedException {
+    out.printf("target=%s origin=%s rpId=%s concurrency=%d duration=%s warmup=%s ramp=%s "
+        + "registration-ratio=%.2f rs256-ratio=%.2f%n",
+        options.target, options.origin, options.rpId, options.concurrency, options.duration, options.warmup,
+        options.ramp, options.registrationRatio, options.rs256Ratio);
+
+    prepareUsers();
+
+    var workers = Executors.newFixedThreadPool(options.concurrency);
+    var start = System.nanoTime();
+    for (int i = 0; i < options.concurrency; i++) {
+      var startDelay = options.ramp.startDelay(i, options.concurrency);
+      workers.execute(() -> work(start + startDelay.toNanos()));
+    }
+
+    // ウォームアップ中の記録は破棄する
+    sleepUntil(start + options.warmup.toNanos());
+    client.getStats().values().forEach(EndpointStats::reset);
+
+    var measureStart = System.nanoTime();
+    var measureEnd = measureStart + options.duration.toNanos();
+    var lastReport = measureStart;
+    while (System.nanoTime() < measureEnd) {
+      var next = Math.min(lastReport + options.reportInterval.toNanos(), measureEnd);
+      sleepUntil(next);
+      var now = System.nanoTime();
+      printProgress(now - measureStart, now - lastReport);
+      lastReport = now;
+    }
+    var measured = System.nanoTime() - measureStart;
+
+    running = false;
+    workers.shutdownNow();
+    workers.awaitTermination(30, TimeUnit.SECONDS);
+    printReport(measured);
+  }
+
+  // 認証の対象とする仮想ユーザを、計測前に登録しておく
+  private void prepareUsers() throws InterruptedException {
+    if (options.users <= 0) {
+      return;
+    }
+    out.printf("Registering %d virtual users...%n", options.users);
+    var remaining = new AtomicInteger(options.users);
+    var executor = Executors.newFixedThreadPool(options.concurrency);
+    for (int i = 0; i < options.concurrency; i++) {
+      executor.execute(() -> {
+        try {
+          while (remaining.getAndDecrement() > 0) {
+            register();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+    shutdownAndWait(executor);
+
+    var failed = client.getStats().get(CeremonyClient.REGISTRATION).getErrors();
+    out.printf("Registered %d virtual users %s%n", registeredUsers.size(), failed.isEmpty() ? "" : failed);
+    client.getStats().values().forEach(EndpointStats::reset);
+  }
+
+  // 仮想ユーザ1人分の処理 - 終了するまで登録・認証を繰り返す
+  private void work(long startAt) {
+    try {
+      sleepUntil(startAt);
+      var random = ThreadLocalRandom.current();
+      while (running) {
+        if (random.nextDouble() < options.registrationRatio) {
+          register();
+        } else {
+          login();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void register() throws InterruptedException {
+    var sequence = userSequence.incrementAndGet();
+    var algorithm = ThreadLocalRandom.current().nextDouble() < options.rs256Ratio ? Algorithm.RS256 : Algorithm.ES256;
+    var user = new VirtualUser("loadtest-" + runId + "-" + sequence + "@example.com",
+        new SoftwareAuthenticator(algorithm, System.nanoTime() ^ ((long) sequence << 32)));
+    if (client.register(user)) {
+      registeredUsers.add(user);
+    }
+  }
+
+  // 登録済みの仮想ユーザを1人取り出して認証する - 登録済みの仮想ユーザがいない場合は登録する
+  private void login() throws InterruptedException {
+    var user = registeredUsers.poll();
+    if (user == null) {
+      register();
+      return;
+    }
+    try {
+      client.login(user);
+    } finally {
+      registeredUsers.add(user);
+    }
+  }
+
+  private void printProgress(long elapsedNanos, long intervalNanos) {
+    var line = new StringBuilder(String.format("[%4ds]", TimeUnit.NANOSECONDS.toSeconds(elapsedNanos)));
+    for (var stats : client.getStats().values()) {
+      var histogram = stats.interval();
+      line.append(String.format(" %s %.0f/s p99=%.1fms",
+          stats.getName(),
+          histogram.getTotalCount() / (intervalNanos / 1e9),
+          histogram.getValueAtPercentile(99) / 1000.0));
+    }
+    out.println(line);
+  }
+
+  private void printReport(long measuredNanos) {
+    var seconds = measuredNanos / 1e9;
+    out.println();
+    out.printf("%-22s %10s %10s %10s %10s %10s %10s %10s %10s%n",
+        "endpoint", "requests", "errors", "req/s", "p50(ms)", "p99(ms)", "p99.9(ms)", "max(ms)", "mean(ms)");
+    for (var stats : client.getStats().values()) {
+      Histogram histogram = stats.total();
+      out.printf("%-22s %10d %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+          stats.getName(),
+          histogram.getTotalCount(),
+          stats.getErrorCount(),
+          histogram.getTotalCount() / seconds,
+          histogram.getValueAtPercentile(50) / 1000.0,
+          histogram.getValueAtPercentile(99) / 1000.0,
+          histogram.getValueAtPercentile(99.9) / 1000.0,
+          histogram.getMaxValue() / 1000.0,
+          histogram.getMean() / 1000.0);
+    }
+
+    var errorLines = new ArrayList<String>();
+    for (var stats : client.getStats().values()) {
+      stats.getErrors().forEach((error, count) -> errorLines.add(
+          String.format("  %-22s %-32s %10d", stats.getName(), error, count)));
+    }
+    out.println();
+    out.println(errorLines.isEmpty() ? "errors: none" : "errors:");
+    errorLines.forEach(out::println);
+    out.printf("%nvirtual users: %d registered, measured %.1fs%n", registeredUsers.size(), seconds);
+  }
+
+  private static void sleepUntil(long nanoTime) throws InterruptedException {
+    var wait = nanoTime - System.nanoTime();
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  private static void shutdownAndWait(ExecutorService executor) throws InterruptedException {
+    executor.shutdown();
+    while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+      // 登録が終わるまで待つ
+    }
+  }
+
+  // truststoreの証明書のみを信頼するSSLContextを生成する
+  private static SSLContext sslContext(LoadOptions options) throws IOException, GeneralSecurityException {
+    var keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = options.truststore != null
+        ? new FileInputStream(options.truststore)
+        : LoadGenerator.class.getResourceAsStream("/keystore.p12")) {
+      if (in == null) {
+        throw new IOException("keystore.p12 is not found in classpath. Specify --truststore");
+      }
+      keyStore.load(in, options.truststorePassword.toCharArray());
+    }
+
+    // 秘密鍵は使用せず、証明書のみを信頼する証明書として登録する
+    var trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    trustStore.load(null, null);
+    List<String> aliases = Collections.list(keyStore.aliases());
+    for (var alias : aliases) {
+      var certificate = keyStore.getCertificate(alias);
+      if (certificate != null) {
+        trustStore.setCertificateEntry(alias, certificate);
+      }
+    }
+
+    var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(trustStore);
+    var sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+    return sslContext;
+  }
+}
@@ -0,0 +1,118 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 負荷生成の設定。
+ * コマンドライン引数(--key=value 形式)から生成する。
+ */
+final class LoadOptions {
+  static final String USAGE = String.join("\n",
+      "Usage: java -cp benchmarks.jar " + LoadGenerator.class.getName() + " [options]",
+      "  --target=URL              接続先 (default: https://localhost:8443)",
+      "  --origin=ORIGIN           clientDataJSONに設定するOrigin (default: targetのOrigin)",
+      "  --rp-id=ID                authenticatorDataに設定するrpId (default: targetのホスト名)",
+      "  --concurrency=N           同時に実行する仮想ユーザ数 (default: 16)",
+      "  --duration=TIME           計測時間 - ウォームアップの後から計測する (default: 60s)",
+      "  --warmup=TIME             計測前のウォームアップ時間 - ランプアップはウォームアップの開始から始まる (default: 10s)",
+      "  --ramp=PROFILE            none / linear:TIME / step:STEPS:TIME (default: none)",
+      "  --users=N                 計測前に登録しておく仮想ユーザ数 (default: 100)",
+      "  --registration-ratio=R    登録の割合 0.0-1.0 - 残りは認証 (default: 0.1)",
+      "  --rs256-ratio=R           RS256の鍵ペアを持つ仮想ユーザの割合 0.0-1.0 (default: 0.1)",
+      "  --result-format=FORMAT    /attestation/result・/assertion/resultの送信形式 json / cbor (default: json)",
+      "  --report-interval=TIME    途中経過を出力する間隔 (default: 5s)",
+      "  --truststore=PATH         サーバ証明書のPKCS12ファイル (default: webauthn-demoのkeystore.p12)",
+      "  --truststore-password=PW  サーバ証明書のPKCS12ファイルのパスワード (default: password)");
+
+  final URI target;
+  final String origin;
+  final String rpId;
+  final int concurrency;
+  final Duration duration;
+  final Duration warmup;
+  final RampProfile ramp;
+  final int users;
+  final double registrationRatio;
+  final double rs256Ratio;
+  final boolean cborResult;
+  final Duration reportInterval;
+  final String truststore;
+  final String truststorePassword;
+
+  private LoadOptions(Map<String, String> args) {
+    this.target = URI.create(args.getOrDefault("target", "https://localhost:8443"));
+    var defaultOrigin = target.getScheme() + "://" + target.getHost()
+        + (target.getPort() == -1 ? "" : ":" + target.getPort());
+    this.origin = args.getOrDefault("origin", defaultOrigin);
+    this.rpId = args.getOrDefault("rp-id", target.getHost());
+    this.concurrency = Integer.parseInt(args.getOrDefault("concurrency", "16"));
+    this.duration = parseDuration(args.getOrDefault("duration", "60s"));
+    this.warmup = parseDuration(args.getOrDefault("warmup", "10s"));
+    this.ramp = RampProfile.parse(args.getOrDefault("ramp", "none"));
+    this.users = Integer.parseInt(args.getOrDefault("users", "100"));
+    this.registrationRatio = ratio(args.getOrDefault("registration-ratio", "0.1"));
+    this.rs256Ratio = ratio(args.getOrDefault("rs256-ratio", "0.1"));
+    this.cborResult = resultFormat(args.getOrDefault("result-format", "json"));
+    this.reportInterval = parseDuration(args.getOrDefault("report-interval", "5s"));
+    this.truststore = args.get("truststore");
+    this.truststorePassword = args.getOrDefault("truststore-password", "password");
+  }
+
+  /**
+   * コマンドライン引数を解析する。
+   * @param args コマンドライン引数
+   * @return 負荷生成の設定
+   * @throws IllegalArgumentException 解析できない引数がある場合はこの例外をスローする
+   */
+  static LoadOptions parse(String... args) {
+    var map = new HashMap<String, String>();
+    for (var arg : args) {
+      var eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        throw new IllegalArgumentException("Invalid argument: " + arg);
+      }
+      map.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+    return new LoadOptions(map);
+  }
+
+  /**
+   * 時間の文字列を解析する。
+   * @param value 時間 - 500ms / 30s / 2m 形式
+   * @return 時間
+   */
+  static Duration parseDuration(String value) {
+    if (value.endsWith("ms")) {
+      return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+    }
+    if (value.endsWith("s")) {
+      return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+    }
+    if (value.endsWith("m")) {
+      return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+    }
+    throw new IllegalArgumentException("Invalid duration: " + value);
+  }
+
+  private static boolean resultFormat(String value) {
+    switch (value) {
+      case "json":
+        return false;
+      case "cbor":
+        return true;
+      default:
+        throw new IllegalArgumentException("Invalid result format: " + value);
+    }
+  }
+
+  private static double ratio(String value) {
+    var ratio = Double.parseDouble(value);
+    if (ratio < 0 || ratio > 1) {
+      throw new IllegalArgumentException("Ratio must be between 0.0 and 1.0: " + value);
+    }
+    return ratio;
+  }
+}
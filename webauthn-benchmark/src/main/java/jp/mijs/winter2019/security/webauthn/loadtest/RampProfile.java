@@ -0,0 +1,69 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.time.Duration;
+
+/**
+ * 仮想ユーザの開始時刻を決めるランプアップの設定。
+ * <ul>
+ * <li>none - 全ての仮想ユーザを同時に開始する</li>
+ * <li>linear:TIME - 指定した時間をかけて、仮想ユーザを1人ずつ均等な間隔で開始する</li>
+ * <li>step:STEPS:TIME - 仮想ユーザをSTEPS個の段階に分け、指定した時間毎に1段階ずつ開始する</li>
+ * </ul>
+ */
+final class RampProfile {
+  private final String description;
+  private final int steps;
+  private final Duration interval;
+
+  private RampProfile(String description, int steps, Duration interval) {
+    this.description = description;
+    this.steps = steps;
+    this.interval = interval;
+  }
+
+  /**
+   * ランプアップの設定を解析する。
+   * @param value none / linear:TIME / step:STEPS:TIME
+   * @return ランプアップの設定
+   */
+  static RampProfile parse(String value) {
+    var parts = value.split(":");
+    switch (parts[0]) {
+      case "none":
+        return new RampProfile(value, 1, Duration.ZERO);
+      case "linear":
+        if (parts.length == 2) {
+          // 仮想ユーザ数と同じ段階数とする - startDelayで全体の時間を均等に割り振る
+          return new RampProfile(value, 0, LoadOptions.parseDuration(parts[1]));
+        }
+        break;
+      case "step":
+        if (parts.length == 3) {
+          return new RampProfile(value, Integer.parseInt(parts[1]), LoadOptions.parseDuration(parts[2]));
+        }
+        break;
+      default:
+        break;
+    }
+    throw new IllegalArgumentException("Invalid ramp profile: " + value);
+  }
+
+  /**
+   * 仮想ユーザの開始を遅らせる時間を取得する。
+   * @param index 仮想ユーザの番号 - 0から始まる
+   * @param concurrency 仮想ユーザ数
+   * @return 負荷生成の開始から、仮想ユーザを開始するまでの時間
+   */
+  Duration startDelay(int index, int concurrency) {
+    if (steps == 0) {
+      return interval.multipliedBy(index).dividedBy(concurrency);
+    }
+    var step = (long) index * steps / concurrency;
+    return interval.multipliedBy(step);
+  }
+
+  @Override
+  public String toString() {
+    return description;
+  }
+}
@@ -0,0 +1,315 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jp.mijs.winter2019.security.webauthn.WebauthnApplication;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.warmup.CeremonyWarmup;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * persistentプロファイル(ファイルに保存するH2)の起動時間と、起動直後の認証の応答時間を計測するツール。
+ *   --mode=seed    - 計測用のユーザとクレデンシャルを指定件数になるまで登録する
+ *   --mode=measure - アプリケーションを起動し、起動時間と最初の認証(/assertion/options → /assertion/result)の応答時間を計測する
+ *                    --warmup=true の場合はウォームアップ(CeremonyWarmup)の完了を待ってから認証する
+ * JITやクラスの読み込みの影響を揃えるため、seedとmeasureは別々のJVMで実行する。
+ */
+public final class StartupProbe {
+  static final String USAGE = String.join("\n",
+      "Usage: java -cp benchmarks.jar " + StartupProbe.class.getName() + " [options]",
+      "  --mode=MODE               seed(データの登録) / measure(起動時間の計測) (default: measure)",
+      "  --path=PATH               H2のファイル(拡張子.mv.dbを除く) (default: ./data/startup)",
+      "  --credentials=N           seedで登録するクレデンシャル数 (default: 1000000)",
+      "  --profiles=PROFILES       有効にするプロファイル - reactiveを追加できる (default: persistent)",
+      "  --warm-logins=N           最初の認証の後に続けて行う認証の回数 (default: 100)",
+      "  --warmup=BOOL             起動直後のウォームアップの完了を待ってから認証する (default: true)");
+
+  // 応答時間を計測するユーザ - 登録済みのクレデンシャルの中で最後に登録する
+  private static final String PROBE_EMAIL = "startup-probe@example.com";
+  private static final long PROBE_SEED = 20191;
+  // アプリケーションの検証で使用するOriginとrpId
+  private static final String ORIGIN = "https://localhost:8443";
+  private static final String RP_ID = "localhost";
+
+  private static final int BATCH_SIZE = 10_000;
+
+  private static final String COUNT_CREDENTIALS =
+      "SELECT COUNT(*) FROM credential";
+
+  private static final String FIND_TEMPLATE =
+      "SELECT c.format_version, c.algorithm, c.aaguid, c.public_key, a.format, a.attestation_statement " +
+      "FROM " +
+        "credential c " +
+        "JOIN credential_attestation a ON a.credential_id = c.credential_id " +
+      "WHERE " +
+        "c.credential_id = ?";
+
+  private static final String INSERT_USER =
+      "INSERT INTO user (id, email, display_name) VALUES (?, ?, ?)";
+
+  private static final String INSERT_USER_CREDENTIAL =
+      "INSERT INTO user_credential (user_id, credential_id) VALUES (?, ?)";
+
+  private static final String INSERT_CREDENTIAL =
+      "INSERT INTO credential " +
+        "(credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter) " +
+      "VALUES (?, ?, ?, ?, ?, ?, 0)";
+
+  private static final String INSERT_ATTESTATION =
+      "INSERT INTO credential_attestation (credential_id, format, attestation_statement) VALUES (?, ?, ?)";
+
+  private final Map<String, String> args;
+  private final PrintStream out;
+
+  private StartupProbe(Map<String, String> args, PrintStream out) {
+    this.args = args;
+    this.out = out;
+  }
+
+  public static void main(String[] args) throws Exception {
+    var map = new HashMap<String, String>();
+    for (var arg : args) {
+      var eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        System.err.println("Invalid argument: " + arg);
+        System.err.println(USAGE);
+        System.exit(2);
+        return;
+      }
+      map.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+
+    var probe = new StartupProbe(map, System.out);
+    switch (map.getOrDefault("mode", "measure")) {
+      case "seed":
+        probe.seed();
+        break;
+      case "measure":
+        probe.measure();
+        break;
+      default:
+        System.err.println("Invalid mode: " + map.get("mode"));
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+  }
+
+  /**
+   * 計測用のユーザとクレデンシャルを登録する。
+   * 1件目は認証器で登録し、残りは1件目の公開鍵とアテステーションを複製してクレデンシャルIDとユーザのみを変えて一括で登録する。
+   * 既に登録済みの件数が指定件数以上の場合は何もしない。
+   * @throws IOException H2のファイルを参照できない場合はこの例外をスローする
+   */
+  void seed() throws IOException {
+    var credentials = Integer.parseInt(args.getOrDefault("credentials", "1000000"));
+    //H2 1.4.200のnioMappedは2GBを超えるファイルを扱えないため、登録はメモリマップを使用せずに行う
+    //一括で書き込むとMVStoreの未使用領域の回収が追いつかず、ファイルが一時的に実データの数十倍になる
+    try (var context = application().run(arguments("--spring.main.web-application-type=none",
+        "--webauthn.warmup.enabled=false",
+        "--spring.datasource.url=jdbc:h2:file:${webauthn.datastore.path};CACHE_SIZE=65536;DB_CLOSE_ON_EXIT=FALSE"))) {
+      var jdbc = context.getBean(JdbcOperations.class);
+      var transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+      var existing = jdbc.queryForObject(COUNT_CREDENTIALS, Integer.class);
+      if (existing >= credentials) {
+        out.printf("already seeded: %d credentials%n", existing);
+        return;
+      }
+      if (existing == 0) {
+        registerProbe(context);
+        existing = 1;
+      }
+
+      var probeCredentialId = probeAuthenticator().getCredentialId();
+      var template = jdbc.queryForMap(FIND_TEMPLATE, probeCredentialId);
+      var start = System.nanoTime();
+      var users = new ArrayList<Object[]>(BATCH_SIZE);
+      var userCredentials = new ArrayList<Object[]>(BATCH_SIZE);
+      var rows = new ArrayList<Object[]>(BATCH_SIZE);
+      var attestations = new ArrayList<Object[]>(BATCH_SIZE);
+      for (int i = existing; i < credentials; i++) {
+        //クレデンシャルIDとユーザIDは実際の値と同じく乱数とする - 索引への挿入位置を分散させる
+        var random = new SplittableRandom(i);
+        var userId = randomBytes(random, 32);
+        var credentialId = randomBytes(random, 32);
+        users.add(new Object[] { userId, "startup-" + i + "@example.com", "startup-" + i });
+        userCredentials.add(new Object[] { userId, credentialId });
+        rows.add(new Object[] { credentialId, userId, template.get("FORMAT_VERSION"), template.get("ALGORITHM"),
+            template.get("AAGUID"), template.get("PUBLIC_KEY") });
+        attestations.add(new Object[] { credentialId, template.get("FORMAT"),
+            template.get("ATTESTATION_STATEMENT") });
+        if (users.size() == BATCH_SIZE || i == credentials - 1) {
+          //1件毎にコミットすると、コミット毎にH2のファイルへの追記が行われて遅くなり、ファイルも大きくなる
+          transaction.execute(status -> {
+            jdbc.batchUpdate(INSERT_USER, users);
+            jdbc.batchUpdate(INSERT_USER_CREDENTIAL, userCredentials);
+            jdbc.batchUpdate(INSERT_CREDENTIAL, rows);
+            return jdbc.batchUpdate(INSERT_ATTESTATION, attestations);
+          });
+          users.clear();
+          userCredentials.clear();
+          rows.clear();
+          attestations.clear();
+          if ((i + 1) % 100_000 == 0) {
+            out.printf("seeded %d credentials (%d s)%n", i + 1,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+          }
+        }
+      }
+      out.printf("seeded %d credentials in %d s%n", credentials,
+          TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+      //未使用領域を回収してファイルを実データの大きさにする
+      jdbc.execute("SHUTDOWN COMPACT");
+      out.printf("compacted: %d MB%n", Files.size(databaseFile()) / (1024 * 1024));
+    }
+  }
+
+  /**
+   * アプリケーションを起動し、起動時間と最初の認証の応答時間を出力する。
+   * @throws IOException H2のファイルを参照できない場合はこの例外をスローする
+   * @throws InterruptedException 中断された場合はこの例外をスローする
+   */
+  void measure() throws IOException, InterruptedException {
+    var warmLogins = Integer.parseInt(args.getOrDefault("warm-logins", "100"));
+    var warmup = Boolean.parseBoolean(args.getOrDefault("warmup", "true"));
+    var start = System.nanoTime();
+    try (var context = application().run(arguments(
+        "--server.port=0", "--server.ssl.enabled=false", "--management.server.port=-1",
+        "--webauthn.warmup.enabled=" + warmup))) {
+      var startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      var jvmMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+      var credentials = context.getBean(JdbcOperations.class).queryForObject(COUNT_CREDENTIALS, Integer.class);
+      out.printf("credentials=%d file=%s (%d MB) profiles=%s%n", credentials, databaseFile(),
+          Files.size(databaseFile()) / (1024 * 1024), profiles());
+      out.printf("startup: context=%d ms, jvm=%d ms%n", startupMillis, jvmMillis);
+      if (warmup) {
+        //ヘルスチェックがUPになるまで待つ - ロードバランサが振り分けを開始する時点
+        var ceremonyWarmup = context.getBean(CeremonyWarmup.class);
+        while (!ceremonyWarmup.isReady()) {
+          Thread.sleep(10);
+        }
+        out.printf("warm-up: %d ms (%d iterations), assertion mean=%.2fms p99=%.2fms%n",
+            ceremonyWarmup.getDurationMillis(), ceremonyWarmup.getIterations(),
+            ceremonyWarmup.getAssertionMeanMicros() / 1000.0, ceremonyWarmup.getAssertionP99Micros() / 1000.0);
+      }
+
+      var port = context.getEnvironment().getProperty("local.server.port");
+      var options = LoadOptions.parse("--target=http://localhost:" + port, "--origin=" + ORIGIN,
+          "--rp-id=" + RP_ID);
+      var http = HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_1_1)
+          .connectTimeout(Duration.ofSeconds(10))
+          .build();
+      var client = new CeremonyClient(http, options);
+      var user = new VirtualUser(PROBE_EMAIL, probeAuthenticator());
+
+      if (!client.login(user)) {
+        out.printf("first login failed: %s%n", errors(client));
+        return;
+      }
+      out.printf("first login:  %s%n", summary(client, false));
+      for (int i = 0; i < warmLogins; i++) {
+        client.login(user);
+      }
+      out.printf("warm logins:  %s (p50 of %d)%n", summary(client, true), warmLogins);
+      if (!errors(client).isEmpty()) {
+        out.printf("errors: %s%n", errors(client));
+      }
+    }
+  }
+
+  // 応答時間を計測するユーザを認証器で登録する
+  private void registerProbe(ConfigurableApplicationContext context) {
+    var registrationService = context.getBean(WebAuthnRegistrationService.class);
+    var tenant = context.getBean(TenantRegistry.class).getDefaultTenant();
+    var serverProperty = tenant.getDefaultServerPropertyTemplate();
+    var user = registrationService.findOrElseCreate(tenant, PROBE_EMAIL, PROBE_EMAIL).getUser();
+    var challenge = context.getBean(ChallengeGenerator.class).challenge();
+    var response = probeAuthenticator().create(serverProperty.getRpId(), serverProperty.getOrigin().toString(),
+        challenge.getValue());
+    registrationService.creationFinish(serverProperty, user, challenge, response.getClientDataJSON(),
+        response.getAttestationObject());
+  }
+
+  // 別のJVMでも同じ鍵ペアとクレデンシャルIDを生成する - 署名カウンタは使用しない(常に0)
+  private static SoftwareAuthenticator probeAuthenticator() {
+    return new SoftwareAuthenticator(Algorithm.ES256, PROBE_SEED, false);
+  }
+
+  private SpringApplicationBuilder application() {
+    return new SpringApplicationBuilder(WebauthnApplication.class)
+        .profiles(profiles().split(","))
+        .bannerMode(Banner.Mode.OFF)
+        .logStartupInfo(false);
+  }
+
+  // プロファイルの設定(application-persistent.yml等)より優先するため、コマンドライン引数として渡す
+  private String[] arguments(String... extra) {
+    var arguments = new ArrayList<>(List.of(
+        "--webauthn.datastore.path=" + args.getOrDefault("path", "./data/startup"),
+        "--spring.jmx.enabled=false",
+        //同じユーザで続けて認証するため、メールアドレス毎の受付制限を行わない
+        "--webauthn.admission.enabled=false",
+        "--logging.level.root=WARN",
+        "--logging.level.jp.mijs.winter2019.security.webauthn=WARN"));
+    arguments.addAll(List.of(extra));
+    return arguments.toArray(new String[0]);
+  }
+
+  private String profiles() {
+    return args.getOrDefault("profiles", "persistent");
+  }
+
+  private Path databaseFile() {
+    return Path.of(args.getOrDefault("path", "./data/startup") + ".mv.db");
+  }
+
+  // /assertion/options・/assertion/result・login の応答時間 - 1回目は最大値(=その1回)、続けた認証は中央値
+  private static String summary(CeremonyClient client, boolean median) {
+    var parts = new ArrayList<String>();
+    for (var name : List.of(CeremonyClient.ASSERTION_OPTIONS, CeremonyClient.ASSERTION_RESULT, CeremonyClient.LOGIN)) {
+      Histogram histogram = client.getStats().get(name).interval();
+      var micros = median ? histogram.getValueAtPercentile(50) : histogram.getMaxValue();
+      parts.add(String.format("%s=%.2fms", name, micros / 1000.0));
+    }
+    return String.join(" ", parts);
+  }
+
+  private static Map<String, Long> errors(CeremonyClient client) {
+    var errors = new HashMap<String, Long>();
+    client.getStats().values().forEach(stats -> stats.getErrors()
+        .forEach((error, count) -> errors.merge(stats.getName() + " " + error, count, Long::sum)));
+    return errors;
+  }
+
+  private static byte[] randomBytes(SplittableRandom random, int length) {
+    var buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      buffer.putLong(random.nextLong());
+    }
+    return buffer.array();
+  }
+}
@@ -0,0 +1,38 @@
+package jp.mijs.winter2019.security.webauthn.loadtest;
+
+import java.net.CookieManager;
+
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+
+/**
+ * 負荷生成の仮想ユーザ。
+ * 仮想ユーザ毎に鍵ペアと署名カウンタを持つソフトウェア認証器と、Cookieを保持する。
+ * 同時に1つの仮想ユーザを複数のスレッドから使用しないこと - 署名カウンタの順序が崩れる。
+ */
+final class VirtualUser {
+  private final String email;
+  private final SoftwareAuthenticator authenticator;
+  private final CookieManager cookies = new CookieManager();
+
+  /**
+   * コンストラクタ。
+   * @param email メールアドレス
+   * @param authenticator 仮想ユーザの認証器
+   */
+  VirtualUser(String email, SoftwareAuthenticator authenticator) {
+    this.email = email;
+    this.authenticator = authenticator;
+  }
+
+  String getEmail() {
+    return email;
+  }
+
+  SoftwareAuthenticator getAuthenticator() {
+    return authenticator;
+  }
+
+  CookieManager getCookies() {
+    return cookies;
+  }
+}
@@ -0,0 +1,167 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * セレモニーのエンドポイントの受付制御。
+ * エンドポイント毎に、クライアントのIPアドレス毎・メールアドレス毎のトークンバケットで受け付ける回数を制限する。
+ * IPアドレスはリクエストの本文を読み込む前にフィルタで、メールアドレスはoptionsのエンドポイントで本文を読み込んだ直後に判定する。
+ * どちらもDBアクセスや暗号処理の前に判定し、超えた場合は429を返す。
+ * 使用されていないキーの破棄は、リクエストのスレッドではなく専用のスレッドで行う。
+ */
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=AdmissionControl")
+public class AdmissionControl implements DisposableBean {
+  public static final String REJECTED = "webauthn.admission.rejected";
+  public static final String KEYS = "webauthn.admission.keys";
+
+  //破棄が必要か(間隔の経過・上限への到達)を確認する間隔(ミリ秒)
+  private static final long SWEEP_CHECK_INTERVAL_MILLIS = 100;
+
+  private final Map<AdmissionEndpoint, TokenBucketTable> clients;
+  private final Map<AdmissionEndpoint, TokenBucketTable> emails;
+  private final ScheduledExecutorService executor;
+
+  /**
+   * コンストラクタ。
+   * @param clients エンドポイント毎のIPアドレスのバケット - 制限しないエンドポイントは含めない
+   * @param emails エンドポイント毎のメールアドレスのバケット - 制限しないエンドポイントは含めない
+   * @param meterRegistry
+   */
+  public AdmissionControl(Map<AdmissionEndpoint, TokenBucketTable> clients,
+      Map<AdmissionEndpoint, TokenBucketTable> emails, MeterRegistry meterRegistry) {
+    this.clients = new EnumMap<>(AdmissionEndpoint.class);
+    this.clients.putAll(clients);
+    this.emails = new EnumMap<>(AdmissionEndpoint.class);
+    this.emails.putAll(emails);
+    register(meterRegistry, "ip", this.clients);
+    register(meterRegistry, "email", this.emails);
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "admission-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this::sweep, SWEEP_CHECK_INTERVAL_MILLIS, SWEEP_CHECK_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  // 全ての表で、必要な場合は使用されていないキーを破棄する
+  private void sweep() {
+    clients.values().forEach(TokenBucketTable::sweepIfDue);
+    emails.values().forEach(TokenBucketTable::sweepIfDue);
+  }
+
+  /**
+   * クライアントのリクエストを受け付けるかを判定する。
+   * @param endpoint エンドポイント
+   * @param address クライアントのIPアドレス
+   * @return 受け付ける場合はtrue
+   */
+  public boolean admitClient(AdmissionEndpoint endpoint, String address) {
+    var table = clients.get(endpoint);
+    return table == null || address == null || table.tryAcquire(address);
+  }
+
+  /**
+   * メールアドレスに対するリクエストを受け付けるかを判定する。
+   * 大文字・小文字は区別しない。
+   * @param endpoint エンドポイント
+   * @param email メールアドレス
+   * @return 受け付ける場合はtrue
+   */
+  public boolean admitEmail(AdmissionEndpoint endpoint, String email) {
+    var table = emails.get(endpoint);
+    return table == null || email == null || table.tryAcquire(email.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * メールアドレス毎の制限で受け付けない場合のレスポンス。
+   * @param <T> レスポンスの本文の型
+   * @param endpoint エンドポイント
+   * @return 429 Too Many Requests(Retry-Afterヘッダ付き)
+   */
+  public <T> ResponseEntity<T> tooManyRequests(AdmissionEndpoint endpoint) {
+    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(getEmailRetryAfterSeconds(endpoint)))
+        .build();
+  }
+
+  /**
+   * IPアドレス毎の制限で受け付けない場合に、Retry-Afterヘッダで通知する秒数を取得する。
+   * @param endpoint エンドポイント
+   * @return トークンが1つ補充されるまでの秒数
+   */
+  public long getClientRetryAfterSeconds(AdmissionEndpoint endpoint) {
+    return retryAfterSeconds(clients.get(endpoint));
+  }
+
+  /**
+   * メールアドレス毎の制限で受け付けない場合に、Retry-Afterヘッダで通知する秒数を取得する。
+   * @param endpoint エンドポイント
+   * @return トークンが1つ補充されるまでの秒数
+   */
+  public long getEmailRetryAfterSeconds(AdmissionEndpoint endpoint) {
+    return retryAfterSeconds(emails.get(endpoint));
+  }
+
+  @ManagedAttribute
+  public long getRejectedCount() {
+    return sum(clients, TokenBucketTable::getRejectedCount) + sum(emails, TokenBucketTable::getRejectedCount);
+  }
+
+  @ManagedAttribute
+  public long getOverflowCount() {
+    return sum(clients, TokenBucketTable::getOverflowCount) + sum(emails, TokenBucketTable::getOverflowCount);
+  }
+
+  @ManagedAttribute
+  public long getEvictedCount() {
+    return sum(clients, TokenBucketTable::getEvictedCount) + sum(emails, TokenBucketTable::getEvictedCount);
+  }
+
+  @ManagedAttribute
+  public long getKeyCount() {
+    return sum(clients, TokenBucketTable::getSize) + sum(emails, TokenBucketTable::getSize);
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  private static long retryAfterSeconds(TokenBucketTable table) {
+    return table == null ? 1 : table.getRetryAfterSeconds();
+  }
+
+  private static long sum(Map<AdmissionEndpoint, TokenBucketTable> tables,
+      ToLongFunction<TokenBucketTable> value) {
+    return tables.values().stream().mapToLong(value).sum();
+  }
+
+  private static void register(MeterRegistry meterRegistry, String key,
+      Map<AdmissionEndpoint, TokenBucketTable> tables) {
+    tables.forEach((endpoint, table) -> {
+      FunctionCounter.builder(REJECTED, table, TokenBucketTable::getRejectedCount)
+          .tag("endpoint", endpoint.getKey()).tag("key", key).register(meterRegistry);
+      Gauge.builder(KEYS, table, TokenBucketTable::getSize)
+          .tag("endpoint", endpoint.getKey()).tag("key", key).register(meterRegistry);
+    });
+  }
+}
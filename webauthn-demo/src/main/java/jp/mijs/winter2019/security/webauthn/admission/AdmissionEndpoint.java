@@ -0,0 +1,42 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+/**
+ * 受け付ける回数を制限するエンドポイント。
+ * 設定は webauthn.admission.(key).ip / webauthn.admission.(key).email で指定する。
+ */
+public enum AdmissionEndpoint {
+  ATTESTATION_OPTIONS("/attestation/options", "attestation-options"),
+  ATTESTATION_RESULT("/attestation/result", "attestation-result"),
+  ASSERTION_OPTIONS("/assertion/options", "assertion-options"),
+  ASSERTION_RESULT("/assertion/result", "assertion-result");
+
+  private final String path;
+  private final String key;
+
+  private AdmissionEndpoint(String path, String key) {
+    this.path = path;
+    this.key = key;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * URLのパスに対応するエンドポイントを取得する。
+   * @param path URLのパス
+   * @return 対応するエンドポイント - 制限しないパスの場合はnull
+   */
+  public static AdmissionEndpoint of(String path) {
+    for (var endpoint : values()) {
+      if (endpoint.path.equals(path)) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+}
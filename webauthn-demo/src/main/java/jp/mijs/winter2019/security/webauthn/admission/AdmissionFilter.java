@@ -0,0 +1,50 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * クライアントのIPアドレス毎に受け付ける回数を制限するフィルタ(サーブレット)。
+ * 本文を読み込む前に判定し、超えた場合は本文なしの429を返す。
+ * リアクティブの場合は{@link ReactiveAdmissionFilter}を使用する。
+ */
+@Component
+@ConditionalOnWebApplication(type = Type.SERVLET)
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class AdmissionFilter extends OncePerRequestFilter {
+  private final AdmissionControl admissionControl;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される。
+   * @param admissionControl
+   */
+  public AdmissionFilter(AdmissionControl admissionControl) {
+    this.admissionControl = admissionControl;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+      throws ServletException, IOException {
+    var endpoint = AdmissionEndpoint.of(request.getRequestURI());
+    if (endpoint != null && !admissionControl.admitClient(endpoint, request.getRemoteAddr())) {
+      response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+      response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(admissionControl.getClientRetryAfterSeconds(endpoint)));
+      return;
+    }
+    chain.doFilter(request, response);
+  }
+}
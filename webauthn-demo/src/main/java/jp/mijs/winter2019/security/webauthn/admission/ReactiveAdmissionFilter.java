@@ -0,0 +1,51 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * クライアントのIPアドレス毎に受け付ける回数を制限するフィルタ(リアクティブ)。
+ * {@link AdmissionFilter}と同じく、本文を読み込む前にイベントループ上で判定する。
+ */
+@Component
+@ConditionalOnWebApplication(type = Type.REACTIVE)
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ReactiveAdmissionFilter implements WebFilter {
+  private final AdmissionControl admissionControl;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される。
+   * @param admissionControl
+   */
+  public ReactiveAdmissionFilter(AdmissionControl admissionControl) {
+    this.admissionControl = admissionControl;
+  }
+
+  @Override
+  public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+    var request = exchange.getRequest();
+    var endpoint = AdmissionEndpoint.of(request.getPath().value());
+    var remoteAddress = request.getRemoteAddress();
+    var address = remoteAddress == null || remoteAddress.getAddress() == null
+        ? null : remoteAddress.getAddress().getHostAddress();
+    if (endpoint != null && !admissionControl.admitClient(endpoint, address)) {
+      var response = exchange.getResponse();
+      response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+      response.getHeaders().set(HttpHeaders.RETRY_AFTER,
+          String.valueOf(admissionControl.getClientRetryAfterSeconds(endpoint)));
+      return response.setComplete();
+    }
+    return chain.filter(exchange);
+  }
+}
@@ -0,0 +1,140 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * キー(クライアントのIPアドレス・メールアドレス)毎のトークンバケット。
+ * バケットはトークンが満杯になる時刻(GCRA - Generic Cell Rate Algorithm の理論到着時刻)のみをAtomicLongで保持し、
+ * 取得は検索1回とCAS1回で完了する - ロックせず、全件の走査も行わない。
+ * 満杯になったバケット(使用されていないキー)は、別のスレッドから{@link #sweepIfDue}で一定間隔毎に破棄する。
+ * 満杯のバケットは破棄しても判定が変わらない。
+ * 保管件数が上限に達している場合、新しいキーはこの表では制限せずに受け付ける(次の破棄で空くまで)。
+ * メールアドレスの場合は、IPアドレスの制限のみで判定される。溢れたキーを共有のバケットで判定すると、
+ * 大量のキーを使い分けるクライアントが、他の利用者の新しいキーを全て制限してしまう。
+ */
+public class TokenBucketTable {
+  private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final int maxKeys;
+  private final long sweepIntervalMillis;
+  private final Clock clock;
+
+  //破棄のスレッドからのみ参照する
+  private long lastSweep;
+  private final LongAdder rejectedCount = new LongAdder();
+  private final LongAdder overflowCount = new LongAdder();
+  private final LongAdder evictedCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * @param ratePerSecond 1秒あたりに補充するトークン数
+   * @param burst バケットの容量(連続して受け付ける回数)
+   * @param maxKeys 保管するキーの最大件数
+   * @param sweepIntervalMillis 使用されていないキーを破棄する間隔(ミリ秒) - 上限に達している場合は間隔によらず破棄する
+   * @param clock 時計
+   */
+  public TokenBucketTable(double ratePerSecond, int burst, int maxKeys, long sweepIntervalMillis, Clock clock) {
+    if (ratePerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("rate and burst must be positive: " + ratePerSecond + ", " + burst);
+    }
+    this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+    //満杯の状態からburst回続けて受け付ける
+    this.toleranceNanos = intervalNanos * burst;
+    this.maxKeys = maxKeys;
+    this.sweepIntervalMillis = sweepIntervalMillis;
+    this.clock = clock;
+    this.lastSweep = clock.millis();
+  }
+
+  /**
+   * トークンを1つ取得する。
+   * @param key キー
+   * @return 取得できた場合はtrue - バケットが空の場合はfalse
+   */
+  public boolean tryAcquire(String key) {
+    var now = clock.millis() * 1_000_000L;
+    var bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = register(key);
+      if (bucket == null) {
+        overflowCount.increment();
+        return true;
+      }
+    }
+
+    while (true) {
+      var tat = bucket.get();
+      var next = Math.max(tat, now) + intervalNanos;
+      if (next - now > toleranceNanos) {
+        rejectedCount.increment();
+        return false;
+      }
+      if (bucket.compareAndSet(tat, next)) {
+        return true;
+      }
+    }
+  }
+
+  // 新しいキーのバケットを追加する - 上限に達している場合はnullを返す
+  private AtomicLong register(String key) {
+    if (buckets.size() >= maxKeys) {
+      return null;
+    }
+    //満杯の状態(理論到着時刻が過去)から開始する
+    var created = new AtomicLong(Long.MIN_VALUE / 2);
+    var existing = buckets.putIfAbsent(key, created);
+    return existing != null ? existing : created;
+  }
+
+  /**
+   * 前回から破棄の間隔が経過しているか、保管件数が上限に達していれば、満杯になったバケットを破棄する。
+   * 1つのスレッドから定期的に呼び出す - 取得するスレッドでは全件を走査しない。
+   * @return 破棄した件数
+   */
+  public int sweepIfDue() {
+    var nowMillis = clock.millis();
+    if (nowMillis - lastSweep < sweepIntervalMillis && buckets.size() < maxKeys) {
+      return 0;
+    }
+    lastSweep = nowMillis;
+    var now = nowMillis * 1_000_000L;
+    var evicted = 0;
+    for (var it = buckets.values().iterator(); it.hasNext();) {
+      //破棄と同時に取得された場合も、次の取得では満杯のバケットとなるため判定は変わらない
+      if (it.next().get() <= now) {
+        it.remove();
+        evicted++;
+      }
+    }
+    evictedCount.add(evicted);
+    return evicted;
+  }
+
+  public int getSize() {
+    return buckets.size();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  public long getOverflowCount() {
+    return overflowCount.sum();
+  }
+
+  public long getEvictedCount() {
+    return evictedCount.sum();
+  }
+
+  /**
+   * トークンが1つ補充されるまでの時間を取得する。
+   * @return 秒(切り上げ)
+   */
+  public long getRetryAfterSeconds() {
+    return Math.max(1, (intervalNanos + 999_999_999L) / 1_000_000_000L);
+  }
+}
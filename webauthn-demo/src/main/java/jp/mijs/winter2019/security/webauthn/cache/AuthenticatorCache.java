@@ -0,0 +1,254 @@
+package jp.mijs.winter2019.security.webauthn.cache;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jp.mijs.winter2019.security.webauthn.service.OriginalAuthenticator;
+
+/**
+ * デシリアライズ済みの公開鍵クレデンシャルを保持するキャッシュ。
+ * 同一ユーザの繰り返しログインで、DBアクセスとCBORのデシリアライズを省略するために使用する。
+ * 件数の上限を超えた場合は最も古く参照されたものから破棄し、有効期限を過ぎたものは参照時に破棄する。
+ * 認証の度に参照するため、クレデンシャルIDのハッシュ値で複数の区画に分け、区画毎にロックとLRUの順序を持つ。
+ * 破棄の順序は区画内でのLRUとなる(全体では近似的なLRU)。
+ * 件数はMicrometerのメトリクスとして記録する。
+ *   webauthn.cache.authenticator.gets      - タグ: result(hit, miss)
+ *   webauthn.cache.authenticator.evictions
+ *   webauthn.cache.authenticator.size
+ */
+@Component
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=AuthenticatorCache")
+public class AuthenticatorCache {
+  public static final String GETS = "webauthn.cache.authenticator.gets";
+  public static final String EVICTIONS = "webauthn.cache.authenticator.evictions";
+  public static final String SIZE = "webauthn.cache.authenticator.size";
+
+  // 区画の最大数と、区画に分ける場合の区画毎の最小件数
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_SIZE = 64;
+
+  private final long ttlMillis;
+  private final Clock clock;
+  private final LinkedHashMap<ByteBuffer, Entry>[] segments;
+  private final int mask;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param maxSize 保持する最大件数
+   * @param ttlMillis 有効期限（ミリ秒）
+   * @param meterRegistry
+   */
+  @Autowired
+  public AuthenticatorCache(
+      @Value("${webauthn.cache.authenticator.max-size:10000}") int maxSize,
+      @Value("${webauthn.cache.authenticator.ttl-millis:600000}") long ttlMillis,
+      MeterRegistry meterRegistry) {
+    this(maxSize, ttlMillis, Clock.systemUTC());
+    FunctionCounter.builder(GETS, hitCount, LongAdder::sum).tag("result", "hit").register(meterRegistry);
+    FunctionCounter.builder(GETS, missCount, LongAdder::sum).tag("result", "miss").register(meterRegistry);
+    FunctionCounter.builder(EVICTIONS, evictionCount, LongAdder::sum).register(meterRegistry);
+    Gauge.builder(SIZE, this, AuthenticatorCache::getSize).register(meterRegistry);
+  }
+
+  @SuppressWarnings("unchecked")
+  AuthenticatorCache(int maxSize, long ttlMillis, Clock clock) {
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    //区画毎の件数が少なくなりすぎない数に分ける(2のべき乗)
+    var count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE)));
+    var segmentSize = (maxSize + count - 1) / count;
+    this.segments = new LinkedHashMap[count];
+    for (int i = 0; i < count; i++) {
+      //accessOrder=trueでLRUの順序を保持する
+      this.segments[i] = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+          if (size() > segmentSize) {
+            evictionCount.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+    this.mask = count - 1;
+  }
+
+  /**
+   * クレデンシャルIDから公開鍵クレデンシャルを取得する。
+   * 取得した公開鍵クレデンシャルは呼び出し元で変更してもキャッシュに影響しない。
+   * @param credentialId クレデンシャルID
+   * @return 公開鍵クレデンシャル - キャッシュに存在しない場合は Optional.empty
+   */
+  public Optional<CachedAuthenticator> get(byte[] credentialId) {
+    var key = ByteBuffer.wrap(credentialId);
+    CachedAuthenticator cached = null;
+    var entries = segment(key);
+    synchronized (entries) {
+      var entry = entries.get(key);
+      if (entry != null && entry.expiresAt <= clock.millis()) {
+        entries.remove(key);
+        evictionCount.increment();
+      } else if (entry != null) {
+        cached = entry.toCachedAuthenticator();
+      }
+    }
+    if (cached == null) {
+      missCount.increment();
+      return Optional.empty();
+    }
+    hitCount.increment();
+    return Optional.of(cached);
+  }
+
+  /**
+   * 公開鍵クレデンシャルをキャッシュに登録する。
+   * @param credentialId クレデンシャルID
+   * @param userId ユーザID
+   * @param authenticator デシリアライズ済みの公開鍵クレデンシャル
+   */
+  public void put(byte[] credentialId, byte[] userId, OriginalAuthenticator authenticator) {
+    var entry = new Entry(userId.clone(), authenticator, authenticator.getCounter(), clock.millis() + ttlMillis);
+    var key = ByteBuffer.wrap(credentialId.clone());
+    var entries = segment(key);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  /**
+   * キャッシュ上の認証器カウンタを更新する。
+   * キャッシュ上の値より大きい場合のみ更新し、キャッシュに存在しない場合は何もしない。
+   * @param credentialId クレデンシャルID
+   * @param counter 認証器カウンタ
+   */
+  public void updateCounter(byte[] credentialId, long counter) {
+    var key = ByteBuffer.wrap(credentialId);
+    var entries = segment(key);
+    synchronized (entries) {
+      var entry = entries.get(key);
+      if (entry != null) {
+        //並行した認証で小さい値に戻さない
+        entry.counter = Math.max(entry.counter, counter);
+      }
+    }
+  }
+
+  /**
+   * キャッシュから公開鍵クレデンシャルを破棄する。
+   * クレデンシャルの登録・削除時に呼び出す。
+   * @param credentialId クレデンシャルID
+   */
+  public void invalidate(byte[] credentialId) {
+    var key = ByteBuffer.wrap(credentialId);
+    var entries = segment(key);
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * キャッシュを全て破棄する。
+   */
+  @ManagedOperation
+  public void invalidateAll() {
+    for (var entries : segments) {
+      synchronized (entries) {
+        entries.clear();
+      }
+    }
+  }
+
+  @ManagedAttribute
+  public int getSize() {
+    var size = 0;
+    for (var entries : segments) {
+      synchronized (entries) {
+        size += entries.size();
+      }
+    }
+    return size;
+  }
+
+  @ManagedAttribute
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  // クレデンシャルIDの区画 - ByteBuffer.hashCodeの下位ビットの偏りを上位ビットと混ぜて抑える
+  private LinkedHashMap<ByteBuffer, Entry> segment(ByteBuffer key) {
+    var hash = key.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & mask];
+  }
+
+  /**
+   * キャッシュから取得した公開鍵クレデンシャル
+   */
+  public static class CachedAuthenticator {
+    private final byte[] userId;
+    private final OriginalAuthenticator authenticator;
+
+    CachedAuthenticator(byte[] userId, OriginalAuthenticator authenticator) {
+      this.userId = userId;
+      this.authenticator = authenticator;
+    }
+
+    public byte[] getUserId() {
+      return userId;
+    }
+
+    public OriginalAuthenticator getAuthenticator() {
+      return authenticator;
+    }
+  }
+
+  // キャッシュの実体 - 認証器カウンタ以外は不変
+  private static class Entry {
+    private final byte[] userId;
+    private final OriginalAuthenticator authenticator;
+    private final long expiresAt;
+    private long counter;
+
+    Entry(byte[] userId, OriginalAuthenticator authenticator, long counter, long expiresAt) {
+      this.userId = userId;
+      this.authenticator = authenticator;
+      this.counter = counter;
+      this.expiresAt = expiresAt;
+    }
+
+    CachedAuthenticator toCachedAuthenticator() {
+      return new CachedAuthenticator(userId, authenticator.withCounter(counter));
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package jp.mijs.winter2019.security.webauthn.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webauthn4j.data.client.challenge.Challenge;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.entity.User;
+
+/**
+ * JSON変換済みのoptionsの雛形。
+ * 同じユーザのoptionsはchallenge以外変化しないため、仮のchallengeでJSON変換したものを
+ * challengeの前後に分割して保持し、リクエスト毎にchallengeのみを差し込んで出力する。
+ */
+public class OptionsTemplate {
+  /**
+   * 雛形の生成に使用する仮のchallenge。
+   * JSON内の他の値(ユーザIDやクレデンシャルID)と一致しないよう、起動毎に乱数で生成する。
+   */
+  public static final Challenge PLACEHOLDER = new DefaultChallenge(randomBytes());
+
+  private static final byte[] PLACEHOLDER_TOKEN =
+      ("\"" + Base64.getEncoder().encodeToString(PLACEHOLDER.getValue()) + "\"").getBytes(StandardCharsets.UTF_8);
+
+  private final byte[] prefix;
+  private final byte[] suffix;
+  private final User user;
+
+  private OptionsTemplate(byte[] prefix, byte[] suffix, User user) {
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.user = user;
+  }
+
+  /**
+   * 仮のchallenge({@link #PLACEHOLDER})を設定したoptionsから雛形を生成する。
+   * @param objectMapper レスポンスの出力に使用するObjectMapper
+   * @param options 仮のchallengeを設定したoptions
+   * @param user optionsの対象のユーザ情報 - 登録時のセレモニーの保管に使用する
+   * @return optionsの雛形
+   * @throws JsonProcessingException JSON変換に失敗した場合はこの例外をスローする
+   */
+  public static OptionsTemplate create(ObjectMapper objectMapper, Object options, User user)
+      throws JsonProcessingException {
+    var json = objectMapper.writeValueAsBytes(options);
+    var index = indexOf(json, PLACEHOLDER_TOKEN, 0);
+    if (index < 0 || indexOf(json, PLACEHOLDER_TOKEN, index + 1) >= 0) {
+      throw new IllegalStateException("Placeholder challenge must appear exactly once in options");
+    }
+    //引用符の内側で分割する
+    var start = index + 1;
+    var end = index + PLACEHOLDER_TOKEN.length - 1;
+    return new OptionsTemplate(
+        Arrays.copyOfRange(json, 0, start),
+        Arrays.copyOfRange(json, end, json.length),
+        user);
+  }
+
+  /**
+   * challengeを差し込んだJSONを出力する。
+   * @param challenge サーバで生成したchallenge
+   * @return options(JSON)
+   */
+  public byte[] render(Challenge challenge) {
+    var encoded = Base64.getEncoder().encode(challenge.getValue());
+    var json = new byte[prefix.length + encoded.length + suffix.length];
+    System.arraycopy(prefix, 0, json, 0, prefix.length);
+    System.arraycopy(encoded, 0, json, prefix.length, encoded.length);
+    System.arraycopy(suffix, 0, json, prefix.length + encoded.length, suffix.length);
+    return json;
+  }
+
+  /**
+   * optionsの対象のユーザ情報を取得する。
+   * @return ユーザ情報 - 認証のoptionsの場合はnull
+   */
+  public User getUser() {
+    return user;
+  }
+
+  private static int indexOf(byte[] data, byte[] target, int from) {
+    outer:
+    for (int i = from; i <= data.length - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (data[i + j] != target[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static byte[] randomBytes() {
+    var bytes = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    return bytes;
+  }
+}
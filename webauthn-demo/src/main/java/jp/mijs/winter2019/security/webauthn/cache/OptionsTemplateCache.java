@@ -0,0 +1,208 @@
+package jp.mijs.winter2019.security.webauthn.cache;
+
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+
+/**
+ * ユーザ毎のoptionsの雛形を保持するキャッシュ。
+ * 登録済みのユーザの/attestation/options・/assertion/optionsで、DBアクセスとoptionsの生成・JSON変換を省略するために使用する。
+ * ユーザのクレデンシャルが追加・削除された場合は破棄する。
+ * 雛形はテナントのrpIdなどを含むため、テナントIDとメールアドレスの組をキーとする。
+ * 件数の上限を超えた場合は最も古く参照されたものから破棄し、有効期限を過ぎたものは参照時に破棄する。
+ * 有効期限は、他のサーバでクレデンシャルが追加・削除された場合に反映されるまでの最大の時間となる。
+ */
+@Component
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=OptionsTemplateCache")
+public class OptionsTemplateCache {
+  private final int maxSize;
+  private final long ttlMillis;
+  private final Clock clock;
+  private final LinkedHashMap<String, Entry> entries;
+  // 破棄の度に進める世代 - 破棄より前に読み込んだ雛形を登録しないために使用する
+  private final AtomicLong generation = new AtomicLong();
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param maxSize 保持する最大件数(ユーザ数)
+   * @param ttlMillis 有効期限（ミリ秒）
+   */
+  @Autowired
+  public OptionsTemplateCache(
+      @Value("${webauthn.cache.options.max-size:10000}") int maxSize,
+      @Value("${webauthn.cache.options.ttl-millis:60000}") long ttlMillis) {
+    this(maxSize, ttlMillis, Clock.systemUTC());
+  }
+
+  OptionsTemplateCache(int maxSize, long ttlMillis, Clock clock) {
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    //accessOrder=trueでLRUの順序を保持する
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > OptionsTemplateCache.this.maxSize) {
+          evictionCount.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * ユーザのoptionsの雛形を取得する。
+   * @param type セレモニーの種類
+   * @param tenantId テナントID
+   * @param email ユーザのメールアドレス
+   * @return optionsの雛形 - キャッシュに存在しない場合は Optional.empty
+   */
+  public Optional<OptionsTemplate> get(CeremonyType type, String tenantId, String email) {
+    var key = key(tenantId, email);
+    OptionsTemplate template = null;
+    synchronized (entries) {
+      var entry = entries.get(key);
+      if (entry != null && entry.expiresAt <= clock.millis()) {
+        entries.remove(key);
+        evictionCount.increment();
+      } else if (entry != null) {
+        template = entry.get(type);
+      }
+    }
+    if (template == null) {
+      missCount.increment();
+      return Optional.empty();
+    }
+    hitCount.increment();
+    return Optional.of(template);
+  }
+
+  /**
+   * 現在の世代を取得する。
+   * DBからユーザ情報を読み込む前に取得し、{@link #put}に渡す。
+   * @return 世代
+   */
+  public long generation() {
+    return generation.get();
+  }
+
+  /**
+   * ユーザのoptionsの雛形をキャッシュに登録する。
+   * 世代を取得した後に破棄が行われた場合は、古い情報の可能性があるため登録しない。
+   * @param type セレモニーの種類
+   * @param tenantId テナントID
+   * @param email ユーザのメールアドレス
+   * @param template optionsの雛形
+   * @param generation DBからユーザ情報を読み込む前に取得した世代
+   */
+  public void put(CeremonyType type, String tenantId, String email, OptionsTemplate template, long generation) {
+    var key = key(tenantId, email);
+    synchronized (entries) {
+      if (this.generation.get() != generation) {
+        return;
+      }
+      var entry = entries.get(key);
+      if (entry == null || entry.expiresAt <= clock.millis()) {
+        entry = new Entry(clock.millis() + ttlMillis);
+        entries.put(key, entry);
+      }
+      entry.set(type, template);
+    }
+  }
+
+  /**
+   * ユーザのoptionsの雛形を破棄する。
+   * ユーザのクレデンシャルの登録・削除時に呼び出す。
+   * @param tenantId テナントID
+   * @param email ユーザのメールアドレス
+   */
+  public void invalidate(String tenantId, String email) {
+    var key = key(tenantId, email);
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * キャッシュを全て破棄する。
+   * テナントの設定を読み込み直した場合にも呼び出す。
+   */
+  @ManagedOperation
+  public void invalidateAll() {
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.clear();
+    }
+  }
+
+  // テナントIDは空白を含まないため、区切り文字は空白とする
+  private static String key(String tenantId, String email) {
+    return tenantId + ' ' + email;
+  }
+
+  @ManagedAttribute
+  public int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  @ManagedAttribute
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  // ユーザ毎のキャッシュの実体 - 登録と認証の雛形を保持する
+  private static class Entry {
+    private final long expiresAt;
+    private OptionsTemplate creation;
+    private OptionsTemplate request;
+
+    Entry(long expiresAt) {
+      this.expiresAt = expiresAt;
+    }
+
+    OptionsTemplate get(CeremonyType type) {
+      return type == CeremonyType.ATTESTATION ? creation : request;
+    }
+
+    void set(CeremonyType type, OptionsTemplate template) {
+      if (type == CeremonyType.ATTESTATION) {
+        creation = template;
+      } else {
+        request = template;
+      }
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import com.webauthn4j.data.client.challenge.Challenge;
+
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import lombok.Value;
+
+/**
+ * 進行中のセレモニーの状態。
+ * optionsの発行からresultの受信までの間、challengeと登録途中のユーザ情報を保持する。
+ */
+@Value
+public class Ceremony {
+  /** セレモニーの種類 */
+  private final CeremonyType type;
+  /** サーバが発行したチャレンジ情報 */
+  private final Challenge challenge;
+  /** 登録途中のユーザ情報 - 認証の場合はnull */
+  private final User user;
+}
@@ -0,0 +1,17 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * セレモニーIDに対応するchallengeが存在しない場合の例外。
+ * 有効期限切れや使用済みのセレモニーIDが送信された場合に発生する。
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class CeremonyNotFoundException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public CeremonyNotFoundException() {
+    super("Ceremony is not found or already expired.");
+  }
+}
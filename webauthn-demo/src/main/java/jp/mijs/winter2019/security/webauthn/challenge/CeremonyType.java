@@ -0,0 +1,11 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+/**
+ * セレモニーの種類
+ */
+public enum CeremonyType {
+  /** 登録(アテステーション) */
+  ATTESTATION,
+  /** 認証(アサーション) */
+  ASSERTION
+}
@@ -0,0 +1,258 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.webauthn4j.data.client.challenge.Challenge;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * challenge・ユーザID・セレモニーIDのランダム値を生成するクラス。
+ * 複数のDRBG(NIST SP 800-90A Hash_DRBG, SHA-256)を用意し、スレッド毎に別のDRBGから取得して競合を避ける。
+ * DRBG毎に生成済みのランダム値をバッファに保持し、使い切る前に別のスレッドで次のバッファを生成する。
+ * エントロピー源からのシードの取得(再シード)も別のスレッドで一定間隔毎に行い、リクエストを処理するスレッドではブロックしない。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=ChallengeGenerator")
+public class ChallengeGenerator implements DisposableBean {
+  public static final String BYTES = "webauthn.challenge.generator.bytes";
+  public static final String INLINE_REFILLS = "webauthn.challenge.generator.inline.refills";
+
+  /** challengeのバイト数 - DefaultChallengeと同じ */
+  public static final int CHALLENGE_LENGTH = 16;
+  /** ユーザIDのバイト数 - 個人が特定できない最大64バイトのランダムなバイト列 */
+  public static final int USER_ID_LENGTH = 32;
+  /** セレモニーIDのバイト数(128bit) */
+  public static final int CEREMONY_ID_LENGTH = 16;
+
+  private final Stripe[] stripes;
+  private final int mask;
+  private final int bufferSize;
+  private final ScheduledExecutorService executor;
+
+  private final LongAdder generatedBytes = new LongAdder();
+  private final LongAdder inlineRefills = new LongAdder();
+  private final LongAdder reseeds = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param meterRegistry
+   * @param stripes DRBGの数(2のべき乗に切り上げる) - 0の場合はCPU数の2倍
+   * @param bufferSize DRBG毎に生成しておくランダム値のバイト数
+   * @param reseedIntervalMillis 再シードの間隔(ミリ秒) - 0の場合は再シードしない
+   */
+  public ChallengeGenerator(MeterRegistry meterRegistry,
+      @Value("${webauthn.challenge-generator.stripes:0}") int stripes,
+      @Value("${webauthn.challenge-generator.buffer-size:4096}") int bufferSize,
+      @Value("${webauthn.challenge-generator.reseed-interval-millis:60000}") long reseedIntervalMillis) {
+    var count = Integer.highestOneBit(Math.max(1,
+        (stripes > 0 ? stripes : Runtime.getRuntime().availableProcessors() * 2) * 2 - 1));
+    this.bufferSize = Math.max(bufferSize, USER_ID_LENGTH);
+    this.stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      this.stripes[i] = new Stripe(newDrbg(i), this.bufferSize);
+    }
+    this.mask = count - 1;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "challenge-generator");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (reseedIntervalMillis > 0) {
+      executor.scheduleWithFixedDelay(this::reseed, reseedIntervalMillis, reseedIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+
+    FunctionCounter.builder(BYTES, generatedBytes, LongAdder::sum).register(meterRegistry);
+    FunctionCounter.builder(INLINE_REFILLS, inlineRefills, LongAdder::sum).register(meterRegistry);
+  }
+
+  /**
+   * challengeを生成する。
+   * @return challenge
+   */
+  public Challenge challenge() {
+    return new DefaultChallenge(nextBytes(CHALLENGE_LENGTH));
+  }
+
+  /**
+   * 新規に作成するユーザのユーザIDを生成する。
+   * @return ユーザID
+   */
+  public byte[] userId() {
+    return nextBytes(USER_ID_LENGTH);
+  }
+
+  /**
+   * 推測できないセレモニーIDを生成する。
+   * @return 128bitのランダム値をBase64URLでエンコードした文字列
+   */
+  public String ceremonyId() {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(nextBytes(CEREMONY_ID_LENGTH));
+  }
+
+  /**
+   * ランダム値を生成する。
+   * @param length バイト数 - バッファのバイト数以下とする
+   * @return ランダム値
+   */
+  public byte[] nextBytes(int length) {
+    if (length > bufferSize) {
+      throw new IllegalArgumentException("length must not exceed buffer size: " + length);
+    }
+    var bytes = new byte[length];
+    var stripe = acquire();
+    try {
+      if (stripe.buffer.length - stripe.position < length) {
+        swap(stripe);
+      }
+      System.arraycopy(stripe.buffer, stripe.position, bytes, 0, length);
+      //取り出した値はバッファに残さない
+      Arrays.fill(stripe.buffer, stripe.position, stripe.position + length, (byte) 0);
+      stripe.position += length;
+    } finally {
+      stripe.lock.unlock();
+    }
+    generatedBytes.add(length);
+    return bytes;
+  }
+
+  // スレッド毎のDRBGを取得する - 他のスレッドが使用中の場合は空いている別のDRBGを使用する
+  private Stripe acquire() {
+    var start = (int) Thread.currentThread().getId();
+    for (int i = 0; i <= mask; i++) {
+      var stripe = stripes[(start + i) & mask];
+      if (stripe.lock.tryLock()) {
+        return stripe;
+      }
+    }
+    var stripe = stripes[start & mask];
+    stripe.lock.lock();
+    return stripe;
+  }
+
+  // 別のスレッドで生成済みのバッファに切り替える - 生成が間に合っていない場合はこのスレッドで生成する
+  private void swap(Stripe stripe) {
+    var next = stripe.spare;
+    if (next != null) {
+      stripe.spare = null;
+    } else {
+      next = new byte[bufferSize];
+      stripe.drbg.nextBytes(next);
+      inlineRefills.increment();
+    }
+    stripe.buffer = next;
+    stripe.position = 0;
+    if (stripe.refilling.compareAndSet(false, true)) {
+      try {
+        executor.execute(() -> {
+          var spare = new byte[bufferSize];
+          stripe.drbg.nextBytes(spare);
+          stripe.spare = spare;
+          stripe.refilling.set(false);
+        });
+      } catch (RuntimeException e) {
+        //停止後はこのスレッドで生成する
+        stripe.refilling.set(false);
+      }
+    }
+  }
+
+  /**
+   * 全てのDRBGをエントロピー源から再シードする。
+   * 一定間隔毎に別のスレッドで実行する。
+   */
+  @ManagedOperation
+  public void reseed() {
+    try {
+      for (var stripe : stripes) {
+        stripe.drbg.reseed();
+      }
+      reseeds.increment();
+    } catch (RuntimeException e) {
+      log.warn("Failed to reseed DRBG", e);
+    }
+  }
+
+  @ManagedAttribute
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  @ManagedAttribute
+  public long getGeneratedBytes() {
+    return generatedBytes.sum();
+  }
+
+  @ManagedAttribute
+  public long getInlineRefillCount() {
+    return inlineRefills.sum();
+  }
+
+  @ManagedAttribute
+  public long getReseedCount() {
+    return reseeds.sum();
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  // 個別化文字列(personalization string)をDRBG毎に変え、同じシードからも別の値を生成する
+  private static SecureRandom newDrbg(int index) {
+    var personalization = ByteBuffer.allocate(64)
+        .put("webauthn-demo".getBytes(StandardCharsets.US_ASCII))
+        .putInt(index)
+        .putLong(System.nanoTime())
+        .putLong(ProcessHandle.current().pid())
+        .array();
+    try {
+      return SecureRandom.getInstance("DRBG",
+          DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, personalization));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("DRBG is not available", e);
+    }
+  }
+
+  // DRBGと生成済みのランダム値 - バッファはロックを取得したスレッドのみが参照する
+  private static class Stripe {
+    private final SecureRandom drbg;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private byte[] buffer;
+    private int position;
+    private volatile byte[] spare;
+
+    Stripe(SecureRandom drbg, int bufferSize) {
+      this.drbg = drbg;
+      this.buffer = new byte[bufferSize];
+      //最初のバッファは生成済みとする
+      drbg.nextBytes(buffer);
+    }
+  }
+}
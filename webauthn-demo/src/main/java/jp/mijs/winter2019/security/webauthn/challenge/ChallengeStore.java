@@ -0,0 +1,29 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import java.util.Optional;
+
+/**
+ * 進行中のセレモニーの状態を保管するストア。
+ * HTTPセッションの代わりに、推測できないセレモニーIDをキーとしてchallengeを保管する。
+ */
+public interface ChallengeStore {
+  /** セレモニーIDをクライアントに通知するレスポンスヘッダ */
+  String CEREMONY_ID_HEADER = "X-WebAuthn-Ceremony-Id";
+
+  /**
+   * セレモニーの状態を保管し、セレモニーIDを発行する。
+   * 保管件数の上限に達して保管できない場合は ChallengeStoreFullException とする。
+   * @param ceremony セレモニーの状態
+   * @return セレモニーID
+   */
+  String issue(Ceremony ceremony);
+
+  /**
+   * セレモニーの状態を取り出す。
+   * 取り出した状態はストアから削除されるため、同じセレモニーIDで2回以上取り出すことはできない。
+   * @param type セレモニーの種類 - 発行時と異なる場合は取り出せない
+   * @param ceremonyId セレモニーID
+   * @return セレモニーの状態 - 存在しない・有効期限切れ・使用済みの場合は Optional.empty
+   */
+  Optional<Ceremony> consume(CeremonyType type, String ceremonyId);
+}
@@ -0,0 +1,17 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * セレモニーの状態を保管できない場合の例外。
+ * 保管件数が上限に達し、破棄できるエントリも存在しない場合に発生する。
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class ChallengeStoreFullException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public ChallengeStoreFullException() {
+    super("Challenge store is full.");
+  }
+}
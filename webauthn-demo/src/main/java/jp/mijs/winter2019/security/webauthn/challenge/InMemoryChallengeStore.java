@@ -0,0 +1,203 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * メモリ上にセレモニーの状態を保管するストア。
+ * 状態はConcurrentHashMapに保管し、有効期限の管理にはタイミングホイールを使用する。
+ * ホイールは有効期限(optionsのtimeout)を一周とし、時間の経過に応じて期限切れの枠をまとめて破棄する。
+ * 保管件数が上限に達した場合は、有効期限が最も近いものから破棄する。
+ * 破棄できるものが存在しない場合は、上限を超えて保管せずに ChallengeStoreFullException とする。
+ */
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=ChallengeStore")
+public class InMemoryChallengeStore implements ChallengeStore {
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<String>[] wheel;
+  private final long tickMillis;
+  private final long timeoutMillis;
+  private final int maxSize;
+  private final Clock clock;
+  private final ChallengeGenerator generator;
+
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong currentTick;
+
+  private final LongAdder issuedCount = new LongAdder();
+  private final LongAdder consumedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+  private final LongAdder expiredCount = new LongAdder();
+  private final LongAdder evictedCount = new LongAdder();
+  private final LongAdder fullCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * @param timeoutMillis 有効期限（ミリ秒） - optionsのtimeoutと合わせる
+   * @param tickMillis タイミングホイールの1枠の長さ（ミリ秒）
+   * @param maxSize 保管する最大件数
+   * @param clock 時計
+   * @param generator セレモニーIDの生成に使用する
+   */
+  @SuppressWarnings("unchecked")
+  public InMemoryChallengeStore(long timeoutMillis, long tickMillis, int maxSize, Clock clock,
+      ChallengeGenerator generator) {
+    this.timeoutMillis = timeoutMillis;
+    this.tickMillis = tickMillis;
+    this.maxSize = maxSize;
+    this.clock = clock;
+    this.generator = generator;
+    //有効期限の切り上げ分を含めて、一周でtimeoutを覆う枠数とする
+    this.wheel = new ConcurrentLinkedQueue[(int) ((timeoutMillis + tickMillis - 1) / tickMillis) + 1];
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new ConcurrentLinkedQueue<>();
+    }
+    this.currentTick = new AtomicLong(clock.millis() / tickMillis);
+  }
+
+  @Override
+  public String issue(Ceremony ceremony) {
+    var now = clock.millis();
+    advance(now);
+
+    //上限に達している場合は有効期限が最も近いものを破棄して枠を空ける
+    while (size.incrementAndGet() > maxSize) {
+      size.decrementAndGet();
+      if (!evictEarliest()) {
+        fullCount.increment();
+        throw new ChallengeStoreFullException();
+      }
+    }
+
+    var ceremonyId = generator.ceremonyId();
+    var expiresAt = now + timeoutMillis;
+    entries.put(ceremonyId, new Entry(ceremony, expiresAt));
+    wheel[slot(Math.floorDiv(expiresAt + tickMillis - 1, tickMillis))].add(ceremonyId);
+    issuedCount.increment();
+    return ceremonyId;
+  }
+
+  @Override
+  public Optional<Ceremony> consume(CeremonyType type, String ceremonyId) {
+    var now = clock.millis();
+    advance(now);
+
+    //removeで取り出すことで、同じセレモニーIDの2回目以降の取り出しを防ぐ
+    var entry = ceremonyId == null ? null : entries.remove(ceremonyId);
+    if (entry == null) {
+      rejectedCount.increment();
+      return Optional.empty();
+    }
+    size.decrementAndGet();
+    if (entry.expiresAt <= now) {
+      expiredCount.increment();
+      return Optional.empty();
+    }
+    if (entry.ceremony.getType() != type) {
+      rejectedCount.increment();
+      return Optional.empty();
+    }
+    consumedCount.increment();
+    return Optional.of(entry.ceremony);
+  }
+
+  // 前回から経過した枠の期限切れエントリを破棄する - 同時に呼ばれた場合は1スレッドのみが処理する
+  private void advance(long now) {
+    var nowTick = now / tickMillis;
+    var lastTick = currentTick.get();
+    if (nowTick <= lastTick || !currentTick.compareAndSet(lastTick, nowTick)) {
+      return;
+    }
+    var ticks = Math.min(nowTick - lastTick, wheel.length);
+    for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+      var queue = wheel[slot(tick)];
+      for (var it = queue.iterator(); it.hasNext();) {
+        var ceremonyId = it.next();
+        var entry = entries.get(ceremonyId);
+        if (entry == null) {
+          it.remove();
+        } else if (entry.expiresAt <= now) {
+          it.remove();
+          if (entries.remove(ceremonyId, entry)) {
+            size.decrementAndGet();
+            expiredCount.increment();
+          }
+        }
+      }
+    }
+  }
+
+  // 有効期限が最も近いエントリを1件破棄する
+  private boolean evictEarliest() {
+    var tick = currentTick.get();
+    for (int i = 1; i <= wheel.length; i++) {
+      var queue = wheel[slot(tick + i)];
+      String ceremonyId;
+      while ((ceremonyId = queue.poll()) != null) {
+        if (entries.remove(ceremonyId) != null) {
+          size.decrementAndGet();
+          evictedCount.increment();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private int slot(long tick) {
+    return (int) Math.floorMod(tick, (long) wheel.length);
+  }
+
+  @ManagedAttribute
+  public int getSize() {
+    return size.get();
+  }
+
+  @ManagedAttribute
+  public long getIssuedCount() {
+    return issuedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getConsumedCount() {
+    return consumedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getExpiredCount() {
+    return expiredCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getEvictedCount() {
+    return evictedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getFullCount() {
+    return fullCount.sum();
+  }
+
+  // 保管するエントリ
+  private static class Entry {
+    private final Ceremony ceremony;
+    private final long expiresAt;
+
+    Entry(Ceremony ceremony, long expiresAt) {
+      this.ceremony = ceremony;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
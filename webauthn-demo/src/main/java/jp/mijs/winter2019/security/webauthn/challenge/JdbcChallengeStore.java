@@ -0,0 +1,183 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.entity.User;
+
+/**
+ * データベース上にセレモニーの状態を保管するストア。
+ * 複数のサーバでセレモニーの状態を共有する場合に使用する。
+ * 取り出しは行の削除件数で判定するため、複数のサーバから同時に取り出しても1回しか成功しない。
+ * 期限切れの行は一定間隔毎にまとめて削除する。
+ */
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=ChallengeStore")
+public class JdbcChallengeStore implements ChallengeStore {
+  private final NamedParameterJdbcOperations jdbc;
+  private final long timeoutMillis;
+  private final long purgeIntervalMillis;
+  private final Clock clock;
+  private final ChallengeGenerator generator;
+  private final AtomicLong lastPurge;
+
+  private final LongAdder issuedCount = new LongAdder();
+  private final LongAdder consumedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+  private final LongAdder expiredCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * @param jdbc
+   * @param timeoutMillis 有効期限（ミリ秒） - optionsのtimeoutと合わせる
+   * @param purgeIntervalMillis 期限切れの行を削除する間隔（ミリ秒）
+   * @param clock 時計
+   * @param generator セレモニーIDの生成に使用する
+   */
+  public JdbcChallengeStore(NamedParameterJdbcOperations jdbc, long timeoutMillis, long purgeIntervalMillis,
+      Clock clock, ChallengeGenerator generator) {
+    this.jdbc = jdbc;
+    this.generator = generator;
+    this.timeoutMillis = timeoutMillis;
+    this.purgeIntervalMillis = purgeIntervalMillis;
+    this.clock = clock;
+    this.lastPurge = new AtomicLong(clock.millis());
+  }
+
+  @Override
+  public String issue(Ceremony ceremony) {
+    var now = clock.millis();
+    purgeExpired(now);
+
+    var sql =
+        "INSERT INTO ceremony " +
+          "(ceremony_id, ceremony_type, challenge, tenant_id, user_id, email, display_name, expires_at) " +
+        "VALUES " +
+          "(:ceremonyId, :ceremonyType, :challenge, :tenantId, :userId, :email, :displayName, :expiresAt)";
+    var ceremonyId = generator.ceremonyId();
+    var user = ceremony.getUser();
+    var params = new MapSqlParameterSource()
+        .addValue("ceremonyId", ceremonyId)
+        .addValue("ceremonyType", ceremony.getType().name())
+        .addValue("challenge", ceremony.getChallenge().getValue())
+        .addValue("tenantId", user == null ? null : user.getTenantId())
+        .addValue("userId", user == null ? null : user.getId())
+        .addValue("email", user == null ? null : user.getEmail())
+        .addValue("displayName", user == null ? null : user.getDisplayName())
+        .addValue("expiresAt", now + timeoutMillis);
+    jdbc.update(sql, params);
+    issuedCount.increment();
+    return ceremonyId;
+  }
+
+  @Override
+  public Optional<Ceremony> consume(CeremonyType type, String ceremonyId) {
+    if (ceremonyId == null) {
+      rejectedCount.increment();
+      return Optional.empty();
+    }
+    var now = clock.millis();
+    var params = new MapSqlParameterSource().addValue("ceremonyId", ceremonyId);
+
+    var select =
+        "SELECT ceremony_type, challenge, tenant_id, user_id, email, display_name, expires_at " +
+        "FROM " +
+          "ceremony " +
+        "WHERE " +
+          "ceremony_id = :ceremonyId";
+    Stored stored;
+    try {
+      stored = jdbc.queryForObject(select, params, (rs, rowNum) -> {
+        User user = null;
+        if (rs.getBytes("user_id") != null) {
+          user = new User();
+          user.setTenantId(rs.getString("tenant_id"));
+          user.setId(rs.getBytes("user_id"));
+          user.setEmail(rs.getString("email"));
+          user.setDisplayName(rs.getString("display_name"));
+        }
+        var ceremony = new Ceremony(CeremonyType.valueOf(rs.getString("ceremony_type")),
+            new DefaultChallenge(rs.getBytes("challenge")), user);
+        return new Stored(ceremony, rs.getLong("expires_at"));
+      });
+    } catch (EmptyResultDataAccessException ignore) {
+      rejectedCount.increment();
+      return Optional.empty();
+    }
+
+    //削除できたサーバのみが取り出しに成功する
+    var delete =
+        "DELETE FROM " +
+          "ceremony " +
+        "WHERE " +
+          "ceremony_id = :ceremonyId";
+    if (jdbc.update(delete, params) == 0) {
+      rejectedCount.increment();
+      return Optional.empty();
+    }
+    if (stored.expiresAt <= now) {
+      expiredCount.increment();
+      return Optional.empty();
+    }
+    if (stored.ceremony.getType() != type) {
+      rejectedCount.increment();
+      return Optional.empty();
+    }
+    consumedCount.increment();
+    return Optional.of(stored.ceremony);
+  }
+
+  // 一定間隔毎に期限切れの行を削除する - 同時に呼ばれた場合は1スレッドのみが処理する
+  private void purgeExpired(long now) {
+    var last = lastPurge.get();
+    if (now - last < purgeIntervalMillis || !lastPurge.compareAndSet(last, now)) {
+      return;
+    }
+    var sql =
+        "DELETE FROM " +
+          "ceremony " +
+        "WHERE " +
+          "expires_at <= :now";
+    expiredCount.add(jdbc.update(sql, new MapSqlParameterSource().addValue("now", now)));
+  }
+
+  @ManagedAttribute
+  public long getIssuedCount() {
+    return issuedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getConsumedCount() {
+    return consumedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getExpiredCount() {
+    return expiredCount.sum();
+  }
+
+  // データベースから読み込んだエントリ
+  private static class Stored {
+    private final Ceremony ceremony;
+    private final long expiresAt;
+
+    Stored(Ceremony ceremony, long expiresAt) {
+      this.ceremony = ceremony;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
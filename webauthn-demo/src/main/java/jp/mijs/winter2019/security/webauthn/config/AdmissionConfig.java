@@ -0,0 +1,66 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import java.time.Clock;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionControl;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionEndpoint;
+import jp.mijs.winter2019.security.webauthn.admission.TokenBucketTable;
+
+/**
+ * セレモニーのエンドポイントの受付制御の定義。
+ * エンドポイント毎に webauthn.admission.(エンドポイント).ip / email で制限を指定する。
+ *   rate  - 1秒あたりに受け付ける回数(0の場合は制限しない)
+ *   burst - 連続して受け付ける回数
+ * メールアドレスはoptionsのエンドポイントでのみ判定する(resultのリクエストはメールアドレスを含まない)。
+ */
+@Configuration
+public class AdmissionConfig {
+  private static final String PREFIX = "webauthn.admission.";
+
+  /**
+   * 受付制御。
+   * @param environment
+   * @param meterRegistry
+   * @param enabled 制限する場合はtrue - falseの場合は全て受け付ける
+   * @param maxKeys バケット毎に保管するキー(IPアドレス・メールアドレス)の最大件数
+   * @param sweepIntervalMillis 使用されていないキーを破棄する間隔(ミリ秒)
+   * @return 受付制御
+   */
+  @Bean
+  public AdmissionControl admissionControl(Environment environment, MeterRegistry meterRegistry,
+      @Value("${webauthn.admission.enabled:true}") boolean enabled,
+      @Value("${webauthn.admission.max-keys:100000}") int maxKeys,
+      @Value("${webauthn.admission.sweep-interval-millis:60000}") long sweepIntervalMillis) {
+    var clients = new EnumMap<AdmissionEndpoint, TokenBucketTable>(AdmissionEndpoint.class);
+    var emails = new EnumMap<AdmissionEndpoint, TokenBucketTable>(AdmissionEndpoint.class);
+    if (enabled) {
+      for (var endpoint : AdmissionEndpoint.values()) {
+        put(clients, environment, endpoint, "ip", 20, 50, maxKeys, sweepIntervalMillis);
+        if (endpoint == AdmissionEndpoint.ATTESTATION_OPTIONS || endpoint == AdmissionEndpoint.ASSERTION_OPTIONS) {
+          put(emails, environment, endpoint, "email", 1, 10, maxKeys, sweepIntervalMillis);
+        }
+      }
+    }
+    return new AdmissionControl(clients, emails, meterRegistry);
+  }
+
+  // 設定値からバケットを生成する - rateが0の場合は制限しない
+  private static void put(Map<AdmissionEndpoint, TokenBucketTable> tables, Environment environment,
+      AdmissionEndpoint endpoint, String key, double defaultRate, int defaultBurst, int maxKeys,
+      long sweepIntervalMillis) {
+    var prefix = PREFIX + endpoint.getKey() + "." + key + ".";
+    var rate = environment.getProperty(prefix + "rate", Double.class, defaultRate);
+    var burst = environment.getProperty(prefix + "burst", Integer.class, defaultBurst);
+    if (rate > 0) {
+      tables.put(endpoint, new TokenBucketTable(rate, burst, maxKeys, sweepIntervalMillis, Clock.systemUTC()));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import java.time.Clock;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.challenge.InMemoryChallengeStore;
+import jp.mijs.winter2019.security.webauthn.challenge.JdbcChallengeStore;
+
+/**
+ * セレモニーの状態を保管するストアの定義。
+ * webauthn.challenge-store.type で保管先を切り替える。
+ *   memory - サーバのメモリ上に保管する(既定値)
+ *   jdbc   - データベースに保管する(複数のサーバで共有する場合)
+ */
+@Configuration
+public class ChallengeStoreConfig {
+  /** 有効期限（ミリ秒） - optionsのtimeoutと合わせる */
+  @Value("${webauthn.challenge-store.timeout-millis:120000}")
+  private long timeoutMillis;
+
+  /**
+   * メモリ上に保管するストア。
+   * @param tickMillis タイミングホイールの1枠の長さ（ミリ秒）
+   * @param maxSize 保管する最大件数
+   * @param generator
+   * @return ストア
+   */
+  @Bean
+  @ConditionalOnProperty(name = "webauthn.challenge-store.type", havingValue = "memory", matchIfMissing = true)
+  public ChallengeStore inMemoryChallengeStore(
+      @Value("${webauthn.challenge-store.memory.tick-millis:1000}") long tickMillis,
+      @Value("${webauthn.challenge-store.memory.max-size:100000}") int maxSize, ChallengeGenerator generator) {
+    return new InMemoryChallengeStore(timeoutMillis, tickMillis, maxSize, Clock.systemUTC(), generator);
+  }
+
+  /**
+   * データベースに保管するストア。
+   * @param jdbc
+   * @param purgeIntervalMillis 期限切れの行を削除する間隔（ミリ秒）
+   * @param generator
+   * @return ストア
+   */
+  @Bean
+  @ConditionalOnProperty(name = "webauthn.challenge-store.type", havingValue = "jdbc")
+  public ChallengeStore jdbcChallengeStore(NamedParameterJdbcOperations jdbc,
+      @Value("${webauthn.challenge-store.jdbc.purge-interval-millis:10000}") long purgeIntervalMillis,
+      ChallengeGenerator generator) {
+    return new JdbcChallengeStore(jdbc, timeoutMillis, purgeIntervalMillis, Clock.systemUTC(), generator);
+  }
+}
@@ -0,0 +1,34 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * リクエスト・レスポンスの変換の定義。
+ * /attestation/result・/assertion/resultは、JSONの他にCBOR(application/cbor)のリクエストを受け付ける。
+ * CBORではバイト列をBase64に変換せずにそのまま送信するため、リクエストが小さくなり、Base64のデコードも不要となる。
+ */
+@Configuration
+public class HttpMessageConverterConfig {
+  /** CBORのContent-Type */
+  public static final String APPLICATION_CBOR_VALUE = "application/cbor";
+
+  /**
+   * CBORの変換クラス。
+   * JSONと同じ設定(spring.jackson.*)を適用するため、SpringBootが生成するビルダーを使用する。
+   * ビルダーはJSONのObjectMapperの生成にも使用されるため、ビルダー自体は変更せずに設定のみを適用する。
+   * @param builder SpringBootが生成するObjectMapperのビルダー
+   * @return CBORの変換クラス
+   */
+  @Bean
+  public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+    var objectMapper = new ObjectMapper(new CBORFactory());
+    builder.configure(objectMapper);
+    return new MappingJackson2CborHttpMessageConverter(objectMapper);
+  }
+}
@@ -0,0 +1,72 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+import jp.mijs.winter2019.security.webauthn.reactive.CeremonySchedulers;
+import jp.mijs.winter2019.security.webauthn.reactive.JacksonCborDecoder;
+
+/**
+ * リアクティブ(WebFlux)で動作する場合の定義。
+ * reactiveプロファイル(spring.main.web-application-type=reactive)を指定した場合に使用する。
+ * ブロッキングする処理は、webauthn.reactive で設定したスケジューラで実行する。
+ *   crypto-threads - 署名・アテステーションの検証のスレッド数(0の場合はCPU数)
+ *   jdbc-threads   - DBアクセスのスレッド数(コネクションプールの最大数以下とする)
+ *   queue-size     - スケジューラ毎の待ち行列の長さ - 超えた場合は503を返す
+ */
+@Configuration
+@ConditionalOnWebApplication(type = Type.REACTIVE)
+public class ReactiveWebConfig implements WebFluxConfigurer {
+  private final MappingJackson2CborHttpMessageConverter cborHttpMessageConverter;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される。
+   * @param cborHttpMessageConverter CBORの変換クラス - ObjectMapperを共有する
+   */
+  public ReactiveWebConfig(MappingJackson2CborHttpMessageConverter cborHttpMessageConverter) {
+    this.cborHttpMessageConverter = cborHttpMessageConverter;
+  }
+
+  /**
+   * Nettyのサーバ。
+   * Tomcatもクラスパスに存在し、SpringBootはTomcatを優先するため、明示的にNettyを指定する。
+   * ポートやSSLの設定(server.*)はTomcatと同じものが適用される。
+   * @return Nettyのサーバ
+   */
+  @Bean
+  public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+    return new NettyReactiveWebServerFactory();
+  }
+
+  /**
+   * ブロッキングする処理を実行するスケジューラ。
+   * @param cryptoThreads 検証のスレッド数 - 0の場合はCPU数
+   * @param jdbcThreads DBアクセスのスレッド数
+   * @param queueSize スケジューラ毎の待ち行列の長さ
+   * @return スケジューラ
+   */
+  @Bean(destroyMethod = "dispose")
+  public CeremonySchedulers ceremonySchedulers(
+      @Value("${webauthn.reactive.crypto-threads:0}") int cryptoThreads,
+      @Value("${webauthn.reactive.jdbc-threads:10}") int jdbcThreads,
+      @Value("${webauthn.reactive.queue-size:1000}") int queueSize) {
+    if (cryptoThreads <= 0) {
+      cryptoThreads = Runtime.getRuntime().availableProcessors();
+    }
+    return new CeremonySchedulers(cryptoThreads, jdbcThreads, queueSize);
+  }
+
+  @Override
+  public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+    //JSONと同じ設定(spring.jackson.*)のObjectMapperでCBORを読み込む
+    configurer.customCodecs().decoder(new JacksonCborDecoder(cborHttpMessageConverter.getObjectMapper()));
+  }
+}
@@ -0,0 +1,69 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import java.sql.SQLException;
+
+import org.flywaydb.core.Flyway;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.flyway.FlywayConfigurationCustomizer;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * テーブル定義の適用方法の定義。
+ * テーブル定義は db/migration にバージョン毎のSQL(V1__xxx.sql, V2__xxx.sql, ...)として配置し、Flywayで適用する。
+ * webauthn.schema.recreate で起動時の動作を切り替える。
+ *   true  - 全てのテーブルを削除してから作り直す(devプロファイル - インメモリのH2のみ)
+ *   false - 未適用のバージョンのみを適用する(既定値 - バージョンが変わらなければ何もしない)
+ * テーブル定義をFlywayで管理する前のデータベースは、V1としてベースラインを作成してから V1_1 以降を適用する。
+ */
+@Configuration
+public class SchemaMigrationConfig {
+  /** Flywayで管理する前のテーブル定義とするバージョン */
+  public static final String LEGACY_BASELINE_VERSION = "1";
+
+  /**
+   * テーブル定義をFlywayで管理する前のデータベースに、V1としてベースラインを作成する。
+   * V1から作成したデータベースでは、後から追加した V1_1 (移行前のデータベース用)を適用しない。
+   * @return Flywayの設定
+   */
+  @Bean
+  public FlywayConfigurationCustomizer legacyBaselineCustomizer() {
+    return configuration -> configuration
+        .baselineOnMigrate(true)
+        .baselineVersion(LEGACY_BASELINE_VERSION)
+        .baselineDescription("legacy schema")
+        .ignoreIgnoredMigrations(true);
+  }
+
+  /** テーブルの削除を許可する接続先 */
+  private static final String IN_MEMORY_URL_PREFIX = "jdbc:h2:mem:";
+
+  /**
+   * 全てのテーブルを削除してから作り直す。
+   * ファイル等に保存するデータベースの場合は、削除せずに起動を中止する。
+   * @return 適用方法
+   */
+  @Bean
+  @ConditionalOnProperty(name = "webauthn.schema.recreate", havingValue = "true")
+  public FlywayMigrationStrategy recreateMigrationStrategy() {
+    return flyway -> {
+      var url = url(flyway);
+      if (!url.startsWith(IN_MEMORY_URL_PREFIX)) {
+        throw new IllegalStateException(
+            "webauthn.schema.recreate is only allowed for " + IN_MEMORY_URL_PREFIX + " databases: " + url);
+      }
+      flyway.clean();
+      flyway.migrate();
+    };
+  }
+
+  // 接続先のURL
+  private static String url(Flyway flyway) {
+    try (var connection = flyway.getConfiguration().getDataSource().getConnection()) {
+      return connection.getMetaData().getURL();
+    } catch (SQLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
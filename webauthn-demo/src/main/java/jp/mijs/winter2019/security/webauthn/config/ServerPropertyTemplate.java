@@ -0,0 +1,47 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import com.webauthn4j.data.client.Origin;
+import com.webauthn4j.data.client.challenge.Challenge;
+import com.webauthn4j.server.ServerProperty;
+
+/**
+ * 検証用サーバ情報(ServerProperty)の雛形。
+ * リクエスト毎に変化しないOriginとrpIdをテナントの設定の読み込み時に生成しておき、challengeのみを差し替えて使用する。
+ * テナント({@link jp.mijs.winter2019.security.webauthn.tenant.Tenant})のOrigin毎に1件ずつ保持する。
+ */
+public class ServerPropertyTemplate {
+  private final Origin origin;
+  private final String rpId;
+
+  /**
+   * コンストラクタ。
+   * @param origin Origin - サーバが保持している値
+   * @param rpId rpId - サーバが保持している値
+   */
+  public ServerPropertyTemplate(Origin origin, String rpId) {
+    this.origin = origin;
+    this.rpId = rpId;
+  }
+
+  /**
+   * challengeを設定した検証用サーバ情報を生成する。
+   * @param challenge サーバで保持するチャレンジ情報
+   * @return 検証用サーバ情報
+   */
+  public ServerProperty create(Challenge challenge) {
+    return new ServerProperty(
+        origin,     // Originの検証 - サーバが保持している値を設定
+        rpId,       //rpIdの検証 - サーバが保持している値を設定
+        challenge,  //challengeの検証 - HTTPセッションに格納された値を設定
+        null        //TokenBindingId - 特に指定がなければNULLを設定
+    );
+  }
+
+  public Origin getOrigin() {
+    return origin;
+  }
+
+  public String getRpId() {
+    return rpId;
+  }
+}
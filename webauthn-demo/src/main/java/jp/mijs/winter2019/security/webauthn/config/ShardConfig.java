@@ -0,0 +1,93 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.flyway.FlywayConfigurationCustomizer;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jp.mijs.winter2019.security.webauthn.shard.Resharder;
+import jp.mijs.winter2019.security.webauthn.shard.Shard;
+import jp.mijs.winter2019.security.webauthn.shard.ShardFactory;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+
+/**
+ * ユーザ・公開鍵クレデンシャルを保管するシャードの定義。
+ * webauthn.shard.urls でシャードの接続先を番号の順序で指定する。
+ *   未指定 - spring.datasource のデータベースのみを使用する(既定値)
+ *   指定   - 指定した全てのデータベースに振り分ける(セレモニーは spring.datasource に保管する)
+ * webauthn.shard.resharding.urls を指定すると、JMXの Resharder.reshard でシャード数を2倍に変更できる。
+ */
+@Configuration
+public class ShardConfig {
+  /**
+   * シャードを生成するクラス。
+   * @param username 全てのシャードで共通のユーザ名
+   * @param password 全てのシャードで共通のパスワード
+   * @param poolSize シャード毎のコネクションプールの最大数
+   * @param locations テーブル定義の場所
+   * @param migrationStrategy テーブル定義の適用方法(webauthn.schema.recreate)
+   * @param configurationCustomizer Flywayの設定(移行前のデータベースのベースライン)
+   * @return 生成クラス
+   */
+  @Bean
+  public ShardFactory shardFactory(
+      @Value("${webauthn.shard.username:sa}") String username,
+      @Value("${webauthn.shard.password:}") String password,
+      @Value("${webauthn.shard.pool-size:10}") int poolSize,
+      @Value("${spring.flyway.locations:classpath:db/migration}") String[] locations,
+      ObjectProvider<FlywayMigrationStrategy> migrationStrategy,
+      ObjectProvider<FlywayConfigurationCustomizer> configurationCustomizer) {
+    return new ShardFactory(username, password, poolSize, locations, migrationStrategy.getIfAvailable(),
+        configurationCustomizer.getIfAvailable());
+  }
+
+  /**
+   * シャードの振り分けを行うクラス。
+   * @param shardFactory
+   * @param urls シャードの接続先
+   * @param dataSource webauthn.shard.urls が未指定の場合に使用するデータベース
+   * @param jdbc
+   * @param transactionTemplate
+   * @return 振り分けクラス
+   */
+  @Bean
+  public ShardRouter shardRouter(ShardFactory shardFactory,
+      @Value("${webauthn.shard.urls:}") String[] urls,
+      DataSource dataSource, NamedParameterJdbcOperations jdbc, TransactionTemplate transactionTemplate) {
+    if (urls.length == 0) {
+      //セレモニーの保管と同じコネクションプールとトランザクションを使用する
+      return new ShardRouter(List.of(new Shard(0, "primary", dataSource, jdbc, transactionTemplate)));
+    }
+    var shards = new ArrayList<Shard>(urls.length);
+    for (int i = 0; i < urls.length; i++) {
+      shards.add(shardFactory.create(i, urls[i]));
+    }
+    return new ShardRouter(shards);
+  }
+
+  /**
+   * シャード数を変更するクラス。
+   * @param shardRouter
+   * @param shardFactory
+   * @param urls 追加するシャードの接続先 - 現在のシャードと同じ数とする
+   * @param batchSize 1回に複写・削除する件数
+   * @param graceMillis 切り替えから元のシャードの行を削除するまでの待ち時間（ミリ秒）
+   * @return 変更クラス
+   */
+  @Bean
+  public Resharder resharder(ShardRouter shardRouter, ShardFactory shardFactory,
+      @Value("${webauthn.shard.resharding.urls:}") String[] urls,
+      @Value("${webauthn.shard.resharding.batch-size:1000}") int batchSize,
+      @Value("${webauthn.shard.resharding.grace-millis:5000}") long graceMillis) {
+    return new Resharder(shardRouter, shardFactory, List.of(urls), batchSize, graceMillis);
+  }
+}
@@ -0,0 +1,46 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import jp.mijs.winter2019.security.webauthn.counter.SignatureCounterWriter;
+import jp.mijs.winter2019.security.webauthn.counter.SynchronousSignatureCounterWriter;
+import jp.mijs.winter2019.security.webauthn.counter.WriteBehindSignatureCounterWriter;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+
+/**
+ * 署名カウンタの書き込み方法の定義。
+ * webauthn.counter.write-mode で書き込み方法を切り替える。
+ *   sync         - 認証処理のスレッドで即時に書き込む(既定値)
+ *   write-behind - メモリ上に溜めて、まとめて書き込む
+ */
+@Configuration
+public class SignatureCounterWriterConfig {
+  /**
+   * 即時に書き込むクラス。
+   * @param credentialRepository
+   * @return 書き込みクラス
+   */
+  @Bean
+  @ConditionalOnProperty(name = "webauthn.counter.write-mode", havingValue = "sync", matchIfMissing = true)
+  public SignatureCounterWriter synchronousSignatureCounterWriter(CredentialRepository credentialRepository) {
+    return new SynchronousSignatureCounterWriter(credentialRepository);
+  }
+
+  /**
+   * まとめて書き込むクラス。
+   * @param credentialRepository
+   * @param batchSize 書き込みを開始する件数
+   * @param flushIntervalMillis 書き込みの間隔（ミリ秒）
+   * @return 書き込みクラス
+   */
+  @Bean
+  @ConditionalOnProperty(name = "webauthn.counter.write-mode", havingValue = "write-behind")
+  public SignatureCounterWriter writeBehindSignatureCounterWriter(CredentialRepository credentialRepository,
+      @Value("${webauthn.counter.write-behind.batch-size:500}") int batchSize,
+      @Value("${webauthn.counter.write-behind.flush-interval-millis:1000}") long flushIntervalMillis) {
+    return new WriteBehindSignatureCounterWriter(credentialRepository, batchSize, flushIntervalMillis);
+  }
+}
@@ -0,0 +1,152 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.webauthn4j.converter.util.CborConverter;
+import com.webauthn4j.converter.util.JsonConverter;
+import com.webauthn4j.validator.WebAuthnAuthenticationContextValidator;
+import com.webauthn4j.validator.WebAuthnRegistrationContextValidator;
+import com.webauthn4j.validator.attestation.statement.androidkey.AndroidKeyAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.androidsafetynet.AndroidSafetyNetAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.none.NoneAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.packed.PackedAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.tpm.TPMAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.statement.u2f.FIDOU2FAttestationStatementValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.certpath.CertPathTrustworthinessValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.certpath.NullCertPathTrustworthinessValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.ecdaa.NullECDAATrustworthinessValidator;
+import com.webauthn4j.validator.attestation.trustworthiness.self.DefaultSelfAttestationTrustworthinessValidator;
+
+import jp.mijs.winter2019.security.webauthn.validator.FormatDispatchingAttestationStatementValidator;
+import jp.mijs.winter2019.security.webauthn.validator.MetadataCertPathTrustworthinessValidator;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * WebAuthnの検証に使用するオブジェクトの定義。
+ * Validatorやコンバータはスレッドセーフなため、起動時に一度だけ生成してリクエスト間で共有する。
+ */
+@Configuration
+@Slf4j
+public class WebAuthnConfig {
+  /**
+   * JSONコンバータ。
+   * 内部でJacksonのObjectMapperを生成しモジュール登録を行うため、共有して使用する。
+   * @return JSONコンバータ
+   */
+  @Bean
+  public JsonConverter jsonConverter() {
+    return new JsonConverter();
+  }
+
+  /**
+   * CBORコンバータ。
+   * JSONコンバータと対になるものを使用する。
+   * @param jsonConverter JSONコンバータ
+   * @return CBORコンバータ
+   */
+  @Bean
+  public CborConverter cborConverter(JsonConverter jsonConverter) {
+    return jsonConverter.getCborConverter();
+  }
+
+  /**
+   * アテステーション証明書の証明書パスを検証するValidator。
+   * メタデータ・ステートメントのファイルが指定されている場合は、そのルート証明書で検証する。
+   * 指定されていない場合は検証しない(全ての認証器を受け入れる) - 起動時に警告を出力する。
+   * webauthn.metadata.required がtrueの場合は、指定されていなければ起動を中止する。
+   * @param file メタデータ・ステートメントのファイル
+   * @param required ファイルの指定を必須とする場合はtrue
+   * @param reloadIntervalMillis ファイルの更新を確認する間隔(ミリ秒)
+   * @param maxSize 検証結果を保持する最大件数
+   * @param ttlMillis 検証に成功した結果を保持する最大の期間(ミリ秒)
+   * @param failureTtlMillis 検証に失敗した結果を保持する期間(ミリ秒)
+   * @return 証明書パスを検証するValidator
+   * @throws IOException ファイルが読み込めない場合はこの例外をスローする
+   */
+  @Bean
+  public CertPathTrustworthinessValidator certPathTrustworthinessValidator(
+      @Value("${webauthn.metadata.file:}") String file,
+      @Value("${webauthn.metadata.required:false}") boolean required,
+      @Value("${webauthn.metadata.reload-interval-millis:60000}") long reloadIntervalMillis,
+      @Value("${webauthn.metadata.cache.max-size:1000}") int maxSize,
+      @Value("${webauthn.metadata.cache.ttl-millis:86400000}") long ttlMillis,
+      @Value("${webauthn.metadata.cache.failure-ttl-millis:60000}") long failureTtlMillis) throws IOException {
+    if (file.isEmpty()) {
+      if (required) {
+        throw new IllegalStateException("webauthn.metadata.file must be set when webauthn.metadata.required is true");
+      }
+      log.warn("webauthn.metadata.file is not set: attestation certificate paths are not validated "
+          + "and authenticators of any model can be registered");
+      return new NullCertPathTrustworthinessValidator();
+    }
+    return new MetadataCertPathTrustworthinessValidator(Paths.get(file), reloadIntervalMillis, maxSize,
+        ttlMillis, failureTtlMillis, Clock.systemUTC());
+  }
+
+  /**
+   * 登録時に使用するValidator。
+   * 認証デバイスの厳密な検証を行う。
+   * @param jsonConverter JSONコンバータ
+   * @param cborConverter CBORコンバータ
+   * @param certPathTrustworthinessValidator 証明書パスを検証するValidator
+   * @return 登録時に使用するValidator
+   */
+  @Bean
+  public WebAuthnRegistrationContextValidator registrationContextValidator(JsonConverter jsonConverter,
+      CborConverter cborConverter, CertPathTrustworthinessValidator certPathTrustworthinessValidator) {
+    //アテステーション・ステートメントのフォーマットは全部で6種類
+    //  fmtをキーとした参照表で振り分ける
+    var attestationStatementValidator = new FormatDispatchingAttestationStatementValidator(Map.of(
+        // https://www.w3.org/TR/webauthn-1/#packed-attestation
+        "packed", new PackedAttestationStatementValidator(),
+        // https://www.w3.org/TR/webauthn-1/#tpm-attestation
+        "tpm", new TPMAttestationStatementValidator(),
+        // https://www.w3.org/TR/webauthn-1/#android-key-attestation
+        "android-key", new AndroidKeyAttestationStatementValidator(),
+        // https://www.w3.org/TR/webauthn-1/#android-safetynet-attestation
+        "android-safetynet", new AndroidSafetyNetAttestationStatementValidator(),
+        // https://www.w3.org/TR/webauthn-1/#fido-u2f-attestation
+        "fido-u2f", new FIDOU2FAttestationStatementValidator(),
+        // https://www.w3.org/TR/webauthn-1/#none-attestation
+        "none", new NoneAttestationStatementValidator()));
+
+    return new WebAuthnRegistrationContextValidator(
+        List.of(attestationStatementValidator),
+        certPathTrustworthinessValidator, new NullECDAATrustworthinessValidator(),
+        new DefaultSelfAttestationTrustworthinessValidator(),
+        jsonConverter, cborConverter);
+  }
+
+  /**
+   * 認証時に使用するValidator。
+   * @param jsonConverter JSONコンバータ
+   * @param cborConverter CBORコンバータ
+   * @return 認証時に使用するValidator
+   */
+  @Bean
+  public WebAuthnAuthenticationContextValidator authenticationContextValidator(JsonConverter jsonConverter,
+      CborConverter cborConverter) {
+    return new WebAuthnAuthenticationContextValidator(jsonConverter, cborConverter);
+  }
+
+  /**
+   * 一括認証で署名の検証に使用するスレッドプール。
+   * 共通のForkJoinPoolを使用すると他の処理と競合するため、スレッド数を制限した専用のプールを使用する。
+   * @param parallelism スレッド数
+   * @return スレッドプール
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ForkJoinPool assertionVerificationPool(
+      @Value("${webauthn.assertion.batch.parallelism:4}") int parallelism) {
+    return new ForkJoinPool(parallelism);
+  }
+}
@@ -0,0 +1,112 @@
+package jp.mijs.winter2019.security.webauthn.counter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * クレデンシャルID毎の認証を直列化するロック。
+ * 同じクレデンシャルの認証を「公開鍵クレデンシャルの取得・署名カウンタの検証・書き込み」の単位で1件ずつ行い、
+ * 並行した認証が同じ署名カウンタで検証に成功しないようにする。
+ * クレデンシャルID毎にロックを生成せず、ハッシュ値で固定数のロックに振り分ける(異なるクレデンシャルが同じロックを共有する場合がある)。
+ * ロックはサーバ内のみで有効なため、他のサーバとの競合はDBの条件付き更新で検出する。
+ */
+@Component
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=CredentialLocks")
+public class CredentialLocks {
+  private final ReentrantLock[] locks;
+  private final LongAdder contendedCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param stripes ロックの数 - 2のべき乗に切り上げる
+   */
+  public CredentialLocks(@Value("${webauthn.counter.lock-stripes:1024}") int stripes) {
+    this.locks = new ReentrantLock[stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * クレデンシャルIDのロックを取得して処理を実行する。
+   * @param <T> 処理結果の型
+   * @param credentialId クレデンシャルID
+   * @param task 処理
+   * @return 処理結果
+   */
+  public <T> T withLock(byte[] credentialId, Supplier<T> task) {
+    var lock = locks[stripe(credentialId)];
+    acquire(lock);
+    try {
+      return task.get();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 複数のクレデンシャルIDのロックを取得して処理を実行する。
+   * デッドロックしないよう、ロックは番号の順に取得する。
+   * @param <T> 処理結果の型
+   * @param credentialIds クレデンシャルID
+   * @param task 処理
+   * @return 処理結果
+   */
+  public <T> T withLocks(Collection<byte[]> credentialIds, Supplier<T> task) {
+    var stripes = new TreeSet<Integer>();
+    for (var credentialId : credentialIds) {
+      stripes.add(stripe(credentialId));
+    }
+    var acquired = 0;
+    try {
+      for (var stripe : stripes) {
+        acquire(locks[stripe]);
+        acquired++;
+      }
+      return task.get();
+    } finally {
+      for (var stripe : stripes) {
+        if (acquired-- == 0) {
+          break;
+        }
+        locks[stripe].unlock();
+      }
+    }
+  }
+
+  private void acquire(ReentrantLock lock) {
+    if (!lock.tryLock()) {
+      contendedCount.increment();
+      lock.lock();
+    }
+  }
+
+  private int stripe(byte[] credentialId) {
+    var hash = Arrays.hashCode(credentialId);
+    return (hash ^ (hash >>> 16)) & (locks.length - 1);
+  }
+
+  @ManagedAttribute
+  public int getStripes() {
+    return locks.length;
+  }
+
+  /**
+   * 他の認証がロックを保持していたため待った回数。
+   * @return 待った回数
+   */
+  @ManagedAttribute
+  public long getContendedCount() {
+    return contendedCount.sum();
+  }
+}
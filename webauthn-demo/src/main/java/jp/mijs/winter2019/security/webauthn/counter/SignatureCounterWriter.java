@@ -0,0 +1,44 @@
+package jp.mijs.winter2019.security.webauthn.counter;
+
+import java.util.List;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+
+/**
+ * 認証成功後の署名カウンタをデータベースに書き込むクラスのインターフェース。
+ * webauthn.counter.write-mode で書き込み方法を切り替える。
+ */
+public interface SignatureCounterWriter {
+  /**
+   * 署名カウンタを書き込む。
+   * 書き込み済みの値より大きい場合のみ書き込む。
+   * @param credentialId クレデンシャルID
+   * @param signatureCounter 署名カウンタ
+   * @return 書き込んだ場合はtrue - 同じか大きい値が書き込み済みの場合はfalse
+   */
+  boolean write(byte[] credentialId, long signatureCounter);
+
+  /**
+   * 複数の署名カウンタをまとめて書き込む。
+   * 書き込み済みの値より大きいもののみ書き込む。
+   * @param credentials クレデンシャルIDと署名カウンタを設定した公開鍵クレデンシャル情報
+   * @return 書き込まなかった公開鍵クレデンシャル情報 - 同じか大きい値が書き込み済みのもの
+   */
+  List<Credential> writeAll(List<Credential> credentials);
+
+  /**
+   * 検証に使用する最新の署名カウンタを取得する。
+   * データベースに未反映の値がある場合は、その値とデータベースの値の大きい方を返す。
+   * @param credentialId クレデンシャルID
+   * @param storedCounter データベースから取得した署名カウンタ
+   * @return 最新の署名カウンタ
+   */
+  long latest(byte[] credentialId, long storedCounter);
+
+  /**
+   * データベースに未反映の署名カウンタを破棄する。
+   * 公開鍵クレデンシャルの削除時に呼び出す。
+   * @param credentialId クレデンシャルID
+   */
+  void discard(byte[] credentialId);
+}
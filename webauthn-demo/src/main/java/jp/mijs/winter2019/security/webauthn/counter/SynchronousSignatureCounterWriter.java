@@ -0,0 +1,47 @@
+package jp.mijs.winter2019.security.webauthn.counter;
+
+import java.util.List;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+
+/**
+ * 署名カウンタを認証処理のスレッドで即時にデータベースへ書き込むクラス。
+ */
+public class SynchronousSignatureCounterWriter implements SignatureCounterWriter {
+  private final CredentialRepository credentialRepository;
+
+  /**
+   * コンストラクタ。
+   * @param credentialRepository
+   */
+  public SynchronousSignatureCounterWriter(CredentialRepository credentialRepository) {
+    this.credentialRepository = credentialRepository;
+  }
+
+  @Override
+  public boolean write(byte[] credentialId, long signatureCounter) {
+    var credential = new Credential();
+    credential.setCredentialId(credentialId);
+    credential.setSignatureCounter(signatureCounter);
+    return credentialRepository.update(credential);
+  }
+
+  @Override
+  public List<Credential> writeAll(List<Credential> credentials) {
+    if (credentials.isEmpty()) {
+      return List.of();
+    }
+    return credentialRepository.updateSignatureCounters(credentials);
+  }
+
+  @Override
+  public long latest(byte[] credentialId, long storedCounter) {
+    return storedCounter;
+  }
+
+  @Override
+  public void discard(byte[] credentialId) {
+    //未反映の値を保持しない
+  }
+}
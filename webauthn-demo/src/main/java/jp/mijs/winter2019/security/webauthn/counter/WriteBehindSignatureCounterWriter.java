@@ -0,0 +1,218 @@
+package jp.mijs.winter2019.security.webauthn.counter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 署名カウンタをメモリ上に溜めて、まとめてデータベースへ書き込むクラス。
+ * 同じクレデンシャルへの更新は最大値にまとめ、件数が上限に達した時と一定間隔毎にバッチ更新する。
+ * メモリ上の値より小さい値は書き込まない。データベースへの書き込みも保存済みの値より大きいもののみとする。
+ * 書き込みが完了するまでは、メモリ上の値を検証に使用する最新の署名カウンタとする。
+ * アプリケーションの終了時には、残っている値を全て書き込む。
+ */
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=SignatureCounterWriter")
+public class WriteBehindSignatureCounterWriter implements SignatureCounterWriter, DisposableBean {
+  private final CredentialRepository credentialRepository;
+  private final int batchSize;
+  private final ConcurrentHashMap<ByteBuffer, Long> pending = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  private final LongAdder writeCount = new LongAdder();
+  private final LongAdder flushCount = new LongAdder();
+  private final LongAdder flushedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+  private final LongAdder flushNanos = new LongAdder();
+  private final AtomicLong lastFlushNanos = new AtomicLong();
+  private final AtomicLong maxFlushNanos = new AtomicLong();
+
+  /**
+   * コンストラクタ。
+   * @param credentialRepository
+   * @param batchSize 書き込みを開始する件数
+   * @param flushIntervalMillis 書き込みの間隔（ミリ秒）
+   */
+  public WriteBehindSignatureCounterWriter(CredentialRepository credentialRepository, int batchSize,
+      long flushIntervalMillis) {
+    this.credentialRepository = credentialRepository;
+    this.batchSize = batchSize;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "signature-counter-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.executor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public boolean write(byte[] credentialId, long signatureCounter) {
+    //同じクレデンシャルへの更新は最大値にまとめる - 同じか大きい値がメモリ上にある場合は書き込まない
+    var written = new boolean[1];
+    pending.compute(ByteBuffer.wrap(credentialId.clone()), (key, current) -> {
+      if (current != null && current >= signatureCounter) {
+        return current;
+      }
+      written[0] = true;
+      return signatureCounter;
+    });
+    if (!written[0]) {
+      return false;
+    }
+    writeCount.increment();
+
+    //件数が上限に達した場合は、次の定期実行を待たずに書き込む
+    if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+      executor.execute(this::flushQuietly);
+    }
+    return true;
+  }
+
+  @Override
+  public List<Credential> writeAll(List<Credential> credentials) {
+    var rejected = new ArrayList<Credential>();
+    for (var credential : credentials) {
+      if (!write(credential.getCredentialId(), credential.getSignatureCounter())) {
+        rejected.add(credential);
+      }
+    }
+    return rejected;
+  }
+
+  @Override
+  public long latest(byte[] credentialId, long storedCounter) {
+    var counter = pending.get(ByteBuffer.wrap(credentialId));
+    return counter == null ? storedCounter : Math.max(counter, storedCounter);
+  }
+
+  @Override
+  public void discard(byte[] credentialId) {
+    //書き込み中の場合は削除済みの行への更新となり、更新件数0で終わる
+    pending.remove(ByteBuffer.wrap(credentialId));
+  }
+
+  /**
+   * メモリ上の署名カウンタをデータベースへ書き込む。
+   * 書き込み中に更新された値は、次回の書き込みの対象とする。
+   * @return 書き込んだ件数
+   */
+  @ManagedOperation
+  public synchronized int flush() {
+    flushRequested.set(false);
+    if (pending.isEmpty()) {
+      return 0;
+    }
+    var start = System.nanoTime();
+
+    var snapshot = new ArrayList<Map.Entry<ByteBuffer, Long>>(pending.size());
+    var credentials = new ArrayList<Credential>(pending.size());
+    for (var entry : pending.entrySet()) {
+      var snapshotEntry = Map.entry(entry.getKey(), entry.getValue());
+      snapshot.add(snapshotEntry);
+
+      var credential = new Credential();
+      credential.setCredentialId(snapshotEntry.getKey().array());
+      credential.setSignatureCounter(snapshotEntry.getValue());
+      credentials.add(credential);
+    }
+    //他のサーバが大きい値を書き込み済みのものは書き込まない
+    var rejected = credentialRepository.updateSignatureCounters(credentials);
+    rejectedCount.add(rejected.size());
+
+    //書き込んだ値から変わっていないもののみ取り除く - 書き込み中の更新はメモリ上に残す
+    for (var entry : snapshot) {
+      pending.remove(entry.getKey(), entry.getValue());
+    }
+
+    var elapsed = System.nanoTime() - start;
+    flushCount.increment();
+    flushedCount.add(snapshot.size());
+    flushNanos.add(elapsed);
+    lastFlushNanos.set(elapsed);
+    maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+    return snapshot.size();
+  }
+
+  // バックグラウンドでの書き込み - 失敗した値はメモリ上に残し、次回に再度書き込む
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      log.warn("Failed to flush {} signature counters", pending.size(), e);
+    }
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    try {
+      var flushed = flush();
+      if (flushed > 0) {
+        log.info("Flushed {} signature counters on shutdown", flushed);
+      }
+    } catch (RuntimeException e) {
+      log.error("Lost {} signature counters on shutdown", pending.size(), e);
+    }
+  }
+
+  @ManagedAttribute
+  public int getQueueDepth() {
+    return pending.size();
+  }
+
+  @ManagedAttribute
+  public long getWriteCount() {
+    return writeCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getFlushCount() {
+    return flushCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getFlushedCount() {
+    return flushedCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  @ManagedAttribute
+  public double getLastFlushMillis() {
+    return lastFlushNanos.get() / 1_000_000.0;
+  }
+
+  @ManagedAttribute
+  public double getMaxFlushMillis() {
+    return maxFlushNanos.get() / 1_000_000.0;
+  }
+
+  @ManagedAttribute
+  public double getAverageFlushMillis() {
+    var count = flushCount.sum();
+    return count == 0 ? 0 : flushNanos.sum() / 1_000_000.0 / count;
+  }
+}
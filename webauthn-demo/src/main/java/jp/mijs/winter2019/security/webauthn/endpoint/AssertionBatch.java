@@ -0,0 +1,65 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import jp.mijs.winter2019.security.webauthn.challenge.Ceremony;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import jp.mijs.winter2019.security.webauthn.service.AssertionRequest;
+import jp.mijs.winter2019.security.webauthn.service.AssertionResult;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+
+/**
+ * POST /assertion/result/batch の処理
+ * サーブレット・リアクティブのエンドポイントで共通に使用する。DBアクセスを含む。
+ */
+final class AssertionBatch {
+  private AssertionBatch() {
+  }
+
+  /**
+   * 複数の認証をまとめて行う。
+   * @param challengeStore challengeのストア
+   * @param webAuthnService 認証のサービス
+   * @param serverPropertyTemplate テナントの検証用サーバ情報の雛形 - 全ての認証データで共通とする
+   * @param params リクエストパラメータ
+   * @return リクエストパラメータと同じ順序の検証結果
+   */
+  static List<AssertionResult> verify(ChallengeStore challengeStore, WebAuthnAuthenticationService webAuthnService,
+      ServerPropertyTemplate serverPropertyTemplate, List<AuthenticationResultParam> params) {
+    // ストアからchallengeを取り出す
+    //  取り出せなかったもの(要素がnullのものを含む)は検証せずに失敗とする
+    var results = new AssertionResult[params.size()];
+    var requests = new ArrayList<AssertionRequest>(params.size());
+    var indexes = new ArrayList<Integer>(params.size());
+    for (int i = 0; i < params.size(); i++) {
+      var param = params.get(i);
+      var ceremony = param == null
+          ? Optional.<Ceremony>empty()
+          : challengeStore.consume(CeremonyType.ASSERTION, param.ceremonyId);
+      if (ceremony.isEmpty()) {
+        results[i] = AssertionResult.failed("CeremonyNotFound");
+        continue;
+      }
+      requests.add(new AssertionRequest(
+          serverPropertyTemplate,
+          ceremony.get().getChallenge(),
+          param.credentialId,
+          param.clientDataJSON,
+          param.authenticatorData,
+          param.signature));
+      indexes.add(i);
+    }
+
+    // 署名の検証
+    var verified = webAuthnService.assertionFinishAll(requests);
+    for (int i = 0; i < verified.size(); i++) {
+      results[indexes.get(i)] = verified.get(i);
+    }
+    return Arrays.asList(results);
+  }
+}
@@ -0,0 +1,9 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+/**
+ * POST /assertion/options のJSONパラメータ
+ * サーブレット・リアクティブのエンドポイントで共通に使用する。
+ */
+class AssertionOptionsParam {
+  public String email;
+}
@@ -0,0 +1,10 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+/**
+ * POST /attestation/options のJSONパラメータ
+ * サーブレット・リアクティブのエンドポイントで共通に使用する。
+ */
+class AttestationOptionsParam {
+  public String email;
+  public String displayName;
+}
@@ -0,0 +1,11 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+/**
+ * POST /attestation/result のパラメータ(JSONまたはCBOR)
+ * サーブレット・リアクティブのエンドポイントで共通に使用する。
+ */
+class AttestationResultParam {
+  public String ceremonyId;
+  public byte[] clientDataJSON;
+  public byte[] attestationObject;
+}
@@ -0,0 +1,14 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+/**
+ * POST /assertion/result のパラメータ(JSONまたはCBOR)
+ * サーブレット・リアクティブのエンドポイントで共通に使用する。
+ */
+class AuthenticationResultParam {
+  public String ceremonyId;
+  public byte[] credentialId;
+  public byte[] clientDataJSON;
+  public byte[] authenticatorData;
+  public byte[] signature;
+  public byte[] userHandle;
+}
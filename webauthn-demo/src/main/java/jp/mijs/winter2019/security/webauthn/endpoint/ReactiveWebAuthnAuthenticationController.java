@@ -0,0 +1,196 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionControl;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionEndpoint;
+import jp.mijs.winter2019.security.webauthn.challenge.Ceremony;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyNotFoundException;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.config.HttpMessageConverterConfig;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.reactive.CeremonySchedulers;
+import jp.mijs.winter2019.security.webauthn.service.AssertionRequest;
+import jp.mijs.winter2019.security.webauthn.service.AssertionResult;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuples;
+
+/**
+ * WebAuthnによる認証のエンドポイント(リアクティブ)
+ * {@link WebAuthnAuthenticationRestController}と同じURL・リクエスト・レスポンスで、Nettyのイベントループ上で動作する。
+ * DBアクセスと署名の検証は{@link CeremonySchedulers}の別々のスケジューラで実行し、イベントループのスレッドをブロックしない。
+ * テナントの判定はDBアクセスを含まないため、イベントループのスレッドで行う。
+ */
+@RestController
+@ConditionalOnWebApplication(type = Type.REACTIVE)
+@Slf4j
+public class ReactiveWebAuthnAuthenticationController {
+  private final WebAuthnAuthenticationService webAuthnService;
+  private final ChallengeStore challengeStore;
+  private final CeremonyMetrics ceremonyMetrics;
+  private final CeremonySchedulers schedulers;
+  private final AdmissionControl admissionControl;
+  private final ChallengeGenerator challengeGenerator;
+  private final TenantRegistry tenantRegistry;
+  private final int maxBatchSize;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される。
+   * @param webAuthnService
+   * @param challengeStore
+   * @param ceremonyMetrics
+   * @param schedulers
+   * @param admissionControl
+   * @param challengeGenerator
+   * @param tenantRegistry
+   * @param maxBatchSize 一括認証の1回のリクエストで受け付ける最大件数
+   */
+  public ReactiveWebAuthnAuthenticationController(WebAuthnAuthenticationService webAuthnService,
+      ChallengeStore challengeStore, CeremonyMetrics ceremonyMetrics, CeremonySchedulers schedulers,
+      AdmissionControl admissionControl, ChallengeGenerator challengeGenerator, TenantRegistry tenantRegistry,
+      @Value("${webauthn.assertion.batch.max-size:100}") int maxBatchSize) {
+    this.webAuthnService = webAuthnService;
+    this.challengeStore = challengeStore;
+    this.ceremonyMetrics = ceremonyMetrics;
+    this.schedulers = schedulers;
+    this.admissionControl = admissionControl;
+    this.challengeGenerator = challengeGenerator;
+    this.tenantRegistry = tenantRegistry;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * 認証要求に対するエンドポイント。
+   * URL: /assertion/options
+   * 雛形の取得とchallengeの保存は、まとめてDBアクセスのスケジューラで実行する。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param params リクエストパラメータ
+   * @return 認証要求に対するレスポンス情報(JSON)
+   */
+  @PostMapping(value = "/assertion/options")
+  public Mono<ResponseEntity<byte[]>> postAssertionOptions(@RequestHeader(HttpHeaders.HOST) String host,
+      @RequestBody Mono<AssertionOptionsParam> params) {
+    log.info("/assertion/options...");
+    var tenant = tenantRegistry.resolve(host);
+
+    var timings = ceremonyMetrics.prepare(CeremonyMetrics.ASSERTION);
+    return params
+        .flatMap(param -> !admissionControl.admitEmail(AdmissionEndpoint.ASSERTION_OPTIONS, param.email)
+            // メールアドレス毎の受付制限 - DBアクセスのスケジューラに渡す前に判定する
+            ? Mono.just(admissionControl.<byte[]>tooManyRequests(AdmissionEndpoint.ASSERTION_OPTIONS))
+            : schedulers.jdbc(timings, () -> {
+          // 登録済みのユーザの雛形はキャッシュから取得する
+          var template = webAuthnService.requestOptionsTemplate(tenant, param.email);
+
+          // challengeをストアに一時保存し、セレモニーIDをレスポンスヘッダで通知
+          var challenge = challengeGenerator.challenge();
+          var ceremonyId = challengeStore.issue(new Ceremony(CeremonyType.ASSERTION, challenge, null));
+          var body = template.render(challenge);
+          if (log.isDebugEnabled()) {
+            log.debug("Challenge: {}", challenge.getValue());
+            log.debug("Response Data:\n{}", new String(body, StandardCharsets.UTF_8));
+          }
+          return ResponseEntity.ok()
+              .header(ChallengeStore.CEREMONY_ID_HEADER, ceremonyId)
+              .header(CeremonyMetrics.SERVER_TIMING_HEADER, ceremonyMetrics.record(timings))
+              .contentType(MediaType.APPLICATION_JSON_UTF8)
+              .body(body);
+        }));
+  }
+
+  /**
+   * 認証に対するエンドポイント。
+   * URL: /assertion/result
+   * リクエストはJSON(バイト列はBase64)またはCBOR(バイト列はそのまま)で受け付ける。
+   * challengeと公開鍵クレデンシャルの取得(DB) → 署名の検証(CPU) → 署名カウンタの更新(DB) の順に、それぞれのスケジューラで実行する。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param origin Originヘッダ - 検証に使用するOriginの選択に使用する
+   * @param params リクエストパラメータ
+   * @return レスポンス(本文なし)
+   */
+  @PostMapping(value = "/assertion/result",
+      consumes = { MediaType.APPLICATION_JSON_VALUE, HttpMessageConverterConfig.APPLICATION_CBOR_VALUE })
+  public Mono<ResponseEntity<Void>> postAssertionResult(@RequestHeader(HttpHeaders.HOST) String host,
+      @RequestHeader(value = HttpHeaders.ORIGIN, required = false) String origin,
+      @RequestBody Mono<AuthenticationResultParam> params) {
+    var serverPropertyTemplate = tenantRegistry.resolve(host).serverPropertyTemplate(origin);
+    var timings = ceremonyMetrics.prepare(CeremonyMetrics.ASSERTION);
+    return params
+        .flatMap(param -> schedulers.jdbc(timings, () -> {
+          // ストアからchallengeを取り出す
+          //  取り出したchallengeはストアから削除されるため、リプレイ攻撃を防ぐ
+          var ceremony = challengeStore.consume(CeremonyType.ASSERTION, param.ceremonyId)
+              .orElseThrow(CeremonyNotFoundException::new);
+          var request = new AssertionRequest(
+              serverPropertyTemplate,
+              ceremony.getChallenge(),
+              param.credentialId,
+              param.clientDataJSON,
+              param.authenticatorData,
+              param.signature);
+          return Tuples.of(request, webAuthnService.findAuthenticator(param.credentialId));
+        }))
+        // 署名の検証
+        .flatMap(found -> schedulers.crypto(timings, () -> webAuthnService.verify(found.getT1(), found.getT2()))
+            .flatMap(counter -> schedulers.jdbc(timings,
+                () -> webAuthnService.updateCounter(found.getT1().getCredentialId(), counter))))
+        .then(Mono.fromCallable(() -> ResponseEntity.ok()
+            .header(CeremonyMetrics.SERVER_TIMING_HEADER, ceremonyMetrics.record(timings))
+            .<Void>build()))
+        .doOnError(e -> ceremonyMetrics.record(timings));
+  }
+
+  /**
+   * 複数の認証をまとめて行うエンドポイント。
+   * APIゲートウェイが複数の認証データをまとめて送信する場合に使用する。
+   * URL: /assertion/result/batch
+   * リクエストは /assertion/result と同じくJSONまたはCBORで受け付ける。
+   * 最大件数を超えた時点でリクエストの読み込みを止め、400を返す。
+   * 1回のリクエストに含める認証データは、同じテナント・Originのものに限る。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param origin Originヘッダ - 検証に使用するOriginの選択に使用する
+   * @param params リクエストパラメータ - 1件毎の内容は /assertion/result と同じ
+   * @return リクエストパラメータと同じ順序の検証結果
+   */
+  @PostMapping(value = "/assertion/result/batch",
+      consumes = { MediaType.APPLICATION_JSON_VALUE, HttpMessageConverterConfig.APPLICATION_CBOR_VALUE })
+  public Mono<List<AssertionResult>> postAssertionResultBatch(@RequestHeader(HttpHeaders.HOST) String host,
+      @RequestHeader(value = HttpHeaders.ORIGIN, required = false) String origin,
+      @RequestBody Flux<AuthenticationResultParam> params) {
+    var serverPropertyTemplate = tenantRegistry.resolve(host).serverPropertyTemplate(origin);
+    return params
+        .take(maxBatchSize + 1)
+        .collectList()
+        .flatMap(list -> {
+          if (list.size() > maxBatchSize) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                "Too many assertions: more than " + maxBatchSize));
+          }
+          // DBアクセスを含むため、DBアクセスのスケジューラで実行する - 署名の検証は一括認証のスレッドで並列に行われる
+          return schedulers.jdbc(null, () -> AssertionBatch.verify(challengeStore, webAuthnService,
+              serverPropertyTemplate, list));
+        });
+  }
+}
@@ -0,0 +1,153 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionControl;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionEndpoint;
+import jp.mijs.winter2019.security.webauthn.challenge.Ceremony;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyNotFoundException;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.config.HttpMessageConverterConfig;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.reactive.CeremonySchedulers;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+/**
+ * WebAuthnによる登録のエンドポイント(リアクティブ)
+ * {@link WebAuthnRegistrationRestController}と同じURL・リクエスト・レスポンスで、Nettyのイベントループ上で動作する。
+ * DBアクセスとアテステーションの検証は{@link CeremonySchedulers}の別々のスケジューラで実行し、イベントループのスレッドをブロックしない。
+ * テナントの判定はDBアクセスを含まないため、イベントループのスレッドで行う。
+ */
+@RestController
+@ConditionalOnWebApplication(type = Type.REACTIVE)
+@Slf4j
+public class ReactiveWebAuthnRegistrationController {
+  private final WebAuthnRegistrationService webAuthnService;
+  private final ChallengeStore challengeStore;
+  private final CeremonyMetrics ceremonyMetrics;
+  private final CeremonySchedulers schedulers;
+  private final AdmissionControl admissionControl;
+  private final ChallengeGenerator challengeGenerator;
+  private final TenantRegistry tenantRegistry;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される。
+   * @param webAuthnService
+   * @param challengeStore
+   * @param ceremonyMetrics
+   * @param schedulers
+   * @param admissionControl
+   * @param challengeGenerator
+   * @param tenantRegistry
+   */
+  public ReactiveWebAuthnRegistrationController(WebAuthnRegistrationService webAuthnService,
+      ChallengeStore challengeStore, CeremonyMetrics ceremonyMetrics, CeremonySchedulers schedulers,
+      AdmissionControl admissionControl, ChallengeGenerator challengeGenerator, TenantRegistry tenantRegistry) {
+    this.webAuthnService = webAuthnService;
+    this.challengeStore = challengeStore;
+    this.ceremonyMetrics = ceremonyMetrics;
+    this.schedulers = schedulers;
+    this.admissionControl = admissionControl;
+    this.challengeGenerator = challengeGenerator;
+    this.tenantRegistry = tenantRegistry;
+  }
+
+  /**
+   * 登録要求に対するエンドポイント。
+   * URL: /attestation/options
+   * 雛形の取得(ユーザの新規作成を含む)とchallengeの保存は、まとめてDBアクセスのスケジューラで実行する。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param params リクエストパラメータ
+   * @return 登録要求に対するレスポンス情報(JSON)
+   */
+  @PostMapping(value = "/attestation/options")
+  public Mono<ResponseEntity<byte[]>> postAttestationOptions(@RequestHeader(HttpHeaders.HOST) String host,
+      @RequestBody Mono<AttestationOptionsParam> params) {
+    log.info("/attestation/options...");
+    var tenant = tenantRegistry.resolve(host);
+
+    var timings = ceremonyMetrics.prepare(CeremonyMetrics.REGISTRATION);
+    return params
+        .flatMap(param -> !admissionControl.admitEmail(AdmissionEndpoint.ATTESTATION_OPTIONS, param.email)
+            // メールアドレス毎の受付制限 - DBアクセスのスケジューラに渡す前に判定する
+            ? Mono.just(admissionControl.<byte[]>tooManyRequests(AdmissionEndpoint.ATTESTATION_OPTIONS))
+            : schedulers.jdbc(timings, () -> {
+          // 登録済みのユーザの雛形はキャッシュから取得する
+          //  キャッシュに存在しない場合はユーザの存在チェック - 存在しない場合はユーザを新規作成
+          var template = webAuthnService.creationOptionsTemplate(tenant, param.email, param.displayName);
+
+          // challengeとユーザ情報をストアに一時保存し、セレモニーIDをレスポンスヘッダで通知
+          var user = template.getUser();
+          var challenge = challengeGenerator.challenge();
+          var ceremonyId = challengeStore.issue(new Ceremony(CeremonyType.ATTESTATION, challenge, user));
+          var body = template.render(challenge);
+          if (log.isDebugEnabled()) {
+            log.debug("USER: {}", user);
+            log.debug("Challenge: {}", challenge.getValue());
+            log.debug("Response Data\n{}", new String(body, StandardCharsets.UTF_8));
+          }
+          return ResponseEntity.ok()
+              .header(ChallengeStore.CEREMONY_ID_HEADER, ceremonyId)
+              .header(CeremonyMetrics.SERVER_TIMING_HEADER, ceremonyMetrics.record(timings))
+              .contentType(MediaType.APPLICATION_JSON_UTF8)
+              .body(body);
+        }));
+  }
+
+  /**
+   * 登録に対するエンドポイント
+   * URL: /attestation/result
+   * リクエストはJSON(バイト列はBase64)またはCBOR(バイト列はそのまま)で受け付ける。
+   * challengeの取り出し(DB) → アテステーションの検証(CPU) → 公開鍵クレデンシャルの保存(DB) の順に、それぞれのスケジューラで実行する。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param origin Originヘッダ - 検証に使用するOriginの選択に使用する
+   * @param params リクエストパラメータ
+   * @return レスポンス(本文なし)
+   */
+  @PostMapping(value = "/attestation/result",
+      consumes = { MediaType.APPLICATION_JSON_VALUE, HttpMessageConverterConfig.APPLICATION_CBOR_VALUE })
+  public Mono<ResponseEntity<Void>> postAttestationResult(@RequestHeader(HttpHeaders.HOST) String host,
+      @RequestHeader(value = HttpHeaders.ORIGIN, required = false) String origin,
+      @RequestBody Mono<AttestationResultParam> params) {
+    log.info("/attestation/result...");
+    var tenant = tenantRegistry.resolve(host);
+
+    var timings = ceremonyMetrics.prepare(CeremonyMetrics.REGISTRATION);
+    return params
+        .flatMap(param -> schedulers.jdbc(null, () -> {
+          // ストアからUserとChallengeを取り出す
+          //  取り出したUserとChallengeはストアから削除されるため、リプレイ攻撃を防ぐ
+          //  他のテナントで発行したセレモニーは存在しないものとする
+          return challengeStore.consume(CeremonyType.ATTESTATION, param.ceremonyId)
+              .filter(ceremony -> tenant.getId().equals(ceremony.getUser().getTenantId()))
+              .orElseThrow(CeremonyNotFoundException::new);
+        })
+        // 公開鍵クレデンシャルの検証と保存
+        .flatMap(ceremony -> schedulers.crypto(timings, () -> webAuthnService.validateCreation(
+            tenant.serverPropertyTemplate(origin), ceremony.getChallenge(), param.clientDataJSON,
+            param.attestationObject))
+            .flatMap(authenticator -> schedulers.jdbc(timings,
+                () -> webAuthnService.saveCredential(ceremony.getUser(), authenticator)))))
+        .then(Mono.fromCallable(() -> ResponseEntity.ok()
+            .header(CeremonyMetrics.SERVER_TIMING_HEADER, ceremonyMetrics.record(timings))
+            .<Void>build()))
+        .doOnError(e -> ceremonyMetrics.record(timings));
+  }
+}
@@ -0,0 +1,42 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import jp.mijs.winter2019.security.webauthn.warmup.CeremonyWarmup;
+
+/**
+ * ロードバランサのヘルスチェックのエンドポイント。
+ * /actuator/health は管理用のポート(127.0.0.1:8081)でのみ公開するため、他のホストのロードバランサからは参照できない。
+ * セレモニーと同じポートで、ウォームアップが終了するまで 503 を返す - 状態のみとし、詳細は含めない。
+ * サーブレット・リアクティブのどちらで動作する場合も使用する(メモリ上の状態のみ参照し、ブロックしない)。
+ */
+@RestController
+public class ReadinessRestController {
+  private final CeremonyWarmup ceremonyWarmup;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param ceremonyWarmup
+   */
+  public ReadinessRestController(CeremonyWarmup ceremonyWarmup) {
+    this.ceremonyWarmup = ceremonyWarmup;
+  }
+
+  /**
+   * リクエストを受け付けられる状態かを返す。
+   * @return 200 UP - ウォームアップが終了するまでは 503 OUT_OF_SERVICE
+   */
+  @GetMapping("/readiness")
+  public ResponseEntity<Map<String, String>> readiness() {
+    var status = ceremonyWarmup.health().getStatus();
+    return ResponseEntity.status(Status.UP.equals(status) ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+        .body(Map.of("status", status.getCode()));
+  }
+}
@@ -1,94 +1,179 @@
 package jp.mijs.winter2019.security.webauthn.endpoint;
 
-import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.webauthn4j.data.PublicKeyCredentialRequestOptions;
-import com.webauthn4j.data.client.challenge.Challenge;
 
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionControl;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionEndpoint;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplate;
+import jp.mijs.winter2019.security.webauthn.challenge.Ceremony;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyNotFoundException;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.config.HttpMessageConverterConfig;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.service.AssertionResult;
 import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * WebAuthnによる認証のエンドポイント
+ * サーブレット(Tomcat)で動作する場合に使用する。リアクティブの場合は{@link ReactiveWebAuthnAuthenticationController}を使用する。
+ * テナントはHostヘッダ、検証に使用するOriginはOriginヘッダで判定する。
  */
 @RestController
+@ConditionalOnWebApplication(type = Type.SERVLET)
 @Slf4j
 public class WebAuthnAuthenticationRestController {
   private final WebAuthnAuthenticationService webAuthnService;
-  private final ObjectMapper objectMapper;
+  private final ChallengeStore challengeStore;
+  private final CeremonyMetrics ceremonyMetrics;
+  private final AdmissionControl admissionControl;
+  private final ChallengeGenerator challengeGenerator;
+  private final TenantRegistry tenantRegistry;
+  private final int maxBatchSize;
 
-  public WebAuthnAuthenticationRestController(WebAuthnAuthenticationService webAuthnService, ObjectMapper objectMapper) {
+  public WebAuthnAuthenticationRestController(WebAuthnAuthenticationService webAuthnService,
+      ChallengeStore challengeStore, CeremonyMetrics ceremonyMetrics, AdmissionControl admissionControl,
+      ChallengeGenerator challengeGenerator, TenantRegistry tenantRegistry,
+      @Value("${webauthn.assertion.batch.max-size:100}") int maxBatchSize) {
     this.webAuthnService = webAuthnService;
-    this.objectMapper = objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+    this.challengeStore = challengeStore;
+    this.ceremonyMetrics = ceremonyMetrics;
+    this.admissionControl = admissionControl;
+    this.challengeGenerator = challengeGenerator;
+    this.tenantRegistry = tenantRegistry;
+    this.maxBatchSize = maxBatchSize;
   }
 
   /**
    * 認証要求に対するエンドポイント。
    * URL: /assertion/options
+   * レスポンスはJSON変換済みの雛形にchallengeを差し込んで出力する。
+   * @param host Hostヘッダ - テナントの判定に使用する
    * @param params リクエストパラメータ
-   * @param httpRequest HTTPリクエスト情報
-   * @return 認証要求に対するレスポンス情報
+   * @param httpResponse HTTPレスポンス情報
+   * @return 認証要求に対するレスポンス情報(JSON)
    * @throws JsonProcessingException JSON変換に失敗した場合はこの例外をスローする
    */
   @PostMapping(value = "/assertion/options")
-  public PublicKeyCredentialRequestOptions postAssertionOptions(
+  public ResponseEntity<byte[]> postAssertionOptions(
+      @RequestHeader(HttpHeaders.HOST) String host,
       @RequestBody AssertionOptionsParam params,
-      HttpServletRequest httpRequest) throws JsonProcessingException {
+      HttpServletResponse httpResponse) throws JsonProcessingException {
     log.info("/assertion/options...");
+    var tenant = tenantRegistry.resolve(host);
+
+    // メールアドレス毎の受付制限 - DBアクセスの前に判定する
+    if (!admissionControl.admitEmail(AdmissionEndpoint.ASSERTION_OPTIONS, params.email)) {
+      return admissionControl.tooManyRequests(AdmissionEndpoint.ASSERTION_OPTIONS);
+    }
     
-    var user = webAuthnService.find(params.email).orElse(null);
-    var options = webAuthnService.requestOptions(user);
+    // 処理段階毎の処理時間を計測し、Server-Timingヘッダで通知
+    var timings = ceremonyMetrics.begin(CeremonyMetrics.ASSERTION);
+    OptionsTemplate template;
+    try {
+      // 登録済みのユーザの雛形はキャッシュから取得する
+      //  キャッシュに存在しない場合、ユーザ情報とクレデンシャルIDは1回の検索で取得する
+      template = webAuthnService.requestOptionsTemplate(tenant, params.email);
+    } finally {
+      ceremonyMetrics.end(timings, httpResponse);
+    }
 
-    // challengeをHTTPセッションに一時保存
-    var session = httpRequest.getSession();
-    session.setAttribute("assertionChallenge", options.getChallenge());
-    log.debug("Challenge: {}", options.getChallenge().getValue());
-    log.debug("Response Data:\n{}", this.objectMapper.writeValueAsString(options));
+    // challengeをストアに一時保存し、セレモニーIDをレスポンスヘッダで通知
+    //  challenge - リプレイ攻撃への耐性
+    var challenge = challengeGenerator.challenge();
+    var ceremonyId = challengeStore.issue(new Ceremony(CeremonyType.ASSERTION, challenge, null));
+    httpResponse.setHeader(ChallengeStore.CEREMONY_ID_HEADER, ceremonyId);
+    var body = template.render(challenge);
+    if (log.isDebugEnabled()) {
+      log.debug("Challenge: {}", challenge.getValue());
+      log.debug("Response Data:\n{}", new String(body, StandardCharsets.UTF_8));
+    }
     
-    return options;
-  }
-  // POST /assertion/options のJSONパラメータ
-  private static class AssertionOptionsParam {
-    public String email;
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
   }
 
   /**
    * 認証に対するエンドポイント。
    * URL: /assertion/result
+   * リクエストはJSON(バイト列はBase64)またはCBOR(バイト列はそのまま)で受け付ける。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param origin Originヘッダ - 検証に使用するOriginの選択に使用する
    * @param params リクエストパラメータ
-   * @param httpRequest HTTPリクエスト情報
+   * @param httpResponse HTTPレスポンス情報
    */
-  @PostMapping(value = "/assertion/result")
-  public void postAssertionResult(@RequestBody AuthenticationResultParam params, HttpServletRequest httpRequest) {
-
-    // HTTPセッションからchallengeを取得
-    var httpSession = httpRequest.getSession();
-    var challenge = (Challenge) httpSession.getAttribute("assertionChallenge");
+  @PostMapping(value = "/assertion/result",
+      consumes = { MediaType.APPLICATION_JSON_VALUE, HttpMessageConverterConfig.APPLICATION_CBOR_VALUE })
+  public void postAssertionResult(
+      @RequestHeader(HttpHeaders.HOST) String host,
+      @RequestHeader(value = HttpHeaders.ORIGIN, required = false) String origin,
+      @RequestBody AuthenticationResultParam params,
+      HttpServletResponse httpResponse) {
+    var serverPropertyTemplate = tenantRegistry.resolve(host).serverPropertyTemplate(origin);
 
-    // ※サンプルコードでは、HTTPセッションからchallengeを削除
-    httpSession.removeAttribute("assertionChallenge");
+    // ストアからchallengeを取り出す
+    //  取り出したchallengeはストアから削除されるため、リプレイ攻撃を防ぐ
+    var ceremony = challengeStore.consume(CeremonyType.ASSERTION, params.ceremonyId)
+        .orElseThrow(CeremonyNotFoundException::new);
+    var challenge = ceremony.getChallenge();
 
     // 署名の検証
-    webAuthnService.assertionFinish(
-        challenge,
-        params.credentialId,
-        params.clientDataJSON,
-        params.authenticatorData,
-        params.signature);
+    var timings = ceremonyMetrics.begin(CeremonyMetrics.ASSERTION);
+    try {
+      webAuthnService.assertionFinish(
+          serverPropertyTemplate,
+          challenge,
+          params.credentialId,
+          params.clientDataJSON,
+          params.authenticatorData,
+          params.signature);
+    } finally {
+      ceremonyMetrics.end(timings, httpResponse);
+    }
   }
-  // POST /assertion/result のJSONパラメータ
-  private static class AuthenticationResultParam {
-    public byte[] credentialId;
-    public byte[] clientDataJSON;
-    public byte[] authenticatorData;
-    public byte[] signature;
-    public byte[] userHandle;
+
+  /**
+   * 複数の認証をまとめて行うエンドポイント。
+   * APIゲートウェイが複数の認証データをまとめて送信する場合に使用する。
+   * URL: /assertion/result/batch
+   * リクエストは /assertion/result と同じくJSONまたはCBORで受け付ける。
+   * 1回のリクエストに含める認証データは、同じテナント・Originのものに限る。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param origin Originヘッダ - 検証に使用するOriginの選択に使用する
+   * @param params リクエストパラメータ - 1件毎の内容は /assertion/result と同じ
+   * @return リクエストパラメータと同じ順序の検証結果
+   */
+  @PostMapping(value = "/assertion/result/batch",
+      consumes = { MediaType.APPLICATION_JSON_VALUE, HttpMessageConverterConfig.APPLICATION_CBOR_VALUE })
+  public List<AssertionResult> postAssertionResultBatch(
+      @RequestHeader(HttpHeaders.HOST) String host,
+      @RequestHeader(value = HttpHeaders.ORIGIN, required = false) String origin,
+      @RequestBody List<AuthenticationResultParam> params) {
+    var serverPropertyTemplate = tenantRegistry.resolve(host).serverPropertyTemplate(origin);
+    if (params.size() > maxBatchSize) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Too many assertions: " + params.size());
+    }
+
+    return AssertionBatch.verify(challengeStore, webAuthnService, serverPropertyTemplate, params);
   }
 }
@@ -1,98 +1,162 @@
 package jp.mijs.winter2019.security.webauthn.endpoint;
 
-import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.webauthn4j.data.PublicKeyCredentialCreationOptions;
-import com.webauthn4j.data.client.challenge.Challenge;
 
-import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionControl;
+import jp.mijs.winter2019.security.webauthn.admission.AdmissionEndpoint;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplate;
+import jp.mijs.winter2019.security.webauthn.challenge.Ceremony;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyNotFoundException;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.config.HttpMessageConverterConfig;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
 import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * WebAuthnによる登録のエンドポイント
+ * サーブレット(Tomcat)で動作する場合に使用する。リアクティブの場合は{@link ReactiveWebAuthnRegistrationController}を使用する。
+ * テナントはHostヘッダ、検証に使用するOriginはOriginヘッダで判定する。
  */
 @RestController
+@ConditionalOnWebApplication(type = Type.SERVLET)
 @Slf4j
 public class WebAuthnRegistrationRestController {
   private final WebAuthnRegistrationService webAuthnService;
-  private final ObjectMapper objectMapper;
+  private final ChallengeStore challengeStore;
+  private final CeremonyMetrics ceremonyMetrics;
+  private final AdmissionControl admissionControl;
+  private final ChallengeGenerator challengeGenerator;
+  private final TenantRegistry tenantRegistry;
   /**
    * コンストラクタ。
    * SpringBootによるDIが実行される。
    * @param webAuthnService
+   * @param challengeStore
+   * @param ceremonyMetrics
+   * @param admissionControl
+   * @param challengeGenerator
+   * @param tenantRegistry
    */
-  public WebAuthnRegistrationRestController(WebAuthnRegistrationService webAuthnService, ObjectMapper objectMapper) {
+  public WebAuthnRegistrationRestController(WebAuthnRegistrationService webAuthnService,
+      ChallengeStore challengeStore, CeremonyMetrics ceremonyMetrics, AdmissionControl admissionControl,
+      ChallengeGenerator challengeGenerator, TenantRegistry tenantRegistry) {
     this.webAuthnService = webAuthnService;
-    this.objectMapper = objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+    this.challengeStore = challengeStore;
+    this.ceremonyMetrics = ceremonyMetrics;
+    this.admissionControl = admissionControl;
+    this.challengeGenerator = challengeGenerator;
+    this.tenantRegistry = tenantRegistry;
   }
 
   /**
    * 登録要求に対するエンドポイント。
    * URL: /attestation/options
+   * レスポンスはJSON変換済みの雛形にchallengeを差し込んで出力する。
+   * @param host Hostヘッダ - テナントの判定に使用する
    * @param params リクエストパラメータ
-   * @param httpRequest HTTPリクエスト情報
-   * @return 登録要求に対するレスポンス情報
+   * @param httpResponse HTTPレスポンス情報
+   * @return 登録要求に対するレスポンス情報(JSON)
    * @throws JsonProcessingException JSON変換に失敗した場合はこの例外をスローする
    */
   @PostMapping(value = "/attestation/options")
-  public PublicKeyCredentialCreationOptions postAttestationOptions(
+  public ResponseEntity<byte[]> postAttestationOptions(
+      @RequestHeader(HttpHeaders.HOST) String host,
       @RequestBody AttestationOptionsParam params,
-      HttpServletRequest httpRequest) throws JsonProcessingException {
+      HttpServletResponse httpResponse) throws JsonProcessingException {
     log.info("/attestation/options...");
+    var tenant = tenantRegistry.resolve(host);
+
+    // メールアドレス毎の受付制限 - DBアクセスの前に判定する
+    if (!admissionControl.admitEmail(AdmissionEndpoint.ATTESTATION_OPTIONS, params.email)) {
+      return admissionControl.tooManyRequests(AdmissionEndpoint.ATTESTATION_OPTIONS);
+    }
     
-    var user = webAuthnService.findOrElseCreate(params.email, params.displayName); // ユーザの存在チェック - 存在しない場合はユーザを新規作成
-    var options = webAuthnService.creationOptions(user);
+    // 処理段階毎の処理時間を計測し、Server-Timingヘッダで通知
+    var timings = ceremonyMetrics.begin(CeremonyMetrics.REGISTRATION);
+    OptionsTemplate template;
+    try {
+      // 登録済みのユーザの雛形はキャッシュから取得する
+      //  キャッシュに存在しない場合はユーザの存在チェック - 存在しない場合はユーザを新規作成
+      //  ユーザ情報とクレデンシャルIDは1回の検索で取得する
+      template = webAuthnService.creationOptionsTemplate(tenant, params.email, params.displayName);
+    } finally {
+      ceremonyMetrics.end(timings, httpResponse);
+    }
 
-    // challengeとユーザ情報をHTTPセッションに一時保存
-    var session = httpRequest.getSession();
-    session.setAttribute("attestationChallenge", options.getChallenge());
-    session.setAttribute("attestationUser", user);
-    log.debug("USER: {}", user);
-    log.debug("Challenge: {}", options.getChallenge().getValue());
-    log.debug("Response Data\n{}", this.objectMapper.writeValueAsString(options));
+    // challengeとユーザ情報をストアに一時保存し、セレモニーIDをレスポンスヘッダで通知
+    //  challenge - リプレイ攻撃への耐性
+    var user = template.getUser();
+    var challenge = challengeGenerator.challenge();
+    var ceremonyId = challengeStore.issue(new Ceremony(CeremonyType.ATTESTATION, challenge, user));
+    httpResponse.setHeader(ChallengeStore.CEREMONY_ID_HEADER, ceremonyId);
+    var body = template.render(challenge);
+    if (log.isDebugEnabled()) {
+      log.debug("USER: {}", user);
+      log.debug("Challenge: {}", challenge.getValue());
+      log.debug("Response Data\n{}", new String(body, StandardCharsets.UTF_8));
+    }
 
-    return options;
-  }
-  // POST /attestation/options のJSONパラメータ
-  private static class AttestationOptionsParam {
-    public String email;
-    public String displayName;
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
   }
 
   /**
    * 登録に対するエンドポイント
+   * リクエストはJSON(バイト列はBase64)またはCBOR(バイト列はそのまま)で受け付ける。
+   * @param host Hostヘッダ - テナントの判定に使用する
+   * @param origin Originヘッダ - 検証に使用するOriginの選択に使用する
    * @param params リクエストパラメータ
-   * @param httpRequest HTTPリクエスト情報
+   * @param httpResponse HTTPレスポンス情報
    */
-  @PostMapping(value = "/attestation/result")
-  public void postAttestationOptions(@RequestBody AttestationResultParam params, HttpServletRequest httpRequest) {
+  @PostMapping(value = "/attestation/result",
+      consumes = { MediaType.APPLICATION_JSON_VALUE, HttpMessageConverterConfig.APPLICATION_CBOR_VALUE })
+  public void postAttestationOptions(
+      @RequestHeader(HttpHeaders.HOST) String host,
+      @RequestHeader(value = HttpHeaders.ORIGIN, required = false) String origin,
+      @RequestBody AttestationResultParam params,
+      HttpServletResponse httpResponse) {
     log.info("/attestation/result...");
+    var tenant = tenantRegistry.resolve(host);
 
-    // HTTPセッションからUserとChallengeを取得
-    var httpSession = httpRequest.getSession();
-    var challenge = (Challenge) httpSession.getAttribute("attestationChallenge");
-    var user = (User) httpSession.getAttribute("attestationUser");
-    log.debug("USER: {}", user);
-    log.debug("Challenge: {}", challenge.getValue());
-    
-    // UserとChallengeをセッションから削除することで、リプレイ攻撃を防ぐ
-    httpSession.removeAttribute("attestationChallenge");
-    httpSession.removeAttribute("attestationUser");
+    // ストアからUserとChallengeを取り出す
+    //  取り出したUserとChallengeはストアから削除されるため、リプレイ攻撃を防ぐ
+    var ceremony = challengeStore.consume(CeremonyType.ATTESTATION, params.ceremonyId)
+        .orElseThrow(CeremonyNotFoundException::new);
+    var challenge = ceremony.getChallenge();
+    var user = ceremony.getUser();
+    // 他のテナントで発行したセレモニーは存在しないものとする
+    if (!tenant.getId().equals(user.getTenantId())) {
+      throw new CeremonyNotFoundException();
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("USER: {}", user);
+      log.debug("Challenge: {}", challenge.getValue());
+    }
 
     // 公開鍵クレデンシャルの検証と保存
-    webAuthnService.creationFinish(user, challenge, params.clientDataJSON, params.attestationObject);
-  }
-  // POST /attestation/result のJSONパラメータ
-  private static class AttestationResultParam {
-    public byte[] clientDataJSON;
-    public byte[] attestationObject;
+    var timings = ceremonyMetrics.begin(CeremonyMetrics.REGISTRATION);
+    try {
+      webAuthnService.creationFinish(tenant.serverPropertyTemplate(origin), user, challenge,
+          params.clientDataJSON, params.attestationObject);
+    } finally {
+      ceremonyMetrics.end(timings, httpResponse);
+    }
   }
 }
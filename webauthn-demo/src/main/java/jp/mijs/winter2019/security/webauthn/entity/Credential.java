@@ -5,16 +5,29 @@ import lombok.ToString;
 
 /**
  * 公開鍵クレデンシャル情報 
+ * 認証時に必要な情報のみを保持し、アテステーション・ステートメントは{@link CredentialAttestation}に分離する。
  */
 @Data
 @ToString
 public class Credential {
+  /** 保存形式のバージョン - 1:公開鍵クレデンシャル全体をCBOR化した形式 2:公開鍵のみを保持する形式 */
+  public static final int FORMAT_VERSION_LEGACY = 1;
+  public static final int FORMAT_VERSION_SPLIT = 2;
+
   /** クレデンシャルID */
   private byte[] credentialId;
   /** ユーザID */
   private byte[] userId;
-  /** 公開鍵クレデンシャル */
+  /** 保存形式のバージョン */
+  private int formatVersion;
+  /** 公開鍵のアルゴリズム(COSEAlgorithmIdentifier) */
+  private long algorithm;
+  /** 認証器のモデルを識別するID */
+  private byte[] aaguid;
+  /** 公開鍵(COSE_Key形式) - バージョン1では公開鍵クレデンシャル全体 */
   private byte[] publicKey;
   /** 認証器カウンタ */
   private long signatureCounter;
+  /** 最終使用日時(エポックミリ秒) - 未使用の場合はnull。認証時の検索では取得しない */
+  private Long lastUsedAt;
 }
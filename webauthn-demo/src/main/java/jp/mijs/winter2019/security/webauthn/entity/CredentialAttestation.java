@@ -0,0 +1,19 @@
+package jp.mijs.winter2019.security.webauthn.entity;
+
+import lombok.Data;
+import lombok.ToString;
+
+/**
+ * 公開鍵クレデンシャルのアテステーション情報
+ * 証明書チェーンを含み大きいため、認証時には読み込まない。
+ */
+@Data
+@ToString
+public class CredentialAttestation {
+  /** クレデンシャルID */
+  private byte[] credentialId;
+  /** アテステーション・ステートメントのフォーマット */
+  private String format;
+  /** アテステーション・ステートメント(CBOR形式) */
+  private byte[] attestationStatement;
+}
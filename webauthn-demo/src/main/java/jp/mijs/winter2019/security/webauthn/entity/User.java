@@ -9,6 +9,8 @@ import lombok.ToString;
 @Data
 @ToString
 public class User {
+  /** テナントID - メールアドレスはテナント毎に一意 */
+  private String tenantId;
   /** ユーザID */
   private byte[] id;
   /** メールアドレス(ログインIDに使用) */
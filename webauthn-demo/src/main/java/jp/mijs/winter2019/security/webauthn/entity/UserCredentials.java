@@ -0,0 +1,17 @@
+package jp.mijs.winter2019.security.webauthn.entity;
+
+import java.util.List;
+
+import lombok.Value;
+
+/**
+ * ユーザ情報と、ユーザに紐付いたクレデンシャルIDの一覧
+ * options(excludeCredentials, allowCredentials)の生成に使用する。
+ */
+@Value
+public class UserCredentials {
+  /** ユーザ情報 */
+  private final User user;
+  /** クレデンシャルIDの一覧 - 未登録の場合は空 */
+  private final List<byte[]> credentialIds;
+}
@@ -0,0 +1,117 @@
+package jp.mijs.winter2019.security.webauthn.filter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+
+/**
+ * 登録済みのキーの集合を表すBloomフィルタ。
+ * 「含まない」と判定したキーは必ず登録されていない。「含む」と判定したキーは誤判定(偽陽性)の場合がある。
+ * キーの削除はできない。登録・判定はロックせずに複数のスレッドから呼び出せる。
+ */
+public class BloomFilter {
+  private static final double LN2 = Math.log(2);
+
+  private final AtomicLongArray bits;
+  private final long bitSize;
+  private final int hashCount;
+  private final long expectedInsertions;
+  private final LongAdder insertions = new LongAdder();
+
+  private BloomFilter(long bitSize, int hashCount, long expectedInsertions) {
+    this.bits = new AtomicLongArray((int) (bitSize / Long.SIZE));
+    this.bitSize = bitSize;
+    this.hashCount = hashCount;
+    this.expectedInsertions = expectedInsertions;
+  }
+
+  /**
+   * 登録件数と偽陽性率からビット数とハッシュ関数の数を決めてフィルタを生成する。
+   * 必要なビット数が上限を超える場合は上限のビット数とする(偽陽性率は指定した値より高くなる)。
+   * @param expectedInsertions 登録する件数の見込み
+   * @param fpp 偽陽性率
+   * @param maxBytes メモリ使用量の上限(バイト)
+   * @return フィルタ
+   */
+  public static BloomFilter create(long expectedInsertions, double fpp, long maxBytes) {
+    var n = Math.max(expectedInsertions, 1);
+    var bitSize = (long) Math.ceil(-n * Math.log(fpp) / (LN2 * LN2));
+    //long単位で確保する - AtomicLongArrayの要素数の上限(int)も超えないようにする
+    bitSize = Math.min(bitSize, Math.min(maxBytes, (long) Integer.MAX_VALUE * Long.BYTES) * Byte.SIZE);
+    bitSize = Math.max(Long.SIZE, (bitSize + Long.SIZE - 1) / Long.SIZE * Long.SIZE);
+    var hashCount = (int) Math.max(1, Math.min(16, Math.round((double) bitSize / n * LN2)));
+    return new BloomFilter(bitSize, hashCount, n);
+  }
+
+  /**
+   * キーを登録する。
+   * @param key キー
+   */
+  public void put(byte[] key) {
+    var h1 = ShardRouter.hash(key);
+    var h2 = mix(h1);
+    for (int i = 0; i < hashCount; i++) {
+      var index = Long.remainderUnsigned(h1 + i * h2, bitSize);
+      var word = (int) (index >>> 6);
+      var mask = 1L << index;
+      var current = bits.get(word);
+      while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+        current = bits.get(word);
+      }
+    }
+    insertions.increment();
+  }
+
+  /**
+   * キーが登録されている可能性があるかを判定する。
+   * @param key キー
+   * @return 登録されていない場合はfalse - trueの場合は登録されていない場合がある
+   */
+  public boolean mightContain(byte[] key) {
+    var h1 = ShardRouter.hash(key);
+    var h2 = mix(h1);
+    for (int i = 0; i < hashCount; i++) {
+      var index = Long.remainderUnsigned(h1 + i * h2, bitSize);
+      if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 登録した件数から、現在の偽陽性率を推定する。
+   * @return 偽陽性率
+   */
+  public double estimatedFpp() {
+    return Math.pow(1 - Math.exp(-hashCount * (double) insertions.sum() / bitSize), hashCount);
+  }
+
+  /**
+   * メモリ使用量を取得する。
+   * @return ビット配列のバイト数
+   */
+  public long byteSize() {
+    return bitSize / Byte.SIZE;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  public long getExpectedInsertions() {
+    return expectedInsertions;
+  }
+
+  public long getInsertions() {
+    return insertions.sum();
+  }
+
+  // 2つ目のハッシュ値 - 奇数として、ビット数が2のべき乗の場合も全てのビットを使用する
+  private static long mix(long h) {
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (h ^ (h >>> 33)) | 1;
+  }
+}
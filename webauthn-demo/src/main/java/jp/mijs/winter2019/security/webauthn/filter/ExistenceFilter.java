@@ -0,0 +1,269 @@
+package jp.mijs.winter2019.security.webauthn.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 登録済みのメールアドレスとクレデンシャルIDのBloomフィルタ。
+ * 未登録のメールアドレス・クレデンシャルIDによるリクエストで、DBを検索せずに「存在しない」と判定するために使用する。
+ *
+ * 起動後に全てのシャードを順に読み込んで作成し、作成が完了するまでは全て「存在する可能性がある」と判定する。
+ * 登録時はコミット後に{@link #putEmail}・{@link #putCredentialId}で追加する。
+ * 他のサーバで登録されたものは再作成まで反映されないため、複数のサーバで同じDBを共有する場合は無効にする。
+ * 登録件数が作成時の見込みを超えた場合は、件数に合わせて再作成する。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=ExistenceFilter")
+public class ExistenceFilter implements ApplicationRunner, DisposableBean {
+  public static final String BYTES = "webauthn.existence.filter.bytes";
+  public static final String FPP = "webauthn.existence.filter.fpp";
+  public static final String INSERTIONS = "webauthn.existence.filter.insertions";
+  public static final String REJECTED = "webauthn.existence.filter.rejected";
+
+  private static final String SCAN_EMAILS = "SELECT email FROM user";
+  private static final String SCAN_CREDENTIAL_IDS = "SELECT credential_id FROM credential";
+  private static final String COUNT_USERS = "SELECT COUNT(*) FROM user";
+  private static final String COUNT_CREDENTIALS = "SELECT COUNT(*) FROM credential";
+  private static final int FETCH_SIZE = 1000;
+  //登録件数が少ない間に再作成を繰り返さないよう、見込みの件数の下限とする
+  private static final long MIN_EXPECTED_INSERTIONS = 10_000;
+
+  private final ShardRouter shardRouter;
+  private final boolean enabled;
+  private final double fpp;
+  private final long maxBytes;
+  private final double growth;
+  private final ExecutorService executor;
+  private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+  private volatile Filters current;
+  private volatile Filters building;
+
+  private final LongAdder rejectedEmails = new LongAdder();
+  private final LongAdder rejectedCredentialIds = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param shardRouter
+   * @param meterRegistry
+   * @param enabled 使用する場合はtrue
+   * @param fpp 偽陽性率
+   * @param maxBytes フィルタ毎のメモリ使用量の上限(バイト)
+   * @param growth 作成時の件数に対する登録件数の見込みの倍率
+   */
+  public ExistenceFilter(ShardRouter shardRouter, MeterRegistry meterRegistry,
+      @Value("${webauthn.existence-filter.enabled:true}") boolean enabled,
+      @Value("${webauthn.existence-filter.fpp:0.01}") double fpp,
+      @Value("${webauthn.existence-filter.max-bytes:16777216}") long maxBytes,
+      @Value("${webauthn.existence-filter.growth:2.0}") double growth) {
+    this.shardRouter = shardRouter;
+    this.enabled = enabled;
+    this.fpp = fpp;
+    this.maxBytes = maxBytes;
+    this.growth = growth;
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      var thread = new Thread(runnable, "existence-filter");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    gauge(meterRegistry, BYTES, "email", filter -> filter.byteSize());
+    gauge(meterRegistry, BYTES, "credential_id", filter -> filter.byteSize());
+    gauge(meterRegistry, FPP, "email", BloomFilter::estimatedFpp);
+    gauge(meterRegistry, FPP, "credential_id", BloomFilter::estimatedFpp);
+    gauge(meterRegistry, INSERTIONS, "email", filter -> filter.getInsertions());
+    gauge(meterRegistry, INSERTIONS, "credential_id", filter -> filter.getInsertions());
+    Gauge.builder(REJECTED, rejectedEmails, LongAdder::sum).tag("filter", "email").register(meterRegistry);
+    Gauge.builder(REJECTED, rejectedCredentialIds, LongAdder::sum).tag("filter", "credential_id")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    //起動時間を延ばさないよう、別のスレッドで作成する
+    if (enabled) {
+      scheduleRebuild();
+    }
+  }
+
+  /**
+   * メールアドレスが登録されている可能性があるかを判定する。
+   * @param email メールアドレス
+   * @return 登録されていない場合はfalse
+   */
+  public boolean mightContainEmail(String email) {
+    var filters = current;
+    if (filters == null || filters.emails.mightContain(email.getBytes(StandardCharsets.UTF_8))) {
+      return true;
+    }
+    rejectedEmails.increment();
+    return false;
+  }
+
+  /**
+   * クレデンシャルIDが登録されている可能性があるかを判定する。
+   * @param credentialId クレデンシャルID
+   * @return 登録されていない場合はfalse
+   */
+  public boolean mightContainCredentialId(byte[] credentialId) {
+    var filters = current;
+    if (filters == null || filters.credentialIds.mightContain(credentialId)) {
+      return true;
+    }
+    rejectedCredentialIds.increment();
+    return false;
+  }
+
+  /**
+   * 登録したメールアドレスを追加する。登録のトランザクションをコミットした後に呼び出す。
+   * @param email メールアドレス
+   */
+  public void putEmail(String email) {
+    put(filters -> filters.emails, email.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * 登録したクレデンシャルIDを追加する。登録のトランザクションをコミットした後に呼び出す。
+   * @param credentialId クレデンシャルID
+   */
+  public void putCredentialId(byte[] credentialId) {
+    put(filters -> filters.credentialIds, credentialId);
+  }
+
+  // 作成中のフィルタを先に参照する - 参照後に作成が完了した場合も、入れ替え後のフィルタに追加される
+  private void put(Function<Filters, BloomFilter> select, byte[] key) {
+    var next = building;
+    var filters = current;
+    if (next != null) {
+      select.apply(next).put(key);
+    }
+    if (filters != null && filters != next) {
+      var filter = select.apply(filters);
+      filter.put(key);
+      if (filter.getInsertions() > filter.getExpectedInsertions()) {
+        scheduleRebuild();
+      }
+    }
+  }
+
+  private void scheduleRebuild() {
+    if (rebuildScheduled.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          rebuild();
+        } catch (RuntimeException e) {
+          log.warn("Failed to build existence filter", e);
+        } finally {
+          rebuildScheduled.set(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * 全てのシャードを読み込んでフィルタを作成し直す。
+   * 作成中に登録されたものは、作成中のフィルタにも追加する。
+   */
+  @ManagedOperation
+  public synchronized void rebuild() {
+    if (!enabled) {
+      return;
+    }
+    var start = System.nanoTime();
+    long users = 0;
+    long credentials = 0;
+    for (var shard : shardRouter.getShards()) {
+      var jdbc = new JdbcTemplate(shard.getDataSource());
+      users += jdbc.queryForObject(COUNT_USERS, Long.class);
+      credentials += jdbc.queryForObject(COUNT_CREDENTIALS, Long.class);
+    }
+    var filters = new Filters(
+        BloomFilter.create(Math.max(MIN_EXPECTED_INSERTIONS, (long) (users * growth)), fpp, maxBytes),
+        BloomFilter.create(Math.max(MIN_EXPECTED_INSERTIONS, (long) (credentials * growth)), fpp, maxBytes));
+
+    //読み込みより前に追加先とし、読み込み開始後にコミットされたものも含める
+    building = filters;
+    try {
+      for (var shard : shardRouter.getShards()) {
+        var jdbc = new JdbcTemplate(shard.getDataSource());
+        jdbc.setFetchSize(FETCH_SIZE);
+        jdbc.query(SCAN_EMAILS, rs -> {
+          filters.emails.put(rs.getString(1).getBytes(StandardCharsets.UTF_8));
+        });
+        jdbc.query(SCAN_CREDENTIAL_IDS, rs -> {
+          filters.credentialIds.put(rs.getBytes(1));
+        });
+      }
+      current = filters;
+    } finally {
+      building = null;
+    }
+    log.info("Existence filter built in {} ms: {} users ({} bytes), {} credentials ({} bytes)",
+        (System.nanoTime() - start) / 1_000_000, users, filters.emails.byteSize(),
+        credentials, filters.credentialIds.byteSize());
+  }
+
+  @ManagedAttribute
+  public boolean isReady() {
+    return current != null;
+  }
+
+  @ManagedAttribute
+  public long getRejectedEmailCount() {
+    return rejectedEmails.sum();
+  }
+
+  @ManagedAttribute
+  public long getRejectedCredentialIdCount() {
+    return rejectedCredentialIds.sum();
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  // 作成前は0とする
+  private void gauge(MeterRegistry meterRegistry, String name, String filter, ToDoubleFunction<BloomFilter> value) {
+    Gauge.builder(name, this, self -> {
+      var filters = self.current;
+      if (filters == null) {
+        return 0;
+      }
+      return value.applyAsDouble("email".equals(filter) ? filters.emails : filters.credentialIds);
+    }).tag("filter", filter).register(meterRegistry);
+  }
+
+  // メールアドレスとクレデンシャルIDのフィルタ - まとめて入れ替える
+  private static class Filters {
+    private final BloomFilter emails;
+    private final BloomFilter credentialIds;
+
+    Filters(BloomFilter emails, BloomFilter credentialIds) {
+      this.emails = emails;
+      this.credentialIds = credentialIds;
+    }
+  }
+}
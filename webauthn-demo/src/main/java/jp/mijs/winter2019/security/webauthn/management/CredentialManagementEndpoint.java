@@ -0,0 +1,111 @@
+package jp.mijs.winter2019.security.webauthn.management;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantNotFoundException;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+
+/**
+ * 公開鍵クレデンシャルの管理用エンドポイント(Actuator)
+ * 利用者向けのポートではなく、管理用のポート(management.server.port)とJMXで公開する。
+ * - GET    /actuator/credentials/{email}?after=&amp;limit= 一覧の取得
+ * - DELETE /actuator/credentials/{email}/{credentialId} 1件の削除
+ * - POST   /actuator/credentials/{email} {"credentialIds": "id1,id2,..."} 一括削除
+ * テナントはパラメータ tenant (テナントID)で指定し、省略した場合は既定のテナントとする。
+ * クレデンシャルIDはBase64URL(パディングなし)で指定する。
+ * Actuatorはリクエストの本文を文字列の値のみ受け付けるため、一括削除のクレデンシャルIDはカンマ区切りとする。
+ */
+@Component
+@Endpoint(id = "credentials")
+public class CredentialManagementEndpoint {
+  private final CredentialManagementService credentialManagementService;
+  private final TenantRegistry tenantRegistry;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param credentialManagementService
+   * @param tenantRegistry
+   */
+  public CredentialManagementEndpoint(CredentialManagementService credentialManagementService,
+      TenantRegistry tenantRegistry) {
+    this.credentialManagementService = credentialManagementService;
+    this.tenantRegistry = tenantRegistry;
+  }
+
+  /**
+   * ユーザの公開鍵クレデンシャルの一覧を1ページ分取得する。
+   * @param email メールアドレス
+   * @param tenant テナントID - 既定のテナントの場合は指定しない
+   * @param after 前のページの next - 最初のページの場合は指定しない
+   * @param limit 1ページの件数
+   * @return 公開鍵クレデンシャルの一覧 - ユーザが存在しない場合はnull(404)
+   */
+  @ReadOperation
+  public CredentialPage credentials(@Selector String email, @Nullable String tenant, @Nullable String after,
+      @Nullable Integer limit) {
+    try {
+      return credentialManagementService.list(tenant(tenant), email, after, limit).orElse(null);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidEndpointRequestException("Invalid after: " + after, e.getMessage());
+    }
+  }
+
+  /**
+   * ユーザの公開鍵クレデンシャルを1件削除する。
+   * @param email メールアドレス
+   * @param credentialId クレデンシャルID
+   * @param tenant テナントID - 既定のテナントの場合は指定しない
+   * @return 削除した件数
+   */
+  @DeleteOperation
+  public Map<String, Integer> revoke(@Selector String email, @Selector String credentialId,
+      @Nullable String tenant) {
+    try {
+      return Map.of("revoked", credentialManagementService.revoke(tenant(tenant), email, credentialId));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidEndpointRequestException("Invalid credentialId: " + credentialId, e.getMessage());
+    }
+  }
+
+  /**
+   * ユーザの公開鍵クレデンシャルをまとめて削除する。
+   * @param email メールアドレス
+   * @param credentialIds クレデンシャルID(カンマ区切り)
+   * @param tenant テナントID - 既定のテナントの場合は指定しない
+   * @return 削除した件数
+   */
+  @WriteOperation
+  public Map<String, Integer> revokeAll(@Selector String email, String credentialIds, @Nullable String tenant) {
+    var ids = Arrays.stream(credentialIds.split(","))
+        .map(String::trim)
+        .filter(id -> !id.isEmpty())
+        .collect(Collectors.toList());
+    try {
+      return Map.of("revoked", credentialManagementService.revokeAll(tenant(tenant), email, ids));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidEndpointRequestException("Invalid credentialIds: " + credentialIds, e.getMessage());
+    }
+  }
+
+  // テナントIDに対応するテナント - 省略した場合は既定のテナント
+  private Tenant tenant(String id) {
+    try {
+      return tenantRegistry.get(id);
+    } catch (TenantNotFoundException e) {
+      throw new InvalidEndpointRequestException(e.getMessage(), e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package jp.mijs.winter2019.security.webauthn.management;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.webauthn4j.data.attestation.authenticator.AAGUID;
+
+import jp.mijs.winter2019.security.webauthn.cache.AuthenticatorCache;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+import jp.mijs.winter2019.security.webauthn.counter.CredentialLocks;
+import jp.mijs.winter2019.security.webauthn.counter.SignatureCounterWriter;
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+
+/**
+ * ユーザの公開鍵クレデンシャルの一覧の取得と削除を行うサービス
+ * 一覧はuser_credential(ユーザのシャード)からクレデンシャルIDの順に一定件数ずつ取得し、
+ * 詳細はクレデンシャルIDのシャードからまとめて取得する。
+ * 削除時はDBの行に加えて、削除したクレデンシャルを参照するメモリ上の情報も破棄する。
+ */
+@Service
+public class CredentialManagementService {
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private final UserRepository userRepository;
+  private final CredentialRepository credentialRepository;
+  private final CredentialAttestationRepository credentialAttestationRepository;
+  private final ShardRouter shardRouter;
+  private final AuthenticatorCache authenticatorCache;
+  private final OptionsTemplateCache optionsTemplateCache;
+  private final SignatureCounterWriter signatureCounterWriter;
+  private final CredentialUsageTracker credentialUsageTracker;
+  private final CredentialLocks credentialLocks;
+  private final int defaultPageSize;
+  private final int maxPageSize;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param userRepository
+   * @param credentialRepository
+   * @param credentialAttestationRepository
+   * @param shardRouter
+   * @param authenticatorCache
+   * @param optionsTemplateCache
+   * @param signatureCounterWriter
+   * @param credentialUsageTracker
+   * @param credentialLocks
+   * @param defaultPageSize 件数を指定しない場合の1ページの件数
+   * @param maxPageSize 1ページの最大件数
+   */
+  public CredentialManagementService(UserRepository userRepository, CredentialRepository credentialRepository,
+      CredentialAttestationRepository credentialAttestationRepository, ShardRouter shardRouter,
+      AuthenticatorCache authenticatorCache, OptionsTemplateCache optionsTemplateCache,
+      SignatureCounterWriter signatureCounterWriter, CredentialUsageTracker credentialUsageTracker,
+      CredentialLocks credentialLocks,
+      @Value("${webauthn.credentials.page-size:100}") int defaultPageSize,
+      @Value("${webauthn.credentials.max-page-size:1000}") int maxPageSize) {
+    this.userRepository = userRepository;
+    this.credentialRepository = credentialRepository;
+    this.credentialAttestationRepository = credentialAttestationRepository;
+    this.shardRouter = shardRouter;
+    this.authenticatorCache = authenticatorCache;
+    this.optionsTemplateCache = optionsTemplateCache;
+    this.signatureCounterWriter = signatureCounterWriter;
+    this.credentialUsageTracker = credentialUsageTracker;
+    this.credentialLocks = credentialLocks;
+    this.defaultPageSize = defaultPageSize;
+    this.maxPageSize = maxPageSize;
+  }
+
+  /**
+   * ユーザの公開鍵クレデンシャルの一覧を、クレデンシャルIDの順に1ページ分取得する。
+   * @param tenant テナント
+   * @param email メールアドレス
+   * @param after 前のページの{@link CredentialPage#getNext} - 最初のページの場合はnull
+   * @param limit 1ページの件数 - nullの場合は既定の件数
+   * @return 公開鍵クレデンシャルの一覧 - ユーザが存在しない場合は Optional.empty
+   * @throws IllegalArgumentException 開始位置がBase64URLでない場合はこの例外をスローする
+   */
+  public Optional<CredentialPage> list(Tenant tenant, String email, String after, Integer limit) {
+    var user = userRepository.findByEmail(tenant.getId(), email);
+    if (user.isEmpty()) {
+      return Optional.empty();
+    }
+    var pageSize = Math.max(1, Math.min(limit == null ? defaultPageSize : limit, maxPageSize));
+    //1件多く取得し、次のページが存在するかを判定する
+    var credentialIds = userRepository.findCredentialIds(user.get(),
+        after == null ? new byte[0] : DECODER.decode(after), pageSize + 1);
+    var hasNext = credentialIds.size() > pageSize;
+    if (hasNext) {
+      credentialIds = credentialIds.subList(0, pageSize);
+    }
+
+    var found = new HashMap<ByteBuffer, Credential>(credentialIds.size() * 2);
+    for (var credential : credentialRepository.findSummariesByIds(credentialIds)) {
+      found.put(ByteBuffer.wrap(credential.getCredentialId()), credential);
+    }
+    var summaries = new ArrayList<CredentialSummary>(credentialIds.size());
+    for (var credentialId : credentialIds) {
+      //公開鍵クレデンシャルの登録に失敗したもの(user_credentialのみ存在するもの)は出力しない
+      var credential = found.get(ByteBuffer.wrap(credentialId));
+      if (credential != null) {
+        summaries.add(toSummary(credential));
+      }
+    }
+    return Optional.of(new CredentialPage(summaries,
+        hasNext ? ENCODER.encodeToString(credentialIds.get(credentialIds.size() - 1)) : null));
+  }
+
+  /**
+   * ユーザの公開鍵クレデンシャルを削除する。
+   * @param tenant テナント
+   * @param email メールアドレス
+   * @param credentialId クレデンシャルID(Base64URL)
+   * @return 削除した件数 - ユーザに紐付いていない場合は0
+   * @throws IllegalArgumentException クレデンシャルIDがBase64URLでない場合はこの例外をスローする
+   */
+  public int revoke(Tenant tenant, String email, String credentialId) {
+    return revokeAll(tenant, email, List.of(credentialId));
+  }
+
+  /**
+   * ユーザの複数の公開鍵クレデンシャルをまとめて削除する。
+   * ユーザに紐付いていないクレデンシャルIDは無視する。
+   * user_credentialを先に削除してoptionsに含まれないようにしてから、公開鍵クレデンシャルを削除する。
+   * 削除中に同じクレデンシャルの認証が完了しないよう、クレデンシャルIDのロックを取得して削除する。
+   * 削除したクレデンシャルの存在判定用のフィルタ({@link jp.mijs.winter2019.security.webauthn.filter.ExistenceFilter})は
+   * Bloomフィルタのため削除できないが、「存在する可能性がある」と判定されてDBを検索するのみで、結果は変わらない。
+   * @param tenant テナント
+   * @param email メールアドレス
+   * @param credentialIds クレデンシャルID(Base64URL)
+   * @return 削除した件数
+   * @throws IllegalArgumentException クレデンシャルIDがBase64URLでない場合はこの例外をスローする
+   */
+  public int revokeAll(Tenant tenant, String email, List<String> credentialIds) {
+    var user = userRepository.findByEmail(tenant.getId(), email);
+    if (user.isEmpty() || credentialIds.isEmpty()) {
+      return 0;
+    }
+    var requested = new LinkedHashMap<ByteBuffer, byte[]>();
+    for (var credentialId : credentialIds) {
+      var decoded = DECODER.decode(credentialId);
+      requested.put(ByteBuffer.wrap(decoded), decoded);
+    }
+    //他のユーザのクレデンシャルIDは削除しない
+    var owned = userRepository.findOwnedCredentialIds(user.get(), requested.values());
+    if (owned.isEmpty()) {
+      return 0;
+    }
+    return credentialLocks.withLocks(owned, () -> delete(user.get(), owned));
+  }
+
+  // 呼び出し元でクレデンシャルIDのロックを取得しておく
+  private int delete(User user, List<byte[]> credentialIds) {
+    var removed = userRepository.removeCredentialIds(user, credentialIds);
+    optionsTemplateCache.invalidate(user.getTenantId(), user.getEmail());
+
+    for (var credentialId : credentialIds) {
+      shardRouter.forCredential(credentialId).getTransactionTemplate().execute(status -> {
+        credentialAttestationRepository.delete(credentialId);
+        return credentialRepository.delete(user.getId(), credentialId);
+      });
+      //DBに未反映の署名カウンタ・最終使用日時は、削除済みの行に書き込まないよう破棄する
+      authenticatorCache.invalidate(credentialId);
+      signatureCounterWriter.discard(credentialId);
+      credentialUsageTracker.discard(credentialId);
+    }
+    return removed;
+  }
+
+  private CredentialSummary toSummary(Credential credential) {
+    return new CredentialSummary(
+        ENCODER.encodeToString(credential.getCredentialId()),
+        credential.getAlgorithm(),
+        credential.getAaguid() == null ? null : new AAGUID(credential.getAaguid()).toString(),
+        signatureCounterWriter.latest(credential.getCredentialId(), credential.getSignatureCounter()),
+        credentialUsageTracker.latest(credential.getCredentialId(), credential.getLastUsedAt()));
+  }
+}
@@ -0,0 +1,17 @@
+package jp.mijs.winter2019.security.webauthn.management;
+
+import java.util.List;
+
+import lombok.Value;
+
+/**
+ * ユーザの公開鍵クレデンシャルの一覧の1ページ
+ * クレデンシャルIDの順に並べ、次のページは{@link #next}を指定して取得する(keyset pagination)。
+ */
+@Value
+public class CredentialPage {
+  /** 公開鍵クレデンシャル情報 */
+  private final List<CredentialSummary> credentials;
+  /** 次のページの開始位置(最後のクレデンシャルID) - 最後のページの場合はnull */
+  private final String next;
+}
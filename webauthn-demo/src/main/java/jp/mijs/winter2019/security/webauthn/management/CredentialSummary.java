@@ -0,0 +1,21 @@
+package jp.mijs.winter2019.security.webauthn.management;
+
+import lombok.Value;
+
+/**
+ * 管理用の一覧に出力する公開鍵クレデンシャル情報
+ * バイト列はBase64URL(パディングなし)で出力する。
+ */
+@Value
+public class CredentialSummary {
+  /** クレデンシャルID(Base64URL) - 削除時に指定する */
+  private final String credentialId;
+  /** 公開鍵のアルゴリズム(COSEAlgorithmIdentifier) */
+  private final long algorithm;
+  /** 認証器のモデルを識別するID - 保存形式がバージョン1の場合はnull */
+  private final String aaguid;
+  /** 認証器カウンタ */
+  private final long signatureCounter;
+  /** 最終使用日時(エポックミリ秒) - 未使用の場合はnull */
+  private final Long lastUsedAt;
+}
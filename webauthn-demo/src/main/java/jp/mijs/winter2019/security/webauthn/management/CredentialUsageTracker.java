@@ -0,0 +1,205 @@
+package jp.mijs.winter2019.security.webauthn.management;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.UserCredentials;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 公開鍵クレデンシャルの最終使用日時を記録し、options(allowCredentials, excludeCredentials)に含める
+ * クレデンシャルIDを最近使用したものから上限の件数まで選択するクラス。
+ * 認証毎にDBへ書き込まないよう、最終使用日時はメモリ上に溜めて一定間隔毎にバッチ更新する。
+ * 書き込みが完了するまでは、メモリ上の値を最終使用日時とする。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=CredentialUsageTracker")
+public class CredentialUsageTracker implements DisposableBean {
+  // 未使用(NULL)のものは最も古いものとする - 同じ日時の場合は取得した順序を保つ
+  private static final Comparator<Map.Entry<byte[], Long>> MOST_RECENT_FIRST =
+      Comparator.comparing(Map.Entry<byte[], Long>::getValue, Comparator.nullsLast(Comparator.reverseOrder()));
+
+  private final CredentialRepository credentialRepository;
+  private final int maxCredentials;
+  private final ConcurrentHashMap<ByteBuffer, Long> pending = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+
+  private final LongAdder flushedCount = new LongAdder();
+  private final LongAdder limitedCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param credentialRepository
+   * @param maxCredentials optionsに含めるクレデンシャルIDの上限
+   * @param flushIntervalMillis 最終使用日時の書き込みの間隔（ミリ秒）
+   */
+  public CredentialUsageTracker(CredentialRepository credentialRepository,
+      @Value("${webauthn.credentials.max-in-options:64}") int maxCredentials,
+      @Value("${webauthn.credentials.last-used-flush-interval-millis:10000}") long flushIntervalMillis) {
+    this.credentialRepository = credentialRepository;
+    this.maxCredentials = maxCredentials;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "credential-usage-tracker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.executor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 認証に成功したクレデンシャルの最終使用日時を記録する。
+   * @param credentialId クレデンシャルID
+   */
+  public void record(byte[] credentialId) {
+    pending.put(ByteBuffer.wrap(credentialId.clone()), System.currentTimeMillis());
+  }
+
+  /**
+   * データベースに未反映の最終使用日時を破棄する。
+   * 公開鍵クレデンシャルの削除時に呼び出す。
+   * @param credentialId クレデンシャルID
+   */
+  public void discard(byte[] credentialId) {
+    pending.remove(ByteBuffer.wrap(credentialId));
+  }
+
+  /**
+   * 最新の最終使用日時を取得する。
+   * データベースに未反映の値がある場合は、その値とデータベースの値の新しい方を返す。
+   * @param credentialId クレデンシャルID
+   * @param storedLastUsedAt データベースから取得した最終使用日時 - 未使用の場合はnull
+   * @return 最新の最終使用日時 - 未使用の場合はnull
+   */
+  public Long latest(byte[] credentialId, Long storedLastUsedAt) {
+    var lastUsedAt = pending.get(ByteBuffer.wrap(credentialId));
+    if (lastUsedAt == null) {
+      return storedLastUsedAt;
+    }
+    return storedLastUsedAt == null ? lastUsedAt : Math.max(lastUsedAt, storedLastUsedAt);
+  }
+
+  /**
+   * optionsに含めるクレデンシャルIDを上限の件数までに制限する。
+   * 上限を超える場合のみ公開鍵クレデンシャルのシャードから最終使用日時を取得し、最近使用したものから選択する。
+   * 上限を超えたクレデンシャルは、最近使用したものに入るまでoptionsを指定した認証では使用できない。
+   * @param userCredentials ユーザ情報と登録済みのクレデンシャルID
+   * @return 上限の件数までのクレデンシャルIDに制限したユーザ情報
+   */
+  public UserCredentials limit(UserCredentials userCredentials) {
+    var credentialIds = userCredentials.getCredentialIds();
+    if (credentialIds.size() <= maxCredentials) {
+      return userCredentials;
+    }
+    limitedCount.increment();
+    var lastUsed = new HashMap<ByteBuffer, Long>(credentialIds.size() * 2);
+    for (var credential : credentialRepository.findSummariesByIds(credentialIds)) {
+      lastUsed.put(ByteBuffer.wrap(credential.getCredentialId()), credential.getLastUsedAt());
+    }
+    var limited = credentialIds.stream()
+        //最終使用日時はnullの場合があるため、Map.entryは使用しない
+        .map(credentialId -> new AbstractMap.SimpleImmutableEntry<>(credentialId,
+            latest(credentialId, lastUsed.get(ByteBuffer.wrap(credentialId)))))
+        .sorted(MOST_RECENT_FIRST)
+        .limit(maxCredentials)
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toList());
+    return new UserCredentials(userCredentials.getUser(), limited);
+  }
+
+  /**
+   * メモリ上の最終使用日時をデータベースへ書き込む。
+   * 書き込み中に記録された値は、次回の書き込みの対象とする。
+   * @return 書き込んだ件数
+   */
+  @ManagedOperation
+  public synchronized int flush() {
+    if (pending.isEmpty()) {
+      return 0;
+    }
+    var snapshot = new ArrayList<Map.Entry<ByteBuffer, Long>>(pending.size());
+    var credentials = new ArrayList<Credential>(pending.size());
+    for (var entry : pending.entrySet()) {
+      var snapshotEntry = Map.entry(entry.getKey(), entry.getValue());
+      snapshot.add(snapshotEntry);
+
+      var credential = new Credential();
+      credential.setCredentialId(snapshotEntry.getKey().array());
+      credential.setLastUsedAt(snapshotEntry.getValue());
+      credentials.add(credential);
+    }
+    credentialRepository.updateLastUsedAt(credentials);
+
+    //書き込んだ値から変わっていないもののみ取り除く
+    for (var entry : snapshot) {
+      pending.remove(entry.getKey(), entry.getValue());
+    }
+    flushedCount.add(snapshot.size());
+    return snapshot.size();
+  }
+
+  // バックグラウンドでの書き込み - 失敗した値はメモリ上に残し、次回に再度書き込む
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      log.warn("Failed to flush {} last-used timestamps", pending.size(), e);
+    }
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      log.warn("Lost {} last-used timestamps on shutdown", pending.size(), e);
+    }
+  }
+
+  @ManagedAttribute
+  public int getMaxCredentials() {
+    return maxCredentials;
+  }
+
+  @ManagedAttribute
+  public int getQueueDepth() {
+    return pending.size();
+  }
+
+  @ManagedAttribute
+  public long getFlushedCount() {
+    return flushedCount.sum();
+  }
+
+  /**
+   * optionsのクレデンシャルIDを上限の件数に制限した回数。
+   * @return 制限した回数
+   */
+  @ManagedAttribute
+  public long getLimitedCount() {
+    return limitedCount.sum();
+  }
+}
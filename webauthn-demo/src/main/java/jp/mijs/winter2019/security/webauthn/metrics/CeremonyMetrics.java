@@ -0,0 +1,138 @@
+package jp.mijs.winter2019.security.webauthn.metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * 登録・認証の処理段階毎の処理時間をメトリクスとして記録するクラス。
+ * 処理時間はヒストグラムとして記録し、/actuator/prometheus からPrometheusのテキスト形式で取得できる。
+ *   webauthn.registration.phase - タグ: phase, fmt(アテステーション・ステートメントのフォーマット), alg(COSEアルゴリズム)
+ *   webauthn.assertion.phase    - タグ: phase, alg(COSEアルゴリズム)
+ */
+@Component
+public class CeremonyMetrics {
+  /** 登録のメトリクス名 */
+  public static final String REGISTRATION = "webauthn.registration.phase";
+  /** 認証のメトリクス名 */
+  public static final String ASSERTION = "webauthn.assertion.phase";
+
+  /** 処理段階毎の処理時間を通知するレスポンスヘッダ */
+  public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+  /** タグ名 - アテステーション・ステートメントのフォーマット */
+  public static final String TAG_FORMAT = "fmt";
+  /** タグ名 - COSEアルゴリズム */
+  public static final String TAG_ALGORITHM = "alg";
+
+  private static final String UNKNOWN = "unknown";
+
+  // タグの値の種類を抑えるため、既知のもの以外は other とする
+  private static final Set<String> FORMATS =
+      Set.of("packed", "tpm", "android-key", "android-safetynet", "fido-u2f", "none");
+  private static final Map<Long, String> ALGORITHMS = Map.of(
+      -7L, "ES256", -35L, "ES384", -36L, "ES512",
+      -257L, "RS256", -258L, "RS384", -259L, "RS512", -65535L, "RS1",
+      -37L, "PS256", -8L, "EdDSA");
+
+  private final MeterRegistry meterRegistry;
+
+  // 登録済みのTimer - キーは メトリクス名, 処理段階, alg, fmt(認証は空文字)
+  //  タグの値は既知のもの以外を other にまとめているため、件数は処理段階×アルゴリズム×フォーマットで抑えられる
+  private final ConcurrentHashMap<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param meterRegistry
+   */
+  public CeremonyMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * 現在のスレッドで計測を開始する。
+   * @param metricName メトリクス名
+   * @return 計測結果
+   */
+  public PhaseTimings begin(String metricName) {
+    return PhaseTimings.start(metricName);
+  }
+
+  /**
+   * スレッドに紐付けずに計測を開始する。
+   * 処理を複数のスレッドで行う場合に使用し、処理毎に{@link PhaseTimings#call}でスレッドに紐付ける。
+   * @param metricName メトリクス名
+   * @return 計測結果
+   */
+  public PhaseTimings prepare(String metricName) {
+    return PhaseTimings.detached(metricName);
+  }
+
+  /**
+   * 計測を終了し、メトリクスに記録してServer-Timingヘッダを設定する。
+   * @param timings 計測結果
+   * @param httpResponse HTTPレスポンス情報
+   */
+  public void end(PhaseTimings timings, HttpServletResponse httpResponse) {
+    timings.stop();
+    httpResponse.setHeader(SERVER_TIMING_HEADER, record(timings));
+  }
+
+  /**
+   * 計測結果をメトリクスに記録する。
+   * @param timings 計測結果
+   * @return Server-Timingヘッダの値
+   */
+  public String record(PhaseTimings timings) {
+    var metricName = timings.getMetricName();
+    var algorithm = timings.getTags().getOrDefault(TAG_ALGORITHM, UNKNOWN);
+    var format = REGISTRATION.equals(metricName) ? timings.getTags().getOrDefault(TAG_FORMAT, UNKNOWN) : "";
+    timings.getPhases().forEach((phase, nanos) -> timers
+        .computeIfAbsent(List.of(metricName, phase, algorithm, format), this::timer)
+        .record(nanos, TimeUnit.NANOSECONDS));
+    return timings.toServerTiming();
+  }
+
+  /**
+   * 計測中のリクエストにアテステーション・ステートメントのフォーマットのタグを設定する。
+   * @param format フォーマット
+   */
+  public static void tagFormat(String format) {
+    PhaseTimings.tag(TAG_FORMAT, FORMATS.contains(format) ? format : "other");
+  }
+
+  /**
+   * 計測中のリクエストにCOSEアルゴリズムのタグを設定する。
+   * @param algorithm COSEアルゴリズムの識別子
+   */
+  public static void tagAlgorithm(long algorithm) {
+    PhaseTimings.tag(TAG_ALGORITHM, ALGORITHMS.getOrDefault(algorithm, "other"));
+  }
+
+  // Timerを登録する - メトリクス名毎にタグ名を揃える(Prometheusは同じメトリクス名で異なるタグ名を許容しない)
+  private Timer timer(List<String> key) {
+    var tags = Tags.of("phase", key.get(1), TAG_ALGORITHM, key.get(2));
+    if (REGISTRATION.equals(key.get(0))) {
+      tags = tags.and(TAG_FORMAT, key.get(3));
+    }
+    return Timer.builder(key.get(0))
+        .description("Time spent in each phase of WebAuthn ceremonies")
+        .tags(tags)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofNanos(100_000))
+        .maximumExpectedValue(Duration.ofSeconds(10))
+        .register(meterRegistry);
+  }
+}
@@ -0,0 +1,149 @@
+package jp.mijs.winter2019.security.webauthn.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 1回のリクエストで計測した処理段階(phase)毎の処理時間。
+ * 計測中のものはスレッドに紐付けて保持するため、サービスやValidatorからは static メソッドで記録する。
+ * 計測中でないスレッド(一括認証の並列処理など)から呼び出した場合は、処理のみを実行して何も記録しない。
+ * 処理段階が入れ子になった場合、外側の処理時間には内側の処理時間を含めない。
+ * 1回のリクエストを複数のスレッドで順に処理する場合(リアクティブのエンドポイント)は、
+ * {@link #detached}で計測を開始し、処理毎に{@link #call}で実行するスレッドに紐付ける。
+ */
+public final class PhaseTimings {
+  private static final ThreadLocal<PhaseTimings> CURRENT = new ThreadLocal<>();
+
+  private final String metricName;
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+  private final Map<String, String> tags = new LinkedHashMap<>();
+  private long nestedNanos;
+
+  private PhaseTimings(String metricName) {
+    this.metricName = metricName;
+  }
+
+  /**
+   * 現在のスレッドで計測を開始する。
+   * @param metricName メトリクス名
+   * @return 計測結果
+   */
+  public static PhaseTimings start(String metricName) {
+    var timings = new PhaseTimings(metricName);
+    CURRENT.set(timings);
+    return timings;
+  }
+
+  /**
+   * スレッドに紐付けずに計測を開始する。
+   * @param metricName メトリクス名
+   * @return 計測結果
+   */
+  public static PhaseTimings detached(String metricName) {
+    return new PhaseTimings(metricName);
+  }
+
+  /**
+   * 処理を実行している間だけ、現在のスレッドに紐付ける。
+   * 同じ計測結果を複数のスレッドで同時に使用してはならない。
+   * @param task 処理
+   * @return 処理の戻り値
+   * @throws Exception 処理がスローした例外
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    var previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return task.call();
+    } finally {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  /**
+   * 処理を実行し、処理時間を記録する。
+   * @param phase 処理段階の名前
+   * @param task 処理
+   * @return 処理の戻り値
+   */
+  public static <T> T time(String phase, Supplier<T> task) {
+    var timings = CURRENT.get();
+    if (timings == null) {
+      return task.get();
+    }
+    var outerNested = timings.nestedNanos;
+    timings.nestedNanos = 0;
+    var start = System.nanoTime();
+    try {
+      return task.get();
+    } finally {
+      var elapsed = System.nanoTime() - start;
+      timings.phases.merge(phase, elapsed - timings.nestedNanos, Long::sum);
+      timings.nestedNanos = outerNested + elapsed;
+    }
+  }
+
+  /**
+   * 処理を実行し、処理時間を記録する。
+   * @param phase 処理段階の名前
+   * @param task 処理
+   */
+  public static void time(String phase, Runnable task) {
+    time(phase, () -> {
+      task.run();
+      return null;
+    });
+  }
+
+  /**
+   * 計測中のリクエストにタグを設定する。
+   * @param key タグ名
+   * @param value タグの値
+   */
+  public static void tag(String key, String value) {
+    var timings = CURRENT.get();
+    if (timings != null) {
+      timings.tags.put(key, value);
+    }
+  }
+
+  /**
+   * 現在のスレッドでの計測を終了する。
+   */
+  public void stop() {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Server-Timingヘッダの値を生成する。
+   * @return Server-Timingヘッダの値 - 例) validate;dur=1.234, counter_update;dur=0.056
+   */
+  public String toServerTiming() {
+    return phases.entrySet().stream()
+        .map(phase -> String.format(Locale.ROOT, "%s;dur=%.3f", phase.getKey(), phase.getValue() / 1_000_000.0))
+        .collect(Collectors.joining(", "));
+  }
+
+  public String getMetricName() {
+    return metricName;
+  }
+
+  public Map<String, Long> getPhases() {
+    return Collections.unmodifiableMap(phases);
+  }
+
+  public Map<String, String> getTags() {
+    return Collections.unmodifiableMap(tags);
+  }
+}
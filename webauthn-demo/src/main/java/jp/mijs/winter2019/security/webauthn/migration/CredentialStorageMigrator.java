@@ -0,0 +1,138 @@
+package jp.mijs.winter2019.security.webauthn.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.service.CredentialCodec;
+import jp.mijs.winter2019.security.webauthn.shard.Shard;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 公開鍵クレデンシャルの保存形式をバージョン1からバージョン2へ移行するクラス。
+ * バージョン1の行を1件ずつ読み込みながら変換し、一定件数毎にバッチ更新する。
+ * 全件をメモリに読み込まないため、件数が多い場合でも使用できる。
+ * シャード毎に順に移行する。
+ * バージョン1のテーブル定義は、起動時にFlywayで変更済みとする(db/migration/V1_1__legacy_schema.sql)。
+ */
+@Component
+@Slf4j
+public class CredentialStorageMigrator implements ApplicationRunner {
+  private final ShardRouter shardRouter;
+  private final CredentialCodec credentialCodec;
+  private final int batchSize;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param shardRouter
+   * @param credentialCodec
+   * @param batchSize 一度に更新する件数
+   */
+  public CredentialStorageMigrator(ShardRouter shardRouter, CredentialCodec credentialCodec,
+      @Value("${webauthn.storage.migration.batch-size:500}") int batchSize) {
+    this.shardRouter = shardRouter;
+    this.credentialCodec = credentialCodec;
+    this.batchSize = batchSize;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    migrate();
+  }
+
+  /**
+   * 全てのシャードの保存形式の移行を行う。
+   * @return 移行した件数
+   */
+  public int migrate() {
+    var migrated = 0;
+    for (var shard : shardRouter.getShards()) {
+      migrated += migrate(shard);
+    }
+    return migrated;
+  }
+
+  /**
+   * シャードの保存形式の移行を行う。
+   * @param shard シャード
+   * @return 移行した件数
+   */
+  int migrate(Shard shard) {
+    var streamingJdbc = new JdbcTemplate(shard.getDataSource());
+    streamingJdbc.setFetchSize(batchSize);
+    var jdbc = shard.getJdbc();
+
+    var sql =
+        "SELECT credential_id, user_id, public_key, signature_counter " +
+        "FROM " +
+          "credential " +
+        "WHERE " +
+          "format_version = " + Credential.FORMAT_VERSION_LEGACY;
+
+    var credentials = new ArrayList<SqlParameterSource>(batchSize);
+    var attestations = new ArrayList<SqlParameterSource>(batchSize);
+    var migrated = new int[] { 0 };
+    streamingJdbc.query(sql, rs -> {
+      var credentialId = rs.getBytes("credential_id");
+      var authenticator = credentialCodec.decodeLegacy(rs.getBytes("public_key"))
+          .withCounter(rs.getLong("signature_counter"));
+
+      credentials.add(new BeanPropertySqlParameterSource(
+          credentialCodec.encode(rs.getBytes("user_id"), authenticator)));
+      attestations.add(new BeanPropertySqlParameterSource(
+          credentialCodec.encodeAttestation(credentialId, authenticator.getAttestationStatement())));
+
+      if (credentials.size() >= batchSize) {
+        migrated[0] += flush(jdbc, credentials, attestations);
+      }
+    });
+    migrated[0] += flush(jdbc, credentials, attestations);
+
+    if (migrated[0] > 0) {
+      log.info("Migrated {} credentials in {} to storage format version {}", migrated[0], shard,
+          Credential.FORMAT_VERSION_SPLIT);
+    }
+    return migrated[0];
+  }
+
+  // 変換済みのデータをバッチで更新する
+  private int flush(NamedParameterJdbcOperations jdbc, List<SqlParameterSource> credentials,
+      List<SqlParameterSource> attestations) {
+    if (credentials.isEmpty()) {
+      return 0;
+    }
+    jdbc.batchUpdate(
+        "MERGE INTO credential_attestation (credential_id, format, attestation_statement) " +
+        "KEY (credential_id) " +
+        "VALUES (:credentialId, :format, :attestationStatement)",
+        attestations.toArray(new SqlParameterSource[0]));
+    jdbc.batchUpdate(
+        "UPDATE " +
+          "credential " +
+        "SET " +
+          "format_version = :formatVersion, " +
+          "algorithm = :algorithm, " +
+          "aaguid = :aaguid, " +
+          "public_key = :publicKey " +
+        "WHERE " +
+          "credential_id = :credentialId " +
+          "AND format_version = " + Credential.FORMAT_VERSION_LEGACY,
+        credentials.toArray(new SqlParameterSource[0]));
+
+    var count = credentials.size();
+    credentials.clear();
+    attestations.clear();
+    return count;
+  }
+}
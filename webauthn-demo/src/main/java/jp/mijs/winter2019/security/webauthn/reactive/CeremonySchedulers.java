@@ -0,0 +1,102 @@
+package jp.mijs.winter2019.security.webauthn.reactive;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import jp.mijs.winter2019.security.webauthn.metrics.PhaseTimings;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * リアクティブのエンドポイントで、ブロッキングする処理を実行するスケジューラ。
+ * イベントループのスレッドをブロックしないよう、処理の種類毎にスレッド数と待ち行列の長さを制限したスケジューラで実行する。
+ *   crypto - 署名・アテステーションの検証(CPU処理)
+ *   jdbc   - DBアクセス(ユーザ・クレデンシャルの検索と登録、セレモニーの保管)
+ * 待ち行列が一杯の場合は処理を受け付けず、503(Service Unavailable)で失敗させる。
+ * 処理が追いつかない場合に待ち行列を伸ばし続けず、クライアントに負荷を返すため。
+ */
+public class CeremonySchedulers {
+  private final Scheduler crypto;
+  private final Scheduler jdbc;
+
+  /**
+   * コンストラクタ。
+   * @param cryptoThreads 検証のスレッド数
+   * @param jdbcThreads DBアクセスのスレッド数 - コネクションプールの最大数以下とする
+   * @param queueSize スケジューラ毎の待ち行列の長さ
+   */
+  public CeremonySchedulers(int cryptoThreads, int jdbcThreads, int queueSize) {
+    this.crypto = bounded("webauthn-crypto", cryptoThreads, queueSize);
+    this.jdbc = bounded("webauthn-jdbc", jdbcThreads, queueSize);
+  }
+
+  /**
+   * 検証のスケジューラで処理を実行する。
+   * @param timings 処理時間を記録する計測結果 - 記録しない場合はnull
+   * @param task 処理
+   * @return 処理の戻り値 - nullの場合は空
+   */
+  public <T> Mono<T> crypto(PhaseTimings timings, Callable<T> task) {
+    return schedule(crypto, timings, task);
+  }
+
+  /**
+   * DBアクセスのスケジューラで処理を実行する。
+   * @param timings 処理時間を記録する計測結果 - 記録しない場合はnull
+   * @param task 処理
+   * @return 処理の戻り値 - nullの場合は空
+   */
+  public <T> Mono<T> jdbc(PhaseTimings timings, Callable<T> task) {
+    return schedule(jdbc, timings, task);
+  }
+
+  /**
+   * DBアクセスのスケジューラで戻り値のない処理を実行する。
+   * @param timings 処理時間を記録する計測結果 - 記録しない場合はnull
+   * @param task 処理
+   * @return 処理の完了
+   */
+  public Mono<Void> jdbc(PhaseTimings timings, Runnable task) {
+    return jdbc(timings, () -> {
+      task.run();
+      return null;
+    }).then();
+  }
+
+  /**
+   * スケジューラを停止する。
+   */
+  public void dispose() {
+    crypto.dispose();
+    jdbc.dispose();
+  }
+
+  // 計測結果を処理のスレッドに紐付けて実行する
+  private static <T> Mono<T> schedule(Scheduler scheduler, PhaseTimings timings, Callable<T> task) {
+    return Mono.fromCallable(timings == null ? task : () -> timings.call(task))
+        .subscribeOn(scheduler)
+        .onErrorMap(RejectedExecutionException.class,
+            e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Server is busy", e));
+  }
+
+  private static Scheduler bounded(String name, int threads, int queueSize) {
+    var count = new AtomicInteger();
+    var executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        task -> {
+          var thread = new Thread(task, name + "-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+    return Schedulers.fromExecutorService(executor, name);
+  }
+}
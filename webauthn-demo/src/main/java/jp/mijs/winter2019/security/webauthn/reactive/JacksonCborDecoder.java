@@ -0,0 +1,76 @@
+package jp.mijs.winter2019.security.webauthn.reactive;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jp.mijs.winter2019.security.webauthn.config.HttpMessageConverterConfig;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * リアクティブのエンドポイントでCBOR(application/cbor)のリクエストを読み込むDecoder。
+ * Spring 5.1のWebFluxにはCBORのDecoderがなく、JSONのDecoderが使用する非ブロッキングのパーサも
+ * CBORには対応していないため、リクエスト全体を受信してからJacksonで変換する。
+ * Fluxで受け取る場合は、リクエストをCBORの配列として変換する。
+ */
+public class JacksonCborDecoder implements Decoder<Object> {
+  private static final MimeType APPLICATION_CBOR = MimeType.valueOf(HttpMessageConverterConfig.APPLICATION_CBOR_VALUE);
+
+  private final ObjectMapper objectMapper;
+
+  /**
+   * コンストラクタ。
+   * @param objectMapper CBORFactoryを使用するObjectMapper
+   */
+  public JacksonCborDecoder(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+  }
+
+  @Override
+  public boolean canDecode(ResolvableType elementType, MimeType mimeType) {
+    return mimeType != null && APPLICATION_CBOR.isCompatibleWith(mimeType)
+        && objectMapper.canDeserialize(objectMapper.constructType(elementType.getType()));
+  }
+
+  @Override
+  public Flux<Object> decode(Publisher<DataBuffer> inputStream, ResolvableType elementType, MimeType mimeType,
+      Map<String, Object> hints) {
+    var listType = objectMapper.getTypeFactory().constructCollectionType(List.class,
+        objectMapper.constructType(elementType.getType()));
+    return read(inputStream, listType).flatMapIterable(list -> (List<?>) list);
+  }
+
+  @Override
+  public Mono<Object> decodeToMono(Publisher<DataBuffer> inputStream, ResolvableType elementType,
+      MimeType mimeType, Map<String, Object> hints) {
+    return read(inputStream, objectMapper.constructType(elementType.getType()));
+  }
+
+  @Override
+  public List<MimeType> getDecodableMimeTypes() {
+    return List.of(APPLICATION_CBOR);
+  }
+
+  // リクエスト全体を結合し、バッファから直接変換する
+  private Mono<Object> read(Publisher<DataBuffer> inputStream, JavaType type) {
+    return DataBufferUtils.join(inputStream).map(buffer -> {
+      try (var input = buffer.asInputStream(true)) {
+        return objectMapper.readValue(input, type);
+      } catch (IOException e) {
+        throw new DecodingException("CBOR decoding error: " + e.getMessage(), e);
+      }
+    });
+  }
+}
@@ -0,0 +1,163 @@
+package jp.mijs.winter2019.security.webauthn.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Repository;
+
+import jp.mijs.winter2019.security.webauthn.entity.CredentialAttestation;
+import jp.mijs.winter2019.security.webauthn.shard.Shard;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter.Route;
+
+/**
+ * データベースからアテステーション情報を取得・登録するためのクラス
+ * SQLは起動時に1回だけ組み立て、行の変換はリフレクションを使用せずに行う。
+ * 公開鍵クレデンシャルと同じシャード(クレデンシャルIDで振り分けたシャード)に保管する。
+ * @author yoshizawa
+ *
+ */
+@Repository
+public class CredentialAttestationRepository {
+  private static final String FIND_BY_ID =
+      "SELECT credential_id, format, attestation_statement " +
+      "FROM " +
+        "credential_attestation " +
+      "WHERE " +
+        "credential_id = :credentialId";
+
+  private static final String FIND_BY_IDS =
+      "SELECT credential_id, format, attestation_statement " +
+      "FROM " +
+        "credential_attestation " +
+      "WHERE " +
+        "credential_id IN (:credentialIds)";
+
+  private static final String INSERT =
+      "INSERT INTO credential_attestation " +
+        "(credential_id, format, attestation_statement) " +
+      "VALUES " +
+        "(:credentialId, :format, :attestationStatement)";
+
+  // シャード数の変更中の移動先への複写と、一括登録に使用する - アテステーション情報は更新しないため、同じ値で上書きする
+  private static final String MERGE =
+      "MERGE INTO credential_attestation " +
+        "(credential_id, format, attestation_statement) " +
+      "KEY (credential_id) " +
+      "VALUES " +
+        "(:credentialId, :format, :attestationStatement)";
+
+  private static final String DELETE =
+      "DELETE FROM " +
+        "credential_attestation " +
+      "WHERE " +
+        "credential_id = :credentialId";
+
+  // SELECT句の列の順序で読み込む
+  private static final RowMapper<CredentialAttestation> ATTESTATION_MAPPER = (rs, rowNum) -> {
+    var attestation = new CredentialAttestation();
+    attestation.setCredentialId(rs.getBytes(1));
+    attestation.setFormat(rs.getString(2));
+    attestation.setAttestationStatement(rs.getBytes(3));
+    return attestation;
+  };
+
+  private final ShardRouter shardRouter;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param shardRouter
+   */
+  public CredentialAttestationRepository(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+  }
+
+  /**
+   * アテステーション情報をクレデンシャルIDから取得する。
+   * @param credentialId 公開鍵クレデンシャルID
+   * @return アテステーション情報 - 存在しない場合は Optional.empty
+   */
+  public Optional<CredentialAttestation> findById(byte[] credentialId) {
+    var attestations = shardRouter.forCredential(credentialId).getJdbc().query(
+        FIND_BY_ID,
+        new MapSqlParameterSource("credentialId", credentialId),
+        ATTESTATION_MAPPER);
+    return attestations.isEmpty() ? Optional.empty() : Optional.of(attestations.get(0));
+  }
+
+  /**
+   * 複数のアテステーション情報をクレデンシャルIDから一度に取得する。
+   * シャード毎にまとめて検索する。
+   * @param credentialIds 公開鍵クレデンシャルID
+   * @return 取得したアテステーション情報 - 存在しないIDのものは含まない
+   */
+  public List<CredentialAttestation> findByIds(Collection<byte[]> credentialIds) {
+    var groups = new LinkedHashMap<Shard, List<byte[]>>();
+    for (var credentialId : credentialIds) {
+      groups.computeIfAbsent(shardRouter.forCredential(credentialId), shard -> new ArrayList<>()).add(credentialId);
+    }
+    var attestations = new ArrayList<CredentialAttestation>(credentialIds.size());
+    groups.forEach((shard, ids) -> attestations.addAll(shard.getJdbc().query(
+        FIND_BY_IDS,
+        new MapSqlParameterSource("credentialIds", ids),
+        ATTESTATION_MAPPER)));
+    return attestations;
+  }
+
+  /**
+   * アテステーション情報をデータベースに登録する。
+   * トランザクションは公開鍵クレデンシャルと同じシャードで開始する。
+   * @param attestation アテステーション情報
+   */
+  public void insert(CredentialAttestation attestation) {
+    var params = params(attestation);
+    var route = shardRouter.credentialRoute(attestation.getCredentialId());
+    route.getPrimary().getJdbc().update(INSERT, params);
+    shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(MERGE, params));
+  }
+
+  /**
+   * 複数のアテステーション情報を一括で登録する。
+   * シャード毎に1つのトランザクションでバッチ登録し、登録済みの場合は同じ値で上書きする。
+   * 公開鍵クレデンシャルを登録した後に呼び出す。
+   * @param attestations アテステーション情報
+   */
+  public void mergeAll(List<CredentialAttestation> attestations) {
+    var groups = new LinkedHashMap<Route, List<MapSqlParameterSource>>();
+    for (var attestation : attestations) {
+      groups.computeIfAbsent(shardRouter.credentialRoute(attestation.getCredentialId()), route -> new ArrayList<>())
+          .add(params(attestation));
+    }
+    groups.forEach((route, group) -> route.getPrimary().getTransactionTemplate().execute(status -> {
+      var batch = group.toArray(new SqlParameterSource[0]);
+      shardRouter.mirror(route.getMirror(), jdbc -> jdbc.batchUpdate(MERGE, batch));
+      return route.getPrimary().getJdbc().batchUpdate(MERGE, batch);
+    }));
+  }
+
+  /**
+   * アテステーション情報を削除する。
+   * 公開鍵クレデンシャルより先に、公開鍵クレデンシャルと同じシャードのトランザクションで削除する。
+   * @param credentialId 公開鍵クレデンシャルID
+   */
+  public void delete(byte[] credentialId) {
+    var params = new MapSqlParameterSource("credentialId", credentialId);
+    var route = shardRouter.credentialRoute(credentialId);
+    route.getPrimary().getJdbc().update(DELETE, params);
+    shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(DELETE, params));
+  }
+
+  private static MapSqlParameterSource params(CredentialAttestation attestation) {
+    return new MapSqlParameterSource()
+        .addValue("credentialId", attestation.getCredentialId())
+        .addValue("format", attestation.getFormat())
+        .addValue("attestationStatement", attestation.getAttestationStatement());
+  }
+}
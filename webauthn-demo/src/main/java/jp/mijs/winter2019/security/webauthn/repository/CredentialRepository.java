@@ -1,58 +1,202 @@
 package jp.mijs.winter2019.security.webauthn.repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
-import javax.sql.DataSource;
-
-import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
-import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
-import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Repository;
 
 import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.shard.Shard;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter.Route;
 
 /**
  * データベースから公開鍵クレデンシャルを取得・登録するためのクラス
+ * SQLは起動時に1回だけ組み立て、取得する列を明示する。
+ * 行の変換はリフレクションを使用せず、SELECT句の列の順序で読み込む。
+ * 公開鍵クレデンシャルはクレデンシャルIDで振り分けたシャードに保管する({@link ShardRouter})。
+ * ユーザIDからの検索のみ、全てのシャードを検索する。
  * @author yoshizawa
  *
  */
 @Repository
 public class CredentialRepository {
-  private final NamedParameterJdbcOperations jdbc;
-  private final SimpleJdbcInsert insertCredential;
+  // 認証時に必要な列 - CREDENTIAL_MAPPERの読み込み順序と合わせる
+  private static final String CREDENTIAL_COLUMNS =
+      "credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter ";
+
+  private static final String FIND_BY_USER_ID =
+      "SELECT " + CREDENTIAL_COLUMNS +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "user_id = :userId";
+
+  private static final String FIND_IDS_BY_USER_ID =
+      "SELECT credential_id " +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "user_id = :userId";
+
+  private static final String FIND_BY_ID =
+      "SELECT " + CREDENTIAL_COLUMNS +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "credential_id = :credentialId";
+
+  private static final String FIND_BY_IDS =
+      "SELECT " + CREDENTIAL_COLUMNS +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "credential_id IN (:credentialIds)";
+
+  // 管理用の一覧と、optionsに含めるクレデンシャルの選択に使用する列 - 公開鍵は読み込まない
+  private static final String FIND_SUMMARIES_BY_IDS =
+      "SELECT credential_id, user_id, format_version, algorithm, aaguid, signature_counter, last_used_at " +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "credential_id IN (:credentialIds)";
+
+  private static final String INSERT =
+      "INSERT INTO credential " +
+        "(credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter, last_used_at) " +
+      "VALUES " +
+        "(:credentialId, :userId, :formatVersion, :algorithm, :aaguid, :publicKey, :signatureCounter, :lastUsedAt)";
+
+  // シャード数の変更中に移動先へ複写する - 移動処理による複写と重なっても1件のみとする
+  private static final String INSERT_IF_ABSENT =
+      "MERGE INTO credential c " +
+      "USING (SELECT 1) s " +
+        "ON c.credential_id = :credentialId " +
+      "WHEN NOT MATCHED THEN " +
+        "INSERT (credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter, " +
+          "last_used_at) " +
+        "VALUES (:credentialId, :userId, :formatVersion, :algorithm, :aaguid, :publicKey, :signatureCounter, " +
+          ":lastUsedAt)";
+
+  // 保存済みの値より大きい場合のみ書き込む - 並行した認証で小さい値に戻さない
+  private static final String UPDATE_SIGNATURE_COUNTER =
+      "UPDATE " +
+        "credential " +
+      "SET " +
+        "signature_counter = :signatureCounter " +
+      "WHERE " +
+        "credential_id = :credentialId " +
+        "AND signature_counter < :signatureCounter";
+
+  // 移動先への複写 - 移動処理が複写した値より小さい値で上書きしない
+  private static final String UPDATE_SIGNATURE_COUNTER_IF_GREATER =
+      "UPDATE " +
+        "credential " +
+      "SET " +
+        "signature_counter = GREATEST(signature_counter, :signatureCounter) " +
+      "WHERE " +
+        "credential_id = :credentialId";
+
+  // 保存済みの値より新しい場合のみ書き込む - 移動先への複写にも使用する
+  private static final String UPDATE_LAST_USED_AT =
+      "UPDATE " +
+        "credential " +
+      "SET " +
+        "last_used_at = :lastUsedAt " +
+      "WHERE " +
+        "credential_id = :credentialId " +
+        "AND (last_used_at IS NULL OR last_used_at < :lastUsedAt)";
+
+  // 他のユーザのクレデンシャルを削除しないよう、ユーザIDも条件とする
+  private static final String DELETE =
+      "DELETE FROM " +
+        "credential " +
+      "WHERE " +
+        "credential_id = :credentialId " +
+        "AND user_id = :userId";
+
+  private static final RowMapper<Credential> CREDENTIAL_MAPPER = (rs, rowNum) -> {
+    var credential = new Credential();
+    credential.setCredentialId(rs.getBytes(1));
+    credential.setUserId(rs.getBytes(2));
+    credential.setFormatVersion(rs.getInt(3));
+    credential.setAlgorithm(rs.getLong(4));
+    credential.setAaguid(rs.getBytes(5));
+    credential.setPublicKey(rs.getBytes(6));
+    credential.setSignatureCounter(rs.getLong(7));
+    return credential;
+  };
+
+  private static final RowMapper<Credential> SUMMARY_MAPPER = (rs, rowNum) -> {
+    var credential = new Credential();
+    credential.setCredentialId(rs.getBytes(1));
+    credential.setUserId(rs.getBytes(2));
+    credential.setFormatVersion(rs.getInt(3));
+    credential.setAlgorithm(rs.getLong(4));
+    credential.setAaguid(rs.getBytes(5));
+    credential.setSignatureCounter(rs.getLong(6));
+    var lastUsedAt = rs.getLong(7);
+    credential.setLastUsedAt(rs.wasNull() ? null : lastUsedAt);
+    return credential;
+  };
+
+  private static final RowMapper<byte[]> CREDENTIAL_ID_MAPPER = SingleColumnRowMapper.newInstance(byte[].class);
+
+  private final ShardRouter shardRouter;
 
   /**
    * コンストラクタ。
    * SpringBootによるDIが実行される
-   * @param jdbc
-   * @param dataSource
+   * @param shardRouter
    */
-  public CredentialRepository(NamedParameterJdbcOperations jdbc, DataSource dataSource) {
-    this.jdbc = jdbc;
-    this.insertCredential = new SimpleJdbcInsert(dataSource).withTableName("credential");
+  public CredentialRepository(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
   }
-  
+
   /**
    * ユーザIDから公開鍵クレデンシャル情報を取得する。
+   * 公開鍵クレデンシャルはユーザと別のシャードに保管されるため、全てのシャードを検索する。
    * @param userId ユーザID
    * @return 取得した公開鍵クレデンシャル情報を格納したListオブジェクト
    */
   public List<Credential> findByUserId(byte[] userId) {
-    var sql = 
-        "SELECT * " +
-        "FROM " +
-          "credential " +
-        "WHERE " +
-          "user_id = :userId";
-    return jdbc.query(
-        sql,
-        new MapSqlParameterSource().addValue("userId", userId),
-        new BeanPropertyRowMapper<>(Credential.class)
-    );
+    var credentials = new ArrayList<Credential>();
+    for (var shard : shardRouter.getShards()) {
+      credentials.addAll(shard.getJdbc().query(
+          FIND_BY_USER_ID,
+          new MapSqlParameterSource("userId", userId),
+          CREDENTIAL_MAPPER
+      ));
+    }
+    return credentials;
+  }
+
+  /**
+   * ユーザIDからクレデンシャルIDのみを取得する。
+   * 全てのシャードを検索するため、options(excludeCredentials, allowCredentials)の生成には
+   * ユーザと同じシャードに保管したクレデンシャルID({@link UserRepository#findWithCredentialIdsByEmail})を使用する。
+   * @param userId ユーザID
+   * @return クレデンシャルIDのList
+   */
+  public List<byte[]> findCredentialIdsByUserId(byte[] userId) {
+    var credentialIds = new ArrayList<byte[]>();
+    for (var shard : shardRouter.getShards()) {
+      credentialIds.addAll(shard.getJdbc().query(
+          FIND_IDS_BY_USER_ID,
+          new MapSqlParameterSource("userId", userId),
+          CREDENTIAL_ID_MAPPER
+      ));
+    }
+    return credentialIds;
   }
 
   /**
@@ -61,48 +205,200 @@ public class CredentialRepository {
    * @return 公開鍵クレデンシャル情報 - 存在しない場合は Optional.empty
    */
   public Optional<Credential> findById(byte[] credentialId) {
-    var sql = 
-        "SELECT * " +
-          "FROM " +
-            "credential " +
-          "WHERE " +
-            "credential_id = :credentialId";
-    try {
-      var params = new MapSqlParameterSource()
-          .addValue("credentialId", credentialId);
-
-      var credential = jdbc.queryForObject(sql, params, new BeanPropertyRowMapper<>(Credential.class));
-      return Optional.of(credential);
-    } catch (EmptyResultDataAccessException ignore) {
-      return Optional.empty();
+    //存在しない場合に例外を生成しないよう、queryForObjectは使用しない
+    var credentials = shardRouter.forCredential(credentialId).getJdbc().query(
+        FIND_BY_ID,
+        new MapSqlParameterSource("credentialId", credentialId),
+        CREDENTIAL_MAPPER);
+    return credentials.isEmpty() ? Optional.empty() : Optional.of(credentials.get(0));
+  }
+
+  /**
+   * 複数の公開鍵クレデンシャル情報をIDから一度に取得する。
+   * シャード毎にまとめて検索する。
+   * @param credentialIds 公開鍵クレデンシャルID
+   * @return 取得した公開鍵クレデンシャル情報 - 存在しないIDのものは含まない
+   */
+  public List<Credential> findByIds(Collection<byte[]> credentialIds) {
+    if (credentialIds.isEmpty()) {
+      return List.of();
+    }
+    var credentials = new ArrayList<Credential>(credentialIds.size());
+    groupByShard(credentialIds, id -> id).forEach((shard, ids) -> credentials.addAll(shard.getJdbc().query(
+        FIND_BY_IDS,
+        new MapSqlParameterSource("credentialIds", ids),
+        CREDENTIAL_MAPPER
+    )));
+    return credentials;
+  }
+
+  /**
+   * 複数の公開鍵クレデンシャル情報を、公開鍵を除いて一度に取得する。
+   * 最終使用日時を含めて取得する。シャード毎にまとめて検索する。
+   * @param credentialIds 公開鍵クレデンシャルID
+   * @return 取得した公開鍵クレデンシャル情報(公開鍵を除く) - 存在しないIDのものは含まない
+   */
+  public List<Credential> findSummariesByIds(Collection<byte[]> credentialIds) {
+    if (credentialIds.isEmpty()) {
+      return List.of();
     }
+    var credentials = new ArrayList<Credential>(credentialIds.size());
+    groupByShard(credentialIds, id -> id).forEach((shard, ids) -> credentials.addAll(shard.getJdbc().query(
+        FIND_SUMMARIES_BY_IDS,
+        new MapSqlParameterSource("credentialIds", ids),
+        SUMMARY_MAPPER
+    )));
+    return credentials;
   }
 
   /**
    * 公開鍵クレデンシャル情報をデータベースに登録する。
+   * トランザクションは{@link ShardRouter#forCredential}のシャードで開始する。
    * @param credential 公開鍵クレデンシャル情報
    */
   public void insert(Credential credential) {
-    insertCredential.execute(new BeanPropertySqlParameterSource(credential));
+    var route = shardRouter.credentialRoute(credential.getCredentialId());
+    route.getPrimary().getJdbc().update(INSERT, insertParams(credential));
+    shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(INSERT_IF_ABSENT, insertParams(credential)));
+  }
+
+  /**
+   * 複数の公開鍵クレデンシャル情報を一括で登録する。
+   * シャード毎に1つのトランザクションでバッチ登録する。
+   * 登録済みのクレデンシャルIDは更新しないため、同じ内容で再実行できる。
+   * @param credentials 公開鍵クレデンシャル情報
+   */
+  public void insertAllIfAbsent(List<Credential> credentials) {
+    groupByRoute(credentials).forEach((route, group) ->
+        route.getPrimary().getTransactionTemplate().execute(status -> {
+          var batch = new SqlParameterSource[group.size()];
+          for (int i = 0; i < batch.length; i++) {
+            var credential = group.get(i);
+            batch[i] = insertParams(credential);
+            shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(INSERT_IF_ABSENT, insertParams(credential)));
+          }
+          return route.getPrimary().getJdbc().batchUpdate(INSERT_IF_ABSENT, batch);
+        }));
   }
 
   /**
    * 公開鍵クレデンシャル情報を更新する。
-   * 更新する情報は認証器カウンタのみとする。
+   * 更新する情報は認証器カウンタのみとし、保存済みの値より大きい場合のみ更新する(compare-and-set)。
    * @param credential 公開鍵クレデンシャル情報
+   * @return 更新した場合はtrue - 保存済みの値が同じか大きい場合(他の認証が先に書き込んだ場合)はfalse
    */
-  public void update(Credential credential) {
-    var sql = 
-        "UPDATE " + 
-          "credential " + 
-        "SET " + 
-          "signature_counter = :signatureCounter " + 
-        "WHERE " + 
-          "credential_id = :credentialId";
-    MapSqlParameterSource params = new MapSqlParameterSource()
+  public boolean update(Credential credential) {
+    var route = shardRouter.credentialRoute(credential.getCredentialId());
+    var updated = route.getPrimary().getJdbc().update(UPDATE_SIGNATURE_COUNTER, signatureCounterParams(credential));
+    shardRouter.mirror(route.getMirror(),
+        jdbc -> jdbc.update(UPDATE_SIGNATURE_COUNTER_IF_GREATER, signatureCounterParams(credential)));
+    return updated > 0;
+  }
+
+  /**
+   * 複数の公開鍵クレデンシャル情報の認証器カウンタをバッチで更新する。
+   * シャード毎にまとめて更新する。保存済みの値より大きいもののみ更新する。
+   * @param credentials 公開鍵クレデンシャル情報
+   * @return 更新しなかった公開鍵クレデンシャル情報 - 保存済みの値が同じか大きいもの
+   */
+  public List<Credential> updateSignatureCounters(List<Credential> credentials) {
+    var rejected = new ArrayList<Credential>();
+    groupByRoute(credentials).forEach((route, group) -> {
+      var counts = route.getPrimary().getJdbc().batchUpdate(UPDATE_SIGNATURE_COUNTER, signatureCounterBatch(group));
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == 0) {
+          rejected.add(group.get(i));
+        }
+      }
+      shardRouter.mirror(route.getMirror(),
+          jdbc -> jdbc.batchUpdate(UPDATE_SIGNATURE_COUNTER_IF_GREATER, signatureCounterBatch(group)));
+    });
+    return rejected;
+  }
+
+  /**
+   * 複数の公開鍵クレデンシャル情報の最終使用日時をバッチで更新する。
+   * シャード毎にまとめて更新する。保存済みの値より新しいもののみ更新する。
+   * @param credentials クレデンシャルIDと最終使用日時を設定した公開鍵クレデンシャル情報
+   */
+  public void updateLastUsedAt(List<Credential> credentials) {
+    groupByRoute(credentials).forEach((route, group) -> {
+      var batch = new SqlParameterSource[group.size()];
+      for (int i = 0; i < batch.length; i++) {
+        batch[i] = lastUsedAtParams(group.get(i));
+      }
+      route.getPrimary().getJdbc().batchUpdate(UPDATE_LAST_USED_AT, batch);
+      shardRouter.mirror(route.getMirror(), jdbc -> jdbc.batchUpdate(UPDATE_LAST_USED_AT, batch));
+    });
+  }
+
+  /**
+   * 公開鍵クレデンシャル情報を削除する。
+   * アテステーション情報を先に削除しておく({@link CredentialAttestationRepository#delete})。
+   * トランザクションは{@link ShardRouter#forCredential}のシャードで開始する。
+   * @param userId ユーザID - 他のユーザの公開鍵クレデンシャルは削除しない
+   * @param credentialId クレデンシャルID
+   * @return 削除した場合はtrue
+   */
+  public boolean delete(byte[] userId, byte[] credentialId) {
+    var params = new MapSqlParameterSource()
+        .addValue("credentialId", credentialId)
+        .addValue("userId", userId);
+    var route = shardRouter.credentialRoute(credentialId);
+    var deleted = route.getPrimary().getJdbc().update(DELETE, params);
+    shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(DELETE, params));
+    return deleted > 0;
+  }
+
+  // クレデンシャルIDのシャード毎にまとめる
+  private <T> Map<Shard, List<T>> groupByShard(Collection<T> items, Function<T, byte[]> credentialId) {
+    var groups = new LinkedHashMap<Shard, List<T>>();
+    for (var item : items) {
+      groups.computeIfAbsent(shardRouter.forCredential(credentialId.apply(item)), shard -> new ArrayList<>())
+          .add(item);
+    }
+    return groups;
+  }
+
+  // 書き込むシャードと反映先の組毎にまとめる
+  private Map<Route, List<Credential>> groupByRoute(Collection<Credential> credentials) {
+    var groups = new LinkedHashMap<Route, List<Credential>>();
+    for (var credential : credentials) {
+      groups.computeIfAbsent(shardRouter.credentialRoute(credential.getCredentialId()), route -> new ArrayList<>())
+          .add(credential);
+    }
+    return groups;
+  }
+
+  private static SqlParameterSource[] signatureCounterBatch(List<Credential> credentials) {
+    var batch = new SqlParameterSource[credentials.size()];
+    for (int i = 0; i < batch.length; i++) {
+      batch[i] = signatureCounterParams(credentials.get(i));
+    }
+    return batch;
+  }
+
+  private static MapSqlParameterSource insertParams(Credential credential) {
+    return new MapSqlParameterSource()
         .addValue("credentialId", credential.getCredentialId())
-        .addValue("signatureCounter", credential.getSignatureCounter());
+        .addValue("userId", credential.getUserId())
+        .addValue("formatVersion", credential.getFormatVersion())
+        .addValue("algorithm", credential.getAlgorithm())
+        .addValue("aaguid", credential.getAaguid())
+        .addValue("publicKey", credential.getPublicKey())
+        .addValue("signatureCounter", credential.getSignatureCounter())
+        .addValue("lastUsedAt", credential.getLastUsedAt());
+  }
+
+  private static MapSqlParameterSource lastUsedAtParams(Credential credential) {
+    return new MapSqlParameterSource()
+        .addValue("credentialId", credential.getCredentialId())
+        .addValue("lastUsedAt", credential.getLastUsedAt());
+  }
 
-    jdbc.update(sql, params);
+  private static MapSqlParameterSource signatureCounterParams(Credential credential) {
+    return new MapSqlParameterSource()
+        .addValue("credentialId", credential.getCredentialId())
+        .addValue("signatureCounter", credential.getSignatureCounter());
   }
 }
@@ -1,60 +1,226 @@
 package jp.mijs.winter2019.security.webauthn.repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Optional;
 
-import javax.sql.DataSource;
-
-import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
-import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
-import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Repository;
 
 import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.entity.UserCredentials;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter.Route;
 
 /**
  * データベースからユーザ情報を取得・登録するためのクラス
+ * SQLは起動時に1回だけ組み立て、行の変換はリフレクションを使用せずに行う。
+ * ユーザと、ユーザに紐付いたクレデンシャルID(user_credential)は、メールアドレスで振り分けたシャードに保管する。
+ * メールアドレスはテナント毎に一意とし、メールアドレスによる検索はテナントIDと組み合わせて行う。
+ * 同じメールアドレスのユーザはテナントが異なっても同じシャードに保管される。
  * @author yoshizawa
  *
  */
 @Repository
 public class UserRepository {
-  private final NamedParameterJdbcOperations jdbc;
-  private final SimpleJdbcInsert insertUser;
+  private static final String FIND_BY_EMAIL =
+      "SELECT id, email, display_name, tenant_id " +
+      "FROM " +
+        "user " +
+      "WHERE " +
+        "tenant_id = :tenantId " +
+        "AND email = :email";
+
+  // ユーザとクレデンシャルIDを1回の検索で取得する - クレデンシャル未登録のユーザも取得するため外部結合とする
+  //  公開鍵クレデンシャルは別のシャードに保管される場合があるため、同じシャードのuser_credentialと結合する
+  private static final String FIND_WITH_CREDENTIAL_IDS_BY_EMAIL =
+      "SELECT u.id, u.email, u.display_name, u.tenant_id, c.credential_id " +
+      "FROM " +
+        "user u " +
+        "LEFT JOIN user_credential c ON c.user_id = u.id " +
+      "WHERE " +
+        "u.tenant_id = :tenantId " +
+        "AND u.email = :email";
+
+  // クレデンシャルIDの順に一定件数ずつ取得する(keyset pagination) - 主キー(user_id, credential_id)の索引を使用する
+  private static final String FIND_CREDENTIAL_IDS_PAGE =
+      "SELECT credential_id " +
+      "FROM " +
+        "user_credential " +
+      "WHERE " +
+        "user_id = :userId " +
+        "AND credential_id > :after " +
+      "ORDER BY credential_id " +
+      "LIMIT :limit";
+
+  private static final String FIND_OWNED_CREDENTIAL_IDS =
+      "SELECT credential_id " +
+      "FROM " +
+        "user_credential " +
+      "WHERE " +
+        "user_id = :userId " +
+        "AND credential_id IN (:credentialIds)";
+
+  private static final String DELETE_CREDENTIAL_IDS =
+      "DELETE FROM " +
+        "user_credential " +
+      "WHERE " +
+        "user_id = :userId " +
+        "AND credential_id IN (:credentialIds)";
+
+  // 他のテナントの同じメールアドレスのユーザも取得する - 呼び出し元でテナントIDを照合する
+  private static final String FIND_IDS_BY_EMAILS =
+      "SELECT id, email, tenant_id " +
+      "FROM " +
+        "user " +
+      "WHERE " +
+        "email IN (:emails)";
+
+  private static final String INSERT =
+      "INSERT INTO user " +
+        "(id, email, display_name, tenant_id) " +
+      "VALUES " +
+        "(:id, :email, :displayName, :tenantId)";
+
+  // 同じテナント・メールアドレスのユーザが存在しない場合のみ登録する - 存在する場合は何もしない
+  private static final String INSERT_IF_ABSENT =
+      "MERGE INTO user u " +
+      "USING (SELECT 1) s " +
+        "ON u.tenant_id = :tenantId AND u.email = :email " +
+      "WHEN NOT MATCHED THEN " +
+        "INSERT (id, email, display_name, tenant_id) VALUES (:id, :email, :displayName, :tenantId)";
+
+  // 移動処理による複写と重なっても1件のみとする
+  private static final String MERGE_CREDENTIAL_ID =
+      "MERGE INTO user_credential " +
+        "(user_id, credential_id) " +
+      "KEY (user_id, credential_id) " +
+      "VALUES " +
+        "(:userId, :credentialId)";
+
+  // SELECT句の列の順序で読み込む
+  private static final RowMapper<User> USER_MAPPER = (rs, rowNum) -> {
+    var user = new User();
+    user.setId(rs.getBytes(1));
+    user.setEmail(rs.getString(2));
+    user.setDisplayName(rs.getString(3));
+    user.setTenantId(rs.getString(4));
+    return user;
+  };
+
+  private static final RowMapper<byte[]> CREDENTIAL_ID_MAPPER = SingleColumnRowMapper.newInstance(byte[].class);
+
+  // 1行目からユーザ情報を、全ての行からクレデンシャルIDを読み込む
+  private static final ResultSetExtractor<Optional<UserCredentials>> USER_CREDENTIALS_EXTRACTOR = rs -> {
+    if (!rs.next()) {
+      return Optional.empty();
+    }
+    var user = USER_MAPPER.mapRow(rs, 0);
+    var credentialIds = new ArrayList<byte[]>();
+    do {
+      var credentialId = rs.getBytes(5);
+      if (credentialId != null) {
+        credentialIds.add(credentialId);
+      }
+    } while (rs.next());
+    return Optional.of(new UserCredentials(user, credentialIds));
+  };
+
+  private final ShardRouter shardRouter;
 
   /**
    * コンストラクタ。
    * SpringBootによるDIが実行される。
-   * @param jdbc
-   * @param dataSource
+   * @param shardRouter
    */
-  public UserRepository(NamedParameterJdbcOperations jdbc, DataSource dataSource) {
-    this.jdbc = jdbc;
-    this.insertUser = new SimpleJdbcInsert(dataSource).withTableName("user");
+  public UserRepository(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
   }
 
   /**
-   * メールアドレスからユーザ情報を取得する。
+   * テナントIDとメールアドレスからユーザ情報を取得する。
+   * @param tenantId テナントID
    * @param email メールアドレス
    * @return ユーザ情報 - 存在しない場合は Optional.empty
    */
-  public Optional<User> findByEmail(String email) {
-    var sql = 
-        "SELECT * " +
-        "FROM " +
-          "user " +
-        "WHERE " +
-          "email=:email";
-    try {
-      var params = new MapSqlParameterSource()
-          .addValue("email", email);
-      var user = jdbc.queryForObject(sql, params, new BeanPropertyRowMapper<>(User.class));
-      return Optional.of(user);
-    } catch (EmptyResultDataAccessException ignore) {
-      return Optional.empty();
+  public Optional<User> findByEmail(String tenantId, String email) {
+    //未登録のユーザは登録時に毎回検索されるため、存在しない場合に例外を生成しないようqueryForObjectは使用しない
+    var users = shardRouter.forUser(email).getJdbc().query(FIND_BY_EMAIL, emailParams(tenantId, email), USER_MAPPER);
+    return users.isEmpty() ? Optional.empty() : Optional.of(users.get(0));
+  }
+
+  /**
+   * テナントIDとメールアドレスからユーザ情報と、ユーザに紐付いたクレデンシャルIDを取得する。
+   * @param tenantId テナントID
+   * @param email メールアドレス
+   * @return ユーザ情報とクレデンシャルID - ユーザが存在しない場合は Optional.empty
+   */
+  public Optional<UserCredentials> findWithCredentialIdsByEmail(String tenantId, String email) {
+    return shardRouter.forUser(email).getJdbc().query(FIND_WITH_CREDENTIAL_IDS_BY_EMAIL, emailParams(tenantId, email),
+        USER_CREDENTIALS_EXTRACTOR);
+  }
+
+  /**
+   * ユーザに紐付いたクレデンシャルIDを、クレデンシャルIDの順に一定件数ずつ取得する。
+   * 前回取得した最後のクレデンシャルIDより後のものを取得する(keyset pagination)。
+   * @param user 登録済みのユーザ情報
+   * @param after 前回取得した最後のクレデンシャルID - 最初から取得する場合は空の配列
+   * @param limit 取得する最大件数
+   * @return クレデンシャルIDのList
+   */
+  public List<byte[]> findCredentialIds(User user, byte[] after, int limit) {
+    return shardRouter.forUser(user.getEmail()).getJdbc().query(FIND_CREDENTIAL_IDS_PAGE,
+        new MapSqlParameterSource()
+            .addValue("userId", user.getId())
+            .addValue("after", after)
+            .addValue("limit", limit),
+        CREDENTIAL_ID_MAPPER);
+  }
+
+  /**
+   * 指定したクレデンシャルIDのうち、ユーザに紐付いたもののみを取得する。
+   * @param user 登録済みのユーザ情報
+   * @param credentialIds クレデンシャルID
+   * @return ユーザに紐付いたクレデンシャルID
+   */
+  public List<byte[]> findOwnedCredentialIds(User user, Collection<byte[]> credentialIds) {
+    if (credentialIds.isEmpty()) {
+      return List.of();
     }
+    return shardRouter.forUser(user.getEmail()).getJdbc().query(FIND_OWNED_CREDENTIAL_IDS,
+        new MapSqlParameterSource()
+            .addValue("userId", user.getId())
+            .addValue("credentialIds", credentialIds),
+        CREDENTIAL_ID_MAPPER);
+  }
+
+  /**
+   * ユーザに紐付いたクレデンシャルIDを削除する。
+   * 削除後はoptions(excludeCredentials, allowCredentials)に含まれない。
+   * トランザクションは{@link ShardRouter#forUser}のシャードで開始する。
+   * @param user 登録済みのユーザ情報
+   * @param credentialIds クレデンシャルID
+   * @return 削除した件数
+   */
+  public int removeCredentialIds(User user, Collection<byte[]> credentialIds) {
+    if (credentialIds.isEmpty()) {
+      return 0;
+    }
+    var params = new MapSqlParameterSource()
+        .addValue("userId", user.getId())
+        .addValue("credentialIds", credentialIds);
+    var route = shardRouter.userRoute(user.getEmail());
+    var deleted = route.getPrimary().getJdbc().update(DELETE_CREDENTIAL_IDS, params);
+    shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(DELETE_CREDENTIAL_IDS, params));
+    return deleted;
   }
 
   /**
@@ -62,6 +228,113 @@ public class UserRepository {
    * @param user ユーザ情報
    */
   public void insert(User user) {
-    insertUser.execute(new BeanPropertySqlParameterSource(user));
+    var params = userParams(user);
+    var route = shardRouter.userRoute(user.getEmail());
+    route.getPrimary().getJdbc().update(INSERT, params);
+    shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(INSERT_IF_ABSENT, params));
+  }
+
+  /**
+   * 同じテナント・メールアドレスのユーザが存在しない場合のみ、ユーザ情報をデータベースに登録する。
+   * 存在確認と登録を1つのSQLで行い、同じメールアドレスで同時に登録された場合も(テナントID, メールアドレス)の一意索引により1件のみ登録される。
+   * トランザクションは{@link ShardRouter#forUser}のシャードで開始する。
+   * @param user ユーザ情報
+   * @return 登録した場合はtrue - 既に存在した場合はfalse
+   */
+  public boolean insertIfAbsent(User user) {
+    var params = userParams(user);
+    var route = shardRouter.userRoute(user.getEmail());
+    boolean inserted;
+    try {
+      inserted = route.getPrimary().getJdbc().update(INSERT_IF_ABSENT, params) > 0;
+    } catch (DuplicateKeyException ignore) {
+      //同時に登録された他方が先に登録した
+      return false;
+    }
+    if (inserted) {
+      shardRouter.mirror(route.getMirror(), jdbc -> jdbc.update(INSERT_IF_ABSENT, params));
+    }
+    return inserted;
+  }
+
+  /**
+   * ユーザに紐付いたクレデンシャルIDを登録する。
+   * 公開鍵クレデンシャルの登録と共に呼び出し、options生成時にユーザと同じシャードから取得できるようにする。
+   * トランザクションは{@link ShardRouter#forUser}のシャードで開始する。
+   * @param user 登録済みのユーザ情報
+   * @param credentialId クレデンシャルID
+   */
+  public void addCredentialId(User user, byte[] credentialId) {
+    var params = new MapSqlParameterSource()
+        .addValue("userId", user.getId())
+        .addValue("credentialId", credentialId);
+    var route = shardRouter.userRoute(user.getEmail());
+    route.getPrimary().getJdbc().update(MERGE_CREDENTIAL_ID, params);
+    //反映先にユーザが複写されていない場合があるため、ユーザも複写する
+    shardRouter.mirror(route.getMirror(), jdbc -> {
+      jdbc.update(INSERT_IF_ABSENT, userParams(user));
+      jdbc.update(MERGE_CREDENTIAL_ID, params);
+    });
+  }
+
+  /**
+   * 複数のユーザ情報と、ユーザに紐付いたクレデンシャルIDを一括で登録する。
+   * シャード毎に1つのトランザクションでバッチ登録する。
+   * 同じテナント・メールアドレスのユーザが登録済みの場合は、登録済みのユーザにクレデンシャルIDを紐付け、
+   * 渡したユーザ情報のユーザIDを登録済みのユーザのIDに置き換える。
+   * 登録済みのクレデンシャルIDは重複して登録しないため、同じ内容で再実行できる。
+   * @param users ユーザ情報とクレデンシャルID - ユーザIDはクレデンシャルIDを紐付けたユーザのIDとなる
+   */
+  public void insertAllIfAbsent(List<UserCredentials> users) {
+    var groups = new LinkedHashMap<Route, List<UserCredentials>>();
+    for (var user : users) {
+      groups.computeIfAbsent(shardRouter.userRoute(user.getUser().getEmail()), route -> new ArrayList<>()).add(user);
+    }
+    groups.forEach((route, group) -> route.getPrimary().getTransactionTemplate().execute(status -> {
+      var jdbc = route.getPrimary().getJdbc();
+      var emails = new ArrayList<String>(group.size());
+      var batch = new SqlParameterSource[group.size()];
+      for (int i = 0; i < batch.length; i++) {
+        emails.add(group.get(i).getUser().getEmail());
+        batch[i] = userParams(group.get(i).getUser());
+      }
+      jdbc.batchUpdate(INSERT_IF_ABSENT, batch);
+      //(テナントID, メールアドレス)からユーザIDを引く
+      var userIds = new HashMap<List<String>, byte[]>(group.size() * 2);
+      jdbc.query(FIND_IDS_BY_EMAILS, new MapSqlParameterSource("emails", emails),
+          rs -> { userIds.put(List.of(rs.getString(3), rs.getString(2)), rs.getBytes(1)); });
+
+      var credentialIds = new ArrayList<SqlParameterSource>();
+      for (var user : group) {
+        var registered = user.getUser();
+        registered.setId(userIds.get(List.of(registered.getTenantId(), registered.getEmail())));
+        var params = new ArrayList<MapSqlParameterSource>(user.getCredentialIds().size());
+        for (var credentialId : user.getCredentialIds()) {
+          params.add(new MapSqlParameterSource()
+              .addValue("userId", registered.getId())
+              .addValue("credentialId", credentialId));
+        }
+        credentialIds.addAll(params);
+        shardRouter.mirror(route.getMirror(), mirror -> {
+          mirror.update(INSERT_IF_ABSENT, userParams(registered));
+          mirror.batchUpdate(MERGE_CREDENTIAL_ID, params.toArray(new SqlParameterSource[0]));
+        });
+      }
+      return jdbc.batchUpdate(MERGE_CREDENTIAL_ID, credentialIds.toArray(new SqlParameterSource[0]));
+    }));
+  }
+
+  private static MapSqlParameterSource emailParams(String tenantId, String email) {
+    return new MapSqlParameterSource()
+        .addValue("tenantId", tenantId)
+        .addValue("email", email);
+  }
+
+  private static MapSqlParameterSource userParams(User user) {
+    return new MapSqlParameterSource()
+        .addValue("id", user.getId())
+        .addValue("email", user.getEmail())
+        .addValue("displayName", user.getDisplayName())
+        .addValue("tenantId", user.getTenantId());
   }
 }
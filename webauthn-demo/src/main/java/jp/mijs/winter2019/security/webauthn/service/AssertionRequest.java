@@ -0,0 +1,25 @@
+package jp.mijs.winter2019.security.webauthn.service;
+
+import com.webauthn4j.data.client.challenge.Challenge;
+
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import lombok.Value;
+
+/**
+ * 一括認証の対象となる1件分の認証データ。
+ */
+@Value
+public class AssertionRequest {
+  /** テナントの検証用サーバ情報の雛形 */
+  private final ServerPropertyTemplate serverPropertyTemplate;
+  /** サーバで保持するチャレンジ情報 */
+  private final Challenge challenge;
+  /** クライアントから送信されたクレデンシャルID */
+  private final byte[] credentialId;
+  /** クライアントから送信されたクレデンシャル生成のデータ */
+  private final byte[] clientDataJSON;
+  /** クライアントから送信された公開鍵情報 */
+  private final byte[] authenticatorData;
+  /** クライアントが保持する秘密鍵によって署名された署名情報 */
+  private final byte[] signature;
+}
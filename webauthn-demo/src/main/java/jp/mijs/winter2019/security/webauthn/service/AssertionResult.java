@@ -0,0 +1,33 @@
+package jp.mijs.winter2019.security.webauthn.service;
+
+import lombok.Value;
+
+/**
+ * 一括認証の1件分の結果。
+ */
+@Value
+public class AssertionResult {
+  private static final AssertionResult VERIFIED = new AssertionResult(true, null);
+
+  /** 検証に成功したか */
+  private final boolean verified;
+  /** 検証に失敗した理由 - 成功した場合はnull */
+  private final String error;
+
+  /**
+   * 検証に成功した結果を返す。
+   * @return 結果
+   */
+  public static AssertionResult verified() {
+    return VERIFIED;
+  }
+
+  /**
+   * 検証に失敗した結果を返す。
+   * @param error 失敗した理由
+   * @return 結果
+   */
+  public static AssertionResult failed(String error) {
+    return new AssertionResult(false, error);
+  }
+}
@@ -0,0 +1,135 @@
+package jp.mijs.winter2019.security.webauthn.service;
+
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.webauthn4j.converter.util.CborConverter;
+import com.webauthn4j.data.attestation.authenticator.AAGUID;
+import com.webauthn4j.data.attestation.authenticator.AttestedCredentialData;
+import com.webauthn4j.data.attestation.authenticator.COSEKey;
+import com.webauthn4j.data.attestation.statement.AttestationStatement;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.CredentialAttestation;
+
+/**
+ * 公開鍵クレデンシャルとデータベースの保存形式を相互に変換するクラス。
+ * 認証時に使用する公開鍵と、登録時にのみ必要なアテステーション・ステートメントを分けて保存する。
+ */
+@Component
+public class CredentialCodec {
+  private final CborConverter cborConverter;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param cborConverter
+   */
+  public CredentialCodec(CborConverter cborConverter) {
+    this.cborConverter = cborConverter;
+  }
+
+  /**
+   * 公開鍵クレデンシャルから認証時に使用する情報を生成する。
+   * @param userId ユーザID
+   * @param authenticator 公開鍵クレデンシャル
+   * @return 公開鍵クレデンシャル情報
+   */
+  public Credential encode(byte[] userId, OriginalAuthenticator authenticator) {
+    var attestedCredentialData = authenticator.getAttestedCredentialData();
+    var coseKey = attestedCredentialData.getCOSEKey();
+
+    var credential = new Credential();
+    credential.setCredentialId(attestedCredentialData.getCredentialId());
+    credential.setUserId(userId);
+    credential.setFormatVersion(Credential.FORMAT_VERSION_SPLIT);
+    credential.setAlgorithm(coseKey.getAlgorithm().getValue());
+    credential.setAaguid(attestedCredentialData.getAaguid().getBytes());
+    credential.setPublicKey(cborConverter.writeValueAsBytes(coseKey));
+    credential.setSignatureCounter(authenticator.getCounter());
+    return credential;
+  }
+
+  /**
+   * アテステーション・ステートメントから保存用のアテステーション情報を生成する。
+   * @param credentialId クレデンシャルID
+   * @param attestationStatement アテステーション・ステートメント
+   * @return アテステーション情報
+   */
+  public CredentialAttestation encodeAttestation(byte[] credentialId, AttestationStatement attestationStatement) {
+    var attestation = new CredentialAttestation();
+    attestation.setCredentialId(credentialId);
+    attestation.setFormat(attestationStatement.getFormat());
+    attestation.setAttestationStatement(
+        cborConverter.writeValueAsBytes(new AttestationStatementEnvelope(attestationStatement)));
+    return attestation;
+  }
+
+  /**
+   * 公開鍵クレデンシャル情報から公開鍵クレデンシャルを復元する。
+   * 保存形式がバージョン1の場合は、保存されたデータ全体をデシリアライズする。
+   * 認証器カウンタはいずれの場合も公開鍵クレデンシャル情報の値を使用する。
+   * @param credential 公開鍵クレデンシャル情報
+   * @param attestationStatementLoader アテステーション・ステートメントの読み込み処理 - 参照された場合のみ呼び出される
+   * @return 公開鍵クレデンシャル
+   */
+  public OriginalAuthenticator decode(Credential credential, Supplier<AttestationStatement> attestationStatementLoader) {
+    if (credential.getFormatVersion() == Credential.FORMAT_VERSION_LEGACY) {
+      return decodeLegacy(credential.getPublicKey()).withCounter(credential.getSignatureCounter());
+    }
+
+    COSEKey coseKey = cborConverter.readValue(credential.getPublicKey(), COSEKey.class);
+    var attestedCredentialData = new AttestedCredentialData(
+        credential.getAaguid() == null ? AAGUID.NULL : new AAGUID(credential.getAaguid()),
+        credential.getCredentialId(),
+        coseKey);
+    return OriginalAuthenticator.withAttestationStatementLoader(
+        attestedCredentialData, attestationStatementLoader, credential.getSignatureCounter());
+  }
+
+  /**
+   * バージョン1の形式(公開鍵クレデンシャル全体をCBOR化したもの)をデシリアライズする。
+   * @param publicKey 保存されたデータ
+   * @return 公開鍵クレデンシャル
+   */
+  public OriginalAuthenticator decodeLegacy(byte[] publicKey) {
+    return cborConverter.readValue(publicKey, OriginalAuthenticator.class);
+  }
+
+  /**
+   * アテステーション情報からアテステーション・ステートメントを復元する。
+   * @param attestation アテステーション情報
+   * @return アテステーション・ステートメント
+   */
+  public AttestationStatement decodeAttestation(CredentialAttestation attestation) {
+    AttestationStatementEnvelope envelope = cborConverter.readValue(attestation.getAttestationStatement(),
+        AttestationStatementEnvelope.class);
+    return envelope.getAttestationStatement();
+  }
+
+  /**
+   * アテステーション・ステートメントを、フォーマットと共にCBOR化するための入れ物
+   */
+  public static class AttestationStatementEnvelope {
+    private final AttestationStatement attestationStatement;
+
+    @JsonCreator
+    public AttestationStatementEnvelope(
+        @JsonProperty("attestationStatement") AttestationStatement attestationStatement) {
+      this.attestationStatement = attestationStatement;
+    }
+
+    @JsonTypeInfo(
+        use = JsonTypeInfo.Id.NAME,
+        include = JsonTypeInfo.As.EXTERNAL_PROPERTY,
+        property = "format"
+    )
+    public AttestationStatement getAttestationStatement() {
+      return attestationStatement;
+    }
+  }
+}
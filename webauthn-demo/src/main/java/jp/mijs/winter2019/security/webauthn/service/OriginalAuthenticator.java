@@ -1,6 +1,7 @@
 package jp.mijs.winter2019.security.webauthn.service;
 
 import java.util.Objects;
+import java.util.function.Supplier;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
@@ -9,13 +10,15 @@ import com.webauthn4j.data.attestation.authenticator.AttestedCredentialData;
 import com.webauthn4j.data.attestation.statement.AttestationStatement;
 
 /**
- * 公開鍵クレデンシャルの実体
+ * 公開鍵クレデンシャルの実体。
+ * アテステーション・ステートメントは認証時には使用しないため、必要になった時点で読み込むこともできる。
  */
 public class OriginalAuthenticator implements Authenticator {
   private static final long serialVersionUID = -1382402688639693633L;
 
   private AttestedCredentialData attestedCredentialData;
   private AttestationStatement attestationStatement;
+  private transient Supplier<AttestationStatement> attestationStatementLoader;
   private long counter;
 
   public OriginalAuthenticator(@JsonProperty("attestedCredentialData") AttestedCredentialData attestedCredentialData,
@@ -26,6 +29,37 @@ public class OriginalAuthenticator implements Authenticator {
     this.setCounter(counter);
   }
 
+  private OriginalAuthenticator(AttestedCredentialData attestedCredentialData,
+                                Supplier<AttestationStatement> attestationStatementLoader,
+                                long counter) {
+    this.attestedCredentialData = attestedCredentialData;
+    this.attestationStatementLoader = attestationStatementLoader;
+    this.setCounter(counter);
+  }
+
+  /**
+   * アテステーション・ステートメントを遅延して読み込む公開鍵クレデンシャルを生成する。
+   * @param attestedCredentialData 公開鍵クレデンシャルのデータ
+   * @param attestationStatementLoader アテステーション・ステートメントの読み込み処理 - 初回参照時に一度だけ呼び出される
+   * @param counter 認証器カウンタ
+   * @return 公開鍵クレデンシャル
+   */
+  public static OriginalAuthenticator withAttestationStatementLoader(AttestedCredentialData attestedCredentialData,
+                                                                     Supplier<AttestationStatement> attestationStatementLoader,
+                                                                     long counter) {
+    return new OriginalAuthenticator(attestedCredentialData, attestationStatementLoader, counter);
+  }
+
+  /**
+   * 認証器カウンタのみを差し替えた複製を生成する。
+   * アテステーション・ステートメントは複製元と共有し、未読み込みの場合は読み込まない。
+   * @param counter 認証器カウンタ
+   * @return 公開鍵クレデンシャルの複製
+   */
+  public OriginalAuthenticator withCounter(long counter) {
+    return new OriginalAuthenticator(attestedCredentialData, this::getAttestationStatement, counter);
+  }
+
   @Override
   public AttestedCredentialData getAttestedCredentialData() {
       return this.attestedCredentialData;
@@ -37,7 +71,11 @@ public class OriginalAuthenticator implements Authenticator {
           property = "format"
   )
   @Override
-  public AttestationStatement getAttestationStatement(){
+  public synchronized AttestationStatement getAttestationStatement(){
+      if (this.attestationStatementLoader != null) {
+          this.attestationStatement = this.attestationStatementLoader.get();
+          this.attestationStatementLoader = null;
+      }
       return this.attestationStatement;
   }
 
@@ -58,11 +96,11 @@ public class OriginalAuthenticator implements Authenticator {
       OriginalAuthenticator that = (OriginalAuthenticator) o;
       return counter == that.counter &&
               Objects.equals(attestedCredentialData, that.attestedCredentialData) &&
-              Objects.equals(attestationStatement, that.attestationStatement);
+              Objects.equals(getAttestationStatement(), that.getAttestationStatement());
   }
 
   @Override
   public int hashCode() {
-      return Objects.hash(attestedCredentialData, attestationStatement, counter);
+      return Objects.hash(attestedCredentialData, getAttestationStatement(), counter);
   }
 }
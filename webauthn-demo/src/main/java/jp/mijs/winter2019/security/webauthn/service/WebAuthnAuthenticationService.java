@@ -1,70 +1,181 @@
 package jp.mijs.winter2019.security.webauthn.service;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import com.webauthn4j.converter.util.CborConverter;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.webauthn4j.data.PublicKeyCredentialDescriptor;
 import com.webauthn4j.data.PublicKeyCredentialRequestOptions;
 import com.webauthn4j.data.PublicKeyCredentialType;
 import com.webauthn4j.data.UserVerificationRequirement;
 import com.webauthn4j.data.WebAuthnAuthenticationContext;
-import com.webauthn4j.data.client.Origin;
 import com.webauthn4j.data.client.challenge.Challenge;
-import com.webauthn4j.data.client.challenge.DefaultChallenge;
-import com.webauthn4j.server.ServerProperty;
 import com.webauthn4j.validator.WebAuthnAuthenticationContextValidator;
+import com.webauthn4j.validator.exception.MaliciousCounterValueException;
 
-import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.cache.AuthenticatorCache;
+import jp.mijs.winter2019.security.webauthn.cache.AuthenticatorCache.CachedAuthenticator;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplate;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import jp.mijs.winter2019.security.webauthn.counter.CredentialLocks;
+import jp.mijs.winter2019.security.webauthn.counter.SignatureCounterWriter;
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.UserCredentials;
+import jp.mijs.winter2019.security.webauthn.filter.ExistenceFilter;
+import jp.mijs.winter2019.security.webauthn.management.CredentialUsageTracker;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
 import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
 import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.metrics.PhaseTimings;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
 
+/**
+ * WebAuthnによるユーザの認証を行うサービス
+ * rpIdなどのoptionsの値はテナント({@link Tenant})の設定を使用し、ユーザはテナント毎に検索する。
+ */
 @Service
 public class WebAuthnAuthenticationService {
-  private static final String DOMAIN_NAME = "localhost";
-  
   private final UserRepository userRepository;
   private final CredentialRepository credentialRepository;
+  private final WebAuthnAuthenticationContextValidator validator;
+  private final CredentialAttestationRepository credentialAttestationRepository;
+  private final CredentialCodec credentialCodec;
+  private final AuthenticatorCache authenticatorCache;
+  private final SignatureCounterWriter signatureCounterWriter;
+  private final ForkJoinPool verificationPool;
+  private final OptionsTemplateCache optionsTemplateCache;
+  private final ExistenceFilter existenceFilter;
+  private final ChallengeGenerator challengeGenerator;
+  private final CredentialLocks credentialLocks;
+  private final CredentialUsageTracker credentialUsageTracker;
+  private final int maxRetries;
+  private final ObjectMapper objectMapper;
 
   /**
    * コンストラクタ。
    * SpringBootによるDIが実行される
    * @param userRepository
    * @param credentialRepository
+   * @param credentialAttestationRepository
+   * @param validator
+   * @param credentialCodec
+   * @param authenticatorCache
+   * @param signatureCounterWriter
+   * @param verificationPool 一括認証で署名の検証に使用するスレッドプール
+   * @param optionsTemplateCache
+   * @param objectMapper optionsの雛形の生成に使用するObjectMapper
+   * @param existenceFilter
+   * @param challengeGenerator
+   * @param credentialLocks
+   * @param credentialUsageTracker
+   * @param maxRetries 署名カウンタを書き込めなかった場合に、DBから取得し直して検証する最大回数
    */
-  public WebAuthnAuthenticationService(UserRepository userRepository, CredentialRepository credentialRepository) {
+  public WebAuthnAuthenticationService(UserRepository userRepository, CredentialRepository credentialRepository,
+      CredentialAttestationRepository credentialAttestationRepository,
+      WebAuthnAuthenticationContextValidator validator, CredentialCodec credentialCodec,
+      AuthenticatorCache authenticatorCache,
+      SignatureCounterWriter signatureCounterWriter, ForkJoinPool verificationPool,
+      OptionsTemplateCache optionsTemplateCache, ObjectMapper objectMapper, ExistenceFilter existenceFilter,
+      ChallengeGenerator challengeGenerator, CredentialLocks credentialLocks,
+      CredentialUsageTracker credentialUsageTracker,
+      @Value("${webauthn.counter.max-retries:2}") int maxRetries) {
       this.userRepository = userRepository;
       this.credentialRepository = credentialRepository;
+      this.validator = validator;
+      this.credentialAttestationRepository = credentialAttestationRepository;
+      this.credentialCodec = credentialCodec;
+      this.authenticatorCache = authenticatorCache;
+      this.signatureCounterWriter = signatureCounterWriter;
+      this.verificationPool = verificationPool;
+      this.optionsTemplateCache = optionsTemplateCache;
+      this.objectMapper = objectMapper;
+      this.existenceFilter = existenceFilter;
+      this.challengeGenerator = challengeGenerator;
+      this.credentialLocks = credentialLocks;
+      this.credentialUsageTracker = credentialUsageTracker;
+      this.maxRetries = maxRetries;
+  }
+
+  /**
+   * 認証要求に対するレスポンスの雛形を取得する。
+   * 登録済みのユーザの雛形はキャッシュし、キャッシュに存在する場合はDBを検索しない。
+   * challengeは{@link OptionsTemplate#render}で差し込む。
+   * @param tenant テナント
+   * @param email メールアドレス
+   * @return 認証要求に対するレスポンスの雛形
+   * @throws JsonProcessingException JSON変換に失敗した場合はこの例外をスローする
+   */
+  public OptionsTemplate requestOptionsTemplate(Tenant tenant, String email) throws JsonProcessingException {
+    var cached = optionsTemplateCache.get(CeremonyType.ASSERTION, tenant.getId(), email);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    //DBの検索より前に世代を取得し、検索中にクレデンシャルが追加された場合は古い雛形を登録しない
+    var generation = optionsTemplateCache.generation();
+    var userCredentials = find(tenant, email);
+    var template = OptionsTemplate.create(objectMapper,
+        requestOptions(tenant, userCredentials.orElse(null), OptionsTemplate.PLACEHOLDER), null);
+    //存在しないユーザはキャッシュしない - 任意のメールアドレスでキャッシュを溢れさせないため
+    if (userCredentials.isPresent()) {
+      optionsTemplateCache.put(CeremonyType.ASSERTION, tenant.getId(), email, template, generation);
+    }
+    return template;
   }
 
   /**
    * 認証要求に対するレスポンスの生成を行う。
    * レスポンスの内容はWebAuthnの仕様に従う。
-   * @param user ユーザ情報
+   * @param tenant テナント
+   * @param userCredentials ユーザ情報と登録済みのクレデンシャルID - ユーザが存在しない場合はnull
    * @return 認証要求に対するレスポンス
    */
-  public PublicKeyCredentialRequestOptions requestOptions(User user) {
+  public PublicKeyCredentialRequestOptions requestOptions(Tenant tenant, UserCredentials userCredentials) {
     //challenge - リプレイ攻撃への耐性
-    var challenge = new DefaultChallenge();
+    return requestOptions(tenant, userCredentials, challengeGenerator.challenge());
+  }
 
+  /**
+   * 指定したchallengeで認証要求に対するレスポンスを生成する。
+   * @param tenant テナント
+   * @param userCredentials ユーザ情報と登録済みのクレデンシャルID - ユーザが存在しない場合はnull
+   * @param challenge challenge
+   * @return 認証要求に対するレスポンス
+   */
+  private PublicKeyCredentialRequestOptions requestOptions(Tenant tenant, UserCredentials userCredentials,
+      Challenge challenge) {
     //timeout - 登録のタイムアウト時間（ミリ秒）
-    var timeout = 120000L;
+    var timeout = tenant.getTimeout();
 
     //rp - RP(認証局)情報 - 中間者攻撃への耐性
-    var rpId = DOMAIN_NAME;
+    var rpId = tenant.getRpId();
 
     // allowCredentials ── RPサーバに登録されたクレデンシャルIDの一覧
+    //  クレデンシャルIDはユーザ情報と同時に取得済み - 上限を超える場合は最近使用したもののみ
     List<PublicKeyCredentialDescriptor> allowCredentials = List.of();
-    if (user != null) {
-      var credentials = credentialRepository.findByUserId(user.getId());
-      allowCredentials = credentials.stream()
-          .map(credential -> new PublicKeyCredentialDescriptor(
+    if (userCredentials != null) {
+      allowCredentials = userCredentials.getCredentialIds().stream()
+          .map(credentialId -> new PublicKeyCredentialDescriptor(
               PublicKeyCredentialType.PUBLIC_KEY,
-              credential.getCredentialId(),
+              credentialId,
               Set.of()))
           .collect(Collectors.toList());
     }
@@ -87,38 +198,257 @@ public class WebAuthnAuthenticationService {
   }
 
   /**
-   * メールアドレスからユーザ情報を検索する。
+   * メールアドレスからユーザ情報と登録済みのクレデンシャルIDを検索する。
    * ユーザ情報が存在しない場合はOptional.emptyを返す。
+   * フィルタで存在しないと判定できたメールアドレスはDBを検索しない - DBを検索して存在しなかった場合と同じ結果となる。
+   * クレデンシャルIDは{@link CredentialUsageTracker#limit}で最近使用したものから上限の件数までとする。
+   * @param tenant テナント
    * @param email メールアドレス
-   * @param displayName 表示名称
-   * @return ユーザ情報
+   * @return ユーザ情報と登録済みのクレデンシャルID
    */
-  public Optional<User> find(String email) {
-    return userRepository.findByEmail(email);
+  public Optional<UserCredentials> find(Tenant tenant, String email) {
+    if (!existenceFilter.mightContainEmail(email)) {
+      return Optional.empty();
+    }
+    return PhaseTimings.time("user_lookup", () -> userRepository.findWithCredentialIdsByEmail(tenant.getId(), email)
+        .map(credentialUsageTracker::limit));
   }
   
   /**
    * 認証処理を行う。
    * クライアントから送信された情報について、サーバで保持する公開鍵情報を用いて検証を行い、問題がなければ認証完了とする。
+   * 同じクレデンシャルの認証は{@link CredentialLocks}で1件ずつ行う。
+   * 他のテナントで登録したクレデンシャルは、rpIdが異なるため検証で失敗する。
+   * @param serverPropertyTemplate テナントの検証用サーバ情報の雛形
    * @param challenge サーバで保持するチャレンジ情報
    * @param credentialId クライアントから送信されたクレデンシャルID
    * @param clientDataJSON クライアントから送信されたクレデンシャル生成のデータ
    * @param authenticatorData クライアントから送信された公開鍵情報
    * @param signature クライアントが保持する秘密鍵によって署名された署名情報
    */
-  public void assertionFinish(Challenge challenge, 
+  public void assertionFinish(ServerPropertyTemplate serverPropertyTemplate,
+                              Challenge challenge,
                               byte[] credentialId,
                               byte[] clientDataJSON,
                               byte[] authenticatorData,
                               byte[] signature) {
+    var request = new AssertionRequest(serverPropertyTemplate, challenge, credentialId, clientDataJSON,
+        authenticatorData, signature);
+    credentialLocks.withLock(credentialId, () -> verifyAndWrite(request));
+  }
+
+  /**
+   * 公開鍵クレデンシャルを取得して検証し、署名カウンタを書き込む。
+   * 他のサーバが先に大きい署名カウンタを書き込んでいた場合は、DBから取得し直して検証し直す。
+   * 呼び出し元でクレデンシャルIDのロックを取得しておく。
+   * @param request 認証データ
+   * @return 認証器から送信された署名カウンタ
+   */
+  private long verifyAndWrite(AssertionRequest request) {
+    var credentialId = request.getCredentialId();
+    for (int attempt = 0; ; attempt++) {
+      var currentCounter = verify(request, findAuthenticator(credentialId));
+      if (writeCounter(credentialId, currentCounter)) {
+        credentialUsageTracker.record(credentialId);
+        return currentCounter;
+      }
+      //書き込めなかった場合はキャッシュを破棄済み - 次はDBの値で検証する(通常は署名カウンタの検証で失敗する)
+      if (attempt >= maxRetries) {
+        throw new MaliciousCounterValueException("Signature counter was concurrently advanced");
+      }
+    }
+  }
+
+  /**
+   * 登録済みの公開鍵クレデンシャルを取得する。
+   * キャッシュに存在しない場合はDBから取得してデシリアライズする。
+   * {@link #assertionFinish}の1段階目 - DBアクセスを含む。
+   * @param credentialId クライアントから送信されたクレデンシャルID
+   * @return 公開鍵クレデンシャル
+   */
+  public OriginalAuthenticator findAuthenticator(byte[] credentialId) {
+    //デシリアライズの処理時間(cbor_decode)は、この処理時間に含めず別に記録する
+    var authenticator = PhaseTimings.time("credential_lookup", () -> authenticatorCache.get(credentialId)
+        .map(CachedAuthenticator::getAuthenticator)
+        .orElseGet(() -> loadAuthenticator(credentialId)));
+    CeremonyMetrics.tagAlgorithm(
+        authenticator.getAttestedCredentialData().getCOSEKey().getAlgorithm().getValue());
+    return authenticator;
+  }
+
+  /**
+   * 認証データを公開鍵クレデンシャルで検証する。
+   * {@link #assertionFinish}の2段階目 - 署名の検証のみでDBアクセスを含まない。
+   * @param request 認証データ
+   * @param authenticator 登録済みの公開鍵クレデンシャル
+   * @return 認証器から送信された署名カウンタ
+   */
+  public long verify(AssertionRequest request, OriginalAuthenticator authenticator) {
+    return PhaseTimings.time("validate", () -> validate(request, authenticator));
+  }
+
+  /**
+   * 署名カウンタを更新する。
+   * {@link #assertionFinish}の3段階目 - DBアクセスを含む。
+   * 段階毎に別のスレッドで実行する場合はロックを保持できないため、並行した認証の検出はDBの条件付き更新のみで行う。
+   * @param credentialId クレデンシャルID
+   * @param currentCounter 認証器から送信された署名カウンタ
+   * @throws MaliciousCounterValueException 同じか大きい署名カウンタが書き込み済みの場合はこの例外をスローする
+   */
+  public void updateCounter(byte[] credentialId, long currentCounter) {
+    if (!writeCounter(credentialId, currentCounter)) {
+      throw new MaliciousCounterValueException("Signature counter was concurrently advanced");
+    }
+    credentialUsageTracker.record(credentialId);
+  }
+
+  /**
+   * 署名カウンタを書き込む。
+   * 書き込めなかった場合はキャッシュを破棄し、次の認証ではDBから取得し直す。
+   * @param credentialId クレデンシャルID
+   * @param currentCounter 認証器から送信された署名カウンタ
+   * @return 書き込んだ場合はtrue - 同じか大きい署名カウンタが書き込み済みの場合はfalse
+   */
+  private boolean writeCounter(byte[] credentialId, long currentCounter) {
+    //署名カウンタを使用しない認証器(常に0)は書き込まない
+    if (currentCounter == 0) {
+      return true;
+    }
+    //write-behindの場合はDBへの書き込みが遅れるため、キャッシュの値を先に更新する
+    return PhaseTimings.time("counter_update", () -> {
+      authenticatorCache.updateCounter(credentialId, currentCounter);
+      if (signatureCounterWriter.write(credentialId, currentCounter)) {
+        return true;
+      }
+      authenticatorCache.invalidate(credentialId);
+      return false;
+    });
+  }
+
+  /**
+   * 複数の認証処理をまとめて行う。
+   * 公開鍵クレデンシャルを1回のクエリで取得し、署名の検証を並列に行った後、署名カウンタをまとめて更新する。
+   * 同じクレデンシャルIDの認証データは、署名カウンタを引き継ぐために受け取った順に1件ずつ検証する。
+   * 含まれる全てのクレデンシャルIDのロックを取得し、他の認証と並行して検証しない。
+   * クレデンシャルIDが含まれない認証データは、他の認証データを巻き込まずにその1件のみ失敗とする。
+   * @param requests 認証データ
+   * @return 認証データと同じ順序の検証結果
+   */
+  public List<AssertionResult> assertionFinishAll(List<AssertionRequest> requests) {
+    var results = new AssertionResult[requests.size()];
+    var valid = new ArrayList<AssertionRequest>(requests.size());
+    var indexes = new ArrayList<Integer>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      var request = requests.get(i);
+      if (request.getCredentialId() == null || request.getCredentialId().length == 0) {
+        results[i] = AssertionResult.failed("CredentialIdMissing");
+        continue;
+      }
+      valid.add(request);
+      indexes.add(i);
+    }
 
+    var credentialIds = valid.stream().map(AssertionRequest::getCredentialId).collect(Collectors.toList());
+    var verified = credentialLocks.withLocks(credentialIds, () -> verifyAndWriteAll(valid));
+    for (int i = 0; i < verified.size(); i++) {
+      results[indexes.get(i)] = verified.get(i);
+    }
+    return Arrays.asList(results);
+  }
+
+  // assertionFinishAllの処理 - 呼び出し元でロックを取得しておく
+  private List<AssertionResult> verifyAndWriteAll(List<AssertionRequest> requests) {
+    //登録済みの公開鍵クレデンシャルを取得
+    //  キャッシュに存在しないものは、DBからまとめて取得してデシリアライズする
+    var authenticators = new HashMap<ByteBuffer, OriginalAuthenticator>();
+    var missing = new ArrayList<byte[]>();
+    for (var request : requests) {
+      var key = ByteBuffer.wrap(request.getCredentialId());
+      if (!authenticators.containsKey(key)) {
+        var cached = authenticatorCache.get(request.getCredentialId()).map(CachedAuthenticator::getAuthenticator);
+        authenticators.put(key, cached.orElse(null));
+        if (cached.isEmpty() && existenceFilter.mightContainCredentialId(request.getCredentialId())) {
+          missing.add(request.getCredentialId());
+        }
+      }
+    }
+    for (var credential : credentialRepository.findByIds(missing)) {
+      authenticators.put(ByteBuffer.wrap(credential.getCredentialId()), decodeAndCache(credential));
+    }
+
+    //クレデンシャルID毎にまとめ、クレデンシャルID単位で並列に検証する
+    var groups = IntStream.range(0, requests.size()).boxed()
+        .collect(Collectors.groupingBy(
+            i -> ByteBuffer.wrap(requests.get(i).getCredentialId()),
+            LinkedHashMap::new,
+            Collectors.toList()));
+    var results = new AssertionResult[requests.size()];
+    var counters = new ConcurrentHashMap<ByteBuffer, Long>();
+    var task = verificationPool.submit(() -> groups.entrySet().parallelStream().forEach(group -> {
+      var authenticator = authenticators.get(group.getKey());
+      for (var i : group.getValue()) {
+        if (authenticator == null) {
+          results[i] = AssertionResult.failed("CredentialNotFound");
+          continue;
+        }
+        try {
+          var currentCounter = validate(requests.get(i), authenticator);
+          authenticator = authenticator.withCounter(currentCounter);
+          counters.put(group.getKey(), currentCounter);
+          results[i] = AssertionResult.verified();
+        } catch (RuntimeException e) {
+          results[i] = AssertionResult.failed(e.getClass().getSimpleName());
+        }
+      }
+    }));
+    task.join();
+
+    //署名カウンタをまとめて更新 - 署名カウンタを使用しない認証器(常に0)は書き込まない
+    var credentials = new ArrayList<Credential>(counters.size());
+    counters.forEach((key, currentCounter) -> {
+      if (currentCounter == 0) {
+        return;
+      }
+      authenticatorCache.updateCounter(key.array(), currentCounter);
+      var credential = new Credential();
+      credential.setCredentialId(key.array());
+      credential.setSignatureCounter(currentCounter);
+      credentials.add(credential);
+    });
+
+    //他のサーバが先に大きい署名カウンタを書き込んでいたものは、DBから取得し直して1件ずつ検証し直す
+    for (var rejected : signatureCounterWriter.writeAll(credentials)) {
+      authenticatorCache.invalidate(rejected.getCredentialId());
+      for (var i : groups.get(ByteBuffer.wrap(rejected.getCredentialId()))) {
+        if (!results[i].isVerified()) {
+          continue;
+        }
+        try {
+          verifyAndWrite(requests.get(i));
+        } catch (RuntimeException e) {
+          results[i] = AssertionResult.failed(e.getClass().getSimpleName());
+        }
+      }
+    }
+
+    //検証し直したものは verifyAndWrite で記録済み - 同じクレデンシャルを重ねて記録しても結果は変わらない
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].isVerified()) {
+        credentialUsageTracker.record(requests.get(i).getCredentialId());
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * 認証データを公開鍵クレデンシャルで検証する。
+   * @param request 認証データ
+   * @param authenticator 登録済みの公開鍵クレデンシャル
+   * @return 認証器から送信された署名カウンタ
+   */
+  private long validate(AssertionRequest request, OriginalAuthenticator authenticator) {
     //検証用サーバ情報を生成
-    var serverProperty = new ServerProperty(
-        Origin.create(String.format("https://%s:8443", DOMAIN_NAME)), // Originの検証 - サーバが保持している値を設定
-        DOMAIN_NAME,    //rpIdの検証 - サーバが保持している値を設定
-        challenge,      //challengeの検証 - HTTPセッションに格納された値を設定
-        null            //TokenBindingId - 特に指定がなければNULLを設定
-    );
+    var serverProperty = request.getServerPropertyTemplate().create(request.getChallenge());
 
     //flagsの検証 ── ユーザ検証（多要素認証）
     //var userVerificationRequired = true;
@@ -126,33 +456,56 @@ public class WebAuthnAuthenticationService {
 
     // 検証データを生成
     var authenticationContext = new WebAuthnAuthenticationContext(
-        credentialId,       //認証器から取得したクレデンシャルID
-        clientDataJSON,     //クレデンシャルの生成に使用されたデータ
-        authenticatorData,  //認証器から取得した公開鍵クレデンシャルのデータ
-        signature,          //認証器の秘密鍵による署名データ - 公開鍵で検証を行う
+        request.getCredentialId(),       //認証器から取得したクレデンシャルID
+        request.getClientDataJSON(),     //クレデンシャルの生成に使用されたデータ
+        request.getAuthenticatorData(),  //認証器から取得した公開鍵クレデンシャルのデータ
+        request.getSignature(),          //認証器の秘密鍵による署名データ - 公開鍵で検証を行う
         serverProperty,     //中間攻撃やリプレイ攻撃を防ぐための検証用サーバ情報
         userVerificationRequired    //多要素認証チェック
     );
 
-    //DBから登録済みの公開鍵クレデンシャルを取得
-    var credential = credentialRepository.findById(credentialId).orElseThrow();
-
-    //公開鍵クレデンシャルをバイナリからデシリアライズ
-    OriginalAuthenticator authenticator = new CborConverter().readValue(credential.getPublicKey(),
-        OriginalAuthenticator.class);
-
-    //Validatorの生成
-    var validator = new WebAuthnAuthenticationContextValidator();
-
     //Validatorを使用して検証データと公開鍵クレデンシャルを検証
     //  clientDataJSONの検証 ─ 認証情報の生成に渡されたデータ
     //  signatureの検証 ─ 公開鍵による署名の検証
     //  signCountの検証 ─ クローン認証器の検出
     var response = validator.validate(authenticationContext, authenticator);
+    return response.getAuthenticatorData().getSignCount();
+  }
+
+  /**
+   * DBから公開鍵クレデンシャルを取得し、デシリアライズしてキャッシュに登録する。
+   * @param credentialId クレデンシャルID
+   * @return 公開鍵クレデンシャル
+   */
+  private OriginalAuthenticator loadAuthenticator(byte[] credentialId) {
+    //DBから登録済みの公開鍵クレデンシャルを取得
+    //  フィルタで存在しないと判定できた場合はDBを検索しない - DBに存在しなかった場合と同じ例外とする
+    var credential = (existenceFilter.mightContainCredentialId(credentialId)
+        ? credentialRepository.findById(credentialId)
+        : Optional.<Credential>empty()).orElseThrow();
+    return decodeAndCache(credential);
+  }
+
+  /**
+   * DBから取得した公開鍵クレデンシャルをデシリアライズしてキャッシュに登録する。
+   * @param credential 公開鍵クレデンシャル情報
+   * @return 公開鍵クレデンシャル
+   */
+  private OriginalAuthenticator decodeAndCache(Credential credential) {
+    var credentialId = credential.getCredentialId();
+
+    //DBに未反映の署名カウンタがある場合は、その値で検証する
+    credential.setSignatureCounter(
+        signatureCounterWriter.latest(credentialId, credential.getSignatureCounter()));
+
+    //公開鍵クレデンシャルをバイナリからデシリアライズ
+    //  アテステーションステートメントは検証に使用しないため、参照された場合のみDBから取得する
+    var authenticator = PhaseTimings.time("cbor_decode", () -> credentialCodec.decode(credential,
+        () -> credentialAttestationRepository.findById(credentialId)
+            .map(credentialCodec::decodeAttestation)
+            .orElse(null)));
 
-    //署名カウンタの更新
-    var currentCounter = response.getAuthenticatorData().getSignCount();
-    credential.setSignatureCounter(currentCounter);
-    credentialRepository.update(credential);
+    authenticatorCache.put(credentialId, credential.getUserId(), authenticator);
+    return authenticator;
   }
 }
@@ -1,80 +1,160 @@
 package jp.mijs.winter2019.security.webauthn.service;
 
-import java.security.SecureRandom;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.springframework.stereotype.Service;
 
-import com.webauthn4j.converter.util.CborConverter;
-import com.webauthn4j.data.AttestationConveyancePreference;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.webauthn4j.data.AuthenticatorAttachment;
 import com.webauthn4j.data.AuthenticatorSelectionCriteria;
 import com.webauthn4j.data.PublicKeyCredentialCreationOptions;
 import com.webauthn4j.data.PublicKeyCredentialDescriptor;
-import com.webauthn4j.data.PublicKeyCredentialParameters;
 import com.webauthn4j.data.PublicKeyCredentialRpEntity;
 import com.webauthn4j.data.PublicKeyCredentialType;
 import com.webauthn4j.data.PublicKeyCredentialUserEntity;
 import com.webauthn4j.data.UserVerificationRequirement;
 import com.webauthn4j.data.WebAuthnRegistrationContext;
-import com.webauthn4j.data.attestation.statement.COSEAlgorithmIdentifier;
-import com.webauthn4j.data.client.Origin;
 import com.webauthn4j.data.client.challenge.Challenge;
-import com.webauthn4j.data.client.challenge.DefaultChallenge;
-import com.webauthn4j.server.ServerProperty;
 import com.webauthn4j.validator.WebAuthnRegistrationContextValidator;
-import com.webauthn4j.validator.attestation.statement.androidkey.AndroidKeyAttestationStatementValidator;
-import com.webauthn4j.validator.attestation.statement.androidsafetynet.AndroidSafetyNetAttestationStatementValidator;
-import com.webauthn4j.validator.attestation.statement.none.NoneAttestationStatementValidator;
-import com.webauthn4j.validator.attestation.statement.packed.PackedAttestationStatementValidator;
-import com.webauthn4j.validator.attestation.statement.tpm.TPMAttestationStatementValidator;
-import com.webauthn4j.validator.attestation.statement.u2f.FIDOU2FAttestationStatementValidator;
-import com.webauthn4j.validator.attestation.trustworthiness.certpath.NullCertPathTrustworthinessValidator;
-import com.webauthn4j.validator.attestation.trustworthiness.ecdaa.NullECDAATrustworthinessValidator;
-import com.webauthn4j.validator.attestation.trustworthiness.self.DefaultSelfAttestationTrustworthinessValidator;
 
-import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.cache.AuthenticatorCache;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplate;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
 import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.entity.UserCredentials;
+import jp.mijs.winter2019.security.webauthn.filter.ExistenceFilter;
+import jp.mijs.winter2019.security.webauthn.management.CredentialUsageTracker;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
 import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
 import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.metrics.PhaseTimings;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
 
 /**
  * WebAuthnによるユーザの登録を行うサービス
+ * rpIdなどのoptionsの値はテナント({@link Tenant})の設定を使用し、ユーザはテナント毎に登録する。
  */
 @Service
 public class WebAuthnRegistrationService {
-  private static final String DOMAIN_NAME = "localhost";
-  
   private final UserRepository userRepository;
   private final CredentialRepository credentialRepository;
+  private final WebAuthnRegistrationContextValidator validator;
+  private final CredentialAttestationRepository credentialAttestationRepository;
+  private final CredentialCodec credentialCodec;
+  private final AuthenticatorCache authenticatorCache;
+  private final ShardRouter shardRouter;
+  private final OptionsTemplateCache optionsTemplateCache;
+  private final ExistenceFilter existenceFilter;
+  private final ChallengeGenerator challengeGenerator;
+  private final CredentialUsageTracker credentialUsageTracker;
+  private final ObjectMapper objectMapper;
 
   /**
    * コンストラクタ。
    * SpringBootによるDIが実行される
    * @param userRepository
    * @param credentialRepository
+   * @param credentialAttestationRepository
+   * @param validator
+   * @param credentialCodec
+   * @param authenticatorCache
+   * @param shardRouter
+   * @param optionsTemplateCache
+   * @param objectMapper optionsの雛形の生成に使用するObjectMapper
+   * @param existenceFilter
+   * @param challengeGenerator
+   * @param credentialUsageTracker
    */
-  public WebAuthnRegistrationService(UserRepository userRepository, CredentialRepository credentialRepository) {
+  public WebAuthnRegistrationService(UserRepository userRepository, CredentialRepository credentialRepository,
+      CredentialAttestationRepository credentialAttestationRepository,
+      WebAuthnRegistrationContextValidator validator, CredentialCodec credentialCodec,
+      AuthenticatorCache authenticatorCache,
+      ShardRouter shardRouter, OptionsTemplateCache optionsTemplateCache,
+      ObjectMapper objectMapper, ExistenceFilter existenceFilter,
+      ChallengeGenerator challengeGenerator, CredentialUsageTracker credentialUsageTracker) {
       this.userRepository = userRepository;
       this.credentialRepository = credentialRepository;
+      this.validator = validator;
+      this.credentialAttestationRepository = credentialAttestationRepository;
+      this.credentialCodec = credentialCodec;
+      this.authenticatorCache = authenticatorCache;
+      this.shardRouter = shardRouter;
+      this.optionsTemplateCache = optionsTemplateCache;
+      this.objectMapper = objectMapper;
+      this.existenceFilter = existenceFilter;
+      this.challengeGenerator = challengeGenerator;
+      this.credentialUsageTracker = credentialUsageTracker;
+  }
+
+  /**
+   * 登録要求に対するレスポンスの雛形を取得する。
+   * 登録済みのユーザの雛形はキャッシュし、キャッシュに存在する場合はDBを検索しない。
+   * 未登録のユーザはリクエスト毎にユーザIDを生成するため、キャッシュしない。
+   * challengeは{@link OptionsTemplate#render}で差し込む。
+   * @param tenant テナント
+   * @param email メールアドレス
+   * @param displayName 表示名称
+   * @return 登録要求に対するレスポンスの雛形 - {@link OptionsTemplate#getUser}で対象のユーザ情報を取得できる
+   * @throws JsonProcessingException JSON変換に失敗した場合はこの例外をスローする
+   */
+  public OptionsTemplate creationOptionsTemplate(Tenant tenant, String email, String displayName)
+      throws JsonProcessingException {
+    var cached = optionsTemplateCache.get(CeremonyType.ATTESTATION, tenant.getId(), email);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    //DBの検索より前に世代を取得し、検索中にクレデンシャルが追加された場合は古い雛形を登録しない
+    var generation = optionsTemplateCache.generation();
+    var found = find(tenant, email);
+    var userCredentials = found.orElseGet(
+        () -> new UserCredentials(createUser(tenant, email, displayName), List.of()));
+    var template = OptionsTemplate.create(objectMapper,
+        creationOptions(tenant, userCredentials, OptionsTemplate.PLACEHOLDER), userCredentials.getUser());
+    if (found.isPresent()) {
+      optionsTemplateCache.put(CeremonyType.ATTESTATION, tenant.getId(), email, template, generation);
+    }
+    return template;
   }
 
   /**
    * 登録要求に対するレスポンスを生成する。
    * レスポンスの内容はWebAuthnの仕様に従う。
-   * @param user ユーザ情報
+   * @param tenant テナント
+   * @param userCredentials ユーザ情報と登録済みのクレデンシャルID
    * @return 登録要求に対するレスポンス
    */
-  public PublicKeyCredentialCreationOptions creationOptions(User user) {
+  public PublicKeyCredentialCreationOptions creationOptions(Tenant tenant, UserCredentials userCredentials) {
+    //challenge - リプレイ攻撃への耐性
+    return creationOptions(tenant, userCredentials, challengeGenerator.challenge());
+  }
+
+  /**
+   * 指定したchallengeで登録要求に対するレスポンスを生成する。
+   * @param tenant テナント
+   * @param userCredentials ユーザ情報と登録済みのクレデンシャルID
+   * @param challenge challenge
+   * @return 登録要求に対するレスポンス
+   */
+  private PublicKeyCredentialCreationOptions creationOptions(Tenant tenant, UserCredentials userCredentials,
+      Challenge challenge) {
 
     //rp - RP(認証局)情報 - 中間者攻撃への耐性
-    var rpId = DOMAIN_NAME;
-    var rpName = "MIJS 2019Winter Security";
+    var rpId = tenant.getRpId();
+    var rpName = tenant.getRpName();
     var rp = new PublicKeyCredentialRpEntity(rpId, rpName);
 
     //user - ユーザ情報
+    var user = userCredentials.getUser();
     var userId = user.getId();
     var userName = user.getEmail();
     var userDisplayName = user.getDisplayName();
@@ -82,31 +162,22 @@ public class WebAuthnRegistrationService {
             userId,
             userName,
             userDisplayName);
-    
-    //challenge - リプレイ攻撃への耐性
-    var challenge = new DefaultChallenge();
 
     //pubKeyCredParams - 公開鍵クレデンシャルの生成方法の要求事項
     // アルゴリズムについてはこちらを参照(https://www.iana.org/assignments/cose/cose.xhtml#algorithms)
-    // 先に定義したものほど優先して使用される(この場合はES256を優先する)
-    var es256 = new PublicKeyCredentialParameters(
-            PublicKeyCredentialType.PUBLIC_KEY,
-            COSEAlgorithmIdentifier.ES256);
-    var rs256 = new PublicKeyCredentialParameters(
-            PublicKeyCredentialType.PUBLIC_KEY,
-            COSEAlgorithmIdentifier.RS256);
-    var pubKeyCredParams = List.of(es256, rs256);
+    // 先に定義したものほど優先して使用される(既定ではES256を優先する) - テナントの設定で変換済み
+    var pubKeyCredParams = tenant.getPubKeyCredParams();
 
     //timeout - 登録のタイムアウト時間（ミリ秒）
-    var timeout = 120000L;
+    var timeout = tenant.getTimeout();
 
     //excludeCredentials ─ 同一認証器の登録制限
     //  Userに紐付いたクレデンシャルIDを設定することで、同一の認証器の複数登録を制限する
-    var credentials = credentialRepository.findByUserId(user.getId());
-    var excludeCredentials = credentials.stream()
-        .map(credential -> new PublicKeyCredentialDescriptor(
+    //  クレデンシャルIDはユーザ情報と同時に取得済み - 上限を超える場合は最近使用したもののみ
+    var excludeCredentials = userCredentials.getCredentialIds().stream()
+        .map(credentialId -> new PublicKeyCredentialDescriptor(
             PublicKeyCredentialType.PUBLIC_KEY,
-            credential.getCredentialId(),
+            credentialId,
             Set.of()))
         .collect(Collectors.toList());
 
@@ -130,10 +201,8 @@ public class WebAuthnRegistrationService {
     );
 
     //attestation ─ 認証器の信頼性に関する情報(アテステーションステートメント)の要求
-    var attestation =
-        //AttestationConveyancePreference.DIRECT; //要求する
-        //AttestationConveyancePreference.NONE;   //要求しない
-        AttestationConveyancePreference.INDIRECT;   //クライアントの判断
+    //  DIRECT: 要求する / NONE: 要求しない / INDIRECT: クライアントの判断(既定値) - テナントの設定による
+    var attestation = tenant.getAttestation();
 
     // 公開鍵クレデンシャル生成API（navigator.credentials.create）のパラメータを作成
     return new PublicKeyCredentialCreationOptions(
@@ -150,29 +219,48 @@ public class WebAuthnRegistrationService {
   }
 
   /**
-   * メールアドレスからユーザ情報を検索する。
-   * ユーザ情報が存在しない場合は新規に作成する。
+   * メールアドレスからユーザ情報と登録済みのクレデンシャルIDを検索する。
+   * ユーザ情報が存在しない場合は新規に作成する。この時点ではDBに登録しない。
+   * @param tenant テナント
    * @param email メールアドレス
    * @param displayName 表示名称
-   * @return ユーザ情報
+   * @return ユーザ情報と登録済みのクレデンシャルID
+   */
+  public UserCredentials findOrElseCreate(Tenant tenant, String email, String displayName) {
+    return find(tenant, email).orElseGet(
+        () -> new UserCredentials(createUser(tenant, email, displayName), List.of()));
+  }
+
+  /**
+   * メールアドレスからユーザ情報と登録済みのクレデンシャルIDを検索する。
+   * フィルタで存在しないと判定できたメールアドレス(新規のユーザ)はDBを検索しない。
+   * フィルタはテナントを区別しない - 他のテナントのみに存在するメールアドレスはDBを検索して存在しないと判定する。
+   * クレデンシャルIDは{@link CredentialUsageTracker#limit}で最近使用したものから上限の件数までとする。
+   * @param tenant テナント
+   * @param email メールアドレス
+   * @return ユーザ情報と登録済みのクレデンシャルID - 存在しない場合は Optional.empty
    */
-  public User findOrElseCreate(String email, String displayName) {
-    return userRepository.findByEmail(email)
-        .orElseGet(() -> createUser(email, displayName));
+  private Optional<UserCredentials> find(Tenant tenant, String email) {
+    if (!existenceFilter.mightContainEmail(email)) {
+      return Optional.empty();
+    }
+    return PhaseTimings.time("user_lookup", () -> userRepository.findWithCredentialIdsByEmail(tenant.getId(), email)
+        .map(credentialUsageTracker::limit));
   }
 
   /**
    * ユーザ情報を新規に作成する。
+   * @param tenant テナント
    * @param email メールアドレス
    * @param displayName 表示名称
    * @return 新規作成されたユーザ情報
    */
-  private User createUser(String email, String displayName) {
+  private User createUser(Tenant tenant, String email, String displayName) {
     // 個人が特定できない最大64バイトのランダムなバイト列
-    var userId = new byte[32];
-    new SecureRandom().nextBytes(userId);
+    var userId = challengeGenerator.userId();
 
     var user = new User();
+    user.setTenantId(tenant.getId());
     user.setId(userId);
     user.setEmail(email);
     user.setDisplayName(displayName);
@@ -182,19 +270,30 @@ public class WebAuthnRegistrationService {
   /**
    * 認証情報をサーバ上に登録する。
    * クライアントから送信された情報の検証を行い、問題がなければサーバ上に公開鍵を登録する。
+   * @param serverPropertyTemplate ユーザのテナントの検証用サーバ情報の雛形
    * @param user ユーザ情報
    * @param challenge サーバで保持するチャレンジ情報
    * @param clientDataJSON クライアントから送信されたクレデンシャル生成のデータ
    * @param attestationObject クライアントから送信された公開鍵情報
    */
-  public void creationFinish(User user, Challenge challenge, byte[] clientDataJSON, byte[] attestationObject) {
+  public void creationFinish(ServerPropertyTemplate serverPropertyTemplate, User user, Challenge challenge,
+      byte[] clientDataJSON, byte[] attestationObject) {
+    saveCredential(user, validateCreation(serverPropertyTemplate, challenge, clientDataJSON, attestationObject));
+  }
+
+  /**
+   * クライアントから送信された認証情報を検証する。
+   * {@link #creationFinish}の1段階目 - 検証のみでDBアクセスを含まない。
+   * @param serverPropertyTemplate ユーザのテナントの検証用サーバ情報の雛形
+   * @param challenge サーバで保持するチャレンジ情報
+   * @param clientDataJSON クライアントから送信されたクレデンシャル生成のデータ
+   * @param attestationObject クライアントから送信された公開鍵情報
+   * @return 登録する公開鍵クレデンシャル
+   */
+  public OriginalAuthenticator validateCreation(ServerPropertyTemplate serverPropertyTemplate, Challenge challenge,
+      byte[] clientDataJSON, byte[] attestationObject) {
     //検証用サーバ情報を生成
-    var serverProperty = new ServerProperty(
-        Origin.create(String.format("https://%s:8443", DOMAIN_NAME)), // Originの検証 - サーバが保持している値を設定
-        DOMAIN_NAME,    //rpIdの検証 - サーバが保持している値を設定
-        challenge,      //challengeの検証 - HTTPセッションに格納された値を設定
-        null            //TokenBindingId - 特に指定がなければNULLを設定
-    );
+    var serverProperty = serverPropertyTemplate.create(challenge);
 
     //flagsの検証 ─ ユーザ検証（多要素認証）
     //var userVerificationRequired = true; //多要素認証を行っている
@@ -208,52 +307,62 @@ public class WebAuthnRegistrationService {
         userVerificationRequired    //多要素認証チェック
     );
 
-    //認証デバイスの厳密な検証を行う場合のValidator
-    var validator = new WebAuthnRegistrationContextValidator(
-        //アテステーション・ステートメントのフォーマットは全部で6種類
-        List.of(
-            // https://www.w3.org/TR/webauthn-1/#packed-attestation
-            new PackedAttestationStatementValidator(),
-            // https://www.w3.org/TR/webauthn-1/#tpm-attestation
-            new TPMAttestationStatementValidator(),
-            // https://www.w3.org/TR/webauthn-1/#android-key-attestation
-            new AndroidKeyAttestationStatementValidator(),
-            // https://www.w3.org/TR/webauthn-1/#android-safetynet-attestation
-            new AndroidSafetyNetAttestationStatementValidator(),
-            // https://www.w3.org/TR/webauthn-1/#fido-u2f-attestation
-            new FIDOU2FAttestationStatementValidator(),
-            // https://www.w3.org/TR/webauthn-1/#none-attestation
-            new NoneAttestationStatementValidator()),
-        new NullCertPathTrustworthinessValidator(), new NullECDAATrustworthinessValidator(),
-        new DefaultSelfAttestationTrustworthinessValidator());
-
     //Validatorを使用して認証情報の検証実行
-    var response = validator.validate(registrationContext);
-
-    // DBに保存する公開鍵クレデンシャルを取得
-    var credentialId = response.getAttestationObject().getAuthenticatorData().getAttestedCredentialData()
-        .getCredentialId();
+    //  アテステーション・ステートメントの検証時間(statement_validate)は、この処理時間に含めず別に記録する
+    var response = PhaseTimings.time("attestation_parse", () -> validator.validate(registrationContext));
+    CeremonyMetrics.tagAlgorithm(response.getAttestationObject().getAuthenticatorData().getAttestedCredentialData()
+        .getCOSEKey().getAlgorithm().getValue());
 
     //公開鍵クレデンシャルを生成
     //  公開鍵クレデンシャルの他にアテステーションステートメントを含める
-    var authenticator = new OriginalAuthenticator(
+    return new OriginalAuthenticator(
         response.getAttestationObject().getAuthenticatorData().getAttestedCredentialData(),
         response.getAttestationObject().getAttestationStatement(),
         response.getAttestationObject().getAuthenticatorData().getSignCount());
+  }
 
-    var signatureCounter = response.getAttestationObject().getAuthenticatorData().getSignCount();
+  /**
+   * 検証済みの公開鍵クレデンシャルをユーザと共に保存する。
+   * {@link #creationFinish}の2段階目 - DBアクセスを含む。
+   * @param user ユーザ情報
+   * @param authenticator 検証済みの公開鍵クレデンシャル
+   */
+  public void saveCredential(User user, OriginalAuthenticator authenticator) {
+    // DBに保存する公開鍵クレデンシャルを取得
+    var credentialId = authenticator.getAttestedCredentialData().getCredentialId();
 
-    // ユーザ作成
-    if (userRepository.findByEmail(user.getEmail()).isEmpty()) {
-      userRepository.insert(user);
-    }
+    // ユーザと公開鍵クレデンシャルを、それぞれのシャードのトランザクションで保存
+    //  同じシャードの場合は1つのトランザクションとなる
+    //  異なるシャードの場合は公開鍵クレデンシャルを先にコミットする - ユーザ側が失敗した場合、
+    //  公開鍵クレデンシャルは残るがuser_credentialに登録されないため、optionsには含まれない
+    shardRouter.forUser(user.getEmail()).getTransactionTemplate().execute(status -> {
+      // ユーザ作成 - 存在確認と登録を1つのSQLで行い、同じメールアドレスの同時登録でも1件のみとする
+      //  ユーザIDは登録済みのユーザのものを使用する(同時登録で他方のユーザが登録された場合を含む)
+      var registered = PhaseTimings.time("user_insert", () -> {
+        userRepository.insertIfAbsent(user);
+        var found = userRepository.findByEmail(user.getTenantId(), user.getEmail()).orElseThrow();
+        userRepository.addCredentialId(found, credentialId);
+        return found;
+      });
 
-    // 公開鍵クレデンシャルの保存
-    var credential = new Credential();
-    credential.setCredentialId(credentialId);
-    credential.setUserId(user.getId());
-    credential.setPublicKey(new CborConverter().writeValueAsBytes(authenticator));
-    credential.setSignatureCounter(signatureCounter);
-    credentialRepository.insert(credential);
+      // 公開鍵クレデンシャルの保存
+      //  認証時に使用する公開鍵と、アテステーションステートメントは別々に保存する
+      PhaseTimings.time("credential_insert", () -> shardRouter.forCredential(credentialId).getTransactionTemplate()
+          .execute(credentialStatus -> {
+            //登録直後のクレデンシャルがoptionsの上限から外れないよう、登録日時を最終使用日時とする
+            var credential = credentialCodec.encode(registered.getId(), authenticator);
+            credential.setLastUsedAt(System.currentTimeMillis());
+            credentialRepository.insert(credential);
+            credentialAttestationRepository.insert(
+                credentialCodec.encodeAttestation(credentialId, authenticator.getAttestationStatement()));
+            return null;
+          }));
+      return null;
+    });
+    authenticatorCache.invalidate(credentialId);
+    existenceFilter.putEmail(user.getEmail());
+    existenceFilter.putCredentialId(credentialId);
+    //excludeCredentials・allowCredentialsが変わるため、optionsの雛形を破棄する
+    optionsTemplateCache.invalidate(user.getTenantId(), user.getEmail());
   }
 }
@@ -0,0 +1,409 @@
+package jp.mijs.winter2019.security.webauthn.shard;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * サービスを止めずにシャード数をNから2Nに変更するクラス。
+ *   1. 移動を開始する - 以降の書き込みは移動先にも反映される({@link ShardRouter#mirror})
+ *   2. 移動する行を移動先に複写する - 開始前に始まったトランザクションの書き込みを含めるため、少なくとも2回複写する
+ *   3. 読み込み・書き込みを変更後のシャードに切り替える - 以降の書き込みは元のシャードにも反映される
+ *   4. 切り替え前に振り分け先を決めた読み込み・書き込みが完了するまで待ってから、元のシャードへの反映を終了する
+ *   5. 元のシャードの移動した行を再度複写して移動先と突き合わせてから、元のシャードから削除する
+ *      切り替え前に振り分け先を決めた書き込みが、移動先に反映されなかった場合も失われない
+ * 複写は既存の行を上書きしない冪等な更新とし、署名カウンタは大きい方の値を残すため、複写中の認証とは競合しない。
+ * 複写中に削除された行は、読み込んだ後に移動先から削除された場合でも複写で戻ってしまうため、
+ * 複写した後に元のシャードを読み直し、存在しなくなった行を移動先から削除する。
+ */
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=Resharder")
+public class Resharder {
+  // 複写の回数 - 移動先への書き込みが失敗しなくなるまで繰り返す
+  private static final int MIN_PASSES = 2;
+  private static final int MAX_PASSES = 5;
+
+  private static final String FIND_USERS =
+      "SELECT id, email, display_name, tenant_id " +
+      "FROM " +
+        "user " +
+      "WHERE " +
+        "id > :after " +
+      "ORDER BY id " +
+      "LIMIT :limit";
+
+  private static final String FIND_USER_CREDENTIALS =
+      "SELECT user_id, credential_id " +
+      "FROM " +
+        "user_credential " +
+      "WHERE " +
+        "user_id IN (:userIds)";
+
+  private static final String COPY_USER =
+      "MERGE INTO user u " +
+      "USING (SELECT 1) s " +
+        "ON u.tenant_id = :tenantId AND u.email = :email " +
+      "WHEN NOT MATCHED THEN " +
+        "INSERT (id, email, display_name, tenant_id) VALUES (:id, :email, :displayName, :tenantId)";
+
+  private static final String COPY_USER_CREDENTIAL =
+      "MERGE INTO user_credential (user_id, credential_id) KEY (user_id, credential_id) " +
+      "VALUES (:userId, :credentialId)";
+
+  private static final String FIND_CREDENTIALS =
+      "SELECT credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter, " +
+        "last_used_at " +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "credential_id > :after " +
+      "ORDER BY credential_id " +
+      "LIMIT :limit";
+
+  private static final String FIND_ATTESTATIONS =
+      "SELECT credential_id, format, attestation_statement " +
+      "FROM " +
+        "credential_attestation " +
+      "WHERE " +
+        "credential_id IN (:credentialIds)";
+
+  private static final String FIND_SIGNATURE_COUNTERS =
+      "SELECT credential_id, signature_counter " +
+      "FROM " +
+        "credential " +
+      "WHERE " +
+        "credential_id IN (:credentialIds)";
+
+  private static final String COPY_CREDENTIAL =
+      "MERGE INTO credential c " +
+      "USING (SELECT 1) s " +
+        "ON c.credential_id = :credentialId " +
+      "WHEN NOT MATCHED THEN " +
+        "INSERT (credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter, " +
+          "last_used_at) " +
+        "VALUES (:credentialId, :userId, :formatVersion, :algorithm, :aaguid, :publicKey, :signatureCounter, " +
+          ":lastUsedAt)";
+
+  private static final String COPY_ATTESTATION =
+      "MERGE INTO credential_attestation (credential_id, format, attestation_statement) KEY (credential_id) " +
+      "VALUES (:credentialId, :format, :attestationStatement)";
+
+  private static final String COPY_SIGNATURE_COUNTER =
+      "UPDATE " +
+        "credential " +
+      "SET " +
+        "signature_counter = GREATEST(signature_counter, :signatureCounter) " +
+      "WHERE " +
+        "credential_id = :credentialId";
+
+  private static final String DELETE_USER_CREDENTIAL =
+      "DELETE FROM user_credential WHERE user_id = :userId AND credential_id = :credentialId";
+
+  private static final String DELETE_ATTESTATIONS =
+      "DELETE FROM credential_attestation WHERE credential_id IN (:credentialIds)";
+
+  private static final String DELETE_CREDENTIALS =
+      "DELETE FROM credential WHERE credential_id IN (:credentialIds)";
+
+  private static final String DELETE_USER_CREDENTIALS =
+      "DELETE FROM user_credential WHERE user_id IN (:userIds)";
+
+  private static final String DELETE_USERS =
+      "DELETE FROM user WHERE id IN (:userIds)";
+
+  private final ShardRouter shardRouter;
+  private final ShardFactory shardFactory;
+  private final List<String> urls;
+  private final int batchSize;
+  private final long graceMillis;
+
+  /**
+   * コンストラクタ。
+   * @param shardRouter
+   * @param shardFactory
+   * @param urls 追加するシャードの接続先 - JMXから変更する場合に使用する
+   * @param batchSize 1回に複写・削除する件数
+   * @param graceMillis 切り替えから元のシャードの行を削除するまでの待ち時間（ミリ秒）
+   */
+  public Resharder(ShardRouter shardRouter, ShardFactory shardFactory, List<String> urls, int batchSize,
+      long graceMillis) {
+    this.shardRouter = shardRouter;
+    this.shardFactory = shardFactory;
+    this.urls = List.copyOf(urls);
+    this.batchSize = batchSize;
+    this.graceMillis = graceMillis;
+  }
+
+  /**
+   * webauthn.shard.resharding.urls のシャードを追加して、シャード数を2倍に変更する。
+   * 変更後は webauthn.shard.urls に全てのシャードを指定して再起動する。
+   * @return 移動した件数
+   * @throws InterruptedException 中断された場合はこの例外をスローする
+   */
+  @ManagedOperation
+  public synchronized String reshard() throws InterruptedException {
+    var current = shardRouter.getShards();
+    if (urls.size() != current.size()) {
+      throw new IllegalStateException(
+          "webauthn.shard.resharding.urls must list " + current.size() + " shards: " + urls);
+    }
+    var added = new ArrayList<Shard>(urls.size());
+    for (int i = 0; i < urls.size(); i++) {
+      added.add(shardFactory.create(current.size() + i, urls.get(i)));
+    }
+    return reshard(added).toString();
+  }
+
+  /**
+   * シャードを追加して、シャード数を2倍に変更する。
+   * @param added 追加するシャード - 現在のシャードと同じ数とし、番号は現在のシャードの続きとする
+   * @return 移動した件数
+   * @throws InterruptedException 中断された場合はこの例外をスローする
+   */
+  public synchronized Moved reshard(List<Shard> added) throws InterruptedException {
+    var current = shardRouter.getShards();
+    var target = new ArrayList<Shard>(current);
+    target.addAll(added);
+
+    shardRouter.beginResharding(target);
+    Moved moved = null;
+    try {
+      for (int pass = 1; ; pass++) {
+        var failures = shardRouter.getMirrorFailureCount();
+        moved = new Moved();
+        for (var source : current) {
+          copy(source, target.get(source.getIndex() + current.size()), target.size(), moved);
+        }
+        log.info("Resharding pass {}: {}", pass, moved);
+        if (pass >= MIN_PASSES && shardRouter.getMirrorFailureCount() == failures) {
+          break;
+        }
+        if (pass >= MAX_PASSES) {
+          throw new IllegalStateException("Mirror writes kept failing during resharding");
+        }
+      }
+    } catch (RuntimeException e) {
+      shardRouter.abortResharding();
+      throw e;
+    }
+    shardRouter.completeResharding();
+
+    //切り替え前に振り分け先を決めた読み込み・書き込みが、元のシャードの行を参照し終えるまで待つ
+    try {
+      Thread.sleep(graceMillis);
+    } finally {
+      shardRouter.finishResharding();
+    }
+    //元のシャードにのみ書き込まれた行・署名カウンタを移動先に反映してから削除する
+    var reconciled = new Moved();
+    for (var source : current) {
+      copy(source, target.get(source.getIndex() + current.size()), target.size(), reconciled);
+    }
+    log.info("Resharding reconciled: {}", reconciled);
+    for (var source : current) {
+      delete(source, target.size());
+    }
+    return moved;
+  }
+
+  // 移動する行を移動先に複写する
+  private void copy(Shard source, Shard destination, int shardCount, Moved moved) {
+    var index = source.getIndex();
+    var after = new byte[0];
+    while (true) {
+      var users = source.getJdbc().queryForList(FIND_USERS, page(after));
+      if (users.isEmpty()) {
+        break;
+      }
+      var userIds = new ArrayList<byte[]>();
+      var batch = new ArrayList<SqlParameterSource>();
+      for (var user : users) {
+        if (ShardRouter.indexOf(ShardRouter.hash((String) user.get("EMAIL")), shardCount) != index) {
+          userIds.add((byte[]) user.get("ID"));
+          batch.add(new MapSqlParameterSource()
+              .addValue("id", user.get("ID"))
+              .addValue("email", user.get("EMAIL"))
+              .addValue("displayName", user.get("DISPLAY_NAME"))
+              .addValue("tenantId", user.get("TENANT_ID")));
+        }
+      }
+      if (!userIds.isEmpty()) {
+        destination.getJdbc().batchUpdate(COPY_USER, batch.toArray(new SqlParameterSource[0]));
+        var userIdParams = new MapSqlParameterSource("userIds", userIds);
+        var copied = userCredentials(source.getJdbc().queryForList(FIND_USER_CREDENTIALS, userIdParams));
+        destination.getJdbc().batchUpdate(COPY_USER_CREDENTIAL, copied.values().toArray(new SqlParameterSource[0]));
+        //複写の間に元のシャードで削除されたものは、移動先の削除より後に複写した可能性があるため削除し直す
+        userCredentials(source.getJdbc().queryForList(FIND_USER_CREDENTIALS, userIdParams))
+            .keySet().forEach(copied::remove);
+        if (!copied.isEmpty()) {
+          destination.getJdbc().batchUpdate(DELETE_USER_CREDENTIAL,
+              copied.values().toArray(new SqlParameterSource[0]));
+        }
+        moved.users += userIds.size();
+      }
+      after = (byte[]) users.get(users.size() - 1).get("ID");
+    }
+
+    after = new byte[0];
+    while (true) {
+      var credentials = source.getJdbc().queryForList(FIND_CREDENTIALS, page(after));
+      if (credentials.isEmpty()) {
+        break;
+      }
+      var credentialIds = new ArrayList<byte[]>();
+      var batch = new ArrayList<SqlParameterSource>();
+      for (var credential : credentials) {
+        var credentialId = (byte[]) credential.get("CREDENTIAL_ID");
+        if (ShardRouter.indexOf(ShardRouter.hash(credentialId), shardCount) != index) {
+          credentialIds.add(credentialId);
+          batch.add(new MapSqlParameterSource()
+              .addValue("credentialId", credentialId)
+              .addValue("userId", credential.get("USER_ID"))
+              .addValue("formatVersion", credential.get("FORMAT_VERSION"))
+              .addValue("algorithm", credential.get("ALGORITHM"))
+              .addValue("aaguid", credential.get("AAGUID"))
+              .addValue("publicKey", credential.get("PUBLIC_KEY"))
+              .addValue("signatureCounter", credential.get("SIGNATURE_COUNTER"))
+              .addValue("lastUsedAt", credential.get("LAST_USED_AT")));
+        }
+      }
+      if (!credentialIds.isEmpty()) {
+        var ids = new MapSqlParameterSource("credentialIds", credentialIds);
+        destination.getJdbc().batchUpdate(COPY_CREDENTIAL, batch.toArray(new SqlParameterSource[0]));
+        destination.getJdbc().batchUpdate(COPY_ATTESTATION, source.getJdbc().queryForList(FIND_ATTESTATIONS, ids)
+            .stream()
+            .map(row -> new MapSqlParameterSource()
+                .addValue("credentialId", row.get("CREDENTIAL_ID"))
+                .addValue("format", row.get("FORMAT"))
+                .addValue("attestationStatement", row.get("ATTESTATION_STATEMENT")))
+            .toArray(SqlParameterSource[]::new));
+        //複写した後に元のシャードで更新された署名カウンタを反映する
+        //  これ以降の更新は移動先の行にも反映されるため、この時点の値で追いつく
+        var counters = source.getJdbc().queryForList(FIND_SIGNATURE_COUNTERS, ids);
+        destination.getJdbc().batchUpdate(COPY_SIGNATURE_COUNTER, counters.stream()
+            .map(row -> new MapSqlParameterSource()
+                .addValue("credentialId", row.get("CREDENTIAL_ID"))
+                .addValue("signatureCounter", row.get("SIGNATURE_COUNTER")))
+            .toArray(SqlParameterSource[]::new));
+        //複写の間に元のシャードで削除(失効)されたものは、移動先の削除より後に複写した可能性があるため削除し直す
+        var remaining = new HashSet<ByteBuffer>();
+        counters.forEach(row -> remaining.add(ByteBuffer.wrap((byte[]) row.get("CREDENTIAL_ID"))));
+        var revoked = new ArrayList<byte[]>();
+        for (var credentialId : credentialIds) {
+          if (!remaining.contains(ByteBuffer.wrap(credentialId))) {
+            revoked.add(credentialId);
+          }
+        }
+        if (!revoked.isEmpty()) {
+          var revokedIds = new MapSqlParameterSource("credentialIds", revoked);
+          destination.getTransactionTemplate().execute(status -> {
+            destination.getJdbc().update(DELETE_ATTESTATIONS, revokedIds);
+            return destination.getJdbc().update(DELETE_CREDENTIALS, revokedIds);
+          });
+        }
+        moved.credentials += credentialIds.size() - revoked.size();
+      }
+      after = (byte[]) credentials.get(credentials.size() - 1).get("CREDENTIAL_ID");
+    }
+  }
+
+  // 移動した行を元のシャードから削除する
+  private void delete(Shard source, int shardCount) {
+    var index = source.getIndex();
+    var after = new byte[0];
+    while (true) {
+      var credentials = source.getJdbc().queryForList(FIND_CREDENTIALS, page(after));
+      if (credentials.isEmpty()) {
+        break;
+      }
+      var credentialIds = new ArrayList<byte[]>();
+      for (var credential : credentials) {
+        var credentialId = (byte[]) credential.get("CREDENTIAL_ID");
+        if (ShardRouter.indexOf(ShardRouter.hash(credentialId), shardCount) != index) {
+          credentialIds.add(credentialId);
+        }
+      }
+      if (!credentialIds.isEmpty()) {
+        var ids = new MapSqlParameterSource("credentialIds", credentialIds);
+        source.getTransactionTemplate().execute(status -> {
+          source.getJdbc().update(DELETE_ATTESTATIONS, ids);
+          return source.getJdbc().update(DELETE_CREDENTIALS, ids);
+        });
+      }
+      after = (byte[]) credentials.get(credentials.size() - 1).get("CREDENTIAL_ID");
+    }
+
+    after = new byte[0];
+    while (true) {
+      var users = source.getJdbc().queryForList(FIND_USERS, page(after));
+      if (users.isEmpty()) {
+        break;
+      }
+      var userIds = new ArrayList<byte[]>();
+      for (var user : users) {
+        if (ShardRouter.indexOf(ShardRouter.hash((String) user.get("EMAIL")), shardCount) != index) {
+          userIds.add((byte[]) user.get("ID"));
+        }
+      }
+      if (!userIds.isEmpty()) {
+        var ids = new MapSqlParameterSource("userIds", userIds);
+        source.getTransactionTemplate().execute(status -> {
+          source.getJdbc().update(DELETE_USER_CREDENTIALS, ids);
+          return source.getJdbc().update(DELETE_USERS, ids);
+        });
+      }
+      after = (byte[]) users.get(users.size() - 1).get("ID");
+    }
+  }
+
+  // user_credentialの行を、ユーザIDとクレデンシャルIDの組をキーとしたパラメータにする
+  private static Map<List<ByteBuffer>, SqlParameterSource> userCredentials(List<Map<String, Object>> rows) {
+    var userCredentials = new LinkedHashMap<List<ByteBuffer>, SqlParameterSource>();
+    for (var row : rows) {
+      var userId = (byte[]) row.get("USER_ID");
+      var credentialId = (byte[]) row.get("CREDENTIAL_ID");
+      userCredentials.put(List.of(ByteBuffer.wrap(userId), ByteBuffer.wrap(credentialId)),
+          new MapSqlParameterSource()
+              .addValue("userId", userId)
+              .addValue("credentialId", credentialId));
+    }
+    return userCredentials;
+  }
+
+  private MapSqlParameterSource page(byte[] after) {
+    return new MapSqlParameterSource()
+        .addValue("after", after)
+        .addValue("limit", batchSize);
+  }
+
+  /**
+   * 移動した件数。
+   */
+  public static class Moved {
+    private int users;
+    private int credentials;
+
+    public int getUsers() {
+      return users;
+    }
+
+    public int getCredentials() {
+      return credentials;
+    }
+
+    @Override
+    public String toString() {
+      return "users=" + users + ", credentials=" + credentials;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package jp.mijs.winter2019.security.webauthn.shard;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * ユーザ・公開鍵クレデンシャルを振り分ける先のデータベース。
+ * 同じシャード内のテーブルのみ、1つのトランザクションで更新できる。
+ */
+public class Shard {
+  private final int index;
+  private final String name;
+  private final DataSource dataSource;
+  private final NamedParameterJdbcOperations jdbc;
+  private final TransactionTemplate transactionTemplate;
+
+  /**
+   * コンストラクタ。
+   * @param index シャードの番号(0から)
+   * @param name ログに出力する名前(接続先のURLなど)
+   * @param dataSource
+   * @param jdbc dataSourceに接続するjdbc
+   * @param transactionTemplate dataSourceのトランザクション
+   */
+  public Shard(int index, String name, DataSource dataSource, NamedParameterJdbcOperations jdbc,
+      TransactionTemplate transactionTemplate) {
+    this.index = index;
+    this.name = name;
+    this.dataSource = dataSource;
+    this.jdbc = jdbc;
+    this.transactionTemplate = transactionTemplate;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  public NamedParameterJdbcOperations getJdbc() {
+    return jdbc;
+  }
+
+  public TransactionTemplate getTransactionTemplate() {
+    return transactionTemplate;
+  }
+
+  @Override
+  public String toString() {
+    return "Shard[" + index + ":" + name + "]";
+  }
+}
@@ -0,0 +1,100 @@
+package jp.mijs.winter2019.security.webauthn.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.flywaydb.core.Flyway;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.flyway.FlywayConfigurationCustomizer;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 接続先のURLからシャードを生成するクラス。
+ * シャード毎にコネクションプールを作成し、テーブル定義(db/migration)を適用する。
+ * 作成したコネクションプールは終了時に閉じる。
+ */
+@Slf4j
+public class ShardFactory implements DisposableBean {
+  private final String username;
+  private final String password;
+  private final int poolSize;
+  private final String[] locations;
+  private final FlywayMigrationStrategy migrationStrategy;
+  private final FlywayConfigurationCustomizer configurationCustomizer;
+  private final List<HikariDataSource> dataSources = new ArrayList<>();
+
+  /**
+   * コンストラクタ。
+   * @param username 全てのシャードで共通のユーザ名
+   * @param password 全てのシャードで共通のパスワード
+   * @param poolSize シャード毎のコネクションプールの最大数
+   * @param locations テーブル定義の場所
+   * @param migrationStrategy テーブル定義の適用方法 - nullの場合は未適用のバージョンのみを適用する
+   * @param configurationCustomizer Flywayの設定 - nullの場合は既定値
+   */
+  public ShardFactory(String username, String password, int poolSize, String[] locations,
+      FlywayMigrationStrategy migrationStrategy, FlywayConfigurationCustomizer configurationCustomizer) {
+    this.username = username;
+    this.password = password;
+    this.poolSize = poolSize;
+    this.locations = locations;
+    this.migrationStrategy = migrationStrategy;
+    this.configurationCustomizer = configurationCustomizer;
+  }
+
+  /**
+   * シャードを生成する。
+   * @param index シャードの番号
+   * @param url 接続先のURL
+   * @return シャード
+   */
+  public synchronized Shard create(int index, String url) {
+    var dataSource = new HikariDataSource();
+    dataSource.setPoolName("webauthn-shard-" + index);
+    dataSource.setJdbcUrl(url);
+    dataSource.setUsername(username);
+    dataSource.setPassword(password);
+    dataSource.setMaximumPoolSize(poolSize);
+    dataSources.add(dataSource);
+
+    var configuration = Flyway.configure().dataSource(dataSource).locations(locations);
+    if (configurationCustomizer != null) {
+      configurationCustomizer.customize(configuration);
+    }
+    var flyway = configuration.load();
+    if (migrationStrategy != null) {
+      migrationStrategy.migrate(flyway);
+    } else {
+      flyway.migrate();
+    }
+    log.info("Shard {} initialized: {}", index, url);
+    return of(index, url, dataSource);
+  }
+
+  /**
+   * 既存のDataSourceをシャードとする。テーブル定義は適用済みとする。
+   * @param index シャードの番号
+   * @param name ログに出力する名前
+   * @param dataSource
+   * @return シャード
+   */
+  public static Shard of(int index, String name, DataSource dataSource) {
+    return new Shard(index, name, dataSource, new NamedParameterJdbcTemplate(dataSource),
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+  }
+
+  @Override
+  public synchronized void destroy() {
+    dataSources.forEach(HikariDataSource::close);
+    dataSources.clear();
+  }
+}
@@ -0,0 +1,292 @@
+package jp.mijs.winter2019.security.webauthn.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ユーザ・公開鍵クレデンシャルの保管先のシャードを決定するクラス。
+ * 公開鍵クレデンシャル(credential, credential_attestation)はクレデンシャルIDの、
+ * ユーザ(user, user_credential)はメールアドレスのハッシュ値をシャード数で割った余りで振り分ける。
+ * ユーザのDBアクセスは全てメールアドレスから始まるため、ユーザIDではなくメールアドレスを使用する。
+ *
+ * シャード数をNから2Nに増やす場合、ハッシュ値を2Nで割った余りはNで割った余りと同じか、それにNを加えた値となる。
+ * そのため移動する行は元のシャードの約半分で、移動先は追加したシャードのいずれか1つに決まる。
+ * 移動中({@link #beginResharding}から{@link #completeResharding}まで)は読み込みは元のシャードから行い、
+ * 書き込みはコミット後に移動先のシャードにも反映する({@link #mirror})。
+ * 切り替え後も{@link #finishResharding}までは、書き込みを元のシャードにも反映する - 切り替え前に振り分け先を決めた
+ * 読み込み・書き込みが元のシャードを参照し終えるまで、元のシャードと移動先の内容を揃える。
+ * 書き込みの振り分け先と反映先は、同じ時点の配置から決める({@link #credentialRoute}, {@link #userRoute})。
+ */
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=ShardRouter")
+public class ShardRouter {
+  private volatile Layout layout;
+  private final LongAdder mirrorFailureCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * @param shards シャード - 番号の順序で指定する
+   */
+  public ShardRouter(List<Shard> shards) {
+    this.layout = new Layout(List.copyOf(shards), null, null);
+  }
+
+  /**
+   * 公開鍵クレデンシャルの保管先のシャードを取得する。
+   * @param credentialId クレデンシャルID
+   * @return シャード
+   */
+  public Shard forCredential(byte[] credentialId) {
+    var shards = layout.shards;
+    return shards.get(indexOf(hash(credentialId), shards.size()));
+  }
+
+  /**
+   * ユーザの保管先のシャードを取得する。
+   * @param email ユーザのメールアドレス
+   * @return シャード
+   */
+  public Shard forUser(String email) {
+    var shards = layout.shards;
+    return shards.get(indexOf(hash(email), shards.size()));
+  }
+
+  /**
+   * 公開鍵クレデンシャルを書き込むシャードを取得する。
+   * @param credentialId クレデンシャルID
+   * @return 書き込むシャードと、書き込みを反映するシャード
+   */
+  public Route credentialRoute(byte[] credentialId) {
+    return routeOf(hash(credentialId));
+  }
+
+  /**
+   * ユーザを書き込むシャードを取得する。
+   * @param email ユーザのメールアドレス
+   * @return 書き込むシャードと、書き込みを反映するシャード
+   */
+  public Route userRoute(String email) {
+    return routeOf(hash(email));
+  }
+
+  // 振り分け先と反映先を同じ時点の配置から決める - 別々に参照すると、間に切り替わった場合に反映先がなくなる
+  private Route routeOf(long hash) {
+    var current = layout;
+    var primary = current.shards.get(indexOf(hash, current.shards.size()));
+    var others = current.target != null ? current.target : current.previous;
+    if (others == null) {
+      return new Route(primary, null);
+    }
+    var mirror = others.get(indexOf(hash, others.size()));
+    return new Route(primary, mirror == primary ? null : mirror);
+  }
+
+  /**
+   * 移動先のシャードに書き込む。
+   * トランザクション中の場合はコミット後に書き込む(ロールバックされた場合は書き込まない)。
+   * 移動先への書き込みは冪等な更新とし、失敗した場合は件数を記録して例外をスローしない - 移動処理が再度複写する。
+   * @param mirror 反映先のシャード({@link Route#getMirror}) - nullの場合は何もしない
+   * @param write 書き込み処理
+   */
+  public void mirror(Shard mirror, Consumer<NamedParameterJdbcOperations> write) {
+    if (mirror == null) {
+      return;
+    }
+    Runnable action = () -> {
+      try {
+        write.accept(mirror.getJdbc());
+      } catch (DataAccessException e) {
+        mirrorFailureCount.increment();
+        log.warn("Failed to mirror write to {}", mirror, e);
+      }
+    };
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          action.run();
+        }
+      });
+    } else {
+      action.run();
+    }
+  }
+
+  /**
+   * 現在のシャードを取得する。
+   * @return シャード - 番号の順序
+   */
+  public List<Shard> getShards() {
+    return layout.shards;
+  }
+
+  /**
+   * シャード数の変更を開始する。
+   * 以降の書き込みは、移動する行について移動先のシャードにも反映する。
+   * @param target 変更後のシャード - 現在のシャードの後に同じ数のシャードを追加したもの
+   */
+  public synchronized void beginResharding(List<Shard> target) {
+    var current = layout;
+    if (current.target != null || current.previous != null) {
+      throw new IllegalStateException("Resharding is already in progress");
+    }
+    if (target.size() != current.shards.size() * 2 || !target.subList(0, current.shards.size()).equals(current.shards)) {
+      throw new IllegalArgumentException("Target shards must double the current shards: " + target);
+    }
+    layout = new Layout(current.shards, List.copyOf(target), null);
+    log.info("Resharding started: {} -> {} shards", current.shards.size(), target.size());
+  }
+
+  /**
+   * 読み込み・書き込みを変更後のシャードに切り替える。
+   * 以降の書き込みは、移動した行について元のシャードにも反映する({@link #finishResharding}まで)。
+   */
+  public synchronized void completeResharding() {
+    var current = layout;
+    if (current.target == null) {
+      throw new IllegalStateException("Resharding is not in progress");
+    }
+    layout = new Layout(current.target, null, current.shards);
+    log.info("Resharding completed: {} shards", current.target.size());
+  }
+
+  /**
+   * 元のシャードへの書き込みの反映を終了する。
+   * 元のシャードの移動した行は、この後に移動先と突き合わせてから削除する。
+   */
+  public synchronized void finishResharding() {
+    var current = layout;
+    if (current.previous == null) {
+      throw new IllegalStateException("Resharding is not completed");
+    }
+    layout = new Layout(current.shards, null, null);
+    log.info("Resharding finished: stopped mirroring to {} shards", current.previous.size());
+  }
+
+  /**
+   * シャード数の変更を中止する。
+   * 移動先に複写した行は残るため、再度変更する前に削除する。
+   */
+  public synchronized void abortResharding() {
+    layout = new Layout(layout.shards, null, null);
+    log.warn("Resharding aborted: {} shards", layout.shards.size());
+  }
+
+  @ManagedAttribute
+  public int getShardCount() {
+    return layout.shards.size();
+  }
+
+  @ManagedAttribute
+  public boolean isResharding() {
+    var current = layout;
+    return current.target != null || current.previous != null;
+  }
+
+  @ManagedAttribute
+  public long getMirrorFailureCount() {
+    return mirrorFailureCount.sum();
+  }
+
+  /**
+   * ハッシュ値からシャードの番号を求める。
+   * @param hash {@link #hash}で求めたハッシュ値
+   * @param shardCount シャード数
+   * @return シャードの番号
+   */
+  public static int indexOf(long hash, int shardCount) {
+    return (int) Long.remainderUnsigned(hash, shardCount);
+  }
+
+  /**
+   * シャードの振り分けに使用するハッシュ値を求める。
+   * サーバやJVMによらず同じ値とするため、Object#hashCodeは使用しない(FNV-1aとSplitMix64の最終処理)。
+   * @param key クレデンシャルID、またはメールアドレスのバイト列(UTF-8)
+   * @return ハッシュ値
+   */
+  public static long hash(byte[] key) {
+    var h = 0xcbf29ce484222325L;
+    for (var b : key) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+    h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+    return h ^ (h >>> 31);
+  }
+
+  /**
+   * シャードの振り分けに使用するハッシュ値を求める。
+   * @param email メールアドレス
+   * @return ハッシュ値
+   */
+  public static long hash(String email) {
+    return hash(email.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * 書き込むシャードと、書き込みを反映するシャード。
+   */
+  public static final class Route {
+    private final Shard primary;
+    private final Shard mirror;
+
+    Route(Shard primary, Shard mirror) {
+      this.primary = primary;
+      this.mirror = mirror;
+    }
+
+    /**
+     * @return 書き込むシャード
+     */
+    public Shard getPrimary() {
+      return primary;
+    }
+
+    /**
+     * @return 書き込みを反映するシャード - 変更中でない場合、または移動しない行の場合はnull
+     */
+    public Shard getMirror() {
+      return mirror;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Route)) {
+        return false;
+      }
+      var other = (Route) obj;
+      return primary == other.primary && mirror == other.mirror;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(primary, mirror);
+    }
+  }
+
+  // 現在のシャードと、移動中の場合は変更後のシャード、切り替え後の場合は元のシャード - まとめて入れ替える
+  private static class Layout {
+    private final List<Shard> shards;
+    private final List<Shard> target;
+    private final List<Shard> previous;
+
+    Layout(List<Shard> shards, List<Shard> target, List<Shard> previous) {
+      this.shards = shards;
+      this.target = target;
+      this.previous = previous;
+    }
+  }
+}
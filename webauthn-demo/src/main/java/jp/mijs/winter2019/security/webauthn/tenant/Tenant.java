@@ -0,0 +1,150 @@
+package jp.mijs.winter2019.security.webauthn.tenant;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.webauthn4j.data.AttestationConveyancePreference;
+import com.webauthn4j.data.PublicKeyCredentialParameters;
+import com.webauthn4j.data.PublicKeyCredentialType;
+import com.webauthn4j.data.attestation.statement.COSEAlgorithmIdentifier;
+import com.webauthn4j.data.client.Origin;
+
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+
+/**
+ * テナント(RP)毎の設定。
+ * optionsの生成と検証に使用する値は、読み込んだ時点でWebAuthnのオブジェクトに変換して固定する。
+ * 設定を読み込み直した場合は、新しいインスタンスと入れ替える。
+ */
+public class Tenant {
+  /** テナントの設定ファイルを指定しない場合のテナントID - テナント導入前のユーザもこのテナントに属する */
+  public static final String DEFAULT_ID = "default";
+
+  private final String id;
+  private final String rpId;
+  private final String rpName;
+  private final Set<String> hosts;
+  private final List<PublicKeyCredentialParameters> pubKeyCredParams;
+  private final long timeout;
+  private final AttestationConveyancePreference attestation;
+  // Originヘッダの値(ポート番号が既定値の場合は省略した形式)から検証用サーバ情報の雛形を引く
+  private final Map<String, ServerPropertyTemplate> serverPropertyTemplates;
+  private final ServerPropertyTemplate defaultServerPropertyTemplate;
+
+  /**
+   * コンストラクタ。
+   * @param id テナントID
+   * @param rpId rpId
+   * @param rpName RPの名称
+   * @param hosts Hostヘッダのホスト名(ポート番号を除く) - 空の場合はoriginsのホスト名
+   * @param origins 受け付けるOrigin - 先頭をOriginヘッダがない場合に使用する
+   * @param algorithms 公開鍵クレデンシャルのアルゴリズム(COSEAlgorithmIdentifier) - 優先するものから順に指定する
+   * @param timeout optionsのtimeout（ミリ秒）
+   * @param attestation アテステーションの要求
+   */
+  public Tenant(String id, String rpId, String rpName, List<String> hosts, List<String> origins,
+      List<Long> algorithms, long timeout, AttestationConveyancePreference attestation) {
+    if (origins.isEmpty()) {
+      throw new IllegalArgumentException("No origins for tenant: " + id);
+    }
+    if (algorithms.isEmpty()) {
+      throw new IllegalArgumentException("No algorithms for tenant: " + id);
+    }
+    this.id = id;
+    this.rpId = rpId;
+    this.rpName = rpName;
+    this.timeout = timeout;
+    this.attestation = attestation;
+    this.pubKeyCredParams = algorithms.stream()
+        .map(algorithm -> new PublicKeyCredentialParameters(
+            PublicKeyCredentialType.PUBLIC_KEY,
+            COSEAlgorithmIdentifier.create(algorithm)))
+        .collect(Collectors.toUnmodifiableList());
+
+    var templates = new LinkedHashMap<String, ServerPropertyTemplate>();
+    for (var origin : origins) {
+      var parsed = Origin.create(origin);
+      templates.put(originKey(parsed), new ServerPropertyTemplate(parsed, rpId));
+    }
+    this.serverPropertyTemplates = Map.copyOf(templates);
+    this.defaultServerPropertyTemplate = templates.values().iterator().next();
+    this.hosts = hosts.isEmpty()
+        ? templates.values().stream()
+            .map(template -> template.getOrigin().getHost())
+            .collect(Collectors.toUnmodifiableSet())
+        : hosts.stream().map(host -> host.toLowerCase(Locale.ROOT)).collect(Collectors.toUnmodifiableSet());
+  }
+
+  /**
+   * Originヘッダに対応する検証用サーバ情報の雛形を取得する。
+   * 受け付けるOriginでない場合、またはOriginヘッダがない場合は先頭のOriginの雛形を返す - clientDataJSONのoriginの検証で失敗する。
+   * @param origin Originヘッダの値 - ない場合はnull
+   * @return 検証用サーバ情報の雛形
+   */
+  public ServerPropertyTemplate serverPropertyTemplate(String origin) {
+    if (origin == null) {
+      return defaultServerPropertyTemplate;
+    }
+    return serverPropertyTemplates.getOrDefault(origin, defaultServerPropertyTemplate);
+  }
+
+  // ブラウザが送信するOriginヘッダの形式 - 既定のポート番号は省略される
+  private static String originKey(Origin origin) {
+    var defaultPort = "https".equals(origin.getScheme()) ? 443 : 80;
+    var port = origin.getPort();
+    return origin.getScheme() + "://" + origin.getHost() + (port == defaultPort || port < 0 ? "" : ":" + port);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getRpId() {
+    return rpId;
+  }
+
+  public String getRpName() {
+    return rpName;
+  }
+
+  public Set<String> getHosts() {
+    return hosts;
+  }
+
+  public List<PublicKeyCredentialParameters> getPubKeyCredParams() {
+    return pubKeyCredParams;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public AttestationConveyancePreference getAttestation() {
+    return attestation;
+  }
+
+  /**
+   * 受け付けるOrigin(Originヘッダの形式)
+   * @return Originの一覧
+   */
+  public Set<String> getOrigins() {
+    return serverPropertyTemplates.keySet();
+  }
+
+  /**
+   * Originヘッダがない場合に使用する検証用サーバ情報の雛形。
+   * @return 先頭のOriginの雛形
+   */
+  public ServerPropertyTemplate getDefaultServerPropertyTemplate() {
+    return defaultServerPropertyTemplate;
+  }
+
+  @Override
+  public String toString() {
+    return "Tenant(id=" + id + ", rpId=" + rpId + ", hosts=" + hosts + ", origins=" + getOrigins() + ")";
+  }
+}
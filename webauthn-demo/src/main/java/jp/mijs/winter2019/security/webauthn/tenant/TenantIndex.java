@@ -0,0 +1,195 @@
+package jp.mijs.winter2019.security.webauthn.tenant;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webauthn4j.data.AttestationConveyancePreference;
+import com.webauthn4j.data.attestation.statement.COSEAlgorithmIdentifier;
+
+/**
+ * Hostヘッダのホスト名・テナントID毎のテナントの索引。
+ * 読み込んだ時点の内容で固定し、再読み込みの際は新しい索引と入れ替える(コピーオンライト)。
+ * テナント数によらず、1回のハッシュ表の参照でテナントを判定する。
+ *
+ * ファイルはテナントのJSONの配列、または1件のJSONとする。
+ * id・rpId・originsは必須で、他の項目は省略した場合に{@link #defaults}のテナントと同じ値とする。
+ * timeoutMillisはチャレンジの有効期限(webauthn.challenge-store.timeout-millis)以下とし、省略した場合は有効期限と同じ値とする -
+ * 有効期限を超えると、クライアントがtimeout内に応答してもチャレンジが破棄されて検証に失敗するため。
+ * テナントID・rpId・ホスト名はテナント間で重複できない - rpIdが異なるため、他のテナントで登録したクレデンシャルは検証で失敗する。
+ */
+public class TenantIndex {
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+  // テナントIDはoptionsの雛形のキャッシュのキーに含めるため、区切り文字を含まないものとする
+  private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_.-]{1,64}");
+
+  private static final String DEFAULT_RP_ID = "localhost";
+  private static final String DEFAULT_RP_NAME = "MIJS 2019Winter Security";
+  private static final String DEFAULT_ORIGIN = "https://localhost:8443";
+  // 先に定義したものほど優先して使用される(ES256を優先する)
+  private static final List<Long> DEFAULT_ALGORITHMS =
+      List.of(COSEAlgorithmIdentifier.ES256.getValue(), COSEAlgorithmIdentifier.RS256.getValue());
+  private static final long DEFAULT_TIMEOUT = 120000L;
+  private static final AttestationConveyancePreference DEFAULT_ATTESTATION = AttestationConveyancePreference.INDIRECT;
+
+  private final long generation;
+  private final Map<String, Tenant> byHost;
+  private final Map<String, Tenant> byId;
+  private final Tenant defaultTenant;
+
+  private TenantIndex(long generation, List<Tenant> tenants) throws IOException {
+    var byHost = new HashMap<String, Tenant>();
+    var byId = new HashMap<String, Tenant>();
+    var rpIds = new HashSet<String>();
+    for (var tenant : tenants) {
+      if (byId.put(tenant.getId(), tenant) != null) {
+        throw new IOException("Duplicate tenant id: " + tenant.getId());
+      }
+      if (!rpIds.add(tenant.getRpId())) {
+        throw new IOException("Duplicate rpId: " + tenant.getRpId());
+      }
+      for (var host : tenant.getHosts()) {
+        if (byHost.put(host, tenant) != null) {
+          throw new IOException("Duplicate host: " + host);
+        }
+      }
+    }
+    this.generation = generation;
+    this.byHost = Map.copyOf(byHost);
+    this.byId = Map.copyOf(byId);
+    this.defaultTenant = tenants.get(0);
+  }
+
+  /**
+   * 設定ファイルを指定しない場合の索引を作成する。
+   * テナントID{@value Tenant#DEFAULT_ID}・rpId localhost・Origin https://localhost:8443 の1件のみとする。
+   * @return 索引
+   */
+  public static TenantIndex defaults() {
+    return defaults(DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * 設定ファイルを指定しない場合の索引を作成する。
+   * @param challengeTimeoutMillis チャレンジの有効期限(ミリ秒) - optionsのtimeoutとする
+   * @return 索引
+   */
+  public static TenantIndex defaults(long challengeTimeoutMillis) {
+    try {
+      return new TenantIndex(0, List.of(new Tenant(Tenant.DEFAULT_ID, DEFAULT_RP_ID, DEFAULT_RP_NAME, List.of(),
+          List.of(DEFAULT_ORIGIN), DEFAULT_ALGORITHMS, challengeTimeoutMillis, DEFAULT_ATTESTATION)));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * ファイルから索引を作成する。
+   * @param file テナントの設定ファイル
+   * @param generation 索引の世代 - 再読み込みの毎に増やす
+   * @param challengeTimeoutMillis チャレンジの有効期限(ミリ秒) - テナントのtimeoutMillisの上限
+   * @return 索引
+   * @throws IOException ファイルが読み込めない場合、または形式が不正な場合はこの例外をスローする
+   */
+  public static TenantIndex load(Path file, long generation, long challengeTimeoutMillis) throws IOException {
+    var root = MAPPER.readTree(Files.readAllBytes(file));
+    var tenants = new ArrayList<Tenant>();
+    try {
+      for (var node : root.isArray() ? root : MAPPER.createArrayNode().add(root)) {
+        tenants.add(tenant(node, challengeTimeoutMillis));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid tenant in " + file + ": " + e.getMessage(), e);
+    }
+    if (tenants.isEmpty()) {
+      throw new IOException("No tenants in " + file);
+    }
+    return new TenantIndex(generation, tenants);
+  }
+
+  // テナント1件分の設定を変換する - 不正な値はIllegalArgumentExceptionとする
+  private static Tenant tenant(JsonNode node, long challengeTimeoutMillis) {
+    var id = node.path("id").asText();
+    if (!ID_PATTERN.matcher(id).matches()) {
+      throw new IllegalArgumentException("invalid id: " + id);
+    }
+    var rpId = node.path("rpId").asText();
+    if (rpId.isEmpty()) {
+      throw new IllegalArgumentException("rpId is required: " + id);
+    }
+    var algorithms = new ArrayList<Long>();
+    node.path("algorithms").forEach(algorithm -> algorithms.add(algorithm.asLong()));
+    var attestation = node.path("attestation").isMissingNode()
+        ? DEFAULT_ATTESTATION
+        : AttestationConveyancePreference.create(node.path("attestation").asText().toLowerCase(Locale.ROOT));
+    if (attestation == null) {
+      throw new IllegalArgumentException("invalid attestation: " + id);
+    }
+    var timeoutMillis = node.path("timeoutMillis").asLong(challengeTimeoutMillis);
+    if (timeoutMillis <= 0 || timeoutMillis > challengeTimeoutMillis) {
+      throw new IllegalArgumentException("timeoutMillis must be between 1 and the challenge timeout "
+          + challengeTimeoutMillis + ": " + id);
+    }
+    return new Tenant(
+        id,
+        rpId,
+        node.path("rpName").asText(DEFAULT_RP_NAME),
+        texts(node.path("hosts")),
+        texts(node.path("origins")),
+        algorithms.isEmpty() ? DEFAULT_ALGORITHMS : algorithms,
+        timeoutMillis,
+        attestation);
+  }
+
+  private static List<String> texts(JsonNode array) {
+    var texts = new ArrayList<String>();
+    array.forEach(text -> texts.add(text.asText()));
+    return texts;
+  }
+
+  /**
+   * ホスト名に対応するテナントを取得する。
+   * @param host ホスト名(ポート番号を除く、小文字)
+   * @return テナント - 存在しない場合はnull
+   */
+  public Tenant getByHost(String host) {
+    return byHost.get(host);
+  }
+
+  /**
+   * テナントIDに対応するテナントを取得する。
+   * @param id テナントID
+   * @return テナント - 存在しない場合はnull
+   */
+  public Tenant getById(String id) {
+    return byId.get(id);
+  }
+
+  /**
+   * 設定ファイルの先頭のテナント。
+   * HTTPリクエストを伴わない処理(ウォームアップ・一括登録など)でテナントを指定しない場合に使用する。
+   * @return 先頭のテナント
+   */
+  public Tenant getDefaultTenant() {
+    return defaultTenant;
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  public int size() {
+    return byId.size();
+  }
+}
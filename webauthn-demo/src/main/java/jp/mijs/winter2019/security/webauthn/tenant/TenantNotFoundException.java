@@ -0,0 +1,17 @@
+package jp.mijs.winter2019.security.webauthn.tenant;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Hostヘッダ・テナントIDに対応するテナントが存在しない場合の例外。
+ * 設定ファイルに含まれないホスト名でリクエストされた場合に発生する。
+ */
+@ResponseStatus(HttpStatus.NOT_FOUND)
+public class TenantNotFoundException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public TenantNotFoundException(String key) {
+    super("Tenant is not found: " + key);
+  }
+}
@@ -0,0 +1,190 @@
+package jp.mijs.winter2019.security.webauthn.tenant;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * リクエストのHostヘッダからテナントを判定するクラス。
+ * テナントの設定は{@link TenantIndex}に変換して保持し、読み込み直す場合は新しい索引と入れ替える。
+ * 判定は入れ替え中もロックを取得せず、読み込み前の索引で行う。
+ * 設定ファイルは別のスレッドで一定間隔毎に更新を確認し、更新されていれば読み込み直す。
+ * 設定ファイルを指定しない場合は{@link TenantIndex#defaults}のテナントのみとする。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=TenantRegistry")
+public class TenantRegistry implements DisposableBean {
+  private final Path file;
+  private final OptionsTemplateCache optionsTemplateCache;
+  private final long challengeTimeoutMillis;
+  private final ScheduledExecutorService executor;
+
+  private volatile TenantIndex index;
+  private volatile FileTime lastModified;
+
+  private final LongAdder reloadCount = new LongAdder();
+  private final LongAdder unknownHostCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * 起動時にファイルを読み込み、読み込めない場合は起動を中止する。
+   * @param optionsTemplateCache
+   * @param file テナントの設定ファイル - 未指定の場合は既定のテナントのみ
+   * @param reloadIntervalMillis ファイルの更新を確認する間隔(ミリ秒) - 0の場合は確認しない
+   * @param challengeTimeoutMillis チャレンジの有効期限(ミリ秒) - テナントのtimeoutMillisの上限
+   * @throws IOException ファイルが読み込めない場合はこの例外をスローする
+   */
+  public TenantRegistry(OptionsTemplateCache optionsTemplateCache,
+      @Value("${webauthn.tenants.file:}") String file,
+      @Value("${webauthn.tenants.reload-interval-millis:60000}") long reloadIntervalMillis,
+      @Value("${webauthn.challenge-store.timeout-millis:120000}") long challengeTimeoutMillis) throws IOException {
+    this.optionsTemplateCache = optionsTemplateCache;
+    this.challengeTimeoutMillis = challengeTimeoutMillis;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "tenant-reload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (file.isEmpty()) {
+      this.file = null;
+      this.index = TenantIndex.defaults(challengeTimeoutMillis);
+      return;
+    }
+    this.file = Paths.get(file);
+    this.lastModified = Files.getLastModifiedTime(this.file);
+    this.index = TenantIndex.load(this.file, 0, challengeTimeoutMillis);
+    log.info("Loaded {} tenants from {}", index.size(), file);
+    if (reloadIntervalMillis > 0) {
+      executor.scheduleWithFixedDelay(this::reloadIfModified, reloadIntervalMillis, reloadIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Hostヘッダの値からテナントを判定する。
+   * ポート番号を除いたホスト名で、テナント数によらず1回のハッシュ表の参照で判定する。
+   * @param host Hostヘッダの値
+   * @return テナント
+   * @throws TenantNotFoundException ホスト名に対応するテナントが存在しない場合はこの例外をスローする
+   */
+  public Tenant resolve(String host) {
+    var tenant = host == null ? null : index.getByHost(hostName(host));
+    if (tenant == null) {
+      unknownHostCount.increment();
+      throw new TenantNotFoundException(host);
+    }
+    return tenant;
+  }
+
+  /**
+   * テナントIDからテナントを取得する。
+   * @param id テナントID - nullの場合は先頭のテナント
+   * @return テナント
+   * @throws TenantNotFoundException テナントIDに対応するテナントが存在しない場合はこの例外をスローする
+   */
+  public Tenant get(String id) {
+    var current = index;
+    var tenant = id == null ? current.getDefaultTenant() : current.getById(id);
+    if (tenant == null) {
+      throw new TenantNotFoundException(id);
+    }
+    return tenant;
+  }
+
+  /**
+   * 設定ファイルの先頭のテナントを取得する。
+   * HTTPリクエストを伴わない処理で使用する。
+   * @return 先頭のテナント
+   */
+  public Tenant getDefaultTenant() {
+    return index.getDefaultTenant();
+  }
+
+  // ポート番号を除いたホスト名 - IPv6アドレスは角括弧を含めたままとする
+  static String hostName(String host) {
+    var end = host.startsWith("[") ? host.indexOf(']') + 1 : host.lastIndexOf(':');
+    var name = end > 0 ? host.substring(0, end) : host;
+    //小文字の場合は同じインスタンスが返る
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  // ファイルが更新されている場合のみ読み込み直す
+  private void reloadIfModified() {
+    try {
+      if (!Files.getLastModifiedTime(file).equals(lastModified)) {
+        reload();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to reload tenants from {}", file, e);
+    }
+  }
+
+  /**
+   * テナントの設定ファイルを読み込み直す。
+   * 読み込みに失敗した場合は、読み込み前の索引を使用し続ける。
+   * optionsの雛形はrpIdなどのテナントの設定を含むため、読み込み直した場合は破棄する。
+   * 読み込み直す前に発行したセレモニーは、読み込み後の設定で検証する。
+   * @throws IOException ファイルが読み込めない場合はこの例外をスローする
+   */
+  @ManagedOperation
+  public synchronized void reload() throws IOException {
+    if (file == null) {
+      return;
+    }
+    var modified = Files.getLastModifiedTime(file);
+    var loaded = TenantIndex.load(file, index.getGeneration() + 1, challengeTimeoutMillis);
+    index = loaded;
+    lastModified = modified;
+    optionsTemplateCache.invalidateAll();
+    reloadCount.increment();
+    log.info("Reloaded {} tenants from {}", loaded.size(), file);
+  }
+
+  @ManagedAttribute
+  public int getTenantCount() {
+    return index.size();
+  }
+
+  @ManagedAttribute
+  public long getGeneration() {
+    return index.getGeneration();
+  }
+
+  @ManagedAttribute
+  public long getReloadCount() {
+    return reloadCount.sum();
+  }
+
+  /**
+   * 対応するテナントが存在しないHostヘッダでリクエストされた回数。
+   * @return 回数
+   */
+  @ManagedAttribute
+  public long getUnknownHostCount() {
+    return unknownHostCount.sum();
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+}
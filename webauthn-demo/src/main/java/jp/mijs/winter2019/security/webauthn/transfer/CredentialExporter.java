@@ -0,0 +1,200 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.webauthn4j.converter.util.CborConverter;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.CredentialAttestation;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.service.CredentialCodec;
+import jp.mijs.winter2019.security.webauthn.shard.Shard;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ユーザと公開鍵クレデンシャルをファイルに一括で出力するクラス。
+ * {@link CredentialImporter}で読み込める形式で出力する。
+ * シャード毎にユーザIDの順に一定件数ずつ読み込んで書き出すため、全件をメモリに読み込まない。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=CredentialExporter")
+public class CredentialExporter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final SerializedString NEWLINE = new SerializedString("\n");
+
+  private static final String FIND_USERS =
+      "SELECT id, email, display_name, tenant_id " +
+      "FROM " +
+        "user " +
+      "WHERE " +
+        "id > :after " +
+      "ORDER BY id " +
+      "LIMIT :limit";
+
+  private static final String FIND_USER_CREDENTIALS =
+      "SELECT user_id, credential_id " +
+      "FROM " +
+        "user_credential " +
+      "WHERE " +
+        "user_id IN (:userIds)";
+
+  private final ShardRouter shardRouter;
+  private final CredentialRepository credentialRepository;
+  private final CredentialAttestationRepository credentialAttestationRepository;
+  private final CredentialCodec credentialCodec;
+  private final CborConverter cborConverter;
+  private final int batchSize;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param shardRouter
+   * @param credentialRepository
+   * @param credentialAttestationRepository
+   * @param credentialCodec
+   * @param cborConverter
+   * @param batchSize 1回に読み込むユーザ数
+   */
+  public CredentialExporter(ShardRouter shardRouter, CredentialRepository credentialRepository,
+      CredentialAttestationRepository credentialAttestationRepository, CredentialCodec credentialCodec,
+      CborConverter cborConverter, @Value("${webauthn.transfer.batch-size:1000}") int batchSize) {
+    this.shardRouter = shardRouter;
+    this.credentialRepository = credentialRepository;
+    this.credentialAttestationRepository = credentialAttestationRepository;
+    this.credentialCodec = credentialCodec;
+    this.cborConverter = cborConverter;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * ファイルに一括で出力する(JMX)。
+   * @param path 出力先のファイル
+   * @param format ファイル形式(NDJSON, CBOR)
+   * @return 出力したユーザ数
+   * @throws IOException ファイルに書き込めない場合はこの例外をスローする
+   */
+  @ManagedOperation
+  public long exportFile(String path, String format) throws IOException {
+    return exportTo(Paths.get(path), TransferFormat.valueOf(format));
+  }
+
+  /**
+   * ファイルに一括で出力する。
+   * 出力先のファイルが存在する場合は上書きする。
+   * @param file 出力先のファイル
+   * @param format ファイル形式
+   * @return 出力したユーザ数
+   * @throws IOException ファイルに書き込めない場合はこの例外をスローする
+   */
+  public long exportTo(Path file, TransferFormat format) throws IOException {
+    var exported = 0L;
+    var writer = format.objectMapper().writerFor(TransferRecord.class)
+        .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        var generator = format.objectMapper().getFactory()
+            .createGenerator(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))) {
+      //JSONの場合は1ユーザ毎に改行する(CBORの場合は区切りを出力しない)
+      generator.setRootValueSeparator(NEWLINE);
+      for (var shard : shardRouter.getShards()) {
+        var after = new byte[0];
+        while (true) {
+          var records = findRecords(shard, after);
+          if (records.isEmpty()) {
+            break;
+          }
+          for (var record : records) {
+            writer.writeValue(generator, record);
+          }
+          exported += records.size();
+          after = records.get(records.size() - 1).getUserId();
+        }
+      }
+      if (format == TransferFormat.NDJSON && exported > 0) {
+        generator.writeRaw('\n');
+      }
+    }
+    log.info("Exported {} users to {}", exported, file);
+    return exported;
+  }
+
+  // ユーザIDの順に次のユーザを読み込み、公開鍵クレデンシャルとアテステーション情報を付加する
+  private List<TransferRecord> findRecords(Shard shard, byte[] after) {
+    var records = new LinkedHashMap<ByteBuffer, TransferRecord>();
+    shard.getJdbc().query(FIND_USERS, new MapSqlParameterSource()
+        .addValue("after", after)
+        .addValue("limit", batchSize), rs -> {
+          var record = new TransferRecord();
+          record.setUserId(rs.getBytes(1));
+          record.setEmail(rs.getString(2));
+          record.setDisplayName(rs.getString(3));
+          record.setTenantId(rs.getString(4));
+          records.put(ByteBuffer.wrap(record.getUserId()), record);
+        });
+    if (records.isEmpty()) {
+      return List.of();
+    }
+
+    //公開鍵クレデンシャルは別のシャードに保管される場合があるため、user_credentialから検索する
+    var credentialIds = new ArrayList<byte[]>();
+    shard.getJdbc().query(FIND_USER_CREDENTIALS,
+        new MapSqlParameterSource("userIds", records.values().stream()
+            .map(TransferRecord::getUserId).collect(Collectors.toList())),
+        rs -> { credentialIds.add(rs.getBytes(2)); });
+    if (!credentialIds.isEmpty()) {
+      var attestations = new HashMap<ByteBuffer, CredentialAttestation>();
+      credentialAttestationRepository.findByIds(credentialIds)
+          .forEach(attestation -> attestations.put(ByteBuffer.wrap(attestation.getCredentialId()), attestation));
+      for (var credential : credentialRepository.findByIds(credentialIds)) {
+        var record = records.get(ByteBuffer.wrap(credential.getUserId()));
+        if (record != null) {
+          record.getCredentials().add(toTransfer(credential,
+              attestations.get(ByteBuffer.wrap(credential.getCredentialId()))));
+        }
+      }
+    }
+    return new ArrayList<>(records.values());
+  }
+
+  // 保存形式によらず、公開鍵はCOSE_Key形式で出力する
+  private TransferCredential toTransfer(Credential credential, CredentialAttestation attestation) {
+    var authenticator = credentialCodec.decode(credential, () -> null);
+    var attestedCredentialData = authenticator.getAttestedCredentialData();
+
+    var transfer = new TransferCredential();
+    transfer.setCredentialId(credential.getCredentialId());
+    transfer.setPublicKey(cborConverter.writeValueAsBytes(attestedCredentialData.getCOSEKey()));
+    transfer.setAaguid(credential.getFormatVersion() == Credential.FORMAT_VERSION_LEGACY
+        ? attestedCredentialData.getAaguid().getBytes()
+        : credential.getAaguid());
+    transfer.setSignatureCounter(credential.getSignatureCounter());
+    if (attestation != null) {
+      transfer.setAttestationFormat(attestation.getFormat());
+      transfer.setAttestationStatement(attestation.getAttestationStatement());
+    }
+    return transfer;
+  }
+}
@@ -0,0 +1,293 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.webauthn4j.converter.util.CborConverter;
+import com.webauthn4j.data.attestation.authenticator.COSEKey;
+
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.CredentialAttestation;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.entity.UserCredentials;
+import jp.mijs.winter2019.security.webauthn.filter.ExistenceFilter;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.service.CredentialCodec;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ユーザと公開鍵クレデンシャルをファイルから一括で登録するクラス。
+ * ファイルを先頭から順に読み込み、一定件数毎に公開鍵を並列に検証してからバッチ登録・コミットする。
+ * コミットする毎に再開位置({@link ImportCheckpoint})を保存し、途中で停止した場合は次回その位置から再開する。
+ * 再開位置の保存前に停止した場合は最後の1回分を再度登録するが、登録済みの行は重複して登録しない。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=CredentialImporter")
+public class CredentialImporter implements DisposableBean {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_USER_ID_LENGTH = 64;
+  private static final int MAX_EMAIL_LENGTH = 250;
+  private static final int MAX_DISPLAY_NAME_LENGTH = 255;
+  private static final int MAX_CREDENTIAL_ID_LENGTH = 255;
+  private static final int MAX_PUBLIC_KEY_LENGTH = 1024;
+  private static final int AAGUID_LENGTH = 16;
+
+  private final UserRepository userRepository;
+  private final CredentialRepository credentialRepository;
+  private final CredentialAttestationRepository credentialAttestationRepository;
+  private final CredentialCodec credentialCodec;
+  private final CborConverter cborConverter;
+  private final OptionsTemplateCache optionsTemplateCache;
+  private final ExistenceFilter existenceFilter;
+  private final TenantRegistry tenantRegistry;
+  private final ForkJoinPool validationPool;
+  private final int batchSize;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param userRepository
+   * @param credentialRepository
+   * @param credentialAttestationRepository
+   * @param credentialCodec
+   * @param cborConverter
+   * @param optionsTemplateCache
+   * @param existenceFilter
+   * @param tenantRegistry
+   * @param batchSize 1回にコミットするユーザ数
+   * @param parallelism 公開鍵の検証に使用するスレッド数
+   */
+  public CredentialImporter(UserRepository userRepository, CredentialRepository credentialRepository,
+      CredentialAttestationRepository credentialAttestationRepository, CredentialCodec credentialCodec,
+      CborConverter cborConverter, OptionsTemplateCache optionsTemplateCache, ExistenceFilter existenceFilter,
+      TenantRegistry tenantRegistry,
+      @Value("${webauthn.transfer.batch-size:1000}") int batchSize,
+      @Value("${webauthn.transfer.parallelism:4}") int parallelism) {
+    this.userRepository = userRepository;
+    this.credentialRepository = credentialRepository;
+    this.credentialAttestationRepository = credentialAttestationRepository;
+    this.credentialCodec = credentialCodec;
+    this.cborConverter = cborConverter;
+    this.optionsTemplateCache = optionsTemplateCache;
+    this.existenceFilter = existenceFilter;
+    this.tenantRegistry = tenantRegistry;
+    //認証の署名検証用のプールと競合しないよう、専用のプールを使用する
+    this.validationPool = new ForkJoinPool(parallelism);
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * ファイルから一括で登録する(JMX)。
+   * @param path 登録元のファイル
+   * @param format ファイル形式(NDJSON, CBOR)
+   * @return 登録した件数
+   * @throws IOException ファイルを読み込めない場合はこの例外をスローする
+   */
+  @ManagedOperation
+  public String importFile(String path, String format) throws IOException {
+    return importFrom(Paths.get(path), TransferFormat.valueOf(format)).toString();
+  }
+
+  /**
+   * ファイルから一括で登録する。
+   * 検証に失敗したユーザは登録せずに警告を出力し、次のユーザから登録を続ける。
+   * ファイル形式の誤りなど、以降を読み込めない場合は例外をスローする - 再開位置は最後にコミットした位置のまま残る。
+   * @param file 登録元のファイル
+   * @param format ファイル形式
+   * @return 登録した件数(前回までに登録した件数を含む)
+   * @throws IOException ファイルを読み込めない場合はこの例外をスローする
+   */
+  public synchronized ImportCheckpoint importFrom(Path file, TransferFormat format) throws IOException {
+    var checkpoint = ImportCheckpoint.load(file);
+    if (checkpoint.getPosition() > 0) {
+      log.info("Resuming import of {} from {}", file, checkpoint);
+    }
+    var start = checkpoint.getPosition();
+    var reader = format.objectMapper().readerFor(TransferRecord.class);
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      channel.position(start);
+      var in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+      try (var parser = format.objectMapper().getFactory().createParser(in);
+          MappingIterator<TransferRecord> records = reader.readValues(parser)) {
+        var batch = new ArrayList<TransferRecord>(batchSize);
+        while (records.hasNextValue()) {
+          batch.add(records.nextValue());
+          if (batch.size() == batchSize) {
+            importBatch(batch, checkpoint, start + parser.getCurrentLocation().getByteOffset());
+            batch.clear();
+          }
+        }
+        if (!batch.isEmpty()) {
+          importBatch(batch, checkpoint, start + parser.getCurrentLocation().getByteOffset());
+        }
+      }
+    }
+    checkpoint.delete();
+    log.info("Imported {}: {}", file, checkpoint);
+    return checkpoint;
+  }
+
+  // 公開鍵を並列に検証し、検証に成功したユーザを登録して再開位置を保存する
+  private void importBatch(List<TransferRecord> batch, ImportCheckpoint checkpoint, long position)
+      throws IOException {
+    List<Validated> validated;
+    try {
+      validated = validationPool.submit(() -> batch.parallelStream()
+          .map(this::validate)
+          .collect(Collectors.toList())).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Import interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Validation failed", e.getCause());
+    }
+
+    var accepted = new ArrayList<Validated>(validated.size());
+    var users = new ArrayList<UserCredentials>(validated.size());
+    for (var v : validated) {
+      if (v.reason != null) {
+        log.warn("Rejected {}: {}", v.email, v.reason);
+        continue;
+      }
+      var credentialIds = v.credentials.stream().map(Credential::getCredentialId).collect(Collectors.toList());
+      accepted.add(v);
+      users.add(new UserCredentials(v.user, credentialIds));
+    }
+
+    var credentials = new ArrayList<Credential>();
+    if (!users.isEmpty()) {
+      //同じテナント・メールアドレスのユーザが登録済みの場合は、登録済みのユーザIDで公開鍵クレデンシャルを登録する
+      userRepository.insertAllIfAbsent(users);
+      var attestations = new ArrayList<CredentialAttestation>();
+      for (var v : accepted) {
+        var userId = v.user.getId();
+        v.credentials.forEach(credential -> credential.setUserId(userId));
+        credentials.addAll(v.credentials);
+        attestations.addAll(v.attestations);
+      }
+      credentialRepository.insertAllIfAbsent(credentials);
+      credentialAttestationRepository.mergeAll(attestations);
+      users.forEach(user -> {
+        optionsTemplateCache.invalidate(user.getUser().getTenantId(), user.getUser().getEmail());
+        existenceFilter.putEmail(user.getUser().getEmail());
+      });
+      credentials.forEach(credential -> existenceFilter.putCredentialId(credential.getCredentialId()));
+    }
+    checkpoint.advance(position, users.size(), credentials.size(), validated.size() - accepted.size());
+  }
+
+  // ユーザ1件分の値の範囲と公開鍵を検証し、保存形式に変換する
+  private Validated validate(TransferRecord record) {
+    var validated = new Validated(record.getEmail());
+    try {
+      require(record.getUserId() != null && record.getUserId().length > 0
+          && record.getUserId().length <= MAX_USER_ID_LENGTH, "invalid userId");
+      require(record.getEmail() != null && !record.getEmail().isBlank()
+          && record.getEmail().length() <= MAX_EMAIL_LENGTH, "invalid email");
+      var displayName = record.getDisplayName() == null ? record.getEmail() : record.getDisplayName();
+      require(displayName.length() <= MAX_DISPLAY_NAME_LENGTH, "invalid displayName");
+
+      //テナントIDは存在するテナントのもののみ受け付ける
+      var tenant = tenantRegistry.get(record.getTenantId());
+      var user = new User();
+      user.setTenantId(tenant.getId());
+      user.setId(record.getUserId());
+      user.setEmail(record.getEmail());
+      user.setDisplayName(displayName);
+      validated.user = user;
+      for (var transfer : record.getCredentials()) {
+        validate(user, transfer, validated);
+      }
+    } catch (RuntimeException e) {
+      //COSE_KeyやCBORの変換の例外もここで受ける
+      validated.reason = e.getMessage();
+    }
+    return validated;
+  }
+
+  private void validate(User user, TransferCredential transfer, Validated validated) {
+    var credentialId = transfer.getCredentialId();
+    require(credentialId != null && credentialId.length > 0 && credentialId.length <= MAX_CREDENTIAL_ID_LENGTH,
+        "invalid credentialId");
+    require(transfer.getPublicKey() != null && transfer.getPublicKey().length <= MAX_PUBLIC_KEY_LENGTH,
+        "invalid publicKey");
+    require(transfer.getAaguid() == null || transfer.getAaguid().length == AAGUID_LENGTH, "invalid aaguid");
+    require(transfer.getSignatureCounter() >= 0, "invalid signatureCounter");
+
+    COSEKey coseKey = cborConverter.readValue(transfer.getPublicKey(), COSEKey.class);
+    require(coseKey != null, "invalid publicKey");
+    coseKey.validate();
+    require(coseKey.getAlgorithm() != null, "publicKey has no alg");
+    require(!coseKey.hasPrivateKey(), "publicKey contains a private key");
+    //鍵のパラメータが不正な場合はここで例外となる
+    require(coseKey.getPublicKey() != null, "invalid publicKey");
+
+    var credential = new Credential();
+    credential.setCredentialId(credentialId);
+    credential.setUserId(user.getId());
+    credential.setFormatVersion(Credential.FORMAT_VERSION_SPLIT);
+    credential.setAlgorithm(coseKey.getAlgorithm().getValue());
+    credential.setAaguid(transfer.getAaguid());
+    credential.setPublicKey(cborConverter.writeValueAsBytes(coseKey));
+    credential.setSignatureCounter(transfer.getSignatureCounter());
+    validated.credentials.add(credential);
+
+    if (transfer.getAttestationFormat() == null && transfer.getAttestationStatement() == null) {
+      return;
+    }
+    var attestation = new CredentialAttestation();
+    attestation.setCredentialId(credentialId);
+    attestation.setFormat(transfer.getAttestationFormat());
+    attestation.setAttestationStatement(transfer.getAttestationStatement());
+    require(attestation.getFormat() != null && attestation.getAttestationStatement() != null,
+        "attestationFormat and attestationStatement must be specified together");
+    credentialCodec.decodeAttestation(attestation);
+    validated.attestations.add(attestation);
+  }
+
+  private static void require(boolean condition, String message) {
+    if (!condition) {
+      throw new IllegalArgumentException(message);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    validationPool.shutdown();
+  }
+
+  // 検証結果 - reasonがnullの場合は検証に成功
+  private static class Validated {
+    private final String email;
+    private User user;
+    private final List<Credential> credentials = new ArrayList<>();
+    private final List<CredentialAttestation> attestations = new ArrayList<>();
+    private String reason;
+
+    Validated(String email) {
+      this.email = email;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * 一括登録の再開位置。
+ * 登録元のファイルと同じディレクトリに「ファイル名.checkpoint」として保存する。
+ * コミット済みの最後のユーザの次の位置(ファイル先頭からのバイト数)と、それまでの件数を保持する。
+ */
+public class ImportCheckpoint {
+  private final Path path;
+  private final long fileSize;
+  private long position;
+  private long users;
+  private long credentials;
+  private long rejected;
+
+  private ImportCheckpoint(Path path, long fileSize) {
+    this.path = path;
+    this.fileSize = fileSize;
+  }
+
+  /**
+   * 登録元のファイルの再開位置を読み込む。
+   * 保存されていない場合は、ファイルの先頭とする。
+   * @param file 登録元のファイル
+   * @return 再開位置
+   * @throws IOException 読み込めない場合、または保存後に登録元のファイルが変更された場合はこの例外をスローする
+   */
+  public static ImportCheckpoint load(Path file) throws IOException {
+    var path = file.resolveSibling(file.getFileName() + ".checkpoint");
+    var checkpoint = new ImportCheckpoint(path, Files.size(file));
+    if (!Files.exists(path)) {
+      return checkpoint;
+    }
+    var properties = new Properties();
+    try (var in = Files.newInputStream(path)) {
+      properties.load(in);
+    }
+    if (Long.parseLong(properties.getProperty("fileSize")) != checkpoint.fileSize) {
+      throw new IOException("File size changed since the checkpoint was saved: " + path);
+    }
+    checkpoint.position = Long.parseLong(properties.getProperty("position"));
+    checkpoint.users = Long.parseLong(properties.getProperty("users"));
+    checkpoint.credentials = Long.parseLong(properties.getProperty("credentials"));
+    checkpoint.rejected = Long.parseLong(properties.getProperty("rejected"));
+    return checkpoint;
+  }
+
+  /**
+   * 再開位置を進めて保存する。
+   * 一時ファイルに書き込んでから置き換えるため、保存中に停止しても前回の再開位置が残る。
+   * @param position コミット済みの最後のユーザの次の位置
+   * @param users 登録したユーザ数
+   * @param credentials 登録した公開鍵クレデンシャル数
+   * @param rejected 検証に失敗したユーザ数
+   * @throws IOException 保存できない場合はこの例外をスローする
+   */
+  public void advance(long position, int users, int credentials, int rejected) throws IOException {
+    this.position = position;
+    this.users += users;
+    this.credentials += credentials;
+    this.rejected += rejected;
+
+    var properties = new Properties();
+    properties.setProperty("fileSize", String.valueOf(fileSize));
+    properties.setProperty("position", String.valueOf(this.position));
+    properties.setProperty("users", String.valueOf(this.users));
+    properties.setProperty("credentials", String.valueOf(this.credentials));
+    properties.setProperty("rejected", String.valueOf(this.rejected));
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (var out = Files.newOutputStream(temporary)) {
+      properties.store(out, null);
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * 全て登録した後に、再開位置を削除する。
+   * @throws IOException 削除できない場合はこの例外をスローする
+   */
+  public void delete() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  public long getUsers() {
+    return users;
+  }
+
+  public long getCredentials() {
+    return credentials;
+  }
+
+  public long getRejected() {
+    return rejected;
+  }
+
+  @Override
+  public String toString() {
+    return "position=" + position + ", users=" + users + ", credentials=" + credentials + ", rejected=" + rejected;
+  }
+}
@@ -0,0 +1,24 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import lombok.Data;
+import lombok.ToString;
+
+/**
+ * 一括登録・出力する公開鍵クレデンシャル1件分の情報
+ */
+@Data
+@ToString
+public class TransferCredential {
+  /** クレデンシャルID */
+  private byte[] credentialId;
+  /** 公開鍵(COSE_Key形式のCBOR) - アルゴリズム(alg)を含むこと */
+  private byte[] publicKey;
+  /** 認証器のモデルを識別するID(16バイト) - 省略可 */
+  private byte[] aaguid;
+  /** 認証器カウンタ */
+  private long signatureCounter;
+  /** アテステーション・ステートメントのフォーマット - 省略可 */
+  private String attestationFormat;
+  /** アテステーション・ステートメント(このサーバの保存形式のCBOR) - 省略可 */
+  private byte[] attestationStatement;
+}
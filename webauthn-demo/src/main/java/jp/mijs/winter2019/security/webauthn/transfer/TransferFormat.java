@@ -0,0 +1,36 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * 一括登録・出力のファイル形式。
+ * いずれの形式も1ユーザを1つの値({@link TransferRecord})とし、値を順に並べる。
+ */
+public enum TransferFormat {
+  /** 1行に1ユーザのJSON(改行区切り) - バイト列はBase64で表す */
+  NDJSON(new JsonFactory()),
+  /** 1ユーザ毎のCBORの値を連結したもの(CBOR Sequence, RFC 8742) - バイト列はCBORのバイト列で表す */
+  CBOR(new CBORFactory());
+
+  private final ObjectMapper objectMapper;
+
+  TransferFormat(JsonFactory factory) {
+    //他のIdPの出力に項目が追加されていても読み込めるよう、未知の項目は無視する
+    this.objectMapper = new ObjectMapper(factory)
+        .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+        .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+  }
+
+  /**
+   * この形式を読み書きするObjectMapperを取得する。
+   * アプリケーションのObjectMapperとは設定を共有しない。
+   * @return ObjectMapper
+   */
+  public ObjectMapper objectMapper() {
+    return objectMapper;
+  }
+}
@@ -0,0 +1,25 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Data;
+import lombok.ToString;
+
+/**
+ * 一括登録・出力するユーザ1件分の情報
+ */
+@Data
+@ToString
+public class TransferRecord {
+  /** テナントID - 省略した場合は既定のテナント */
+  private String tenantId;
+  /** ユーザID(user.idのバイト列) - 同じテナント・メールアドレスのユーザが登録済みの場合は使用しない */
+  private byte[] userId;
+  /** メールアドレス */
+  private String email;
+  /** 表示名称 */
+  private String displayName;
+  /** ユーザの公開鍵クレデンシャル */
+  private List<TransferCredential> credentials = new ArrayList<>();
+}
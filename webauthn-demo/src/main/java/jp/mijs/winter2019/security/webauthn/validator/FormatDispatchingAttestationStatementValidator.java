@@ -0,0 +1,44 @@
+package jp.mijs.winter2019.security.webauthn.validator;
+
+import java.util.Map;
+
+import com.webauthn4j.data.attestation.statement.AttestationType;
+import com.webauthn4j.validator.RegistrationObject;
+import com.webauthn4j.validator.attestation.statement.AttestationStatementValidator;
+import com.webauthn4j.validator.exception.BadAttestationStatementException;
+
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.metrics.PhaseTimings;
+
+/**
+ * アテステーション・ステートメントのフォーマット(fmt)をキーに検証処理を振り分けるValidator。
+ * WebAuthnRegistrationContextValidatorは登録されたValidatorのsupportsを先頭から順に呼び出すため、
+ * 6種類のValidatorを個別に登録する代わりに、このクラスを1つだけ登録して参照表で振り分ける。
+ */
+public class FormatDispatchingAttestationStatementValidator implements AttestationStatementValidator {
+  private final Map<String, AttestationStatementValidator> validators;
+
+  /**
+   * コンストラクタ。
+   * @param validators フォーマット名をキーとした検証処理の参照表
+   */
+  public FormatDispatchingAttestationStatementValidator(Map<String, AttestationStatementValidator> validators) {
+    this.validators = Map.copyOf(validators);
+  }
+
+  @Override
+  public AttestationType validate(RegistrationObject registrationObject) {
+    var format = registrationObject.getAttestationObject().getFormat();
+    CeremonyMetrics.tagFormat(format);
+    var validator = validators.get(format);
+    if (validator == null) {
+      throw new BadAttestationStatementException("Supported AttestationStatement is not found.");
+    }
+    return PhaseTimings.time("statement_validate", () -> validator.validate(registrationObject));
+  }
+
+  @Override
+  public boolean supports(RegistrationObject registrationObject) {
+    return validators.containsKey(registrationObject.getAttestationObject().getFormat());
+  }
+}
@@ -0,0 +1,265 @@
+package jp.mijs.winter2019.security.webauthn.validator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.webauthn4j.data.attestation.authenticator.AAGUID;
+import com.webauthn4j.data.attestation.statement.AttestationCertificatePath;
+import com.webauthn4j.data.attestation.statement.CertificateBaseAttestationStatement;
+import com.webauthn4j.validator.attestation.trustworthiness.certpath.CertPathTrustworthinessValidator;
+import com.webauthn4j.validator.exception.CertificateException;
+import com.webauthn4j.validator.exception.TrustAnchorNotFoundException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * FIDOメタデータ・ステートメントのルート証明書で、アテステーション証明書の証明書パスを検証するValidator。
+ * AAGUIDに対応するメタデータ・ステートメントが存在しない場合は、信頼できない認証器として登録を拒否する。
+ *
+ * PKIXによる証明書パスの検証結果は、AAGUIDと証明書パスのハッシュ値をキーとしてキャッシュする。
+ * 同じ機種の認証器は同じ証明書パスを送信するため、2件目以降の登録では検証を省略する。
+ * 検証に成功した結果は証明書パスとルート証明書の有効期限まで(最大 ttlMillis)、失敗した結果は failureTtlMillis の間保持する。
+ * メタデータ・ステートメントのファイルは別のスレッドで一定間隔毎に更新を確認して読み込み直し、
+ * 読み込み中も登録の検証は読み込み前の索引で行う。読み込み直した場合はキャッシュした結果を使用しない。
+ */
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=MetadataTrustValidator")
+public class MetadataCertPathTrustworthinessValidator implements CertPathTrustworthinessValidator, DisposableBean {
+  private final Path file;
+  private final int maxSize;
+  private final long ttlMillis;
+  private final long failureTtlMillis;
+  private final Clock clock;
+  private final ScheduledExecutorService executor;
+  private final LinkedHashMap<ByteBuffer, Entry> entries;
+
+  private volatile MetadataStatementIndex index;
+  private volatile FileTime lastModified;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder reloadCount = new LongAdder();
+
+  /**
+   * コンストラクタ。
+   * 起動時にファイルを読み込み、読み込めない場合は起動を中止する。
+   * @param file メタデータ・ステートメントのファイル
+   * @param reloadIntervalMillis ファイルの更新を確認する間隔(ミリ秒) - 0の場合は確認しない
+   * @param maxSize 検証結果を保持する最大件数
+   * @param ttlMillis 検証に成功した結果を保持する最大の期間(ミリ秒)
+   * @param failureTtlMillis 検証に失敗した結果を保持する期間(ミリ秒)
+   * @param clock 時計
+   * @throws IOException ファイルが読み込めない場合はこの例外をスローする
+   */
+  public MetadataCertPathTrustworthinessValidator(Path file, long reloadIntervalMillis, int maxSize,
+      long ttlMillis, long failureTtlMillis, Clock clock) throws IOException {
+    this.file = file;
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.failureTtlMillis = failureTtlMillis;
+    this.clock = clock;
+    //accessOrder=trueでLRUの順序を保持する
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+        return size() > MetadataCertPathTrustworthinessValidator.this.maxSize;
+      }
+    };
+    this.lastModified = Files.getLastModifiedTime(file);
+    this.index = MetadataStatementIndex.load(file, 0);
+    log.info("Loaded {} metadata statements from {}", index.size(), file);
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "metadata-reload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (reloadIntervalMillis > 0) {
+      executor.scheduleWithFixedDelay(this::reloadIfModified, reloadIntervalMillis, reloadIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void validate(AAGUID aaguid, CertificateBaseAttestationStatement attestationStatement) {
+    //検証中に入れ替えられても、同じ世代の索引で検証する
+    var current = index;
+    var trustAnchors = current.getTrustAnchors(aaguid);
+    if (trustAnchors.isEmpty()) {
+      throw new TrustAnchorNotFoundException("No metadata statement for AAGUID: " + aaguid);
+    }
+
+    var certificates = attestationStatement.getX5c();
+    var key = key(current.getGeneration(), aaguid, certificates);
+    var now = clock.millis();
+    Entry cached;
+    synchronized (entries) {
+      cached = entries.get(key);
+      if (cached != null && cached.expiresAt <= now) {
+        entries.remove(key);
+        cached = null;
+      }
+    }
+    if (cached != null) {
+      hitCount.increment();
+      if (cached.failure != null) {
+        throw new CertificateException(cached.failure);
+      }
+      return;
+    }
+
+    missCount.increment();
+    try {
+      var trustAnchor = validatePath(certificates, trustAnchors, now);
+      var expiresAt = Math.min(now + ttlMillis, trustAnchor.getTrustedCert().getNotAfter().getTime());
+      for (var certificate : certificates) {
+        expiresAt = Math.min(expiresAt, certificate.getNotAfter().getTime());
+      }
+      put(key, new Entry(expiresAt, null));
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      var failure = "Attestation certificate path is not trusted: " + e.getMessage();
+      put(key, new Entry(now + failureTtlMillis, failure));
+      throw new CertificateException(failure, e);
+    }
+  }
+
+  // PKIXで証明書パスを検証する - 失効の確認は行わない(オフラインで検証する)
+  private static TrustAnchor validatePath(AttestationCertificatePath certificates, Set<TrustAnchor> trustAnchors,
+      long now) throws GeneralSecurityException {
+    var parameters = new PKIXParameters(trustAnchors);
+    parameters.setRevocationEnabled(false);
+    parameters.setDate(new Date(now));
+    var result = (PKIXCertPathValidatorResult) CertPathValidator.getInstance("PKIX")
+        .validate(certificates.createCertPath(), parameters);
+    return result.getTrustAnchor();
+  }
+
+  private void put(ByteBuffer key, Entry entry) {
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  // 索引の世代・AAGUID・証明書パスのSHA-256ハッシュ値
+  private static ByteBuffer key(long generation, AAGUID aaguid, AttestationCertificatePath certificates) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      digest.update(aaguid.getBytes());
+      for (X509Certificate certificate : certificates) {
+        digest.update(certificate.getEncoded());
+      }
+      return ByteBuffer.allocate(Long.BYTES + 32).putLong(generation).put(digest.digest()).flip();
+    } catch (NoSuchAlgorithmException | java.security.cert.CertificateEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // ファイルが更新されている場合のみ読み込み直す
+  private void reloadIfModified() {
+    try {
+      if (!Files.getLastModifiedTime(file).equals(lastModified)) {
+        reload();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to reload metadata statements from {}", file, e);
+    }
+  }
+
+  /**
+   * メタデータ・ステートメントのファイルを読み込み直す。
+   * 読み込みに失敗した場合は、読み込み前の索引を使用し続ける。
+   * @throws IOException ファイルが読み込めない場合はこの例外をスローする
+   */
+  @ManagedOperation
+  public synchronized void reload() throws IOException {
+    var modified = Files.getLastModifiedTime(file);
+    var loaded = MetadataStatementIndex.load(file, index.getGeneration() + 1);
+    index = loaded;
+    lastModified = modified;
+    //以前の世代の結果は参照されないため破棄する
+    synchronized (entries) {
+      entries.clear();
+    }
+    reloadCount.increment();
+    log.info("Reloaded {} metadata statements from {}", loaded.size(), file);
+  }
+
+  /**
+   * AAGUIDに対応する認証器の名称を取得する。
+   * @param aaguid AAGUID
+   * @return 名称 - メタデータ・ステートメントが存在しない場合はnull
+   */
+  public String getDescription(AAGUID aaguid) {
+    return index.getDescription(aaguid);
+  }
+
+  @ManagedAttribute
+  public int getStatementCount() {
+    return index.size();
+  }
+
+  @ManagedAttribute
+  public int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  @ManagedAttribute
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  @ManagedAttribute
+  public long getReloadCount() {
+    return reloadCount.sum();
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  // 検証結果 - failureがnullの場合は成功
+  private static class Entry {
+    private final long expiresAt;
+    private final String failure;
+
+    Entry(long expiresAt, String failure) {
+      this.expiresAt = expiresAt;
+      this.failure = failure;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package jp.mijs.winter2019.security.webauthn.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webauthn4j.data.attestation.authenticator.AAGUID;
+
+/**
+ * FIDOメタデータ・ステートメントのAAGUID毎の索引。
+ * 読み込んだ時点の内容で固定し、再読み込みの際は新しい索引と入れ替える。
+ *
+ * ファイルはメタデータ・ステートメント(FIDO Metadata Statements)のJSONの配列、または1件のJSONとする。
+ * 使用する項目は aaguid・description・attestationRootCertificates(Base64のDER)のみで、他は無視する。
+ * aaguidを持たないもの(U2Fの認証器 - attestationCertificateKeyIdentifiersで識別する)は対象としない。
+ */
+public class MetadataStatementIndex {
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+  private final long generation;
+  private final Map<AAGUID, Set<TrustAnchor>> trustAnchors;
+  private final Map<AAGUID, String> descriptions;
+
+  private MetadataStatementIndex(long generation, Map<AAGUID, Set<TrustAnchor>> trustAnchors,
+      Map<AAGUID, String> descriptions) {
+    this.generation = generation;
+    this.trustAnchors = trustAnchors;
+    this.descriptions = descriptions;
+  }
+
+  /**
+   * ファイルから索引を作成する。
+   * @param file メタデータ・ステートメントのファイル
+   * @param generation 索引の世代 - 再読み込みの毎に増やす
+   * @return 索引
+   * @throws IOException ファイルが読み込めない場合、または形式が不正な場合はこの例外をスローする
+   */
+  public static MetadataStatementIndex load(Path file, long generation) throws IOException {
+    var root = MAPPER.readTree(Files.readAllBytes(file));
+    var trustAnchors = new HashMap<AAGUID, Set<TrustAnchor>>();
+    var descriptions = new HashMap<AAGUID, String>();
+    try {
+      var factory = CertificateFactory.getInstance("X.509");
+      for (var statement : root.isArray() ? root : MAPPER.createArrayNode().add(root)) {
+        var aaguid = statement.path("aaguid");
+        if (!aaguid.isTextual()) {
+          continue;
+        }
+        var key = new AAGUID(aaguid.asText());
+        var anchors = trustAnchors.computeIfAbsent(key, k -> new HashSet<>());
+        for (JsonNode certificate : statement.path("attestationRootCertificates")) {
+          var der = Base64.getMimeDecoder().decode(certificate.asText());
+          anchors.add(new TrustAnchor(
+              (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)), null));
+        }
+        descriptions.put(key, statement.path("description").asText(""));
+      }
+    } catch (CertificateException | IllegalArgumentException e) {
+      throw new IOException("Invalid attestation root certificate in " + file, e);
+    }
+    trustAnchors.replaceAll((key, anchors) -> Set.copyOf(anchors));
+    return new MetadataStatementIndex(generation, Map.copyOf(trustAnchors), Map.copyOf(descriptions));
+  }
+
+  /**
+   * AAGUIDに対応するルート証明書を取得する。
+   * @param aaguid AAGUID
+   * @return ルート証明書 - メタデータ・ステートメントが存在しない場合は空
+   */
+  public Set<TrustAnchor> getTrustAnchors(AAGUID aaguid) {
+    return trustAnchors.getOrDefault(aaguid, Set.of());
+  }
+
+  /**
+   * AAGUIDに対応する認証器の名称を取得する。
+   * @param aaguid AAGUID
+   * @return 名称 - メタデータ・ステートメントが存在しない場合はnull
+   */
+  public String getDescription(AAGUID aaguid) {
+    return descriptions.get(aaguid);
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  public int size() {
+    return trustAnchors.size();
+  }
+}
@@ -0,0 +1,339 @@
+package jp.mijs.winter2019.security.webauthn.warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.flywaydb.core.Flyway;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webauthn4j.validator.WebAuthnAuthenticationContextValidator;
+import com.webauthn4j.validator.WebAuthnRegistrationContextValidator;
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jp.mijs.winter2019.security.webauthn.cache.AuthenticatorCache;
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.config.ServerPropertyTemplate;
+import jp.mijs.winter2019.security.webauthn.counter.CredentialLocks;
+import jp.mijs.winter2019.security.webauthn.counter.SynchronousSignatureCounterWriter;
+import jp.mijs.winter2019.security.webauthn.filter.ExistenceFilter;
+import jp.mijs.winter2019.security.webauthn.management.CredentialUsageTracker;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.service.CredentialCodec;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.shard.ShardFactory;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 起動直後のJITコンパイルを済ませるためのウォームアップ。
+ * 起動後に別のスレッドで、ソフトウェア認証器(ES256, RS256)による登録と認証のセレモニーを繰り返し実行する。
+ * 検証に使用するValidator・コンバータ・CredentialCodecは実際のものを使用し、DBのみ作業用のインメモリのH2に
+ * 置き換えるため、実際のユーザ・クレデンシャルには影響しない。作業用のデータベースは終了後に破棄する。
+ *
+ * 実行回数が iterations に達するか、直近 window 回の認証の平均処理時間が target-latency-micros 以下になるまで、
+ * ヘルスチェック(/actuator/health)は OUT_OF_SERVICE(503)を返す。
+ * ロードバランサはヘルスチェックが UP になってからリクエストを振り分ける - /actuator/health は管理用のポートで
+ * 127.0.0.1 にのみ公開するため、ロードバランサはセレモニーと同じポートの /readiness を参照する。
+ */
+@Component
+@Slf4j
+@ManagedResource(objectName = "jp.mijs.winter2019.security.webauthn:type=Warmup")
+public class CeremonyWarmup implements ApplicationRunner, HealthIndicator, DisposableBean {
+  public static final String DURATION = "webauthn.warmup.duration";
+  public static final String ITERATIONS = "webauthn.warmup.iterations";
+  public static final String LATENCY = "webauthn.warmup.assertion.latency";
+
+  private static final String EMAIL_DOMAIN = "@warmup.invalid";
+
+  private final WebAuthnRegistrationContextValidator registrationContextValidator;
+  private final WebAuthnAuthenticationContextValidator authenticationContextValidator;
+  private final CredentialCodec credentialCodec;
+  private final TenantRegistry tenantRegistry;
+  private final ChallengeGenerator challengeGenerator;
+  private final ObjectMapper objectMapper;
+  private final boolean enabled;
+  private final String[] locations;
+  private final int maxIterations;
+  private final int window;
+  private final long targetLatencyMicros;
+  private final long maxMillis;
+  private final ExecutorService executor;
+
+  private volatile boolean ready;
+  private volatile int iterations;
+  private volatile long durationNanos;
+  private volatile long meanNanos;
+  private volatile long p99Nanos;
+  private volatile String failure;
+
+  /**
+   * コンストラクタ。
+   * SpringBootによるDIが実行される
+   * @param registrationContextValidator
+   * @param authenticationContextValidator
+   * @param credentialCodec
+   * @param tenantRegistry ウォームアップには既定のテナントを使用する
+   * @param challengeGenerator
+   * @param objectMapper
+   * @param meterRegistry
+   * @param enabled ウォームアップを行う場合はtrue - falseの場合は起動直後からUPとする
+   * @param locations テーブル定義の場所
+   * @param maxIterations 登録と認証の最大の実行回数
+   * @param window 認証の処理時間を集計する直近の回数
+   * @param targetLatencyMicros 終了とする認証の平均処理時間(マイクロ秒) - 0の場合は回数のみで判定する
+   * @param maxMillis ウォームアップの最大の実行時間(ミリ秒)
+   */
+  public CeremonyWarmup(WebAuthnRegistrationContextValidator registrationContextValidator,
+      WebAuthnAuthenticationContextValidator authenticationContextValidator, CredentialCodec credentialCodec,
+      TenantRegistry tenantRegistry, ChallengeGenerator challengeGenerator,
+      ObjectMapper objectMapper, MeterRegistry meterRegistry,
+      @Value("${webauthn.warmup.enabled:true}") boolean enabled,
+      @Value("${spring.flyway.locations:classpath:db/migration}") String[] locations,
+      @Value("${webauthn.warmup.iterations:2000}") int maxIterations,
+      @Value("${webauthn.warmup.window:200}") int window,
+      @Value("${webauthn.warmup.target-latency-micros:0}") long targetLatencyMicros,
+      @Value("${webauthn.warmup.max-millis:120000}") long maxMillis) {
+    this.registrationContextValidator = registrationContextValidator;
+    this.authenticationContextValidator = authenticationContextValidator;
+    this.credentialCodec = credentialCodec;
+    this.tenantRegistry = tenantRegistry;
+    this.challengeGenerator = challengeGenerator;
+    this.objectMapper = objectMapper;
+    this.enabled = enabled;
+    this.locations = locations;
+    this.maxIterations = maxIterations;
+    this.window = Math.max(1, Math.min(window, maxIterations));
+    this.targetLatencyMicros = targetLatencyMicros;
+    this.maxMillis = maxMillis;
+    this.ready = !enabled;
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      var thread = new Thread(runnable, "ceremony-warmup");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    TimeGauge.builder(DURATION, this, TimeUnit.NANOSECONDS, self -> self.durationNanos).register(meterRegistry);
+    Gauge.builder(ITERATIONS, this, self -> self.iterations).register(meterRegistry);
+    TimeGauge.builder(LATENCY, this, TimeUnit.NANOSECONDS, self -> self.meanNanos).tag("stat", "mean")
+        .register(meterRegistry);
+    TimeGauge.builder(LATENCY, this, TimeUnit.NANOSECONDS, self -> self.p99Nanos).tag("stat", "p99")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    //起動時間を延ばさないよう、別のスレッドで実行する - 完了までヘルスチェックはOUT_OF_SERVICEとなる
+    if (enabled) {
+      executor.execute(this::warmup);
+    }
+  }
+
+  // 失敗した場合もUPとする - ウォームアップの失敗でサービスを停止しない
+  private void warmup() {
+    var start = System.nanoTime();
+    try (var dataSource = scratchDataSource()) {
+      var ceremonies = new Ceremonies(dataSource);
+      try {
+        run(ceremonies, start);
+      } finally {
+        ceremonies.close();
+      }
+    } catch (RuntimeException e) {
+      failure = e.toString();
+      log.warn("Warm-up failed after {} iterations", iterations, e);
+    } finally {
+      durationNanos = System.nanoTime() - start;
+      ready = true;
+    }
+    log.info("Warm-up completed in {} ms after {} iterations: assertion mean {} us, p99 {} us",
+        durationNanos / 1_000_000, iterations, meanNanos / 1000, p99Nanos / 1000);
+  }
+
+  // 直近window回の認証の処理時間を集計しながら、終了条件を満たすまで繰り返す
+  private void run(Ceremonies ceremonies, long start) {
+    var latencies = new long[window];
+    var deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    for (int i = 0; i < maxIterations; i++) {
+      latencies[i % window] = ceremonies.run(i);
+      iterations = i + 1;
+      if (iterations >= window) {
+        summarize(latencies);
+        if (targetLatencyMicros > 0 && meanNanos <= TimeUnit.MICROSECONDS.toNanos(targetLatencyMicros)) {
+          return;
+        }
+      }
+      if (System.nanoTime() - deadline > 0) {
+        log.warn("Warm-up stopped at {} iterations: exceeded {} ms", iterations, maxMillis);
+        return;
+      }
+    }
+  }
+
+  private void summarize(long[] latencies) {
+    var sorted = latencies.clone();
+    Arrays.sort(sorted);
+    meanNanos = (long) Arrays.stream(sorted).average().orElse(0);
+    p99Nanos = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.99) - 1)];
+  }
+
+  // 作業用のデータベース - 名前を毎回変え、コネクションプールを閉じると破棄される
+  private HikariDataSource scratchDataSource() {
+    var dataSource = new HikariDataSource();
+    dataSource.setPoolName("webauthn-warmup");
+    dataSource.setJdbcUrl("jdbc:h2:mem:webauthn-warmup-" + UUID.randomUUID());
+    dataSource.setUsername("sa");
+    dataSource.setMaximumPoolSize(2);
+    Flyway.configure().dataSource(dataSource).locations(locations).load().migrate();
+    return dataSource;
+  }
+
+  @Override
+  public Health health() {
+    var builder = ready ? Health.up() : Health.outOfService();
+    builder.withDetail("iterations", iterations);
+    if (ready) {
+      builder.withDetail("durationMillis", durationNanos / 1_000_000)
+          .withDetail("assertionMeanMicros", meanNanos / 1000)
+          .withDetail("assertionP99Micros", p99Nanos / 1000);
+    }
+    if (failure != null) {
+      builder.withDetail("failure", failure);
+    }
+    return builder.build();
+  }
+
+  @ManagedAttribute
+  public boolean isReady() {
+    return ready;
+  }
+
+  @ManagedAttribute
+  public int getIterations() {
+    return iterations;
+  }
+
+  @ManagedAttribute
+  public long getDurationMillis() {
+    return durationNanos / 1_000_000;
+  }
+
+  @ManagedAttribute
+  public long getAssertionMeanMicros() {
+    return meanNanos / 1000;
+  }
+
+  @ManagedAttribute
+  public long getAssertionP99Micros() {
+    return p99Nanos / 1000;
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * 作業用のデータベースを使用する登録・認証のサービス。
+   * サービスは実際のものと同じクラスで、DB・キャッシュのみ作業用に生成する。
+   */
+  private class Ceremonies {
+    private final WebAuthnRegistrationService registrationService;
+    private final WebAuthnAuthenticationService authenticationService;
+    private final ExistenceFilter existenceFilter;
+    private final CredentialUsageTracker credentialUsageTracker;
+    private final SoftwareAuthenticator[] authenticators;
+    private final Tenant tenant = tenantRegistry.getDefaultTenant();
+    private final ServerPropertyTemplate serverPropertyTemplate = tenant.getDefaultServerPropertyTemplate();
+    private final String rpId = tenant.getRpId();
+    private final String origin = serverPropertyTemplate.getOrigin().toString();
+
+    Ceremonies(HikariDataSource dataSource) {
+      var shardRouter = new ShardRouter(List.of(ShardFactory.of(0, "warmup", dataSource)));
+      var userRepository = new UserRepository(shardRouter);
+      var credentialRepository = new CredentialRepository(shardRouter);
+      var credentialAttestationRepository = new CredentialAttestationRepository(shardRouter);
+      var authenticatorCache = new AuthenticatorCache(window, 60000, new SimpleMeterRegistry());
+      var optionsTemplateCache = new OptionsTemplateCache(window, 60000);
+      existenceFilter = new ExistenceFilter(shardRouter, new SimpleMeterRegistry(), false, 0.01, 0, 1);
+      //ユーザ毎に1件のみ登録するため、optionsの件数は制限しない
+      credentialUsageTracker = new CredentialUsageTracker(credentialRepository, Integer.MAX_VALUE, 60000);
+      registrationService = new WebAuthnRegistrationService(userRepository, credentialRepository,
+          credentialAttestationRepository, registrationContextValidator, credentialCodec,
+          authenticatorCache, shardRouter, optionsTemplateCache, objectMapper, existenceFilter, challengeGenerator,
+          credentialUsageTracker);
+      authenticationService = new WebAuthnAuthenticationService(userRepository, credentialRepository,
+          credentialAttestationRepository, authenticationContextValidator, credentialCodec,
+          authenticatorCache, new SynchronousSignatureCounterWriter(credentialRepository), null,
+          optionsTemplateCache, objectMapper, existenceFilter, challengeGenerator, new CredentialLocks(1),
+          credentialUsageTracker, 0);
+      //鍵ペアの生成(特にRSA)は1回のみとし、クレデンシャルIDのみ毎回生成する
+      authenticators = new SoftwareAuthenticator[] {
+          new SoftwareAuthenticator(Algorithm.ES256, 1),
+          new SoftwareAuthenticator(Algorithm.RS256, 2) };
+    }
+
+    /**
+     * 新しいクレデンシャルを登録し、そのクレデンシャルで認証する。
+     * @param iteration 実行回数
+     * @return 認証(optionsの生成から署名カウンタの書き込みまで)の処理時間(ナノ秒)
+     */
+    long run(int iteration) {
+      var authenticator = authenticators[iteration % authenticators.length].nextCredential();
+      var email = "warmup-" + iteration + EMAIL_DOMAIN;
+      try {
+        //登録
+        var template = registrationService.creationOptionsTemplate(tenant, email, email);
+        var registrationChallenge = challengeGenerator.challenge();
+        template.render(registrationChallenge);
+        var attestation = authenticator.create(rpId, origin, registrationChallenge.getValue());
+        registrationService.creationFinish(serverPropertyTemplate, template.getUser(), registrationChallenge,
+            attestation.getClientDataJSON(), attestation.getAttestationObject());
+
+        //認証
+        var start = System.nanoTime();
+        var challenge = challengeGenerator.challenge();
+        authenticationService.requestOptionsTemplate(tenant, email).render(challenge);
+        var assertion = authenticator.get(rpId, origin, challenge.getValue());
+        authenticationService.assertionFinish(serverPropertyTemplate, challenge, assertion.getCredentialId(),
+            assertion.getClientDataJSON(), assertion.getAuthenticatorData(), assertion.getSignature());
+        return System.nanoTime() - start;
+      } catch (JsonProcessingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void close() {
+      existenceFilter.destroy();
+      try {
+        credentialUsageTracker.destroy();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
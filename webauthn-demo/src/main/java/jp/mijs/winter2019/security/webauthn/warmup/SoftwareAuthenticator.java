@@ -0,0 +1,372 @@
+package jp.mijs.winter2019.security.webauthn.warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * ソフトウェアで実装した認証器。
+ * ブラウザや物理的な認証器を使わずに、登録(アテステーション)と認証(アサーション)のレスポンスを生成する。
+ * 同じシードからは同じ鍵ペア・クレデンシャルID・署名が生成されるため、テストデータの作成に使用できる。
+ * アテステーション・ステートメントのフォーマットは none のみに対応する。
+ * 起動時のウォームアップ(CeremonyWarmup)が使用するため、このパッケージに置いている。
+ */
+public class SoftwareAuthenticator {
+  private static final int FLAG_UP = 0x01;
+  private static final int FLAG_AT = 0x40;
+
+  private final Algorithm algorithm;
+  private final SecureRandom random;
+  private final KeyPair keyPair;
+  private final byte[] credentialId;
+  private final boolean counterEnabled;
+  private long counter;
+
+  /**
+   * 公開鍵のアルゴリズム
+   */
+  public enum Algorithm {
+    /** ECDSA P-256 + SHA-256 */
+    ES256(-7, "SHA256withECDSA"),
+    /** RSASSA-PKCS1-v1_5 + SHA-256 */
+    RS256(-257, "SHA256withRSA");
+
+    private final int coseIdentifier;
+    private final String signatureAlgorithm;
+
+    Algorithm(int coseIdentifier, String signatureAlgorithm) {
+      this.coseIdentifier = coseIdentifier;
+      this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    public int getCoseIdentifier() {
+      return coseIdentifier;
+    }
+  }
+
+  /**
+   * コンストラクタ。
+   * @param algorithm 公開鍵のアルゴリズム
+   * @param seed 鍵ペアとクレデンシャルIDの生成に使用するシード
+   */
+  public SoftwareAuthenticator(Algorithm algorithm, long seed) {
+    this(algorithm, seed, true);
+  }
+
+  /**
+   * コンストラクタ。
+   * 署名カウンタを使用しない場合、認証のレスポンスの署名カウンタは常に0となる。
+   * 同じレスポンスで繰り返し認証できるため、ベンチマークに使用できる。
+   * @param algorithm 公開鍵のアルゴリズム
+   * @param seed 鍵ペアとクレデンシャルIDの生成に使用するシード
+   * @param counterEnabled 署名カウンタを使用するか
+   */
+  public SoftwareAuthenticator(Algorithm algorithm, long seed, boolean counterEnabled) {
+    this(algorithm, deterministicRandom(seed), null, counterEnabled);
+  }
+
+  private SoftwareAuthenticator(Algorithm algorithm, SecureRandom random, KeyPair keyPair, boolean counterEnabled) {
+    this.algorithm = algorithm;
+    this.random = random;
+    this.counterEnabled = counterEnabled;
+    this.keyPair = keyPair == null ? generateKeyPair(algorithm, random) : keyPair;
+    this.credentialId = new byte[32];
+    this.random.nextBytes(credentialId);
+  }
+
+  /**
+   * 同じ鍵ペアを使用し、新しいクレデンシャルIDを持つ認証器を生成する。
+   * 鍵ペアの生成(特にRSA)を省略して、多数のクレデンシャルを登録する場合に使用する。
+   * @return 新しいクレデンシャルIDを持つ認証器
+   */
+  public synchronized SoftwareAuthenticator nextCredential() {
+    return new SoftwareAuthenticator(algorithm, random, keyPair, counterEnabled);
+  }
+
+  /**
+   * 登録(navigator.credentials.create)のレスポンスを生成する。
+   * @param rpId RPのID
+   * @param origin RPのOrigin
+   * @param challenge サーバから受け取ったchallenge
+   * @return 登録のレスポンス
+   */
+  public synchronized AttestationResponse create(String rpId, String origin, byte[] challenge) {
+    var clientDataJSON = clientDataJSON("webauthn.create", origin, challenge);
+
+    var attestedCredentialData = new ByteArrayOutputStream();
+    attestedCredentialData.writeBytes(new byte[16]); // AAGUID - none アテステーションでは全て0
+    attestedCredentialData.write(credentialId.length >> 8);
+    attestedCredentialData.write(credentialId.length);
+    attestedCredentialData.writeBytes(credentialId);
+    attestedCredentialData.writeBytes(coseKey());
+
+    var authenticatorData = authenticatorData(rpId, FLAG_UP | FLAG_AT, attestedCredentialData.toByteArray());
+
+    var attestationObject = new CborWriter()
+        .mapHeader(3)
+        .text("fmt").text("none")
+        .text("attStmt").mapHeader(0)
+        .text("authData").bytes(authenticatorData)
+        .toByteArray();
+    return new AttestationResponse(credentialId.clone(), clientDataJSON, attestationObject);
+  }
+
+  /**
+   * 認証(navigator.credentials.get)のレスポンスを生成する。
+   * 署名カウンタを使用する場合は、呼び出す度に署名カウンタを1つ進める。
+   * @param rpId RPのID
+   * @param origin RPのOrigin
+   * @param challenge サーバから受け取ったchallenge
+   * @return 認証のレスポンス
+   */
+  public synchronized AssertionResponse get(String rpId, String origin, byte[] challenge) {
+    var clientDataJSON = clientDataJSON("webauthn.get", origin, challenge);
+    var authenticatorData = authenticatorData(rpId, FLAG_UP, new byte[0]);
+
+    try {
+      var signer = Signature.getInstance(algorithm.signatureAlgorithm);
+      signer.initSign(keyPair.getPrivate(), random);
+      signer.update(authenticatorData);
+      signer.update(sha256(clientDataJSON));
+      return new AssertionResponse(credentialId.clone(), clientDataJSON, authenticatorData, signer.sign());
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  public byte[] getCredentialId() {
+    return credentialId.clone();
+  }
+
+  public synchronized long getCounter() {
+    return counter;
+  }
+
+  /**
+   * 公開鍵をCOSE_Key形式で取得する。
+   * 登録のセレモニーを経ずに公開鍵クレデンシャルを登録する場合(一括登録など)に使用する。
+   * @return COSE_Key形式の公開鍵
+   */
+  public byte[] getCOSEKey() {
+    return coseKey();
+  }
+
+  // authenticatorData = rpIdHash(32) | flags(1) | signCount(4) | attestedCredentialData
+  private byte[] authenticatorData(String rpId, int flags, byte[] attestedCredentialData) {
+    var signCount = !counterEnabled || (flags & FLAG_AT) != 0 ? counter : ++counter;
+    return ByteBuffer.allocate(37 + attestedCredentialData.length)
+        .put(sha256(rpId.getBytes(StandardCharsets.UTF_8)))
+        .put((byte) flags)
+        .putInt((int) signCount)
+        .put(attestedCredentialData)
+        .array();
+  }
+
+  // 公開鍵をCOSE_Key形式で出力する
+  private byte[] coseKey() {
+    if (algorithm == Algorithm.ES256) {
+      var publicKey = (ECPublicKey) keyPair.getPublic();
+      return new CborWriter()
+          .mapHeader(5)
+          .integer(1).integer(2)                       // kty: EC2
+          .integer(3).integer(algorithm.coseIdentifier) // alg
+          .integer(-1).integer(1)                      // crv: P-256
+          .integer(-2).bytes(unsigned(publicKey.getW().getAffineX(), 32))
+          .integer(-3).bytes(unsigned(publicKey.getW().getAffineY(), 32))
+          .toByteArray();
+    }
+    var publicKey = (RSAPublicKey) keyPair.getPublic();
+    return new CborWriter()
+        .mapHeader(4)
+        .integer(1).integer(3)                       // kty: RSA
+        .integer(3).integer(algorithm.coseIdentifier) // alg
+        .integer(-1).bytes(unsigned(publicKey.getModulus(), 0))
+        .integer(-2).bytes(unsigned(publicKey.getPublicExponent(), 0))
+        .toByteArray();
+  }
+
+  private static byte[] clientDataJSON(String type, String origin, byte[] challenge) {
+    var json = "{\"type\":\"" + type + "\"," +
+        "\"challenge\":\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(challenge) + "\"," +
+        "\"origin\":\"" + origin + "\"}";
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static KeyPair generateKeyPair(Algorithm algorithm, SecureRandom random) {
+    try {
+      if (algorithm == Algorithm.ES256) {
+        var generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        return generator.generateKeyPair();
+      }
+      var generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4), random);
+      return generator.generateKeyPair();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // SHA1PRNGは最初にsetSeedした場合、シードのみから乱数列を生成する
+  private static SecureRandom deterministicRandom(long seed) {
+    try {
+      var random = SecureRandom.getInstance("SHA1PRNG");
+      random.setSeed(ByteBuffer.allocate(Long.BYTES).putLong(seed).array());
+      return random;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // 符号なしの整数をビッグエンディアンで出力する - length が0の場合は最小の長さとする
+  private static byte[] unsigned(BigInteger value, int length) {
+    var bytes = value.toByteArray();
+    if (bytes.length > 1 && bytes[0] == 0) {
+      bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+    if (length == 0 || bytes.length == length) {
+      return bytes;
+    }
+    var padded = new byte[length];
+    System.arraycopy(bytes, 0, padded, length - bytes.length, bytes.length);
+    return padded;
+  }
+
+  /**
+   * 登録のレスポンス
+   */
+  public static class AttestationResponse {
+    private final byte[] credentialId;
+    private final byte[] clientDataJSON;
+    private final byte[] attestationObject;
+
+    AttestationResponse(byte[] credentialId, byte[] clientDataJSON, byte[] attestationObject) {
+      this.credentialId = credentialId;
+      this.clientDataJSON = clientDataJSON;
+      this.attestationObject = attestationObject;
+    }
+
+    public byte[] getCredentialId() {
+      return credentialId;
+    }
+
+    public byte[] getClientDataJSON() {
+      return clientDataJSON;
+    }
+
+    public byte[] getAttestationObject() {
+      return attestationObject;
+    }
+  }
+
+  /**
+   * 認証のレスポンス
+   */
+  public static class AssertionResponse {
+    private final byte[] credentialId;
+    private final byte[] clientDataJSON;
+    private final byte[] authenticatorData;
+    private final byte[] signature;
+
+    AssertionResponse(byte[] credentialId, byte[] clientDataJSON, byte[] authenticatorData, byte[] signature) {
+      this.credentialId = credentialId;
+      this.clientDataJSON = clientDataJSON;
+      this.authenticatorData = authenticatorData;
+      this.signature = signature;
+    }
+
+    public byte[] getCredentialId() {
+      return credentialId;
+    }
+
+    public byte[] getClientDataJSON() {
+      return clientDataJSON;
+    }
+
+    public byte[] getAuthenticatorData() {
+      return authenticatorData;
+    }
+
+    public byte[] getSignature() {
+      return signature;
+    }
+  }
+
+  // 認証器のレスポンスを出力するための最小限のCBORエンコーダ
+  private static class CborWriter {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    CborWriter mapHeader(int size) {
+      head(5, size);
+      return this;
+    }
+
+    CborWriter integer(long value) {
+      if (value >= 0) {
+        head(0, value);
+      } else {
+        head(1, -1 - value);
+      }
+      return this;
+    }
+
+    CborWriter bytes(byte[] value) {
+      head(2, value.length);
+      out.writeBytes(value);
+      return this;
+    }
+
+    CborWriter text(String value) {
+      var bytes = value.getBytes(StandardCharsets.UTF_8);
+      head(3, bytes.length);
+      out.writeBytes(bytes);
+      return this;
+    }
+
+    byte[] toByteArray() {
+      return out.toByteArray();
+    }
+
+    private void head(int majorType, long value) {
+      var type = majorType << 5;
+      if (value < 24) {
+        out.write(type | (int) value);
+      } else if (value < 0x100) {
+        out.write(type | 24);
+        out.write((int) value);
+      } else if (value < 0x10000) {
+        out.write(type | 25);
+        out.write((int) (value >> 8));
+        out.write((int) value);
+      } else {
+        out.write(type | 26);
+        out.writeBytes(ByteBuffer.allocate(4).putInt((int) value).array());
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+-- テーブル定義をFlywayで管理する前(保存形式バージョン1)のデータベースを、V1のテーブル定義に揃える
+-- 移行前のデータベースはV1としてベースラインを作成し(SchemaMigrationConfig)、このバージョンから適用する
+-- V1から作成したデータベースでは既存の列・テーブル・インデックスを作成しない(ユーザは行を保持して作り直す)
+-- 移行前の公開鍵クレデンシャルは保存形式バージョン1とし、起動時にCredentialStorageMigratorで変換する
+
+-- メールアドレスの一意制約を名前付きのインデックスにする(V5でテナント毎の一意制約に変更するため)
+-- 名前のない制約のため、テーブルを作り直す(公開鍵クレデンシャルからの外部キーも作り直す)
+CREATE TABLE user_v1
+(
+    id           VARBINARY(64) NOT NULL PRIMARY KEY,
+    email        VARCHAR(250)  NOT NULL,
+    display_name VARCHAR(255)  NOT NULL
+);
+INSERT INTO user_v1 SELECT id, email, display_name FROM user;
+DROP TABLE user CASCADE;
+ALTER TABLE user_v1 RENAME TO user;
+CREATE UNIQUE INDEX idx_user_email ON user (email);
+ALTER TABLE credential ADD FOREIGN KEY (user_id) REFERENCES user (id);
+
+ALTER TABLE credential ADD COLUMN IF NOT EXISTS format_version INT NOT NULL DEFAULT 1;
+ALTER TABLE credential ADD COLUMN IF NOT EXISTS algorithm BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE credential ADD COLUMN IF NOT EXISTS aaguid BINARY(16);
+CREATE INDEX IF NOT EXISTS idx_credential_user_id ON credential (user_id);
+
+CREATE TABLE IF NOT EXISTS credential_attestation
+(
+    credential_id         VARBINARY(255) NOT NULL PRIMARY KEY,
+    format                VARCHAR(32)    NOT NULL,
+    attestation_statement BLOB           NOT NULL,
+    FOREIGN KEY (credential_id) REFERENCES credential (credential_id)
+);
+
+CREATE TABLE IF NOT EXISTS ceremony
+(
+    ceremony_id   VARCHAR(32)   NOT NULL PRIMARY KEY,
+    ceremony_type VARCHAR(16)   NOT NULL,
+    challenge     VARBINARY(64) NOT NULL,
+    user_id       VARBINARY(64),
+    email         VARCHAR(250),
+    display_name  VARCHAR(255),
+    expires_at    BIGINT        NOT NULL
+);
@@ -0,0 +1,48 @@
+-- ユーザを保管するテーブル
+CREATE TABLE user
+(
+    id           VARBINARY(64) NOT NULL PRIMARY KEY,
+    email        VARCHAR(250)  NOT NULL,
+    display_name VARCHAR(255)  NOT NULL
+);
+-- ログイン時のメールアドレスによる検索
+CREATE UNIQUE INDEX idx_user_email ON user (email);
+
+-- 公開鍵クレデンシャルを保管するテーブル
+-- 認証時に読み込む情報のみを保持する
+CREATE TABLE credential
+(
+    credential_id     VARBINARY(255)  NOT NULL PRIMARY KEY,
+    user_id           VARBINARY(64)   NOT NULL,
+    format_version    INT             NOT NULL,
+    algorithm         BIGINT          NOT NULL,
+    aaguid            BINARY(16),
+    public_key        VARBINARY(1024) NOT NULL,
+    signature_counter LONG            NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES user (id)
+);
+-- options生成時のユーザIDによる検索
+CREATE INDEX idx_credential_user_id ON credential (user_id);
+
+-- アテステーション・ステートメントを保管するテーブル
+-- 証明書チェーンを含むため、必要な場合のみ読み込む
+CREATE TABLE credential_attestation
+(
+    credential_id         VARBINARY(255) NOT NULL PRIMARY KEY,
+    format                VARCHAR(32)    NOT NULL,
+    attestation_statement BLOB           NOT NULL,
+    FOREIGN KEY (credential_id) REFERENCES credential (credential_id)
+);
+
+-- 進行中のセレモニー(challenge)を保管するテーブル
+-- webauthn.challenge-store.type=jdbc の場合に使用する
+CREATE TABLE ceremony
+(
+    ceremony_id   VARCHAR(32)   NOT NULL PRIMARY KEY,
+    ceremony_type VARCHAR(16)   NOT NULL,
+    challenge     VARBINARY(64) NOT NULL,
+    user_id       VARBINARY(64),
+    email         VARCHAR(250),
+    display_name  VARCHAR(255),
+    expires_at    BIGINT        NOT NULL
+);
@@ -0,0 +1,2 @@
+-- 起動時の保存形式の移行(CredentialStorageMigrator)で、移行前(バージョン1)の行を全件走査せずに検索する
+CREATE INDEX idx_credential_format_version ON credential (format_version);
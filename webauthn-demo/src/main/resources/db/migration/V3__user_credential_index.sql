@@ -0,0 +1,31 @@
+-- ユーザに紐付いたクレデンシャルIDを、ユーザと同じデータベースに保管するテーブル
+-- 公開鍵クレデンシャルはクレデンシャルIDで振り分けるため、ユーザとは別のデータベースに保管される場合がある
+-- options生成時にユーザとクレデンシャルIDを1つのデータベースから取得するために使用する
+CREATE TABLE user_credential
+(
+    user_id       VARBINARY(64)  NOT NULL,
+    credential_id VARBINARY(255) NOT NULL,
+    PRIMARY KEY (user_id, credential_id),
+    FOREIGN KEY (user_id) REFERENCES user (id)
+);
+INSERT INTO user_credential (user_id, credential_id) SELECT user_id, credential_id FROM credential;
+
+-- 公開鍵クレデンシャルからユーザへの外部キーを削除する
+-- 名前のない制約のため、テーブルを作り直す(アテステーションからの外部キーも作り直す)
+CREATE TABLE credential_new
+(
+    credential_id     VARBINARY(255)  NOT NULL PRIMARY KEY,
+    user_id           VARBINARY(64)   NOT NULL,
+    format_version    INT             NOT NULL,
+    algorithm         BIGINT          NOT NULL,
+    aaguid            BINARY(16),
+    public_key        VARBINARY(1024) NOT NULL,
+    signature_counter LONG            NOT NULL
+);
+INSERT INTO credential_new
+  SELECT credential_id, user_id, format_version, algorithm, aaguid, public_key, signature_counter FROM credential;
+DROP TABLE credential CASCADE;
+ALTER TABLE credential_new RENAME TO credential;
+CREATE INDEX idx_credential_user_id ON credential (user_id);
+CREATE INDEX idx_credential_format_version ON credential (format_version);
+ALTER TABLE credential_attestation ADD FOREIGN KEY (credential_id) REFERENCES credential (credential_id);
@@ -0,0 +1,4 @@
+-- 公開鍵クレデンシャルの最終使用日時(エポックミリ秒)
+-- options(allowCredentials, excludeCredentials)の件数を制限する場合に、最近使用したものから含めるために使用する
+-- 移行前の行は未使用(NULL)とし、最も古いものとして扱う
+ALTER TABLE credential ADD COLUMN last_used_at BIGINT;
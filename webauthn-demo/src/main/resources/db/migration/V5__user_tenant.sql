@@ -0,0 +1,8 @@
+-- ユーザが属するテナント(RP) - メールアドレスはテナント毎に一意とする
+-- 移行前の行は既定のテナント(default)に属するものとする
+ALTER TABLE user ADD COLUMN tenant_id VARCHAR(64) DEFAULT 'default' NOT NULL;
+DROP INDEX idx_user_email;
+CREATE UNIQUE INDEX idx_user_tenant_email ON user (tenant_id, email);
+
+-- 登録途中のユーザのテナント - 認証の場合はNULL
+ALTER TABLE ceremony ADD COLUMN tenant_id VARCHAR(64);
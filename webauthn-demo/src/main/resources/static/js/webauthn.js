@@ -13,10 +13,11 @@ async function registerAsync() {
         // RPサーバから公開鍵クレデンシャル生成オプションを取得
         const optionsRes = await postAttestationOptions();
         const optionsJSON = await optionsRes.json();
+        const ceremonyId = optionsRes.headers.get(CEREMONY_ID_HEADER);
         // 認証器からアテステーションレスポンスを取得
         const credential = await createCredential(optionsJSON);
         // RPサーバにアテステーションレスポンスを送信
-        const response = await registerFinish(credential);
+        const response = await registerFinish(ceremonyId, credential);
         // ログインページへ移動
         redirectToSignInPage(response);
     } catch (error) {
@@ -57,20 +58,14 @@ function createCredential(options) {
     });
 }
 
-function registerFinish(credential) {
+function registerFinish(ceremonyId, credential) {
     const url = '/attestation/result';
     const data = {
-        'clientDataJSON': arrayBufferToBase64(credential.response.clientDataJSON),
-        'attestationObject': arrayBufferToBase64(credential.response.attestationObject),
+        'ceremonyId': ceremonyId,
+        'clientDataJSON': credential.response.clientDataJSON,
+        'attestationObject': credential.response.attestationObject,
     };
-    return fetch(url, {
-        method: 'POST',
-        body: JSON.stringify(data),
-        cache: "no-cache",
-        headers: {
-            'Content-Type': 'application/json'
-        }
-    });
+    return postResult(url, data);
 }
 
 function redirectToSignInPage(response) {
@@ -99,10 +94,11 @@ async function authenticationAsync() {
         // RPサーバから公開鍵クレデンシャル要求オプションを取得
         const optionsRes = await postAssertionOptions();
         const optionsJSON = await optionsRes.json();
+        const ceremonyId = optionsRes.headers.get(CEREMONY_ID_HEADER);
         // 認証器からアサーションレスポンスを取得
         const assertion = await getAssertion(optionsJSON);
         // RPサーバにアサーションレスポンスを送信
-        const response = await authenticationFinish(assertion);
+        const response = await authenticationFinish(ceremonyId, assertion);
         signedIn(response);
     } catch (error) {
         alert(error);
@@ -139,22 +135,17 @@ function getAssertion(options) {
     });
 }
 
-function authenticationFinish(assertion) {
+function authenticationFinish(ceremonyId, assertion) {
     const url = '/assertion/result';
     const data = {
-        'credentialId': arrayBufferToBase64(assertion.rawId),
-        'clientDataJSON': arrayBufferToBase64(assertion.response.clientDataJSON),
-        'authenticatorData': arrayBufferToBase64(assertion.response.authenticatorData),
-        'signature': arrayBufferToBase64(assertion.response.signature),
-        'userHandle': arrayBufferToBase64(assertion.response.userHandle),
+        'ceremonyId': ceremonyId,
+        'credentialId': assertion.rawId,
+        'clientDataJSON': assertion.response.clientDataJSON,
+        'authenticatorData': assertion.response.authenticatorData,
+        'signature': assertion.response.signature,
+        'userHandle': assertion.response.userHandle,
     };
-    return fetch(url, {
-        method: 'POST',
-        body: JSON.stringify(data),
-        headers: {
-            'Content-Type': 'application/json'
-        }
-    });
+    return postResult(url, data);
 }
 
 function signedIn(response) {
@@ -171,6 +162,88 @@ function signedIn(response) {
  * 共通
  *--------------------------------------------------*/
 
+// optionsとresultを対応付けるセレモニーIDを受け取るレスポンスヘッダ
+const CEREMONY_ID_HEADER = 'X-WebAuthn-Ceremony-Id';
+
+// resultの送信にCBORを使用できるか(TextEncoderが必要)
+//  CBORではArrayBufferをBase64に変換せずにそのまま送信するため、JSONより小さくなる
+const CBOR_AVAILABLE = typeof TextEncoder !== 'undefined';
+
+// resultを送信 - 値は文字列・ArrayBuffer・null
+//  CBORを使用できない場合は、ArrayBufferをBase64文字列にしたJSONで送信する
+function postResult(url, data) {
+    if (CBOR_AVAILABLE) {
+        return fetch(url, {
+            method: 'POST',
+            body: encodeCbor(data),
+            cache: "no-cache",
+            headers: {
+                'Content-Type': 'application/cbor'
+            }
+        });
+    }
+
+    const json = {};
+    for (const [key, value] of Object.entries(data)) {
+        json[key] = value instanceof ArrayBuffer ? arrayBufferToBase64(value) : value;
+    }
+    return fetch(url, {
+        method: 'POST',
+        body: JSON.stringify(json),
+        cache: "no-cache",
+        headers: {
+            'Content-Type': 'application/json'
+        }
+    });
+}
+
+// 文字列をキーとするオブジェクトをCBOR(RFC 7049)にエンコード
+//  値は文字列(text string)・ArrayBuffer(byte string)・null のみに対応する
+function encodeCbor(data) {
+    const encoder = new TextEncoder();
+    const chunks = [];
+    // 先頭バイト(メジャータイプと長さ)
+    const head = (majorType, length) => {
+        if (length < 24) {
+            chunks.push(Uint8Array.of(majorType << 5 | length));
+        } else if (length < 0x100) {
+            chunks.push(Uint8Array.of(majorType << 5 | 24, length));
+        } else if (length < 0x10000) {
+            chunks.push(Uint8Array.of(majorType << 5 | 25, length >> 8, length & 0xff));
+        } else {
+            chunks.push(Uint8Array.of(majorType << 5 | 26,
+                length >>> 24, (length >> 16) & 0xff, (length >> 8) & 0xff, length & 0xff));
+        }
+    };
+    const text = value => {
+        const bytes = encoder.encode(value);
+        head(3, bytes.length);
+        chunks.push(bytes);
+    };
+
+    const entries = Object.entries(data);
+    head(5, entries.length);
+    for (const [key, value] of entries) {
+        text(key);
+        if (value === null || value === undefined) {
+            chunks.push(Uint8Array.of(0xf6));
+        } else if (value instanceof ArrayBuffer) {
+            head(2, value.byteLength);
+            chunks.push(new Uint8Array(value));
+        } else {
+            text(String(value));
+        }
+    }
+
+    const body = new Uint8Array(chunks.reduce((length, chunk) => length + chunk.length, 0));
+    let offset = 0;
+    for (const chunk of chunks) {
+        body.set(chunk, offset);
+        offset += chunk.length;
+    }
+    return body;
+}
+
 // Base64文字列をArrayBufferにデコード
 function base64ToArrayBuffer(base64String) {
     return Uint8Array.from(atob(base64String), c => c.charCodeAt(0));
@@ -0,0 +1,35 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+
+public class AdmissionControlTests {
+  private final MutableClock clock = new MutableClock(Instant.parse("2019-12-01T00:00:00Z"));
+
+  @Test
+  public void reportsRetryAfterOfRejectingTable() {
+    var admissionControl = new AdmissionControl(
+        Map.of(AdmissionEndpoint.ASSERTION_OPTIONS, new TokenBucketTable(20, 50, 100, 60_000, clock)),
+        Map.of(AdmissionEndpoint.ASSERTION_OPTIONS, new TokenBucketTable(0.2, 1, 100, 60_000, clock)),
+        new SimpleMeterRegistry());
+
+    admissionControl.admitEmail(AdmissionEndpoint.ASSERTION_OPTIONS, "user@example.com");
+    assertFalse(admissionControl.admitEmail(AdmissionEndpoint.ASSERTION_OPTIONS, "USER@example.com"));
+
+    //メールアドレスで制限した場合は、メールアドレスのバケットの補充間隔を通知する
+    assertEquals("5", admissionControl.tooManyRequests(AdmissionEndpoint.ASSERTION_OPTIONS)
+        .getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    assertEquals(1, admissionControl.getClientRetryAfterSeconds(AdmissionEndpoint.ASSERTION_OPTIONS));
+    //制限しないエンドポイントは1秒
+    assertEquals(1, admissionControl.getEmailRetryAfterSeconds(AdmissionEndpoint.ASSERTION_RESULT));
+  }
+}
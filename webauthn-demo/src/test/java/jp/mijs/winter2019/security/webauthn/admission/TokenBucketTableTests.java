@@ -0,0 +1,74 @@
+package jp.mijs.winter2019.security.webauthn.admission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+
+public class TokenBucketTableTests {
+  private final MutableClock clock = new MutableClock(Instant.parse("2019-12-01T00:00:00Z"));
+
+  @Test
+  public void admitsBurstThenRefillsAtRate() {
+    var table = new TokenBucketTable(2, 3, 100, 60_000, clock);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(table.tryAcquire("192.0.2.1"));
+    }
+    assertFalse(table.tryAcquire("192.0.2.1"));
+    //他のキーは制限されない
+    assertTrue(table.tryAcquire("192.0.2.2"));
+
+    //1秒あたり2回補充される
+    clock.advance(Duration.ofMillis(500));
+    assertTrue(table.tryAcquire("192.0.2.1"));
+    assertFalse(table.tryAcquire("192.0.2.1"));
+    assertEquals(2, table.getRejectedCount());
+  }
+
+  @Test
+  public void evictsIdleKeys() {
+    var table = new TokenBucketTable(10, 1, 100, 1_000, clock);
+    for (int i = 0; i < 50; i++) {
+      table.tryAcquire("user" + i + "@example.com");
+    }
+    assertEquals(50, table.getSize());
+    //取得では破棄しない - 間隔が経過するまでは破棄しない
+    assertEquals(0, table.sweepIfDue());
+
+    //満杯に戻ったバケットのみ、一定間隔毎に破棄する
+    clock.advance(Duration.ofSeconds(1));
+    table.tryAcquire("user0@example.com");
+    assertEquals(50, table.getSize());
+    assertEquals(49, table.sweepIfDue());
+    assertEquals(1, table.getSize());
+    assertEquals(49, table.getEvictedCount());
+  }
+
+  @Test
+  public void admitsOverflowKeysWithoutSharedBucket() {
+    var table = new TokenBucketTable(1, 1, 2, 60_000, clock);
+    assertTrue(table.tryAcquire("a"));
+    assertTrue(table.tryAcquire("b"));
+    //上限に達した場合、新しいキーはこの表では制限しない - 他の新しいキーを巻き込まない
+    assertTrue(table.tryAcquire("c"));
+    assertTrue(table.tryAcquire("c"));
+    assertTrue(table.tryAcquire("d"));
+    assertEquals(2, table.getSize());
+    assertEquals(3, table.getOverflowCount());
+    //保管済みのキーは引き続き制限する
+    assertFalse(table.tryAcquire("a"));
+
+    //上限に達している場合は、間隔によらず満杯に戻ったバケットを破棄する
+    clock.advance(Duration.ofSeconds(1));
+    assertEquals(2, table.sweepIfDue());
+    assertTrue(table.tryAcquire("c"));
+    assertFalse(table.tryAcquire("c"));
+    assertEquals(3, table.getOverflowCount());
+  }
+}
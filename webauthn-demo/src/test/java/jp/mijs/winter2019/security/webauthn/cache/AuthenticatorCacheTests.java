@@ -0,0 +1,80 @@
+package jp.mijs.winter2019.security.webauthn.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+import jp.mijs.winter2019.security.webauthn.service.OriginalAuthenticator;
+
+public class AuthenticatorCacheTests {
+  private static final byte[] USER_ID = { 9 };
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    var cache = new AuthenticatorCache(2, 60000, Clock.systemUTC());
+    cache.put(new byte[] { 1 }, USER_ID, new OriginalAuthenticator(null, null, 1));
+    cache.put(new byte[] { 2 }, USER_ID, new OriginalAuthenticator(null, null, 1));
+    assertTrue(cache.get(new byte[] { 1 }).isPresent());
+
+    cache.put(new byte[] { 3 }, USER_ID, new OriginalAuthenticator(null, null, 1));
+
+    assertTrue(cache.get(new byte[] { 1 }).isPresent());
+    assertFalse(cache.get(new byte[] { 2 }).isPresent());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void expiresAfterTtl() {
+    var clock = new MutableClock(Instant.parse("2020-01-01T00:00:00Z"));
+    var cache = new AuthenticatorCache(10, 1000, clock);
+    cache.put(new byte[] { 1 }, USER_ID, new OriginalAuthenticator(null, null, 1));
+    assertTrue(cache.get(new byte[] { 1 }).isPresent());
+
+    clock.advance(Duration.ofSeconds(1));
+
+    assertFalse(cache.get(new byte[] { 1 }).isPresent());
+    assertEquals(0, cache.getSize());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void updatesCounter() {
+    var cache = new AuthenticatorCache(10, 60000, Clock.systemUTC());
+    cache.put(new byte[] { 1 }, USER_ID, new OriginalAuthenticator(null, null, 1));
+
+    cache.updateCounter(new byte[] { 1 }, 5);
+    cache.get(new byte[] { 1 }).orElseThrow().getAuthenticator().setCounter(100);
+
+    assertEquals(5, cache.get(new byte[] { 1 }).orElseThrow().getAuthenticator().getCounter());
+  }
+
+  @Test
+  public void boundsSizeAcrossSegmentsAndRecordsMetrics() {
+    var meterRegistry = new SimpleMeterRegistry();
+    var cache = new AuthenticatorCache(1024, 60000, meterRegistry);
+    for (int i = 0; i < 5000; i++) {
+      cache.put(new byte[] { (byte) i, (byte) (i >> 8) }, USER_ID, new OriginalAuthenticator(null, null, 1));
+    }
+    assertTrue(cache.getSize() <= 1024);
+    assertEquals(5000 - cache.getSize(), cache.getEvictionCount());
+    //直前に登録したものは破棄されていない
+    assertTrue(cache.get(new byte[] { (byte) 4999, (byte) (4999 >> 8) }).isPresent());
+    assertFalse(cache.get(new byte[] { 0, 0 }).isPresent());
+
+    assertEquals(1, meterRegistry.get(AuthenticatorCache.GETS).tag("result", "hit").functionCounter().count(), 0);
+    assertEquals(1, meterRegistry.get(AuthenticatorCache.GETS).tag("result", "miss").functionCounter().count(), 0);
+    assertEquals(cache.getEvictionCount(), meterRegistry.get(AuthenticatorCache.EVICTIONS).functionCounter().count(),
+        0);
+    assertEquals(cache.getSize(), meterRegistry.get(AuthenticatorCache.SIZE).gauge().value(), 0);
+  }
+}
@@ -0,0 +1,90 @@
+package jp.mijs.winter2019.security.webauthn.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+import jp.mijs.winter2019.security.webauthn.challenge.CeremonyType;
+
+public class OptionsTemplateCacheTests {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final String TENANT = "default";
+
+  @Test
+  public void rendersChallenge() throws Exception {
+    var template = template("user@example.com");
+    var challenge = new DefaultChallenge();
+
+    var json = new String(template.render(challenge), StandardCharsets.UTF_8);
+
+    assertEquals("{\"rpId\":\"user@example.com\",\"challenge\":\""
+        + Base64.getEncoder().encodeToString(challenge.getValue()) + "\"}", json);
+  }
+
+  @Test
+  public void separatesTenants() throws Exception {
+    var cache = new OptionsTemplateCache(10, 60000, Clock.systemUTC());
+    cache.put(CeremonyType.ASSERTION, TENANT, "a", template("a"), cache.generation());
+
+    assertFalse(cache.get(CeremonyType.ASSERTION, "other", "a").isPresent());
+    cache.invalidate("other", "a");
+    assertTrue(cache.get(CeremonyType.ASSERTION, TENANT, "a").isPresent());
+  }
+
+  @Test
+  public void invalidatesUser() throws Exception {
+    var cache = new OptionsTemplateCache(10, 60000, Clock.systemUTC());
+    cache.put(CeremonyType.ASSERTION, TENANT, "a", template("a"), cache.generation());
+    cache.put(CeremonyType.ATTESTATION, TENANT, "a", template("a"), cache.generation());
+    assertTrue(cache.get(CeremonyType.ASSERTION, TENANT, "a").isPresent());
+
+    cache.invalidate(TENANT, "a");
+
+    assertFalse(cache.get(CeremonyType.ASSERTION, TENANT, "a").isPresent());
+    assertFalse(cache.get(CeremonyType.ATTESTATION, TENANT, "a").isPresent());
+  }
+
+  @Test
+  public void ignoresPutAfterInvalidation() throws Exception {
+    var cache = new OptionsTemplateCache(10, 60000, Clock.systemUTC());
+    var generation = cache.generation();
+
+    cache.invalidate(TENANT, "a");
+    cache.put(CeremonyType.ASSERTION, TENANT, "a", template("a"), generation);
+
+    assertFalse(cache.get(CeremonyType.ASSERTION, TENANT, "a").isPresent());
+  }
+
+  @Test
+  public void expiresAfterTtl() throws Exception {
+    var clock = new MutableClock(Instant.parse("2020-01-01T00:00:00Z"));
+    var cache = new OptionsTemplateCache(10, 1000, clock);
+    cache.put(CeremonyType.ASSERTION, TENANT, "a", template("a"), cache.generation());
+
+    clock.advance(Duration.ofSeconds(1));
+
+    assertFalse(cache.get(CeremonyType.ASSERTION, TENANT, "a").isPresent());
+    assertEquals(0, cache.getSize());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  private static OptionsTemplate template(String rpId) throws Exception {
+    var options = new LinkedHashMap<String, String>();
+    options.put("rpId", rpId);
+    options.put("challenge", Base64.getEncoder().encodeToString(OptionsTemplate.PLACEHOLDER.getValue()));
+    return OptionsTemplate.create(OBJECT_MAPPER, options, null);
+  }
+}
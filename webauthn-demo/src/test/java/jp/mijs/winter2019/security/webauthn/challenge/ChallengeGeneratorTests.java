@@ -0,0 +1,69 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ChallengeGeneratorTests {
+  @Test
+  public void generatesDistinctValuesAcrossRefills() {
+    //バッファを小さくし、生成済みのバッファの切り替えを繰り返す
+    var generator = new ChallengeGenerator(new SimpleMeterRegistry(), 1, 64, 0);
+    var values = new HashSet<ByteBuffer>();
+    for (int i = 0; i < 1000; i++) {
+      var challenge = generator.challenge().getValue();
+      assertEquals(ChallengeGenerator.CHALLENGE_LENGTH, challenge.length);
+      assertTrue(values.add(ByteBuffer.wrap(challenge)));
+    }
+    assertEquals(ChallengeGenerator.USER_ID_LENGTH, generator.userId().length);
+    assertFalse(generator.ceremonyId().contains("="));
+    assertEquals(1000 * 16 + 32 + 16, generator.getGeneratedBytes());
+    generator.destroy();
+  }
+
+  @Test
+  public void generatesDistinctValuesConcurrently() throws Exception {
+    var generator = new ChallengeGenerator(new SimpleMeterRegistry(), 4, 256, 0);
+    Set<String> ceremonyIds = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      var futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < 8; t++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 2000; i++) {
+            assertTrue(ceremonyIds.add(generator.ceremonyId()));
+          }
+        }));
+      }
+      for (var future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      generator.destroy();
+    }
+    assertEquals(16_000, ceremonyIds.size());
+  }
+
+  @Test
+  public void reseeds() {
+    var generator = new ChallengeGenerator(new SimpleMeterRegistry(), 2, 64, 0);
+    generator.reseed();
+    assertEquals(1, generator.getReseedCount());
+    assertEquals(2, generator.getStripeCount());
+    generator.destroy();
+  }
+}
@@ -0,0 +1,137 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+
+public class InMemoryChallengeStoreTests {
+  private final MutableClock clock = new MutableClock(Instant.parse("2020-01-01T00:00:00Z"));
+  private final ChallengeGenerator generator = new ChallengeGenerator(new SimpleMeterRegistry(), 1, 1024, 0);
+
+  @Test
+  public void consumesOnlyOnce() {
+    var store = new InMemoryChallengeStore(120000, 1000, 10, clock, generator);
+    var ceremonyId = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    assertTrue(store.consume(CeremonyType.ASSERTION, ceremonyId).isPresent());
+    assertFalse(store.consume(CeremonyType.ASSERTION, ceremonyId).isPresent());
+    assertEquals(0, store.getSize());
+  }
+
+  @Test
+  public void rejectsOtherCeremonyType() {
+    var store = new InMemoryChallengeStore(120000, 1000, 10, clock, generator);
+    var ceremonyId = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    assertFalse(store.consume(CeremonyType.ATTESTATION, ceremonyId).isPresent());
+    assertFalse(store.consume(CeremonyType.ASSERTION, ceremonyId).isPresent());
+  }
+
+  @Test
+  public void expiresWithWheel() {
+    var store = new InMemoryChallengeStore(120000, 1000, 10, clock, generator);
+    var expired = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+    clock.advance(Duration.ofSeconds(60));
+    var alive = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    clock.advance(Duration.ofSeconds(61));
+    store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    assertEquals(1, store.getExpiredCount());
+    assertEquals(2, store.getSize());
+    assertFalse(store.consume(CeremonyType.ASSERTION, expired).isPresent());
+    assertTrue(store.consume(CeremonyType.ASSERTION, alive).isPresent());
+  }
+
+  @Test
+  public void evictsEarliestWhenFull() {
+    var store = new InMemoryChallengeStore(120000, 1000, 2, clock, generator);
+    var first = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+    clock.advance(Duration.ofSeconds(1));
+    var second = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+    clock.advance(Duration.ofSeconds(1));
+    var third = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    assertEquals(1, store.getEvictedCount());
+    assertEquals(2, store.getSize());
+    assertFalse(store.consume(CeremonyType.ASSERTION, first).isPresent());
+    assertTrue(store.consume(CeremonyType.ASSERTION, second).isPresent());
+    assertTrue(store.consume(CeremonyType.ASSERTION, third).isPresent());
+  }
+
+  @Test
+  public void rejectsWhenNothingCanBeEvicted() {
+    //破棄できるエントリが存在しない状態で発行すると、件数を増やさずに拒否する
+    var store = new InMemoryChallengeStore(120000, 1000, 0, clock, generator);
+    for (int i = 0; i < 3; i++) {
+      try {
+        store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+        fail();
+      } catch (ChallengeStoreFullException expected) {
+      }
+    }
+
+    assertEquals(3, store.getFullCount());
+    assertEquals(0, store.getIssuedCount());
+    assertEquals(0, store.getSize());
+  }
+
+  @Test
+  public void keepsSizeWhenFilledConcurrently() throws Exception {
+    //発行中でホイールに載っていないエントリは破棄できないため、同時に発行すると拒否されることがある
+    var store = new InMemoryChallengeStore(120000, 1000, 4, clock, generator);
+    var issued = new ConcurrentLinkedQueue<String>();
+    var threads = 8;
+    var start = new CountDownLatch(1);
+    var executor = Executors.newFixedThreadPool(threads);
+    try {
+      var futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          for (int i = 0; i < 1000; i++) {
+            try {
+              issued.add(store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null)));
+            } catch (ChallengeStoreFullException ignore) {
+            }
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (var future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(threads * 1000, store.getIssuedCount() + store.getFullCount());
+    assertTrue(store.getSize() <= 4);
+    var alive = 0;
+    for (var ceremonyId : issued) {
+      if (store.consume(CeremonyType.ASSERTION, ceremonyId).isPresent()) {
+        alive++;
+      }
+    }
+    assertEquals(store.getIssuedCount() - store.getEvictedCount(), alive);
+    assertEquals(0, store.getSize());
+  }
+}
@@ -0,0 +1,136 @@
+package jp.mijs.winter2019.security.webauthn.challenge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+public class JdbcChallengeStoreTests {
+  private static final String COUNT_CEREMONY = "SELECT COUNT(*) FROM ceremony WHERE ceremony_id = :ceremonyId";
+
+  private final MutableClock clock = new MutableClock(Instant.parse("2020-01-01T00:00:00Z"));
+
+  @Autowired
+  private NamedParameterJdbcOperations jdbc;
+
+  @Autowired
+  private ChallengeGenerator generator;
+
+  @Test
+  public void consumesOnlyOnce() throws Exception {
+    //2台のサーバで同じテーブルを共有した場合も、取り出せるのは1回のみ
+    var store = store(10000);
+    var other = store(10000);
+    var user = new User();
+    user.setTenantId("default");
+    user.setId(generator.userId());
+    user.setEmail("jdbc-challenge@example.com");
+    user.setDisplayName("jdbc-challenge");
+    var challenge = new DefaultChallenge();
+    var ceremonyId = store.issue(new Ceremony(CeremonyType.ATTESTATION, challenge, user));
+
+    var ceremony = other.consume(CeremonyType.ATTESTATION, ceremonyId).orElseThrow();
+    assertArrayEquals(challenge.getValue(), ceremony.getChallenge().getValue());
+    assertArrayEquals(user.getId(), ceremony.getUser().getId());
+    assertEquals("default", ceremony.getUser().getTenantId());
+    assertFalse(store.consume(CeremonyType.ATTESTATION, ceremonyId).isPresent());
+    assertEquals(0, count(ceremonyId));
+    assertEquals(1, store.getRejectedCount());
+  }
+
+  @Test
+  public void consumesOnlyOnceConcurrently() throws Exception {
+    var store = store(10000);
+    var ceremonyId = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    var threads = 8;
+    var start = new CountDownLatch(1);
+    var executor = Executors.newFixedThreadPool(threads);
+    var futures = new ArrayList<Future<Boolean>>();
+    try {
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return store.consume(CeremonyType.ASSERTION, ceremonyId).isPresent();
+        }));
+      }
+      start.countDown();
+      var consumed = 0;
+      for (var future : futures) {
+        if (future.get(30, TimeUnit.SECONDS)) {
+          consumed++;
+        }
+      }
+      assertEquals(1, consumed);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, store.getConsumedCount());
+    assertEquals(threads - 1, store.getRejectedCount());
+  }
+
+  @Test
+  public void rejectsExpiredAndOtherCeremonyType() {
+    var store = store(10000);
+    var expired = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+    var other = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    clock.advance(Duration.ofMillis(120000));
+    assertFalse(store.consume(CeremonyType.ASSERTION, expired).isPresent());
+    assertEquals(1, store.getExpiredCount());
+    assertFalse(store.consume(CeremonyType.ATTESTATION, other).isPresent());
+    //取り出しに失敗した行も削除される
+    assertEquals(0, count(expired));
+    assertEquals(0, count(other));
+  }
+
+  @Test
+  public void purgesExpiredPeriodically() {
+    var store = store(200000);
+    var expired = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+
+    //削除の間隔が経過するまでは期限切れの行も残る
+    clock.advance(Duration.ofMillis(120000));
+    var alive = store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+    assertEquals(1, count(expired));
+
+    clock.advance(Duration.ofMillis(80000));
+    store.issue(new Ceremony(CeremonyType.ASSERTION, new DefaultChallenge(), null));
+    assertEquals(0, count(expired));
+    assertEquals(1, count(alive));
+    assertTrue(store.getExpiredCount() >= 1);
+    assertTrue(store.consume(CeremonyType.ASSERTION, alive).isPresent());
+  }
+
+  private JdbcChallengeStore store(long purgeIntervalMillis) {
+    return new JdbcChallengeStore(jdbc, 120000, purgeIntervalMillis, clock, generator);
+  }
+
+  private int count(String ceremonyId) {
+    return jdbc.queryForObject(COUNT_CEREMONY, Map.of("ceremonyId", ceremonyId), Integer.class);
+  }
+}
@@ -0,0 +1,50 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.flywaydb.core.Flyway;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * webauthn.schema.recreate で、インメモリのH2以外のテーブルを削除しないことを確認するテスト。
+ */
+public class SchemaMigrationConfigTests {
+  private final SchemaMigrationConfig config = new SchemaMigrationConfig();
+
+  @Test
+  public void recreatesInMemoryDatabase() {
+    var dataSource = new DriverManagerDataSource("jdbc:h2:mem:recreate;DB_CLOSE_DELAY=-1", "sa", "");
+    var jdbc = new JdbcTemplate(dataSource);
+    jdbc.execute("CREATE TABLE leftover (id INT)");
+
+    config.recreateMigrationStrategy().migrate(flyway(dataSource));
+    assertEquals(0, (int) jdbc.queryForObject(
+        "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'LEFTOVER'", Integer.class));
+  }
+
+  @Test
+  public void refusesToCleanFileDatabase() {
+    var dataSource = new DriverManagerDataSource("jdbc:h2:file:./target/recreate-test/db", "sa", "");
+    var jdbc = new JdbcTemplate(dataSource);
+    jdbc.execute("DROP ALL OBJECTS");
+    jdbc.execute("CREATE TABLE kept (id INT)");
+    jdbc.update("INSERT INTO kept (id) VALUES (1)");
+
+    try {
+      config.recreateMigrationStrategy().migrate(flyway(dataSource));
+      fail();
+    } catch (IllegalStateException e) {
+      //テーブルは削除されない
+      assertEquals(1, (int) jdbc.queryForObject("SELECT COUNT(*) FROM kept", Integer.class));
+    }
+  }
+
+  private Flyway flyway(DriverManagerDataSource dataSource) {
+    var configuration = Flyway.configure().dataSource(dataSource).locations("classpath:db/migration");
+    config.legacyBaselineCustomizer().customize(configuration);
+    return configuration.load();
+  }
+}
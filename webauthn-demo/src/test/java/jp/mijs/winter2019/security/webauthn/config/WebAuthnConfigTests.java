@@ -0,0 +1,27 @@
+package jp.mijs.winter2019.security.webauthn.config;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.webauthn4j.validator.attestation.trustworthiness.certpath.NullCertPathTrustworthinessValidator;
+
+/**
+ * メタデータ・ステートメントのファイルが未指定の場合の動作を確認するテスト。
+ */
+public class WebAuthnConfigTests {
+  private final WebAuthnConfig config = new WebAuthnConfig();
+
+  @Test
+  public void skipsValidationUnlessRequired() throws IOException {
+    assertTrue(config.certPathTrustworthinessValidator("", false, 60_000, 1000, 86_400_000, 60_000)
+        instanceof NullCertPathTrustworthinessValidator);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void failsWhenRequiredFileIsMissing() throws IOException {
+    config.certPathTrustworthinessValidator("", true, 60_000, 1000, 86_400_000, 60_000);
+  }
+}
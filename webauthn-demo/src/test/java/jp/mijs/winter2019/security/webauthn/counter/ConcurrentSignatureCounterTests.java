@@ -0,0 +1,159 @@
+package jp.mijs.winter2019.security.webauthn.counter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+import com.webauthn4j.validator.exception.MaliciousCounterValueException;
+
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.transfer.CredentialImporter;
+import jp.mijs.winter2019.security.webauthn.transfer.TransferCredential;
+import jp.mijs.winter2019.security.webauthn.transfer.TransferFormat;
+import jp.mijs.winter2019.security.webauthn.transfer.TransferRecord;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.AssertionResponse;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+public class ConcurrentSignatureCounterTests {
+  private static final String RP_ID = "localhost";
+  private static final String ORIGIN = "https://localhost:8443";
+  private static final int THREADS = 8;
+  private static final AtomicInteger SEQUENCE = new AtomicInteger(5000);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Autowired
+  private CredentialImporter importer;
+
+  @Autowired
+  private CredentialRepository credentialRepository;
+
+  @Autowired
+  private WebAuthnAuthenticationService authenticationService;
+
+  @Autowired
+  private TenantRegistry tenantRegistry;
+
+  @Test
+  public void replayedAssertionSucceedsOnce() throws Exception {
+    var authenticator = register();
+    var challenge = new DefaultChallenge();
+    var assertion = authenticator.get(RP_ID, ORIGIN, challenge.getValue());
+
+    var tasks = new ArrayList<Callable<Boolean>>();
+    for (int i = 0; i < THREADS * 4; i++) {
+      tasks.add(() -> authenticate(challenge, assertion));
+    }
+    var verified = runConcurrently(tasks);
+
+    assertEquals(1, verified);
+    assertEquals(1, storedCounter(authenticator));
+  }
+
+  @Test
+  public void counterNeverMovesBackwards() throws Exception {
+    var authenticator = register();
+    var tasks = new ArrayList<Callable<Boolean>>();
+    for (int i = 0; i < 200; i++) {
+      var challenge = new DefaultChallenge();
+      var assertion = authenticator.get(RP_ID, ORIGIN, challenge.getValue());
+      tasks.add(() -> authenticate(challenge, assertion));
+    }
+    Collections.shuffle(tasks, new Random(1));
+    var verified = runConcurrently(tasks);
+
+    //最後に生成した(最大の署名カウンタの)認証は必ず成功し、書き込まれた値は最大値となる
+    assertTrue(verified >= 1);
+    assertEquals(authenticator.getCounter(), storedCounter(authenticator));
+    assertEquals(authenticator.getCounter(),
+        authenticationService.findAuthenticator(authenticator.getCredentialId()).getCounter());
+  }
+
+  private boolean authenticate(DefaultChallenge challenge, AssertionResponse assertion) {
+    try {
+      authenticationService.assertionFinish(tenantRegistry.getDefaultTenant().getDefaultServerPropertyTemplate(),
+          challenge, assertion.getCredentialId(), assertion.getClientDataJSON(), assertion.getAuthenticatorData(),
+          assertion.getSignature());
+      return true;
+    } catch (MaliciousCounterValueException e) {
+      return false;
+    }
+  }
+
+  // 全てのスレッドで同時に開始し、成功した件数を返す
+  private static int runConcurrently(List<Callable<Boolean>> tasks) throws InterruptedException, ExecutionException {
+    var executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      var start = new CountDownLatch(1);
+      var futures = new ArrayList<Future<Boolean>>();
+      for (var task : tasks) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return task.call();
+        }));
+      }
+      start.countDown();
+      var verified = 0;
+      for (var future : futures) {
+        if (future.get()) {
+          verified++;
+        }
+      }
+      return verified;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private long storedCounter(SoftwareAuthenticator authenticator) {
+    return credentialRepository.findById(authenticator.getCredentialId()).orElseThrow().getSignatureCounter();
+  }
+
+  private SoftwareAuthenticator register() throws IOException {
+    var sequence = SEQUENCE.incrementAndGet();
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, sequence);
+    var credential = new TransferCredential();
+    credential.setCredentialId(authenticator.getCredentialId());
+    credential.setPublicKey(authenticator.getCOSEKey());
+    credential.setSignatureCounter(authenticator.getCounter());
+
+    var record = new TransferRecord();
+    record.setUserId(("counter-" + sequence).getBytes());
+    record.setEmail("counter-" + sequence + "@example.com");
+    record.setDisplayName("counter-" + sequence);
+    record.getCredentials().add(credential);
+
+    var file = folder.newFile().toPath();
+    Files.write(file, TransferFormat.CBOR.objectMapper().writeValueAsBytes(record));
+    importer.importFrom(file, TransferFormat.CBOR);
+    return authenticator;
+  }
+}
@@ -0,0 +1,76 @@
+package jp.mijs.winter2019.security.webauthn.counter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+
+public class WriteBehindSignatureCounterWriterTests {
+  private static final byte[] CREDENTIAL_ID = { 1, 2, 3 };
+
+  private final CredentialRepository credentialRepository = mock(CredentialRepository.class);
+  private final WriteBehindSignatureCounterWriter writer =
+      new WriteBehindSignatureCounterWriter(credentialRepository, 100, 60000);
+
+  @After
+  public void tearDown() throws InterruptedException {
+    writer.destroy();
+  }
+
+  @Test
+  public void coalescesToMaximum() {
+    var flushed = new ArrayList<Credential>();
+    doAnswer(invocation -> {
+      flushed.addAll(invocation.<List<Credential>>getArgument(0));
+      return List.of();
+    }).when(credentialRepository).updateSignatureCounters(anyList());
+
+    writer.write(CREDENTIAL_ID, 5);
+    writer.write(CREDENTIAL_ID, 7);
+    assertFalse(writer.write(CREDENTIAL_ID, 6));
+
+    assertEquals(1, writer.getQueueDepth());
+    assertEquals(1, writer.flush());
+    assertEquals(1, flushed.size());
+    assertEquals(7, flushed.get(0).getSignatureCounter());
+    assertEquals(0, writer.getQueueDepth());
+  }
+
+  @Test
+  public void latestPrefersPendingCounter() {
+    writer.write(CREDENTIAL_ID.clone(), 10);
+
+    assertEquals(10, writer.latest(CREDENTIAL_ID, 3));
+    assertEquals(12, writer.latest(CREDENTIAL_ID, 12));
+    assertEquals(3, writer.latest(new byte[] { 9 }, 3));
+  }
+
+  @Test
+  public void keepsPendingCounterWhenFlushFails() {
+    doAnswer(invocation -> {
+      throw new IllegalStateException("database is down");
+    }).when(credentialRepository).updateSignatureCounters(anyList());
+
+    writer.write(CREDENTIAL_ID, 4);
+    try {
+      writer.flush();
+    } catch (IllegalStateException expected) {
+      // 失敗した値はメモリ上に残る
+    }
+
+    assertEquals(1, writer.getQueueDepth());
+    assertEquals(4, writer.latest(CREDENTIAL_ID, 0));
+    verify(credentialRepository).updateSignatureCounters(anyList());
+  }
+}
@@ -0,0 +1,292 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeStore;
+import jp.mijs.winter2019.security.webauthn.config.HttpMessageConverterConfig;
+import jp.mijs.winter2019.security.webauthn.metrics.CeremonyMetrics;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.AssertionResponse;
+
+/**
+ * 登録・認証のエンドポイントの結合テスト。
+ * サーブレット・リアクティブのエンドポイントが同じ動作となることを、起動したサーバにHTTPで送信して確認する。
+ * テナントは既定のテナント(localhost)と、Hostヘッダ b.example.com のテナントの2件とする。
+ */
+@TestPropertySource(properties = "webauthn.tenants.file=src/test/resources/tenants.json")
+public abstract class CeremonyEndpointTests {
+  private static final String RP_ID = "localhost";
+  private static final String ORIGIN = "https://localhost:8443";
+  private static final String TENANT_HOST = "b.example.com";
+  private static final String TENANT_RP_ID = "b.example.com";
+  private static final String TENANT_ORIGIN = "https://b.example.com";
+  private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+  private final ObjectMapper json = new ObjectMapper();
+  private final ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+
+  @LocalServerPort
+  private int port;
+
+  private WebTestClient client;
+
+  @Before
+  public void setUp() {
+    client = WebTestClient.bindToServer().baseUrl("http://localhost:" + port).build();
+  }
+
+  @Test
+  public void registersAndAuthenticatesWithJson() throws IOException {
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 1);
+    var email = register(authenticator, false);
+
+    assertEquals(HttpStatus.OK, authenticate(authenticator, assertion(authenticator, email), false));
+  }
+
+  @Test
+  public void registersAndAuthenticatesWithCbor() throws IOException {
+    var authenticator = new SoftwareAuthenticator(Algorithm.RS256, 2);
+    var email = register(authenticator, true);
+
+    assertEquals(HttpStatus.OK, authenticate(authenticator, assertion(authenticator, email), true));
+  }
+
+  @Test
+  public void rejectsReplayedCeremony() throws IOException {
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 3);
+    var email = register(authenticator, false);
+    var assertion = assertion(authenticator, email);
+
+    assertEquals(HttpStatus.OK, authenticate(authenticator, assertion, false));
+    assertEquals(HttpStatus.BAD_REQUEST, authenticate(authenticator, assertion, false));
+  }
+
+  @Test
+  public void verifiesBatch() throws IOException {
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 4);
+    var email = register(authenticator, false);
+    var unknown = assertion(authenticator, email);
+    unknown.put("ceremonyId", "unknown");
+    //クレデンシャルIDのないものは、その1件のみ失敗とする
+    var noCredentialId = assertion(authenticator, email);
+    noCredentialId.remove("credentialId");
+
+    var body = client.post().uri("/assertion/result/batch")
+        .contentType(MediaType.APPLICATION_JSON)
+        .syncBody(json.writeValueAsBytes(
+            List.of(assertion(authenticator, email), unknown, noCredentialId, assertion(authenticator, email))))
+        .exchange()
+        .expectStatus().isOk()
+        .expectBody().returnResult().getResponseBody();
+    var results = json.readTree(body);
+
+    assertEquals(4, results.size());
+    assertTrue(results.get(0).get("verified").asBoolean());
+    assertFalse(results.get(1).get("verified").asBoolean());
+    assertEquals("CeremonyNotFound", results.get(1).get("error").asText());
+    assertFalse(results.get(2).get("verified").asBoolean());
+    assertEquals("CredentialIdMissing", results.get(2).get("error").asText());
+    assertTrue(results.get(3).get("verified").asBoolean());
+  }
+
+  @Test
+  public void reportsReadinessOnCeremonyPort() throws InterruptedException {
+    //ウォームアップが終了するまでは503、終了後は200を返す
+    var status = HttpStatus.SERVICE_UNAVAILABLE;
+    for (int i = 0; i < 600 && status == HttpStatus.SERVICE_UNAVAILABLE; i++) {
+      if (i > 0) {
+        Thread.sleep(100);
+      }
+      status = client.get().uri("/readiness").exchange().returnResult(String.class).getStatus();
+    }
+    assertEquals(HttpStatus.OK, status);
+    client.get().uri("/readiness").exchange()
+        .expectStatus().isOk()
+        .expectBody().jsonPath("$.status").isEqualTo("UP");
+  }
+
+  @Test
+  public void resolvesTenantByHost() throws IOException {
+    var email = getClass().getSimpleName() + "-" + SEQUENCE.incrementAndGet() + "@example.com";
+    var params = Map.of("email", email, "displayName", email);
+
+    assertEquals(RP_ID, options(null, "/attestation/options", params).body.get("rp").get("id").asText());
+    assertEquals(TENANT_RP_ID,
+        options(TENANT_HOST + ":443", "/attestation/options", params).body.get("rp").get("id").asText());
+  }
+
+  @Test
+  public void rejectsUnknownHost() {
+    client.post().uri("/attestation/options")
+        .header(HttpHeaders.HOST, "unknown.example.com")
+        .contentType(MediaType.APPLICATION_JSON)
+        .syncBody(Map.of("email", "unknown@example.com", "displayName", "unknown"))
+        .exchange()
+        .expectStatus().isNotFound();
+  }
+
+  @Test
+  public void rejectsAttestationFromOtherTenant() throws IOException {
+    var email = getClass().getSimpleName() + "-" + SEQUENCE.incrementAndGet() + "@example.com";
+    var options = options(null, "/attestation/options", Map.of("email", email, "displayName", email));
+    var attestation = new SoftwareAuthenticator(Algorithm.ES256, 5).create(RP_ID, ORIGIN, challenge(options.body));
+
+    var params = new LinkedHashMap<String, Object>();
+    params.put("ceremonyId", options.ceremonyId);
+    params.put("clientDataJSON", attestation.getClientDataJSON());
+    params.put("attestationObject", attestation.getAttestationObject());
+    //既定のテナントで発行したセレモニーは、他のテナントでは存在しないものとする
+    post(TENANT_HOST, "/attestation/result", params, false).expectStatus().isBadRequest();
+  }
+
+  @Test
+  public void rejectsCredentialFromOtherTenant() throws IOException {
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 6);
+    var email = register(TENANT_HOST, TENANT_RP_ID, TENANT_ORIGIN, authenticator, false);
+    var other = register(new SoftwareAuthenticator(Algorithm.ES256, 7), false);
+
+    //クレデンシャルは登録したテナントのrpIdで署名するため、他のテナントではrpIdHashの検証で失敗する
+    var body = client.post().uri("/assertion/result/batch")
+        .contentType(MediaType.APPLICATION_JSON)
+        .syncBody(json.writeValueAsBytes(List.of(assertion(null, TENANT_RP_ID, ORIGIN, authenticator, other))))
+        .exchange()
+        .expectStatus().isOk()
+        .expectBody().returnResult().getResponseBody();
+    var result = json.readTree(body).get(0);
+    assertFalse(result.get("verified").asBoolean());
+    assertEquals("BadRpIdException", result.get("error").asText());
+
+    var params = assertion(TENANT_HOST, TENANT_RP_ID, TENANT_ORIGIN, authenticator, email);
+    post(TENANT_HOST, "/assertion/result", params, false).expectStatus().isOk();
+  }
+
+  @Test
+  public void limitsOptionsPerEmail() throws IOException {
+    //メールアドレス毎のバケットの容量(既定値 10回)を超えると、DBアクセスの前に429を返す
+    var email = getClass().getSimpleName() + "-limited-" + SEQUENCE.incrementAndGet() + "@example.com";
+    for (int i = 0; i < 10; i++) {
+      options(null, "/assertion/options", Map.of("email", email));
+    }
+    client.post().uri("/assertion/options")
+        .contentType(MediaType.APPLICATION_JSON)
+        .syncBody(Map.of("email", email.toUpperCase()))
+        .exchange()
+        .expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+        .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+  }
+
+  // 登録のセレモニーを行い、登録したメールアドレスを返す
+  protected String register(SoftwareAuthenticator authenticator, boolean useCbor) throws IOException {
+    return register(null, RP_ID, ORIGIN, authenticator, useCbor);
+  }
+
+  // Hostヘッダで指定したテナントで登録のセレモニーを行う - hostがnullの場合は既定のテナント
+  private String register(String host, String rpId, String origin, SoftwareAuthenticator authenticator,
+      boolean useCbor) throws IOException {
+    var email = getClass().getSimpleName() + "-" + SEQUENCE.incrementAndGet() + "@example.com";
+    var options = options(host, "/attestation/options", Map.of("email", email, "displayName", email));
+    var attestation = authenticator.create(rpId, origin, challenge(options.body));
+
+    var params = new LinkedHashMap<String, Object>();
+    params.put("ceremonyId", options.ceremonyId);
+    params.put("clientDataJSON", attestation.getClientDataJSON());
+    params.put("attestationObject", attestation.getAttestationObject());
+    var serverTiming = post(host, "/attestation/result", params, useCbor)
+        .expectStatus().isOk()
+        .returnResult(Void.class).getResponseHeaders().getFirst(CeremonyMetrics.SERVER_TIMING_HEADER);
+    assertNotNull(serverTiming);
+    return email;
+  }
+
+  // 認証のoptionsを取得し、認証器で署名したリクエストパラメータを返す
+  protected Map<String, Object> assertion(SoftwareAuthenticator authenticator, String email) throws IOException {
+    return assertion(null, RP_ID, ORIGIN, authenticator, email);
+  }
+
+  // Hostヘッダで指定したテナントで認証のoptionsを取得し、rpId・Originを指定して署名する
+  private Map<String, Object> assertion(String host, String rpId, String origin,
+      SoftwareAuthenticator authenticator, String email) throws IOException {
+    var options = options(host, "/assertion/options", Map.of("email", email));
+    AssertionResponse assertion = authenticator.get(rpId, origin, challenge(options.body));
+
+    var params = new LinkedHashMap<String, Object>();
+    params.put("ceremonyId", options.ceremonyId);
+    params.put("credentialId", assertion.getCredentialId());
+    params.put("clientDataJSON", assertion.getClientDataJSON());
+    params.put("authenticatorData", assertion.getAuthenticatorData());
+    params.put("signature", assertion.getSignature());
+    return params;
+  }
+
+  protected HttpStatus authenticate(SoftwareAuthenticator authenticator, Map<String, Object> params, boolean useCbor)
+      throws IOException {
+    return post(null, "/assertion/result", params, useCbor).returnResult(Void.class).getStatus();
+  }
+
+  private Options options(String host, String uri, Map<String, String> params) throws IOException {
+    var result = client.post().uri(uri)
+        .headers(headers -> setHost(headers, host))
+        .contentType(MediaType.APPLICATION_JSON)
+        .syncBody(params)
+        .exchange()
+        .expectStatus().isOk()
+        .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON)
+        .expectBody().returnResult();
+    var options = new Options();
+    options.ceremonyId = result.getResponseHeaders().getFirst(ChallengeStore.CEREMONY_ID_HEADER);
+    options.body = json.readTree(result.getResponseBody());
+    assertNotNull(options.ceremonyId);
+    return options;
+  }
+
+  private WebTestClient.ResponseSpec post(String host, String uri, Map<String, Object> params, boolean useCbor)
+      throws IOException {
+    return client.post().uri(uri)
+        .headers(headers -> setHost(headers, host))
+        .contentType(useCbor
+            ? MediaType.valueOf(HttpMessageConverterConfig.APPLICATION_CBOR_VALUE)
+            : MediaType.APPLICATION_JSON)
+        .syncBody(useCbor ? cbor.writeValueAsBytes(params) : json.writeValueAsBytes(params))
+        .exchange();
+  }
+
+  // hostがnullの場合は接続先のHostヘッダ(localhost)のままとする
+  private static void setHost(HttpHeaders headers, String host) {
+    if (host != null) {
+      headers.set(HttpHeaders.HOST, host);
+    }
+  }
+
+  private static byte[] challenge(JsonNode options) {
+    return Base64.getDecoder().decode(options.get("challenge").get("value").asText());
+  }
+
+  private static class Options {
+    String ceremonyId;
+    JsonNode body;
+  }
+}
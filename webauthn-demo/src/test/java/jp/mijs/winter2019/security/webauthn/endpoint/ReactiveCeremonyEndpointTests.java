@@ -0,0 +1,14 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT,
+    properties = { "server.ssl.enabled=false", "management.server.port=-1" })
+@ActiveProfiles("reactive")
+public class ReactiveCeremonyEndpointTests extends CeremonyEndpointTests {
+}
@@ -0,0 +1,79 @@
+package jp.mijs.winter2019.security.webauthn.endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import jp.mijs.winter2019.security.webauthn.shard.Resharder;
+import jp.mijs.winter2019.security.webauthn.shard.ShardRouter;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * 2つのシャードに振り分けた場合の結合テスト。
+ * シャード数を4に変更した後も、変更前に登録した公開鍵クレデンシャルで認証できることを確認する。
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT,
+    properties = { "server.ssl.enabled=false", "management.server.port=-1",
+        "webauthn.shard.urls=jdbc:h2:mem:sharded0;DB_CLOSE_DELAY=-1,jdbc:h2:mem:sharded1;DB_CLOSE_DELAY=-1",
+        "webauthn.shard.resharding.urls=jdbc:h2:mem:sharded2;DB_CLOSE_DELAY=-1,jdbc:h2:mem:sharded3;DB_CLOSE_DELAY=-1",
+        "webauthn.shard.resharding.grace-millis=0" })
+@DirtiesContext
+public class ShardedCeremonyEndpointTests extends CeremonyEndpointTests {
+  private static final String COUNT_USERS = "SELECT COUNT(*) FROM user";
+  private static final String FIND_CREDENTIAL_IDS = "SELECT credential_id FROM credential";
+
+  @Autowired
+  private ShardRouter shardRouter;
+
+  @Autowired
+  private Resharder resharder;
+
+  @Test
+  public void authenticatesAfterResharding() throws Exception {
+    var authenticators = new ArrayList<SoftwareAuthenticator>();
+    var emails = new ArrayList<String>();
+    for (int i = 0; i < 16; i++) {
+      var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 100 + i);
+      authenticators.add(authenticator);
+      emails.add(register(authenticator, false));
+    }
+    var users = countUsers();
+
+    resharder.reshard();
+
+    assertEquals(4, shardRouter.getShardCount());
+    assertEquals(users, countUsers());
+    for (var shard : shardRouter.getShards()) {
+      //移動した行は元のシャードから削除されている
+      for (var credentialId : shard.getJdbc().queryForList(FIND_CREDENTIAL_IDS, Map.of(), byte[].class)) {
+        assertEquals(shard.getIndex(), ShardRouter.indexOf(ShardRouter.hash(credentialId), 4));
+      }
+    }
+    for (int i = 0; i < authenticators.size(); i++) {
+      assertEquals(HttpStatus.OK,
+          authenticate(authenticators.get(i), assertion(authenticators.get(i), emails.get(i)), false));
+    }
+    assertTrue(shardRouter.getShards().get(3).getJdbc().queryForObject(COUNT_USERS, Map.of(), Integer.class) > 0);
+  }
+
+  private int countUsers() {
+    var count = 0;
+    for (var shard : shardRouter.getShards()) {
+      count += shard.getJdbc().queryForObject(COUNT_USERS, Map.of(), Integer.class);
+    }
+    return count;
+  }
+}
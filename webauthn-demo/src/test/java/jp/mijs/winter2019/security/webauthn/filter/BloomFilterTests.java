@@ -0,0 +1,51 @@
+package jp.mijs.winter2019.security.webauthn.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BloomFilterTests {
+  @Test
+  public void hasNoFalseNegatives() {
+    var filter = BloomFilter.create(10_000, 0.01, Long.MAX_VALUE);
+    for (long i = 0; i < 10_000; i++) {
+      filter.put(key(i));
+    }
+    for (long i = 0; i < 10_000; i++) {
+      assertTrue(filter.mightContain(key(i)));
+    }
+    assertEquals(10_000, filter.getInsertions());
+  }
+
+  @Test
+  public void falsePositiveRateIsNearTarget() {
+    var filter = BloomFilter.create(10_000, 0.01, Long.MAX_VALUE);
+    for (long i = 0; i < 10_000; i++) {
+      filter.put(key(i));
+    }
+    var positives = 0;
+    for (long i = 10_000; i < 110_000; i++) {
+      if (filter.mightContain(key(i))) {
+        positives++;
+      }
+    }
+    assertTrue(String.valueOf(positives), positives < 1_500);
+    assertTrue(String.valueOf(filter.estimatedFpp()), filter.estimatedFpp() < 0.015);
+  }
+
+  @Test
+  public void sizeIsCappedByBudget() {
+    //10億件・1%では約1.2GBとなるが、上限の1MBに収める
+    var filter = BloomFilter.create(1_000_000_000L, 0.01, 1024 * 1024);
+    assertTrue(String.valueOf(filter.byteSize()), filter.byteSize() <= 1024 * 1024);
+    filter.put(key(1));
+    assertTrue(filter.mightContain(key(1)));
+  }
+
+  private static byte[] key(long value) {
+    return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+  }
+}
@@ -0,0 +1,60 @@
+package jp.mijs.winter2019.security.webauthn.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+public class ExistenceFilterTests {
+  @Autowired
+  private ExistenceFilter existenceFilter;
+
+  @Autowired
+  private WebAuthnAuthenticationService authenticationService;
+
+  @Autowired
+  private TenantRegistry tenantRegistry;
+
+  @Test
+  public void rejectsUnknownWithoutQuery() {
+    existenceFilter.rebuild();
+    assertTrue(existenceFilter.isReady());
+
+    var rejected = existenceFilter.getRejectedEmailCount();
+    var email = "unknown-" + System.nanoTime() + "@example.com";
+    assertTrue(authenticationService.find(tenantRegistry.getDefaultTenant(), email).isEmpty());
+    assertEquals(rejected + 1, existenceFilter.getRejectedEmailCount());
+    assertFalse(existenceFilter.mightContainCredentialId(new byte[] { 1, 2, 3, 4, 5 }));
+  }
+
+  @Test
+  public void containsAddedKeys() {
+    existenceFilter.rebuild();
+    var email = "added-" + System.nanoTime() + "@example.com";
+    existenceFilter.putEmail(email);
+    existenceFilter.putCredentialId(email.getBytes());
+    assertTrue(existenceFilter.mightContainEmail(email));
+    assertTrue(existenceFilter.mightContainCredentialId(email.getBytes()));
+    //フィルタで除外されなかったものはDBを検索する
+    assertTrue(authenticationService.find(tenantRegistry.getDefaultTenant(), email).isEmpty());
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void unknownCredentialFailsAsBefore() {
+    existenceFilter.rebuild();
+    authenticationService.findAuthenticator(new byte[] { 9, 8, 7, 6, 5 });
+  }
+}
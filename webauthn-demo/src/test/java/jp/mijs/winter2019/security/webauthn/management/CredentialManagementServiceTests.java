@@ -0,0 +1,198 @@
+package jp.mijs.winter2019.security.webauthn.management;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.webauthn4j.data.PublicKeyCredentialDescriptor;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.transfer.CredentialImporter;
+import jp.mijs.winter2019.security.webauthn.transfer.TransferCredential;
+import jp.mijs.winter2019.security.webauthn.transfer.TransferFormat;
+import jp.mijs.winter2019.security.webauthn.transfer.TransferRecord;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = "webauthn.credentials.max-in-options=3")
+public class CredentialManagementServiceTests {
+  private static final String RP_ID = "localhost";
+  private static final String ORIGIN = "https://localhost:8443";
+  private static final AtomicInteger SEQUENCE = new AtomicInteger(7000);
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Autowired
+  private CredentialImporter importer;
+
+  @Autowired
+  private CredentialManagementService credentialManagementService;
+
+  @Autowired
+  private WebAuthnAuthenticationService authenticationService;
+
+  @Autowired
+  private TenantRegistry tenantRegistry;
+
+  @Test
+  public void pagesThroughAllCredentials() throws IOException {
+    var email = nextEmail();
+    var authenticators = register(email, 5);
+
+    var listed = new ArrayList<String>();
+    String after = null;
+    do {
+      var page = credentialManagementService.list(tenant(), email, after, 2).orElseThrow();
+      assertTrue(page.getCredentials().size() <= 2);
+      page.getCredentials().forEach(credential -> listed.add(credential.getCredentialId()));
+      after = page.getNext();
+    } while (after != null);
+
+    assertEquals(5, listed.size());
+    assertEquals(5, listed.stream().distinct().count());
+    for (var authenticator : authenticators) {
+      assertTrue(listed.contains(ENCODER.encodeToString(authenticator.getCredentialId())));
+    }
+    assertTrue(credentialManagementService.list(tenant(), "unknown-" + email, null, null).isEmpty());
+  }
+
+  @Test
+  public void optionsContainRecentlyUsedCredentials() throws IOException {
+    var email = nextEmail();
+    var authenticators = register(email, 5);
+    var used = authenticators.get(4);
+    authenticate(used);
+
+    var allowCredentials = allowCredentials(email);
+
+    assertEquals(3, allowCredentials.size());
+    assertArrayEquals(used.getCredentialId(), allowCredentials.get(0));
+    var page = credentialManagementService.list(tenant(), email, null, null).orElseThrow();
+    var summary = page.getCredentials().stream()
+        .filter(credential -> credential.getCredentialId().equals(ENCODER.encodeToString(used.getCredentialId())))
+        .findFirst().orElseThrow();
+    assertNotNull(summary.getLastUsedAt());
+    assertEquals(used.getCounter(), summary.getSignatureCounter());
+  }
+
+  @Test
+  public void revokedCredentialCannotAuthenticate() throws IOException {
+    var email = nextEmail();
+    var authenticators = register(email, 2);
+    var revoked = authenticators.get(0);
+    //キャッシュに登録された状態で削除する
+    authenticate(revoked);
+
+    assertEquals(1,
+        credentialManagementService.revoke(tenant(), email, ENCODER.encodeToString(revoked.getCredentialId())));
+
+    try {
+      authenticate(revoked);
+      fail();
+    } catch (RuntimeException expected) {
+      //削除済み
+    }
+    var allowCredentials = allowCredentials(email);
+    assertEquals(1, allowCredentials.size());
+    assertArrayEquals(authenticators.get(1).getCredentialId(), allowCredentials.get(0));
+    var page = credentialManagementService.list(tenant(), email, null, null).orElseThrow();
+    assertEquals(1, page.getCredentials().size());
+    assertNull(page.getNext());
+    authenticate(authenticators.get(1));
+  }
+
+  @Test
+  public void revokeIgnoresOtherUsersCredentials() throws IOException {
+    var email = nextEmail();
+    var other = nextEmail();
+    var authenticators = register(email, 2);
+    var others = register(other, 1);
+
+    var revoked = credentialManagementService.revokeAll(tenant(), email, List.of(
+        ENCODER.encodeToString(authenticators.get(0).getCredentialId()),
+        ENCODER.encodeToString(authenticators.get(1).getCredentialId()),
+        ENCODER.encodeToString(others.get(0).getCredentialId())));
+
+    assertEquals(2, revoked);
+    assertTrue(credentialManagementService.list(tenant(), email, null, null).orElseThrow().getCredentials().isEmpty());
+    assertEquals(1,
+        credentialManagementService.list(tenant(), other, null, null).orElseThrow().getCredentials().size());
+    assertFalse(allowCredentials(other).isEmpty());
+    authenticate(others.get(0));
+  }
+
+  private List<byte[]> allowCredentials(String email) {
+    var userCredentials = authenticationService.find(tenant(), email).orElseThrow();
+    return authenticationService.requestOptions(tenant(), userCredentials)
+        .getAllowCredentials().stream()
+        .map(PublicKeyCredentialDescriptor::getId)
+        .collect(Collectors.toList());
+  }
+
+  private void authenticate(SoftwareAuthenticator authenticator) {
+    var challenge = new DefaultChallenge();
+    var assertion = authenticator.get(RP_ID, ORIGIN, challenge.getValue());
+    authenticationService.assertionFinish(tenant().getDefaultServerPropertyTemplate(), challenge,
+        assertion.getCredentialId(), assertion.getClientDataJSON(), assertion.getAuthenticatorData(),
+        assertion.getSignature());
+  }
+
+  private Tenant tenant() {
+    return tenantRegistry.getDefaultTenant();
+  }
+
+  private static String nextEmail() {
+    return "management-" + SEQUENCE.incrementAndGet() + "@example.com";
+  }
+
+  // 1人のユーザに複数のクレデンシャルを登録する
+  private List<SoftwareAuthenticator> register(String email, int count) throws IOException {
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, SEQUENCE.incrementAndGet());
+    var authenticators = new ArrayList<SoftwareAuthenticator>();
+    var record = new TransferRecord();
+    record.setUserId(email.getBytes());
+    record.setEmail(email);
+    record.setDisplayName(email);
+    for (int i = 0; i < count; i++) {
+      authenticators.add(authenticator);
+      var credential = new TransferCredential();
+      credential.setCredentialId(authenticator.getCredentialId());
+      credential.setPublicKey(authenticator.getCOSEKey());
+      credential.setSignatureCounter(authenticator.getCounter());
+      record.getCredentials().add(credential);
+      authenticator = authenticator.nextCredential();
+    }
+
+    var file = folder.newFile().toPath();
+    Files.write(file, TransferFormat.CBOR.objectMapper().writeValueAsBytes(record));
+    importer.importFrom(file, TransferFormat.CBOR);
+    return authenticators;
+  }
+}
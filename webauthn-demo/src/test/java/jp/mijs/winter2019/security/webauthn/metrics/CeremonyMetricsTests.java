@@ -0,0 +1,47 @@
+package jp.mijs.winter2019.security.webauthn.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class CeremonyMetricsTests {
+  @Test
+  public void reusesTimerPerPhaseAndTags() {
+    var meterRegistry = new SimpleMeterRegistry();
+    var metrics = new CeremonyMetrics(meterRegistry);
+    for (int i = 0; i < 3; i++) {
+      var timings = metrics.begin(CeremonyMetrics.REGISTRATION);
+      PhaseTimings.time("validate", () -> { });
+      CeremonyMetrics.tagFormat(i == 0 ? "packed" : "none");
+      CeremonyMetrics.tagAlgorithm(-7);
+      timings.stop();
+      metrics.record(timings);
+    }
+
+    assertEquals(1, meterRegistry.get(CeremonyMetrics.REGISTRATION)
+        .tags("phase", "validate", "alg", "ES256", "fmt", "packed").timer().count());
+    assertEquals(2, meterRegistry.get(CeremonyMetrics.REGISTRATION)
+        .tags("phase", "validate", "alg", "ES256", "fmt", "none").timer().count());
+    assertEquals(2, meterRegistry.get(CeremonyMetrics.REGISTRATION).timers().size());
+  }
+
+  @Test
+  public void formatsServerTimingIndependentOfLocale() {
+    //小数点がカンマになるロケールでもServer-Timingの書式は変わらない
+    var locale = Locale.getDefault();
+    Locale.setDefault(Locale.GERMANY);
+    try {
+      var timings = PhaseTimings.start(CeremonyMetrics.ASSERTION);
+      PhaseTimings.time("validate", () -> { });
+      timings.stop();
+      assertTrue(timings.toServerTiming(), timings.toServerTiming().matches("validate;dur=\\d+\\.\\d{3}"));
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package jp.mijs.winter2019.security.webauthn.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.flyway.FlywayConfigurationCustomizer;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.webauthn4j.converter.util.CborConverter;
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.filter.ExistenceFilter;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.service.CredentialCodec;
+import jp.mijs.winter2019.security.webauthn.service.OriginalAuthenticator;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnRegistrationService;
+import jp.mijs.winter2019.security.webauthn.shard.ShardFactory;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+/**
+ * バージョン1の形式で保存した公開鍵クレデンシャルを移行するテスト。
+ * 一度に更新する件数を2件とし、複数回に分けてバッチ更新されることを確認する。
+ * テーブル定義をFlywayで管理する前のデータベースは、Flywayでテーブル定義を変更してから移行する。
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = "webauthn.storage.migration.batch-size=2")
+public class CredentialStorageMigratorTests {
+  private static final String RP_ID = "localhost";
+  private static final String ORIGIN = "https://localhost:8443";
+
+  private static final String COUNT_LEGACY =
+      "SELECT COUNT(*) FROM credential WHERE format_version = " + Credential.FORMAT_VERSION_LEGACY;
+  private static final String COUNT_ATTESTATIONS =
+      "SELECT COUNT(*) FROM credential_attestation WHERE credential_id = :credentialId";
+
+  private static final String LEGACY_URL = "jdbc:h2:mem:legacy-schema;DB_CLOSE_DELAY=-1";
+  //テーブル定義をFlywayで管理する前のテーブル定義
+  private static final String[] LEGACY_SCHEMA = {
+      "CREATE TABLE user " +
+      "( " +
+        "id           VARBINARY(64) NOT NULL PRIMARY KEY, " +
+        "email        VARCHAR(250)  NOT NULL UNIQUE, " +
+        "display_name VARCHAR(255)  NOT NULL " +
+      ")",
+      "CREATE TABLE credential " +
+      "( " +
+        "credential_id     VARBINARY(255) NOT NULL PRIMARY KEY, " +
+        "user_id           VARBINARY(64)  NOT NULL, " +
+        "public_key        BLOB           NOT NULL, " +
+        "signature_counter LONG           NOT NULL, " +
+        "FOREIGN KEY (user_id) REFERENCES user (id) " +
+      ")"
+  };
+
+  @Autowired
+  private CredentialStorageMigrator migrator;
+
+  @Autowired
+  private WebAuthnRegistrationService registrationService;
+
+  @Autowired
+  private WebAuthnAuthenticationService authenticationService;
+
+  @Autowired
+  private UserRepository userRepository;
+
+  @Autowired
+  private CredentialRepository credentialRepository;
+
+  @Autowired
+  private CredentialAttestationRepository credentialAttestationRepository;
+
+  @Autowired
+  private CredentialCodec credentialCodec;
+
+  @Autowired
+  private CborConverter cborConverter;
+
+  @Autowired
+  private ChallengeGenerator generator;
+
+  @Autowired
+  private ExistenceFilter existenceFilter;
+
+  @Autowired
+  private TenantRegistry tenantRegistry;
+
+  @Autowired
+  private NamedParameterJdbcOperations jdbc;
+
+  @Autowired
+  private FlywayConfigurationCustomizer legacyBaselineCustomizer;
+
+  @Test
+  public void migratesLegacyCredentialsAndResumes() {
+    var tenant = tenantRegistry.getDefaultTenant();
+    var user = new User();
+    user.setTenantId(Tenant.DEFAULT_ID);
+    user.setId(generator.userId());
+    user.setEmail("legacy@example.com");
+    user.setDisplayName("legacy");
+    userRepository.insert(user);
+    existenceFilter.putEmail(user.getEmail());
+
+    //バージョン1の形式で5件、移行済みの形式で1件を保存する
+    var authenticators = new ArrayList<SoftwareAuthenticator>();
+    var originals = new ArrayList<OriginalAuthenticator>();
+    for (int i = 0; i < 6; i++) {
+      var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 9100 + i);
+      var challenge = new DefaultChallenge();
+      var attestation = authenticator.create(RP_ID, ORIGIN, challenge.getValue());
+      var original = registrationService.validateCreation(tenant.getDefaultServerPropertyTemplate(), challenge,
+          attestation.getClientDataJSON(), attestation.getAttestationObject());
+      authenticators.add(authenticator);
+      originals.add(original);
+
+      var credentialId = authenticator.getCredentialId();
+      if (i == 5) {
+        credentialRepository.insert(credentialCodec.encode(user.getId(), original));
+        credentialAttestationRepository.insert(
+            credentialCodec.encodeAttestation(credentialId, original.getAttestationStatement()));
+      } else {
+        var legacy = new Credential();
+        legacy.setCredentialId(credentialId);
+        legacy.setUserId(user.getId());
+        legacy.setFormatVersion(Credential.FORMAT_VERSION_LEGACY);
+        legacy.setPublicKey(cborConverter.writeValueAsBytes(original));
+        legacy.setSignatureCounter(original.getCounter());
+        credentialRepository.insert(legacy);
+      }
+      userRepository.addCredentialId(user, credentialId);
+      existenceFilter.putCredentialId(credentialId);
+    }
+
+    //移行前のバージョン1の形式でも認証できる
+    assertion(authenticators.get(0));
+
+    //アテステーションの保存後、公開鍵クレデンシャルの更新前に中断した状態から再開する
+    var interrupted = authenticators.get(1).getCredentialId();
+    credentialAttestationRepository.insert(
+        credentialCodec.encodeAttestation(interrupted, originals.get(1).getAttestationStatement()));
+
+    assertEquals(5, migrator.migrate());
+    assertEquals(0, (int) jdbc.queryForObject(COUNT_LEGACY, Map.of(), Integer.class));
+    //移行済みのものは再度実行しても変更しない
+    assertEquals(0, migrator.migrate());
+
+    for (int i = 0; i < authenticators.size(); i++) {
+      var credentialId = authenticators.get(i).getCredentialId();
+      assertEquals(1, (int) jdbc.queryForObject(COUNT_ATTESTATIONS, Map.of("credentialId", credentialId),
+          Integer.class));
+
+      //アテステーション・ステートメントは参照した場合のみ読み込む
+      var credential = credentialRepository.findById(credentialId).orElseThrow();
+      assertEquals(Credential.FORMAT_VERSION_SPLIT, credential.getFormatVersion());
+      var loads = new AtomicInteger();
+      var decoded = credentialCodec.decode(credential, () -> {
+        loads.incrementAndGet();
+        return credentialAttestationRepository.findById(credentialId)
+            .map(credentialCodec::decodeAttestation)
+            .orElse(null);
+      });
+      assertEquals(0, loads.get());
+      assertNotNull(decoded.getAttestationStatement());
+      assertEquals(originals.get(i).getAttestationStatement().getFormat(),
+          decoded.getAttestationStatement().getFormat());
+      assertEquals(1, loads.get());
+
+      //移行後も認証でき、署名カウンタを引き継ぐ
+      assertion(authenticators.get(i));
+    }
+  }
+
+  @Test
+  public void upgradesLegacySchemaWithFlyway() {
+    var legacyJdbc = new JdbcTemplate(new DriverManagerDataSource(LEGACY_URL, "sa", ""));
+    for (var ddl : LEGACY_SCHEMA) {
+      legacyJdbc.execute(ddl);
+    }
+    var userId = generator.userId();
+    legacyJdbc.update("INSERT INTO user (id, email, display_name) VALUES (?, ?, ?)",
+        userId, "legacy-schema@example.com", "legacy");
+
+    var authenticator = new SoftwareAuthenticator(Algorithm.ES256, 9200);
+    var challenge = new DefaultChallenge();
+    var attestation = authenticator.create(RP_ID, ORIGIN, challenge.getValue());
+    var original = registrationService.validateCreation(
+        tenantRegistry.getDefaultTenant().getDefaultServerPropertyTemplate(), challenge,
+        attestation.getClientDataJSON(), attestation.getAttestationObject());
+    legacyJdbc.update("INSERT INTO credential (credential_id, user_id, public_key, signature_counter) "
+        + "VALUES (?, ?, ?, ?)",
+        authenticator.getCredentialId(), userId, cborConverter.writeValueAsBytes(original), original.getCounter());
+
+    //ベースラインを作成し、V1_1以降を適用する
+    var shardFactory = new ShardFactory("sa", "", 2, new String[] { "classpath:db/migration" }, null,
+        legacyBaselineCustomizer);
+    try {
+      var shard = shardFactory.create(0, LEGACY_URL);
+      var shardJdbc = shard.getJdbc();
+      assertEquals(1, (int) shardJdbc.queryForObject(COUNT_LEGACY, Map.of(), Integer.class));
+      assertEquals(1, (int) shardJdbc.queryForObject("SELECT COUNT(*) FROM user_credential", Map.of(),
+          Integer.class));
+
+      assertEquals(1, migrator.migrate(shard));
+      assertEquals(0, (int) shardJdbc.queryForObject(COUNT_LEGACY, Map.of(), Integer.class));
+      assertEquals(1, (int) shardJdbc.queryForObject(COUNT_ATTESTATIONS,
+          Map.of("credentialId", authenticator.getCredentialId()), Integer.class));
+
+      //メールアドレスの一意制約はテナント毎になる
+      shardJdbc.update("INSERT INTO user (id, tenant_id, email, display_name) "
+          + "VALUES (:id, 'other', 'legacy-schema@example.com', 'other')", Map.of("id", generator.userId()));
+    } finally {
+      shardFactory.destroy();
+    }
+  }
+
+  private void assertion(SoftwareAuthenticator authenticator) {
+    var challenge = new DefaultChallenge();
+    var assertion = authenticator.get(RP_ID, ORIGIN, challenge.getValue());
+    authenticationService.assertionFinish(tenantRegistry.getDefaultTenant().getDefaultServerPropertyTemplate(),
+        challenge, assertion.getCredentialId(), assertion.getClientDataJSON(), assertion.getAuthenticatorData(),
+        assertion.getSignature());
+  }
+}
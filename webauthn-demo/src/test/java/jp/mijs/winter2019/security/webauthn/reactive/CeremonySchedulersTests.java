@@ -0,0 +1,66 @@
+package jp.mijs.winter2019.security.webauthn.reactive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import jp.mijs.winter2019.security.webauthn.metrics.PhaseTimings;
+
+public class CeremonySchedulersTests {
+  private final CeremonySchedulers schedulers = new CeremonySchedulers(1, 1, 1);
+
+  @After
+  public void tearDown() {
+    schedulers.dispose();
+  }
+
+  @Test
+  public void runsOnSeparateThreads() {
+    var crypto = schedulers.crypto(null, () -> Thread.currentThread().getName()).block();
+    var jdbc = schedulers.jdbc(null, () -> Thread.currentThread().getName()).block();
+
+    assertTrue(crypto, crypto.startsWith("webauthn-crypto-"));
+    assertTrue(jdbc, jdbc.startsWith("webauthn-jdbc-"));
+  }
+
+  @Test
+  public void bindsTimingsToWorkerThread() {
+    var timings = PhaseTimings.detached("test");
+
+    schedulers.crypto(timings, () -> PhaseTimings.time("validate", () -> 1)).block();
+
+    assertEquals(1, timings.getPhases().size());
+    assertTrue(timings.getPhases().containsKey("validate"));
+  }
+
+  @Test
+  public void rejectsWhenQueueIsFull() throws InterruptedException {
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    //1件目でスレッドを塞ぎ、2件目で待ち行列を埋める
+    schedulers.jdbc(null, () -> {
+      started.countDown();
+      release.await();
+      return 1;
+    }).subscribe();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    schedulers.jdbc(null, () -> 2).subscribe();
+
+    try {
+      schedulers.jdbc(null, () -> 3).block();
+      fail();
+    } catch (ResponseStatusException e) {
+      assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    } finally {
+      release.countDown();
+    }
+  }
+}
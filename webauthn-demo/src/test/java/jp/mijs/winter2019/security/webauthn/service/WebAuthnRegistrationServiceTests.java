@@ -0,0 +1,113 @@
+package jp.mijs.winter2019.security.webauthn.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcOperations;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.challenge.ChallengeGenerator;
+import jp.mijs.winter2019.security.webauthn.entity.User;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE)
+public class WebAuthnRegistrationServiceTests {
+  private static final String RP_ID = "localhost";
+  private static final String ORIGIN = "https://localhost:8443";
+
+  private static final String FIND_USER_IDS =
+      "SELECT id FROM user WHERE tenant_id = :tenantId AND email = :email";
+  private static final String FIND_USER_CREDENTIAL_USER_ID =
+      "SELECT user_id FROM user_credential WHERE credential_id = :credentialId";
+  private static final String FIND_CREDENTIAL_USER_ID =
+      "SELECT user_id FROM credential WHERE credential_id = :credentialId";
+
+  @Autowired
+  private WebAuthnRegistrationService registrationService;
+
+  @Autowired
+  private ChallengeGenerator generator;
+
+  @Autowired
+  private TenantRegistry tenantRegistry;
+
+  @Autowired
+  private NamedParameterJdbcOperations jdbc;
+
+  @Test
+  public void registersOneUserForConcurrentRegistrations() throws Exception {
+    //同じメールアドレスで同時に登録しても、ユーザは1件のみ作成され全ての公開鍵クレデンシャルが紐付く
+    var tenant = tenantRegistry.getDefaultTenant();
+    var email = "concurrent-registration@example.com";
+    var registrations = 8;
+    var users = new ArrayList<User>();
+    var authenticators = new ArrayList<OriginalAuthenticator>();
+    for (int i = 0; i < registrations; i++) {
+      //登録のセレモニー毎に、未登録のユーザとして別のユーザIDが採番される
+      var user = new User();
+      user.setTenantId(Tenant.DEFAULT_ID);
+      user.setId(generator.userId());
+      user.setEmail(email);
+      user.setDisplayName(email);
+      users.add(user);
+
+      var challenge = new DefaultChallenge();
+      var attestation = new SoftwareAuthenticator(Algorithm.ES256, 9000 + i)
+          .create(RP_ID, ORIGIN, challenge.getValue());
+      authenticators.add(registrationService.validateCreation(tenant.getDefaultServerPropertyTemplate(), challenge,
+          attestation.getClientDataJSON(), attestation.getAttestationObject()));
+    }
+
+    var start = new CountDownLatch(1);
+    var executor = Executors.newFixedThreadPool(registrations);
+    try {
+      var futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < registrations; i++) {
+        var user = users.get(i);
+        var authenticator = authenticators.get(i);
+        futures.add(executor.submit(() -> {
+          start.await();
+          registrationService.saveCredential(user, authenticator);
+          return null;
+        }));
+      }
+      start.countDown();
+      for (var future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    var userIds = jdbc.queryForList(FIND_USER_IDS, Map.of("tenantId", Tenant.DEFAULT_ID, "email", email),
+        byte[].class);
+    assertEquals(1, userIds.size());
+    for (var authenticator : authenticators) {
+      var credentialId = authenticator.getAttestedCredentialData().getCredentialId();
+      var userCredentials = jdbc.queryForList(FIND_USER_CREDENTIAL_USER_ID, Map.of("credentialId", credentialId),
+          byte[].class);
+      assertEquals(1, userCredentials.size());
+      assertArrayEquals(userIds.get(0), userCredentials.get(0));
+      assertArrayEquals(userIds.get(0),
+          jdbc.queryForObject(FIND_CREDENTIAL_USER_ID, Map.of("credentialId", credentialId), byte[].class));
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package jp.mijs.winter2019.security.webauthn.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import jp.mijs.winter2019.security.webauthn.entity.Credential;
+import jp.mijs.winter2019.security.webauthn.entity.CredentialAttestation;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialAttestationRepository;
+import jp.mijs.winter2019.security.webauthn.repository.CredentialRepository;
+
+public class ResharderTests {
+  private static final String COUNT_CREDENTIAL = "SELECT COUNT(*) FROM credential WHERE credential_id = :credentialId";
+  private static final String COUNT_ATTESTATION =
+      "SELECT COUNT(*) FROM credential_attestation WHERE credential_id = :credentialId";
+  private static final long STALE_COUNTER_VALUE = 1_000_000;
+  private static final String STALE_COUNTER =
+      "UPDATE credential SET signature_counter = " + STALE_COUNTER_VALUE + " WHERE credential_id = :credentialId";
+  private static final String STALE_INSERT =
+      "INSERT INTO credential (credential_id, user_id, format_version, algorithm, public_key, signature_counter) " +
+      "VALUES (:credentialId, :userId, " + Credential.FORMAT_VERSION_SPLIT + ", -7, X'00', 0)";
+  private static final byte[] USER_ID = { 1 };
+
+  private final ShardFactory shardFactory =
+      new ShardFactory("sa", "", 2, new String[] { "classpath:db/migration" }, null, null);
+
+  @After
+  public void tearDown() {
+    shardFactory.destroy();
+  }
+
+  @Test
+  public void doesNotResurrectCredentialRevokedDuringCopy() throws InterruptedException {
+    var created = shardFactory.create(0, "jdbc:h2:mem:resharder0;DB_CLOSE_DELAY=-1");
+    var source = new Shard(0, created.getName(), created.getDataSource(),
+        new RevokingJdbc(created.getDataSource()), created.getTransactionTemplate());
+    var destination = shardFactory.create(1, "jdbc:h2:mem:resharder1;DB_CLOSE_DELAY=-1");
+    var shardRouter = new ShardRouter(List.of(source));
+    var credentialRepository = new CredentialRepository(shardRouter);
+    var credentialAttestationRepository = new CredentialAttestationRepository(shardRouter);
+
+    //シャード数を2に変更した場合に移動するクレデンシャルを登録する
+    var random = new SplittableRandom(1);
+    var moving = new ArrayList<byte[]>();
+    for (int i = 0; i < 3; i++) {
+      var credentialId = movingCredentialId(random);
+      insert(credentialRepository, credentialAttestationRepository, credentialId, 0);
+      moving.add(credentialId);
+    }
+
+    //1回目の複写で読み込んだ直後に失効する - 移動先への削除は複写より先に反映される
+    var revoked = moving.get(1);
+    ((RevokingJdbc) source.getJdbc()).onFirstCredentialPage = () -> {
+      credentialAttestationRepository.delete(revoked);
+      assertTrue(credentialRepository.delete(USER_ID, revoked));
+    };
+
+    var moved = new Resharder(shardRouter, shardFactory, List.of(), 100, 0).reshard(List.of(destination));
+
+    assertEquals(2, moved.getCredentials());
+    assertEquals(0, count(destination, COUNT_CREDENTIAL, revoked));
+    assertEquals(0, count(destination, COUNT_ATTESTATION, revoked));
+    assertFalse(credentialRepository.findById(revoked).isPresent());
+    for (var credentialId : List.of(moving.get(0), moving.get(2))) {
+      assertEquals(1, count(destination, COUNT_CREDENTIAL, credentialId));
+      assertEquals(1, count(destination, COUNT_ATTESTATION, credentialId));
+      assertEquals(0, count(source, COUNT_CREDENTIAL, credentialId));
+    }
+  }
+
+  @Test
+  public void keepsWritesMadeDuringSwitch() throws Exception {
+    var source = shardFactory.create(0, "jdbc:h2:mem:resharder2;DB_CLOSE_DELAY=-1");
+    var destination = shardFactory.create(1, "jdbc:h2:mem:resharder3;DB_CLOSE_DELAY=-1");
+    var shardRouter = new ShardRouter(List.of(source));
+    var credentialRepository = new CredentialRepository(shardRouter);
+    var credentialAttestationRepository = new CredentialAttestationRepository(shardRouter);
+
+    var random = new SplittableRandom(2);
+    var counters = new LinkedHashMap<ByteBuffer, Long>();
+    for (int i = 0; i < 20; i++) {
+      var credentialId = movingCredentialId(random);
+      insert(credentialRepository, credentialAttestationRepository, credentialId, 0);
+      counters.put(ByteBuffer.wrap(credentialId), 0L);
+    }
+    var staleCounter = movingCredentialId(random);
+    insert(credentialRepository, credentialAttestationRepository, staleCounter, 0);
+    var staleInsert = movingCredentialId(random);
+
+    //変更中・切り替え中も、署名カウンタの更新と登録を続ける
+    var done = new AtomicBoolean();
+    var writer = Executors.newSingleThreadExecutor();
+    var writes = writer.submit(() -> {
+      var ids = new ArrayList<>(counters.keySet());
+      for (int i = 0; !done.get(); i++) {
+        var credentialId = ids.get(i % ids.size());
+        var counter = counters.get(credentialId) + 1;
+        var credential = new Credential();
+        credential.setCredentialId(credentialId.array());
+        credential.setSignatureCounter(counter);
+        assertTrue(credentialRepository.update(credential));
+        counters.put(credentialId, counter);
+        if (i % 10 == 0) {
+          var added = movingCredentialId(random);
+          insert(credentialRepository, credentialAttestationRepository, added, counter);
+          counters.put(ByteBuffer.wrap(added), counter);
+          ids.add(ByteBuffer.wrap(added));
+        }
+      }
+      return null;
+    });
+
+    //切り替え前に振り分け先を決め、移動先に反映されずに元のシャードのみに書き込まれたものを、切り替え後に再現する
+    var switcher = Executors.newSingleThreadExecutor();
+    var switched = switcher.submit(() -> {
+      while (shardRouter.getShardCount() == 1) {
+        Thread.sleep(1);
+      }
+      source.getJdbc().update(STALE_COUNTER, Map.of("credentialId", staleCounter));
+      source.getJdbc().update(STALE_INSERT, Map.of("credentialId", staleInsert, "userId", USER_ID));
+      return null;
+    });
+
+    try {
+      new Resharder(shardRouter, shardFactory, List.of(), 5, 300).reshard(List.of(destination));
+      switched.get(10, TimeUnit.SECONDS);
+    } finally {
+      done.set(true);
+      writer.shutdown();
+      switcher.shutdownNow();
+    }
+    writes.get(10, TimeUnit.SECONDS);
+
+    assertFalse(shardRouter.isResharding());
+    for (var entry : counters.entrySet()) {
+      var credentialId = entry.getKey().array();
+      assertEquals(0, count(source, COUNT_CREDENTIAL, credentialId));
+      assertEquals(1, count(destination, COUNT_ATTESTATION, credentialId));
+      assertEquals((long) entry.getValue(),
+          credentialRepository.findById(credentialId).orElseThrow().getSignatureCounter());
+    }
+    assertEquals(STALE_COUNTER_VALUE, credentialRepository.findById(staleCounter).orElseThrow().getSignatureCounter());
+    assertEquals(0, count(source, COUNT_CREDENTIAL, staleCounter));
+    assertTrue(credentialRepository.findById(staleInsert).isPresent());
+    assertEquals(0, count(source, COUNT_CREDENTIAL, staleInsert));
+  }
+
+  // シャード数を1から2に変更した場合に移動するクレデンシャルID
+  private static byte[] movingCredentialId(SplittableRandom random) {
+    while (true) {
+      var credentialId = new byte[16];
+      for (int i = 0; i < credentialId.length; i++) {
+        credentialId[i] = (byte) random.nextInt(256);
+      }
+      if (ShardRouter.indexOf(ShardRouter.hash(credentialId), 2) == 1) {
+        return credentialId;
+      }
+    }
+  }
+
+  private static void insert(CredentialRepository credentialRepository,
+      CredentialAttestationRepository credentialAttestationRepository, byte[] credentialId, long signatureCounter) {
+    var credential = new Credential();
+    credential.setCredentialId(credentialId);
+    credential.setUserId(USER_ID);
+    credential.setFormatVersion(Credential.FORMAT_VERSION_SPLIT);
+    credential.setAlgorithm(-7);
+    credential.setPublicKey(new byte[] { 0 });
+    credential.setSignatureCounter(signatureCounter);
+    credentialRepository.insert(credential);
+    var attestation = new CredentialAttestation();
+    attestation.setCredentialId(credentialId);
+    attestation.setFormat("none");
+    attestation.setAttestationStatement(new byte[] { 0 });
+    credentialAttestationRepository.insert(attestation);
+  }
+
+  private static int count(Shard shard, String sql, byte[] credentialId) {
+    return shard.getJdbc().queryForObject(sql, Map.of("credentialId", credentialId), Integer.class);
+  }
+
+  // 公開鍵クレデンシャルの一覧を最初に読み込んだ直後に、指定した処理を実行する
+  private static class RevokingJdbc extends NamedParameterJdbcTemplate {
+    private Runnable onFirstCredentialPage;
+
+    RevokingJdbc(DataSource dataSource) {
+      super(dataSource);
+    }
+
+    @Override
+    public List<Map<String, Object>> queryForList(String sql, SqlParameterSource paramSource) {
+      var rows = super.queryForList(sql, paramSource);
+      if (onFirstCredentialPage != null && sql.contains("FROM credential WHERE credential_id > :after")) {
+        var action = onFirstCredentialPage;
+        onFirstCredentialPage = null;
+        action.run();
+      }
+      return rows;
+    }
+  }
+}
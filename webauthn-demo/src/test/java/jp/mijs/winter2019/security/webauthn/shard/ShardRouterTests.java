@@ -0,0 +1,91 @@
+package jp.mijs.winter2019.security.webauthn.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class ShardRouterTests {
+  @Test
+  public void hashIsStable() {
+    //サーバ間で振り分けが一致するよう、値が変わらないことを確認する
+    assertEquals(ShardRouter.hash(new byte[] { 1, 2, 3 }), ShardRouter.hash(new byte[] { 1, 2, 3 }));
+    assertEquals(ShardRouter.hash("user@example.com".getBytes()), ShardRouter.hash("user@example.com"));
+    assertEquals(0xf52a15e9a9b5e89bL, ShardRouter.hash(new byte[0]));
+  }
+
+  @Test
+  public void distributesEvenly() {
+    var counts = new int[4];
+    var random = new SplittableRandom(1);
+    for (int i = 0; i < 40_000; i++) {
+      var key = new byte[32];
+      for (int j = 0; j < key.length; j++) {
+        key[j] = (byte) random.nextInt(256);
+      }
+      counts[ShardRouter.indexOf(ShardRouter.hash(key), counts.length)]++;
+    }
+    for (var count : counts) {
+      assertTrue(String.valueOf(count), Math.abs(count - 10_000) < 500);
+    }
+  }
+
+  @Test
+  public void mirrorsOnlyToAddedShard() {
+    var shards = shards(4);
+    var router = new ShardRouter(shards.subList(0, 2));
+    router.beginResharding(shards);
+
+    var routes = new ArrayList<ShardRouter.Route>();
+    for (int i = 0; i < 1000; i++) {
+      var email = "user-" + i + "@example.com";
+      var route = router.userRoute(email);
+      if (route.getMirror() != null) {
+        assertEquals(route.getPrimary().getIndex() + 2, route.getMirror().getIndex());
+      }
+      assertSame(route.getPrimary(), router.forUser(email));
+      routes.add(route);
+    }
+
+    //切り替え後は元のシャードに反映する
+    router.completeResharding();
+    assertEquals(4, router.getShardCount());
+    assertTrue(router.isResharding());
+    for (int i = 0; i < 1000; i++) {
+      var route = router.userRoute("user-" + i + "@example.com");
+      var before = routes.get(i);
+      if (before.getMirror() != null) {
+        assertSame(before.getMirror(), route.getPrimary());
+        assertSame(before.getPrimary(), route.getMirror());
+      } else {
+        assertSame(before.getPrimary(), route.getPrimary());
+        assertNull(route.getMirror());
+      }
+    }
+
+    router.finishResharding();
+    assertFalse(router.isResharding());
+    assertNull(router.userRoute("user-0@example.com").getMirror());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTargetOtherThanDouble() {
+    var shards = shards(3);
+    new ShardRouter(shards.subList(0, 2)).beginResharding(shards);
+  }
+
+  private static List<Shard> shards(int count) {
+    var shards = new ArrayList<Shard>();
+    for (int i = 0; i < count; i++) {
+      shards.add(new Shard(i, "shard" + i, null, null, null));
+    }
+    return shards;
+  }
+}
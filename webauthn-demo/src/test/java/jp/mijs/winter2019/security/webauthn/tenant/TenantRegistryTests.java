@@ -0,0 +1,135 @@
+package jp.mijs.winter2019.security.webauthn.tenant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.webauthn4j.data.AttestationConveyancePreference;
+import com.webauthn4j.data.attestation.statement.COSEAlgorithmIdentifier;
+
+import jp.mijs.winter2019.security.webauthn.cache.OptionsTemplateCache;
+
+public class TenantRegistryTests {
+  private static final String TENANTS = "["
+      + "{\"id\": \"a\", \"rpId\": \"a.example.com\","
+      + " \"origins\": [\"https://a.example.com\", \"https://login.a.example.com:8443\"],"
+      + " \"hosts\": [\"a.example.com\", \"login.a.example.com\"],"
+      + " \"algorithms\": [-257], \"timeoutMillis\": 60000, \"attestation\": \"direct\"},"
+      + "{\"id\": \"b\", \"rpId\": \"b.example.com\", \"origins\": [\"https://b.example.com\"]}"
+      + "]";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void resolvesByHost() throws IOException {
+    var registry = registry(TENANTS);
+
+    var a = registry.resolve("LOGIN.A.example.com:8443");
+    assertEquals("a", a.getId());
+    assertSame(a, registry.resolve("a.example.com"));
+    assertEquals("b", registry.resolve("b.example.com:443").getId());
+    assertEquals(COSEAlgorithmIdentifier.RS256, a.getPubKeyCredParams().get(0).getAlg());
+    assertEquals(60000, a.getTimeout());
+    assertEquals(AttestationConveyancePreference.DIRECT, a.getAttestation());
+    //省略した項目は既定値
+    assertEquals(AttestationConveyancePreference.INDIRECT, registry.get("b").getAttestation());
+    assertEquals(2, registry.get("b").getPubKeyCredParams().size());
+    //テナントIDを省略した場合は先頭のテナント
+    assertSame(a, registry.get(null));
+
+    try {
+      registry.resolve("c.example.com");
+      fail();
+    } catch (TenantNotFoundException expected) {
+      assertEquals(1, registry.getUnknownHostCount());
+    }
+  }
+
+  @Test
+  public void selectsTemplateByOrigin() throws IOException {
+    var a = registry(TENANTS).get("a");
+
+    assertEquals("login.a.example.com",
+        a.serverPropertyTemplate("https://login.a.example.com:8443").getOrigin().getHost());
+    assertEquals(8443, a.serverPropertyTemplate("https://login.a.example.com:8443").getOrigin().getPort());
+    //受け付けないOrigin・Originヘッダなしは先頭のOrigin
+    assertSame(a.getDefaultServerPropertyTemplate(), a.serverPropertyTemplate("https://evil.example.com"));
+    assertSame(a.getDefaultServerPropertyTemplate(), a.serverPropertyTemplate(null));
+    assertEquals("a.example.com", a.getDefaultServerPropertyTemplate().getRpId());
+  }
+
+  @Test
+  public void stripsPort() {
+    assertEquals("a.example.com", TenantRegistry.hostName("A.example.com:8443"));
+    assertEquals("a.example.com", TenantRegistry.hostName("a.example.com"));
+    assertEquals("[::1]", TenantRegistry.hostName("[::1]:8443"));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsDuplicateRpId() throws IOException {
+    registry("[{\"id\": \"a\", \"rpId\": \"example.com\", \"origins\": [\"https://a.example.com\"]},"
+        + "{\"id\": \"b\", \"rpId\": \"example.com\", \"origins\": [\"https://b.example.com\"]}]");
+  }
+
+  @Test
+  public void limitsTimeoutToChallengeTimeout() throws IOException {
+    var file = write(folder.newFile().toPath(),
+        "{\"id\": \"b\", \"rpId\": \"b.example.com\", \"origins\": [\"https://b.example.com\"]}");
+    //省略した場合はチャレンジの有効期限
+    assertEquals(30000, new TenantRegistry(new OptionsTemplateCache(10, 60000), file.toString(), 0, 30000)
+        .get("b").getTimeout());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTimeoutLongerThanChallengeTimeout() throws IOException {
+    var file = write(folder.newFile().toPath(), TENANTS);
+    new TenantRegistry(new OptionsTemplateCache(10, 60000), file.toString(), 0, 30000);
+  }
+
+  @Test
+  public void reloadKeepsPreviousOnFailure() throws IOException {
+    var file = write(folder.newFile().toPath(), TENANTS);
+    var registry = new TenantRegistry(new OptionsTemplateCache(10, 60000), file.toString(), 0, 120000);
+    var before = registry.resolve("b.example.com");
+
+    write(file, "{\"id\": \"c\", \"rpId\": \"c.example.com\", \"origins\": [\"https://c.example.com\"]}");
+    registry.reload();
+    assertEquals(1, registry.getTenantCount());
+    assertEquals(1, registry.getGeneration());
+    assertEquals("c", registry.resolve("c.example.com").getId());
+    try {
+      registry.resolve("b.example.com");
+      fail();
+    } catch (TenantNotFoundException expected) {
+      //読み込み直す前に取得したテナントはそのまま使用できる
+      assertEquals("b.example.com", before.getRpId());
+    }
+
+    write(file, "[{\"id\": \"d\"}]");
+    try {
+      registry.reload();
+      fail();
+    } catch (IOException expected) {
+      assertEquals("c", registry.resolve("c.example.com").getId());
+    }
+  }
+
+  private TenantRegistry registry(String json) throws IOException {
+    var file = write(folder.newFile().toPath(), json);
+    return new TenantRegistry(new OptionsTemplateCache(10, 60000), file.toString(), 0, 120000);
+  }
+
+  private static Path write(Path file, String json) throws IOException {
+    return Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+  }
+}
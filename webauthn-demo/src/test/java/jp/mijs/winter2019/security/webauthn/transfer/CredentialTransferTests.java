@@ -0,0 +1,191 @@
+package jp.mijs.winter2019.security.webauthn.transfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.webauthn4j.data.client.challenge.DefaultChallenge;
+
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.service.AssertionRequest;
+import jp.mijs.winter2019.security.webauthn.service.WebAuthnAuthenticationService;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+import jp.mijs.winter2019.security.webauthn.tenant.TenantRegistry;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator;
+import jp.mijs.winter2019.security.webauthn.warmup.SoftwareAuthenticator.Algorithm;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = "webauthn.transfer.batch-size=2")
+public class CredentialTransferTests {
+  private static final String RP_ID = "localhost";
+  private static final String ORIGIN = "https://localhost:8443";
+  private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Autowired
+  private CredentialImporter importer;
+
+  @Autowired
+  private CredentialExporter exporter;
+
+  @Autowired
+  private UserRepository userRepository;
+
+  @Autowired
+  private WebAuthnAuthenticationService authenticationService;
+
+  @Autowired
+  private TenantRegistry tenantRegistry;
+
+  @Test
+  public void importedCredentialsAuthenticate() throws IOException {
+    var authenticators = authenticators(3);
+    var records = new ArrayList<TransferRecord>();
+    for (var authenticator : authenticators) {
+      records.add(record(authenticator));
+    }
+    var file = write(TransferFormat.NDJSON, records);
+
+    var checkpoint = importer.importFrom(file, TransferFormat.NDJSON);
+
+    assertEquals(3, checkpoint.getUsers());
+    assertEquals(3, checkpoint.getCredentials());
+    assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".checkpoint")));
+    for (int i = 0; i < records.size(); i++) {
+      var imported = userRepository.findWithCredentialIdsByEmail(Tenant.DEFAULT_ID, records.get(i).getEmail())
+          .orElseThrow();
+      assertArrayEquals(authenticators.get(i).getCredentialId(), imported.getCredentialIds().get(0));
+      assertTrue(authenticate(authenticators.get(i)));
+    }
+  }
+
+  @Test
+  public void rejectsInvalidPublicKey() throws IOException {
+    var authenticators = authenticators(2);
+    var invalid = record(authenticators.get(0));
+    invalid.getCredentials().get(0).setPublicKey(new byte[] { (byte) 0xa1, 0x01, 0x02 });
+    var file = write(TransferFormat.CBOR, List.of(invalid, record(authenticators.get(1))));
+
+    var checkpoint = importer.importFrom(file, TransferFormat.CBOR);
+
+    assertEquals(1, checkpoint.getUsers());
+    assertEquals(1, checkpoint.getRejected());
+    assertTrue(userRepository.findByEmail(Tenant.DEFAULT_ID, invalid.getEmail()).isEmpty());
+  }
+
+  @Test
+  public void resumesFromCheckpoint() throws IOException {
+    var authenticators = authenticators(3);
+    var records = new ArrayList<TransferRecord>();
+    for (var authenticator : authenticators) {
+      records.add(record(authenticator));
+    }
+    var file = write(TransferFormat.NDJSON, records);
+    //1行目までコミットした後に停止した状態とする
+    var firstLine = Files.readAllLines(file).get(0).length() + 1;
+    ImportCheckpoint.load(file).advance(firstLine, 1, 1, 0);
+
+    var checkpoint = importer.importFrom(file, TransferFormat.NDJSON);
+
+    assertEquals(3, checkpoint.getUsers());
+    assertTrue(userRepository.findByEmail(Tenant.DEFAULT_ID, records.get(0).getEmail()).isEmpty());
+    assertTrue(userRepository.findByEmail(Tenant.DEFAULT_ID, records.get(2).getEmail()).isPresent());
+  }
+
+  @Test
+  public void exportsWhatWasImported() throws IOException {
+    var authenticators = authenticators(2);
+    var records = List.of(record(authenticators.get(0)), record(authenticators.get(1)));
+    importer.importFrom(write(TransferFormat.CBOR, records), TransferFormat.CBOR);
+
+    var exported = folder.newFile().toPath();
+    var count = exporter.exportTo(exported, TransferFormat.NDJSON);
+
+    var lines = Files.readAllLines(exported);
+    assertEquals(count, lines.size());
+    var reader = TransferFormat.NDJSON.objectMapper().readerFor(TransferRecord.class);
+    for (var record : records) {
+      TransferRecord found = null;
+      for (var line : lines) {
+        TransferRecord candidate = reader.readValue(line);
+        if (candidate.getEmail().equals(record.getEmail())) {
+          found = candidate;
+        }
+      }
+      assertArrayEquals(record.getUserId(), found.getUserId());
+      assertArrayEquals(record.getCredentials().get(0).getCredentialId(),
+          found.getCredentials().get(0).getCredentialId());
+    }
+
+    //出力したファイルを再度登録しても重複しない
+    var checkpoint = importer.importFrom(exported, TransferFormat.NDJSON);
+    assertEquals(count, checkpoint.getUsers());
+    assertEquals(1, userRepository.findWithCredentialIdsByEmail(Tenant.DEFAULT_ID, records.get(0).getEmail())
+        .orElseThrow().getCredentialIds().size());
+  }
+
+  private List<SoftwareAuthenticator> authenticators(int count) {
+    var authenticators = new ArrayList<SoftwareAuthenticator>();
+    for (int i = 0; i < count; i++) {
+      var sequence = SEQUENCE.incrementAndGet();
+      authenticators.add(new SoftwareAuthenticator(i % 2 == 0 ? Algorithm.ES256 : Algorithm.RS256, 1000 + sequence));
+    }
+    return authenticators;
+  }
+
+  private static TransferRecord record(SoftwareAuthenticator authenticator) {
+    var sequence = SEQUENCE.incrementAndGet();
+    var credential = new TransferCredential();
+    credential.setCredentialId(authenticator.getCredentialId());
+    credential.setPublicKey(authenticator.getCOSEKey());
+    credential.setSignatureCounter(authenticator.getCounter());
+
+    var record = new TransferRecord();
+    record.setUserId(("imported-" + sequence).getBytes());
+    record.setEmail("imported-" + sequence + "@example.com");
+    record.setDisplayName("imported-" + sequence);
+    record.getCredentials().add(credential);
+    return record;
+  }
+
+  private Path write(TransferFormat format, List<TransferRecord> records) throws IOException {
+    var file = folder.newFile().toPath();
+    try (var out = Files.newOutputStream(file)) {
+      for (var record : records) {
+        out.write(format.objectMapper().writeValueAsBytes(record));
+        if (format == TransferFormat.NDJSON) {
+          out.write('\n');
+        }
+      }
+    }
+    return file;
+  }
+
+  private boolean authenticate(SoftwareAuthenticator authenticator) {
+    var challenge = new DefaultChallenge();
+    var assertion = authenticator.get(RP_ID, ORIGIN, challenge.getValue());
+    var request = new AssertionRequest(tenantRegistry.getDefaultTenant().getDefaultServerPropertyTemplate(),
+        challenge, assertion.getCredentialId(), assertion.getClientDataJSON(), assertion.getAuthenticatorData(),
+        assertion.getSignature());
+    return authenticationService.assertionFinishAll(List.of(request)).get(0).isVerified();
+  }
+}
@@ -0,0 +1,110 @@
+package jp.mijs.winter2019.security.webauthn.validator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.webauthn4j.data.attestation.authenticator.AAGUID;
+import com.webauthn4j.data.attestation.statement.AttestationCertificatePath;
+import com.webauthn4j.data.attestation.statement.COSEAlgorithmIdentifier;
+import com.webauthn4j.data.attestation.statement.PackedAttestationStatement;
+import com.webauthn4j.validator.exception.CertificateException;
+import com.webauthn4j.validator.exception.TrustAnchorNotFoundException;
+
+import jp.mijs.winter2019.security.webauthn.MutableClock;
+
+public class MetadataCertPathTrustworthinessValidatorTests {
+  private static final AAGUID DEMO = new AAGUID("a4e9fc6d-4cbe-4758-b8ba-37598bb5bbaa");
+  private static final AAGUID OTHER = new AAGUID("0d9b2e56-566b-c393-2940-f821b7f15d6d");
+  private static final AAGUID UNKNOWN = new AAGUID("00000000-0000-0000-0000-000000000001");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path file;
+  private MutableClock clock;
+  private PackedAttestationStatement statement;
+  private MetadataCertPathTrustworthinessValidator validator;
+
+  @Before
+  public void setUp() throws IOException, GeneralSecurityException {
+    file = folder.newFile().toPath();
+    try (InputStream in = getClass().getResourceAsStream("/metadata/metadata-statements.json")) {
+      Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    X509Certificate leaf;
+    try (InputStream in = getClass().getResourceAsStream("/metadata/attestation-leaf.pem")) {
+      leaf = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+    }
+    statement = new PackedAttestationStatement(COSEAlgorithmIdentifier.ES256, new byte[0],
+        new AttestationCertificatePath(List.of(leaf)), null);
+    clock = new MutableClock(Instant.now());
+    validator = new MetadataCertPathTrustworthinessValidator(file, 0, 10, 60000, 1000, clock);
+  }
+
+  @After
+  public void tearDown() {
+    validator.destroy();
+  }
+
+  @Test
+  public void cachesTrustedPath() {
+    validator.validate(DEMO, statement);
+    validator.validate(DEMO, statement);
+
+    assertEquals(1, validator.getMissCount());
+    assertEquals(1, validator.getHitCount());
+
+    clock.advance(Duration.ofMinutes(1));
+    validator.validate(DEMO, statement);
+
+    assertEquals(2, validator.getMissCount());
+  }
+
+  @Test(expected = TrustAnchorNotFoundException.class)
+  public void rejectsUnknownAaguid() {
+    validator.validate(UNKNOWN, statement);
+  }
+
+  @Test
+  public void cachesUntrustedPath() {
+    for (int i = 0; i < 2; i++) {
+      try {
+        validator.validate(OTHER, statement);
+      } catch (CertificateException e) {
+        continue;
+      }
+      throw new AssertionError("validated");
+    }
+    assertEquals(1, validator.getMissCount());
+    assertEquals(1, validator.getHitCount());
+  }
+
+  @Test(expected = TrustAnchorNotFoundException.class)
+  public void reloadsStatements() throws IOException {
+    validator.validate(DEMO, statement);
+    Files.write(file, "[]".getBytes(StandardCharsets.UTF_8));
+
+    validator.reload();
+
+    assertEquals(0, validator.getStatementCount());
+    validator.validate(DEMO, statement);
+  }
+}
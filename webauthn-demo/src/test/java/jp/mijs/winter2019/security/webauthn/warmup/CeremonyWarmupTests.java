@@ -0,0 +1,42 @@
+package jp.mijs.winter2019.security.webauthn.warmup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import jp.mijs.winter2019.security.webauthn.repository.UserRepository;
+import jp.mijs.winter2019.security.webauthn.tenant.Tenant;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE,
+    properties = { "webauthn.warmup.iterations=50", "webauthn.warmup.window=10" })
+public class CeremonyWarmupTests {
+  @Autowired
+  private CeremonyWarmup warmup;
+
+  @Autowired
+  private UserRepository userRepository;
+
+  @Test
+  public void becomesReadyAfterIterations() throws InterruptedException {
+    for (int i = 0; i < 600 && !warmup.isReady(); i++) {
+      Thread.sleep(100);
+    }
+
+    var health = warmup.health();
+    assertEquals(Status.UP, health.getStatus());
+    assertEquals(50, warmup.getIterations());
+    assertFalse(health.getDetails().containsKey("failure"));
+    assertTrue(warmup.getAssertionMeanMicros() > 0);
+    //作業用のデータベースを使用し、実際のデータベースには登録しない
+    assertTrue(userRepository.findByEmail(Tenant.DEFAULT_ID, "warmup-0@warmup.invalid").isEmpty());
+  }
+}